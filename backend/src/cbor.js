@@ -0,0 +1,182 @@
+// Минимальный CBOR (RFC 8949) для обмена с обёрткой: ровно то, что отдаёт/принимает
+// Jackson на /crypto/*. Map, array (в т.ч. indefinite-length), текст, байтовые
+// строки (Buffer), целые, float, true/false/null. Теги и bigint не поддерживаются.
+
+function encodeHead(chunks, major, value) {
+  if (value < 24) {
+    chunks.push(Buffer.from([(major << 5) | value]));
+  } else if (value < 0x100) {
+    chunks.push(Buffer.from([(major << 5) | 24, value]));
+  } else if (value < 0x10000) {
+    const b = Buffer.alloc(3);
+    b[0] = (major << 5) | 25;
+    b.writeUInt16BE(value, 1);
+    chunks.push(b);
+  } else if (value < 0x100000000) {
+    const b = Buffer.alloc(5);
+    b[0] = (major << 5) | 26;
+    b.writeUInt32BE(value, 1);
+    chunks.push(b);
+  } else {
+    const b = Buffer.alloc(9);
+    b[0] = (major << 5) | 27;
+    b.writeBigUInt64BE(BigInt(value), 1);
+    chunks.push(b);
+  }
+}
+
+function encodeValue(chunks, v) {
+  if (v === null || v === undefined) {
+    chunks.push(Buffer.from([0xf6]));
+  } else if (v === true) {
+    chunks.push(Buffer.from([0xf5]));
+  } else if (v === false) {
+    chunks.push(Buffer.from([0xf4]));
+  } else if (typeof v === "number") {
+    if (Number.isSafeInteger(v)) {
+      if (v >= 0) encodeHead(chunks, 0, v);
+      else encodeHead(chunks, 1, -1 - v);
+    } else {
+      const b = Buffer.alloc(9);
+      b[0] = 0xfb;
+      b.writeDoubleBE(v, 1);
+      chunks.push(b);
+    }
+  } else if (typeof v === "string") {
+    const s = Buffer.from(v, "utf8");
+    encodeHead(chunks, 3, s.length);
+    chunks.push(s);
+  } else if (Buffer.isBuffer(v) || v instanceof Uint8Array) {
+    encodeHead(chunks, 2, v.length);
+    chunks.push(Buffer.from(v.buffer, v.byteOffset, v.length));
+  } else if (Array.isArray(v)) {
+    encodeHead(chunks, 4, v.length);
+    for (const item of v) encodeValue(chunks, item);
+  } else if (typeof v === "object") {
+    const keys = Object.keys(v).filter((k) => v[k] !== undefined);
+    encodeHead(chunks, 5, keys.length);
+    for (const k of keys) {
+      encodeValue(chunks, k);
+      encodeValue(chunks, v[k]);
+    }
+  } else {
+    throw new Error(`CBOR: unsupported type ${typeof v}`);
+  }
+}
+
+function encode(value) {
+  const chunks = [];
+  encodeValue(chunks, value);
+  return Buffer.concat(chunks);
+}
+
+const BREAK = Symbol("break");
+
+function decode(buf) {
+  let pos = 0;
+
+  function need(n) {
+    if (pos + n > buf.length) throw new Error("CBOR: unexpected end of data");
+  }
+
+  function readLength(info) {
+    if (info < 24) return info;
+    if (info === 24) { need(1); return buf[pos++]; }
+    if (info === 25) { need(2); const v = buf.readUInt16BE(pos); pos += 2; return v; }
+    if (info === 26) { need(4); const v = buf.readUInt32BE(pos); pos += 4; return v; }
+    if (info === 27) {
+      need(8);
+      const v = buf.readBigUInt64BE(pos);
+      pos += 8;
+      if (v > BigInt(Number.MAX_SAFE_INTEGER)) throw new Error("CBOR: integer too large");
+      return Number(v);
+    }
+    throw new Error(`CBOR: bad additional info ${info}`);
+  }
+
+  function readChunked(major, info) {
+    if (info !== 31) {
+      const len = readLength(info);
+      need(len);
+      const slice = buf.subarray(pos, pos + len);
+      pos += len;
+      return slice;
+    }
+    const parts = [];
+    for (;;) {
+      need(1);
+      if (buf[pos] === 0xff) { pos++; break; }
+      const ib = buf[pos++];
+      if (ib >> 5 !== major || (ib & 0x1f) === 31) throw new Error("CBOR: bad chunk in indefinite string");
+      parts.push(readChunked(major, ib & 0x1f));
+    }
+    return Buffer.concat(parts);
+  }
+
+  function readItem() {
+    need(1);
+    const ib = buf[pos++];
+    const major = ib >> 5;
+    const info = ib & 0x1f;
+    switch (major) {
+      case 0:
+        return readLength(info);
+      case 1:
+        return -1 - readLength(info);
+      case 2:
+        return Buffer.from(readChunked(2, info)); // копия: не держим весь ответ ради одного поля
+      case 3:
+        return readChunked(3, info).toString("utf8");
+      case 4: {
+        const arr = [];
+        if (info === 31) {
+          for (let v = readItem(); v !== BREAK; v = readItem()) arr.push(v);
+        } else {
+          const len = readLength(info);
+          for (let i = 0; i < len; i++) arr.push(readItem());
+        }
+        return arr;
+      }
+      case 5: {
+        const obj = {};
+        if (info === 31) {
+          for (let k = readItem(); k !== BREAK; k = readItem()) obj[k] = readItem();
+        } else {
+          const len = readLength(info);
+          for (let i = 0; i < len; i++) {
+            const k = readItem();
+            obj[k] = readItem();
+          }
+        }
+        return obj;
+      }
+      case 6:
+        throw new Error("CBOR: tags are not supported");
+      default:
+        if (info === 20) return false;
+        if (info === 21) return true;
+        if (info === 22 || info === 23) return null;
+        if (info === 25) { need(2); const v = halfToNumber(buf.readUInt16BE(pos)); pos += 2; return v; }
+        if (info === 26) { need(4); const v = buf.readFloatBE(pos); pos += 4; return v; }
+        if (info === 27) { need(8); const v = buf.readDoubleBE(pos); pos += 8; return v; }
+        if (info === 31) return BREAK;
+        throw new Error(`CBOR: unsupported simple value ${info}`);
+    }
+  }
+
+  const value = readItem();
+  if (value === BREAK) throw new Error("CBOR: unexpected break");
+  if (pos !== buf.length) throw new Error("CBOR: trailing data");
+  return value;
+}
+
+function halfToNumber(h) {
+  const exp = (h >> 10) & 0x1f;
+  const mant = h & 0x3ff;
+  const sign = h & 0x8000 ? -1 : 1;
+  if (exp === 0) return sign * Math.pow(2, -14) * (mant / 1024);
+  if (exp === 31) return mant ? NaN : sign * Infinity;
+  return sign * Math.pow(2, exp - 15) * (1 + mant / 1024);
+}
+
+module.exports = { encode, decode };
@@ -1,58 +1,216 @@
+const http = require("http");
+const https = require("https");
+const cbor = require("./cbor");
+
+// docker-compose задаёт WRAPPER_URL (балансировщик перед репликами обёртки)
 const WRAPPER_BASE_URL =
-  process.env.WRAPPER_BASE_URL || "http://app-wrapper-java:8080";
+  process.env.WRAPPER_BASE_URL || process.env.WRAPPER_URL || "http://wrapper-lb:8080";
+
+// "cbor" - encrypt/decrypt (и batch) ходят в обёртку в application/cbor:
+// шифротекст сырыми байтами, без Base64 на проводе. По умолчанию - JSON.
+// Наружу (в БД, в ответы API) шифротекст по-прежнему отдаётся строкой Base64.
+const WRAPPER_WIRE_FORMAT = (process.env.WRAPPER_WIRE_FORMAT || "json").toLowerCase();
+const USE_CBOR = WRAPPER_WIRE_FORMAT === "cbor";
+
+// Постоянные соединения с обёрткой: без keep-alive каждый вызов - новый TCP-handshake.
+// Простаивающий сокет закрываем раньше, чем его закроет Tomcat (keep-alive-timeout 60s),
+// чтобы не отправить запрос в уже закрываемое соединение.
+const WRAPPER_MAX_SOCKETS = parseInt(process.env.WRAPPER_MAX_SOCKETS || "64", 10);
+const agentOptions = { keepAlive: true, maxSockets: WRAPPER_MAX_SOCKETS, timeout: 30000 };
+const wrapperHttpAgent = new http.Agent(agentOptions);
+const wrapperHttpsAgent = new https.Agent(agentOptions);
+
+// Обёртка делит запросы на interactive и bulk (X-Crypto-Priority) и ограничивает частоту
+// по клиенту: по токену X-Client-Token (crypto.admission.client-tokens обёртки), без него - по адресу.
+// X-Client-Id - только подпись в логах. Фоновые обходы (сверка подписей всех ролей, переиндексация)
+// помечаем bulk, чтобы они не отнимали ресурсы у запросов пользователей.
+const WRAPPER_CLIENT_ID = process.env.WRAPPER_CLIENT_ID || "backend";
+const WRAPPER_CLIENT_TOKEN = process.env.WRAPPER_CLIENT_TOKEN || "";
+
+function wrapperHeaders(contentHeaders, options = {}) {
+  const headers = { ...contentHeaders, "X-Client-Id": WRAPPER_CLIENT_ID };
+  if (WRAPPER_CLIENT_TOKEN) headers["X-Client-Token"] = WRAPPER_CLIENT_TOKEN;
+  if (options.bulk) headers["X-Crypto-Priority"] = "bulk";
+  return headers;
+}
+
+// bulk-запрос получил 429 - ждём Retry-After и повторяем (интерактивные отдаём ошибкой сразу)
+const WRAPPER_BULK_MAX_RETRIES = parseInt(process.env.WRAPPER_BULK_MAX_RETRIES || "5", 10);
+
+async function fetchWrapper(fetch, url, init, options = {}) {
+  for (let attempt = 0; ; attempt++) {
+    const res = await fetch(url, init);
+    if (res.status !== 429 || !options.bulk || attempt >= WRAPPER_BULK_MAX_RETRIES) {
+      return res;
+    }
+    const retryAfter = parseInt(res.headers.get("retry-after") || "1", 10);
+    await res.text();
+    await new Promise((resolve) => setTimeout(resolve, Math.max(1, retryAfter) * 1000));
+  }
+}
+
+function wrapperAgent(parsedUrl) {
+  return parsedUrl.protocol === "https:" ? wrapperHttpsAgent : wrapperHttpAgent;
+}
 
 async function getFetch() {
   const mod = await import("node-fetch");
   return mod.default;
 }
 
-async function encryptField(userId, field, plaintext) {
-  if (!plaintext) return null;
-
+// POST в обёртку в выбранном формате; возвращает разобранный ответ
+async function postWrapper(path, payload, errorLabel, options = {}) {
   const fetch = await getFetch();
 
-  const res = await fetch(`${WRAPPER_BASE_URL}/crypto/encrypt`, {
-    method: "POST",
-    headers: { "Content-Type": "application/json" },
-    body: JSON.stringify({
-      user_id: userId,
-      field,
-      plaintext
-    })
-  });
+  const res = await fetchWrapper(
+    fetch,
+    `${WRAPPER_BASE_URL}${path}`,
+    {
+      method: "POST",
+      agent: wrapperAgent,
+      headers: wrapperHeaders(
+        USE_CBOR
+          ? { "Content-Type": "application/cbor", Accept: "application/cbor" }
+          : { "Content-Type": "application/json" },
+        options
+      ),
+      body: USE_CBOR ? cbor.encode(payload) : JSON.stringify(payload)
+    },
+    options
+  );
 
   if (!res.ok) {
     const text = await res.text();
-    throw new Error(`Encrypt error: ${res.status} ${text}`);
+    throw new Error(`${errorLabel}: ${res.status} ${text}`);
   }
 
-  const data = await res.json();
-  return data.ciphertext;
+  if (USE_CBOR) {
+    return cbor.decode(Buffer.from(await res.arrayBuffer()));
+  }
+  return await res.json();
+}
+
+// шифротекст из ответа обёртки -> Base64-строка (в CBOR он приходит Buffer'ом)
+function ciphertextFromWire(value) {
+  if (value == null) return null;
+  return Buffer.isBuffer(value) ? value.toString("base64") : value;
+}
+
+// Base64-строка из БД -> поле запроса к обёртке
+function ciphertextToWire(ciphertextB64) {
+  if (!ciphertextB64) return null;
+  return USE_CBOR ? Buffer.from(ciphertextB64, "base64") : ciphertextB64;
+}
+
+async function encryptField(userId, field, plaintext) {
+  if (!plaintext) return null;
+
+  const data = await postWrapper(
+    "/crypto/encrypt",
+    {
+      user_id: userId,
+      field,
+      plaintext
+    },
+    "Encrypt error"
+  );
+  return ciphertextFromWire(data.ciphertext);
 }
 
 async function decryptField(userId, field, ciphertext) {
   if (!ciphertext) return null;
 
-  const fetch = await getFetch();
-
-  const res = await fetch(`${WRAPPER_BASE_URL}/crypto/decrypt`, {
-    method: "POST",
-    headers: { "Content-Type": "application/json" },
-    body: JSON.stringify({
+  const data = await postWrapper(
+    "/crypto/decrypt",
+    {
       user_id: userId,
       field,
-      ciphertext,
-      key_id: "stub-key-1"
-    })
+      ciphertext: ciphertextToWire(ciphertext)
+    },
+    "Decrypt error"
+  );
+  return data.plaintext;
+}
+
+// Пакетное шифрование: items = [{ userId, field, plaintext }],
+// возвращает массив ciphertext в том же порядке (null для пустых значений).
+async function encryptFieldsBatch(items) {
+  if (!items.length) return [];
+
+  const data = await postWrapper(
+    "/crypto/encrypt-batch",
+    {
+      items: items.map((it) => ({
+        user_id: it.userId,
+        field: it.field,
+        plaintext: it.plaintext || null
+      }))
+    },
+    "Encrypt batch error"
+  );
+  return data.items.map((r) => {
+    if (r.status !== "ok") {
+      throw new Error(`Encrypt batch item error: ${r.error}`);
+    }
+    return ciphertextFromWire(r.ciphertext);
   });
+}
 
-  if (!res.ok) {
-    const text = await res.text();
-    throw new Error(`Decrypt error: ${res.status} ${text}`);
-  }
+// Пакетная расшифровка: items = [{ userId, field, ciphertext }],
+// возвращает массив plaintext в том же порядке (null для пустых значений).
+// options.bulk - фоновая задача.
+async function decryptFieldsBatch(items, options = {}) {
+  if (!items.length) return [];
 
-  const data = await res.json();
-  return data.plaintext;
+  const data = await postWrapper(
+    "/crypto/decrypt-batch",
+    {
+      items: items.map((it) => ({
+        user_id: it.userId,
+        field: it.field,
+        ciphertext: ciphertextToWire(it.ciphertext)
+      }))
+    },
+    "Decrypt batch error",
+    options
+  );
+  return data.items.map((r) => {
+    if (r.status !== "ok") {
+      throw new Error(`Decrypt batch item error: ${r.error}`);
+    }
+    return r.plaintext;
+  });
+}
+
+// Токен слепого индекса (детерминированный HMAC нормализованного значения):
+// по нему ищем в индексированной колонке вместо расшифровки всех строк.
+async function blindIndex(field, value) {
+  if (value == null || value === "") return null;
+
+  const data = await postWrapper("/crypto/blind-index", { field, value }, "Blind index error");
+  return data.token;
+}
+
+// Пакетная форма: items = [{ field, value }], возвращает массив { token, error } в том же порядке
+// (error - значение не нормализуется, например не телефон). options.bulk - фоновая задача.
+async function blindIndexBatch(items, options = {}) {
+  if (!items.length) return [];
+
+  const data = await postWrapper(
+    "/crypto/blind-index-batch",
+    {
+      items: items.map((it) => ({
+        field: it.field,
+        value: it.value === "" ? null : it.value
+      }))
+    },
+    "Blind index batch error",
+    options
+  );
+  return data.items.map((r) => ({
+    token: r.status === "ok" ? r.token : null,
+    error: r.status === "ok" ? null : r.error
+  }));
 }
 
 async function signAccessOperation(userId, roleName, action = "GRANT_ROLE") {
@@ -60,7 +218,8 @@ async function signAccessOperation(userId, roleName, action = "GRANT_ROLE") {
 
   const res = await fetch(`${WRAPPER_BASE_URL}/crypto/access-sign`, {
     method: "POST",
-    headers: { "Content-Type": "application/json" },
+    agent: wrapperAgent,
+    headers: wrapperHeaders({ "Content-Type": "application/json" }),
     body: JSON.stringify({
       user_id: userId,
       role_name: roleName,
@@ -77,11 +236,52 @@ async function signAccessOperation(userId, roleName, action = "GRANT_ROLE") {
   return data.hmac; // base64 подпись
 }
 
+// Пакетная проверка подписей ролей: items = [{ userId, roleName, action, signature }],
+// возвращает массив { valid, error } в том же порядке (сравнение - на стороне обёртки).
+// options.bulk - фоновая задача (обход всех ролей).
+async function verifyAccessSignaturesBatch(items, options = {}) {
+  if (!items.length) return [];
+
+  const fetch = await getFetch();
+
+  const res = await fetchWrapper(
+    fetch,
+    `${WRAPPER_BASE_URL}/crypto/access-verify-batch`,
+    {
+      method: "POST",
+      agent: wrapperAgent,
+      headers: wrapperHeaders({ "Content-Type": "application/json" }, options),
+      body: JSON.stringify({
+        items: items.map((it) => ({
+          user_id: it.userId,
+          role_name: it.roleName,
+          action: it.action || "GRANT_ROLE",
+          signature: it.signature
+        }))
+      })
+    },
+    options
+  );
+
+  if (!res.ok) {
+    const text = await res.text();
+    throw new Error(`Access-verify batch error: ${res.status} ${text}`);
+  }
+
+  const data = await res.json();
+  return data.items.map((r) => ({
+    valid: r.status === "ok" && r.valid === true,
+    error: r.status === "ok" ? null : r.error
+  }));
+}
+
 async function rotateMasterKey() {
   const fetch = await getFetch();
 
   const res = await fetch(`${WRAPPER_BASE_URL}/crypto/rotate-master`, {
-    method: "POST"
+    method: "POST",
+    agent: wrapperAgent,
+    headers: wrapperHeaders({})
   });
 
   if (!res.ok) {
@@ -97,6 +297,11 @@ async function rotateMasterKey() {
 module.exports = {
   encryptField,
   decryptField,
+  encryptFieldsBatch,
+  decryptFieldsBatch,
+  blindIndex,
+  blindIndexBatch,
   signAccessOperation,
+  verifyAccessSignaturesBatch,
   rotateMasterKey
 };
@@ -2,7 +2,84 @@ const express = require("express");
 const pool = require("./db");
 const { logAudit } = require("./audit");
 const { authKeycloakMiddleware } = require("./authMiddleware");
-const { encryptField, decryptField, signAccessOperation, rotateMasterKey } = require("./cryptoClient");
+const {
+  encryptFieldsBatch,
+  decryptFieldsBatch,
+  blindIndexBatch,
+  signAccessOperation,
+  verifyAccessSignaturesBatch,
+  rotateMasterKey
+} = require("./cryptoClient");
+
+// Столько подписей уходит в один запрос /crypto/access-verify-batch (лимит обёртки - 10000)
+const VERIFY_BATCH_SIZE = 5000;
+
+// Проверка подписей ролей пачками: rows = [{ user_id, role_name, signature }],
+// возвращает массив { valid, integrity, reason } в том же порядке.
+// options.bulk - обход всех ролей (админская сводка), в обёртке идёт классом bulk.
+async function verifyRoleSignatures(rows, options = {}) {
+  const results = new Array(rows.length);
+  const toVerify = [];
+
+  rows.forEach((row, idx) => {
+    if (!row.signature) {
+      results[idx] = {
+        valid: false,
+        integrity: "missing_signature",
+        reason: "Role record has no cryptographic signature (legacy or tampered)"
+      };
+    } else {
+      toVerify.push(idx);
+    }
+  });
+
+  for (let start = 0; start < toVerify.length; start += VERIFY_BATCH_SIZE) {
+    const chunk = toVerify.slice(start, start + VERIFY_BATCH_SIZE);
+    try {
+      const verified = await verifyAccessSignaturesBatch(
+        chunk.map((idx) => ({
+          userId: rows[idx].user_id,
+          roleName: rows[idx].role_name,
+          action: "GRANT_ROLE",
+          signature: rows[idx].signature
+        })),
+        options
+      );
+      verified.forEach((v, i) => {
+        if (v.error) {
+          results[chunk[i]] = {
+            valid: false,
+            integrity: "verification_error",
+            reason: "Error during HMAC verification: " + v.error
+          };
+        } else if (v.valid) {
+          results[chunk[i]] = {
+            valid: true,
+            integrity: "ok",
+            reason: "Signature matches HMAC(user_id, role_name, action)"
+          };
+        } else {
+          results[chunk[i]] = {
+            valid: false,
+            integrity: "signature_mismatch",
+            reason: "Stored signature does not match recomputed HMAC"
+          };
+        }
+      });
+    } catch (err) {
+      console.error("Error verifying role signatures:", err);
+      for (const idx of chunk) {
+        results[idx] = {
+          valid: false,
+          integrity: "verification_error",
+          reason: "Error during HMAC verification: " + err.message
+        };
+      }
+    }
+  }
+
+  return results;
+}
 
 // --------- Role hierarchy for notes access ---------
 const ROLE_RANK = {
@@ -289,55 +366,17 @@ app.get("/users/:id/roles/verify", async (req, res) => {
       });
     }
 
-    // Для каждой роли проверяем подпись (если она есть)
-    const rolesWithCheck = await Promise.all(
-      rows.map(async (row) => {
-        const base = {
-          id: row.id,
-          role_name: row.role_name,
-          created_at: row.created_at,
-          has_signature: !!row.signature
-        };
-
-        if (!row.signature) {
-          return {
-            ...base,
-            valid: false,
-            integrity: "missing_signature",
-            reason: "Role record has no cryptographic signature (legacy or tampered)"
-          };
-        }
-
-        try {
-          // Пересчитываем подпись через обёртку
-          const expected = await signAccessOperation(userId, row.role_name, "GRANT_ROLE");
-
-          if (expected === row.signature) {
-            return {
-              ...base,
-              valid: true,
-              integrity: "ok",
-              reason: "Signature matches HMAC(user_id, role_name, action)"
-            };
-          } else {
-            return {
-              ...base,
-              valid: false,
-              integrity: "signature_mismatch",
-              reason: "Stored signature does not match recomputed HMAC"
-            };
-          }
-        } catch (err) {
-          console.error("Error verifying role signature:", err);
-          return {
-            ...base,
-            valid: false,
-            integrity: "verification_error",
-            reason: "Error during HMAC verification: " + err.message
-          };
-        }
-      })
+    // Все подписи пользователя - одним запросом к обёртке
+    const checks = await verifyRoleSignatures(
+      rows.map((row) => ({ user_id: userId, role_name: row.role_name, signature: row.signature }))
     );
+    const rolesWithCheck = rows.map((row, idx) => ({
+      id: row.id,
+      role_name: row.role_name,
+      created_at: row.created_at,
+      has_signature: !!row.signature,
+      ...checks[idx]
+    }));
 
     res.json({
       status: "ok",
@@ -464,12 +503,11 @@ app.get("/users/:id/profile", async (req, res) => {
     let birthDate = null;
 
     try {
-      phone = await decryptField(userId, "phone", row.phone_encrypted);
-      birthDate = await decryptField(
-        userId,
-        "birth_date",
-        row.birth_date_encrypted
-      );
+      // оба поля - одним запросом в обёртку
+      [phone, birthDate] = await decryptFieldsBatch([
+        { userId, field: "phone", ciphertext: row.phone_encrypted },
+        { userId, field: "birth_date", ciphertext: row.birth_date_encrypted }
+      ]);
     } catch (e) {
       console.error("Error decrypting profile fields:", e.message);
     }
@@ -517,21 +555,27 @@ app.post("/users/:id/profile", async (req, res) => {
       });
     }
 
-    // шифруем чувствительные поля через обертку
-    const encryptedPhone = phone
-      ? await encryptField(userId, "phone", phone)
-      : null;
-
-    const encryptedBirthDate = birth_date
-      ? await encryptField(userId, "birth_date", birth_date)
-      : null;
+    // шифруем чувствительные поля через обертку (одним batch-запросом),
+    // параллельно - токен слепого индекса телефона для поиска
+    const [[encryptedPhone, encryptedBirthDate], [phoneIndex]] = await Promise.all([
+      encryptFieldsBatch([
+        { userId, field: "phone", plaintext: phone },
+        { userId, field: "birth_date", plaintext: birth_date }
+      ]),
+      blindIndexBatch([{ field: "phone", value: phone }])
+    ]);
+    if (phoneIndex.error) {
+      // номер не приводится к E.164 - сохраняем, но по телефону такой профиль не найти
+      console.warn("Phone is not indexable:", phoneIndex.error);
+    }
 
     const result = await pool.query(
-      `INSERT INTO profiles (user_id, full_name, phone_encrypted, birth_date_encrypted, settings)
-       VALUES ($1, $2, $3, $4, $5)
+      `INSERT INTO profiles (user_id, full_name, phone_encrypted, phone_bidx, birth_date_encrypted, settings)
+       VALUES ($1, $2, $3, $4, $5, $6)
        ON CONFLICT (user_id) DO UPDATE
        SET full_name = EXCLUDED.full_name,
            phone_encrypted = EXCLUDED.phone_encrypted,
+           phone_bidx = EXCLUDED.phone_bidx,
            birth_date_encrypted = EXCLUDED.birth_date_encrypted,
            settings = EXCLUDED.settings,
            updated_at = now()
@@ -540,6 +584,7 @@ app.post("/users/:id/profile", async (req, res) => {
         userId,
         full_name || null,
         encryptedPhone,
+        phoneIndex.token,
         encryptedBirthDate,
         settings || null
       ]
@@ -576,6 +621,49 @@ app.post("/users/:id/profile", async (req, res) => {
   }
 });
 
+/**
+ * Поиск профилей по телефону: индексный запрос по слепому индексу phone_bidx
+ * (токен считает обёртка), без расшифровки строк.
+ */
+app.get("/profiles/search", async (req, res) => {
+  try {
+    const phone = req.query.phone;
+    if (!phone) {
+      return res.status(400).json({
+        status: "error",
+        message: "phone query parameter is required"
+      });
+    }
+
+    const [phoneIndex] = await blindIndexBatch([{ field: "phone", value: String(phone) }]);
+    if (phoneIndex.error) {
+      return res.status(400).json({
+        status: "error",
+        message: phoneIndex.error
+      });
+    }
+
+    const result = await pool.query(
+      `SELECT user_id, full_name, created_at, updated_at
+       FROM profiles
+       WHERE phone_bidx = $1`,
+      [phoneIndex.token]
+    );
+
+    res.json({
+      status: "ok",
+      count: result.rowCount,
+      profiles: result.rows
+    });
+  } catch (err) {
+    console.error("Error searching profiles:", err);
+    res.status(500).json({
+      status: "error",
+      message: err.message
+    });
+  }
+});
+
 /**
  * Тест "защищённого" доступа по роли ADMIN.
  *
@@ -817,6 +905,88 @@ app.post("/admin/rotate-master", async (req, res) => {
   }
 });
 
+// Заполнение phone_bidx для профилей, сохранённых до появления слепого индекса:
+// страницами расшифровываем телефон и считаем токены пачкой. Строку, изменённую
+// за это время, не трогаем (сравнение по phone_encrypted).
+const REINDEX_PAGE_SIZE = 500;
+
+app.post("/admin/profiles/reindex-phone", async (req, res) => {
+  try {
+    let cursor = "";
+    let scanned = 0;
+    let indexed = 0;
+    let failed = 0;
+
+    for (;;) {
+      const page = await pool.query(
+        `SELECT user_id::text AS uid, phone_encrypted
+         FROM profiles
+         WHERE phone_bidx IS NULL AND phone_encrypted IS NOT NULL AND user_id::text > $1
+         ORDER BY user_id::text
+         LIMIT $2`,
+        [cursor, REINDEX_PAGE_SIZE]
+      );
+      if (page.rowCount === 0) break;
+      cursor = page.rows[page.rowCount - 1].uid;
+      scanned += page.rowCount;
+
+      let phones;
+      try {
+        phones = await decryptFieldsBatch(
+          page.rows.map((r) => ({ userId: r.uid, field: "phone", ciphertext: r.phone_encrypted })),
+          { bulk: true }
+        );
+      } catch (e) {
+        console.error("reindex-phone: decrypt failed for page ending at", cursor, e.message);
+        failed += page.rowCount;
+        continue;
+      }
+
+      const tokens = await blindIndexBatch(
+        phones.map((p) => ({ field: "phone", value: p })),
+        { bulk: true }
+      );
+
+      const userIds = [];
+      const ciphertexts = [];
+      const bidx = [];
+      tokens.forEach((t, i) => {
+        if (t.token) {
+          userIds.push(page.rows[i].uid);
+          ciphertexts.push(page.rows[i].phone_encrypted);
+          bidx.push(t.token);
+        } else {
+          failed += 1;
+        }
+      });
+
+      if (userIds.length) {
+        const updated = await pool.query(
+          `UPDATE profiles p
+           SET phone_bidx = v.bidx
+           FROM unnest($1::text[], $2::text[], $3::text[]) AS v(uid, enc, bidx)
+           WHERE p.user_id::text = v.uid AND p.phone_encrypted = v.enc AND p.phone_bidx IS NULL`,
+          [userIds, ciphertexts, bidx]
+        );
+        indexed += updated.rowCount;
+      }
+    }
+
+    res.json({
+      status: "ok",
+      scanned,
+      indexed,
+      failed
+    });
+  } catch (err) {
+    console.error("Error in /admin/profiles/reindex-phone:", err);
+    res.status(500).json({
+      status: "error",
+      message: err.message
+    });
+  }
+});
+
 // -------- ADMIN: статус пользователей и целостность ролей --------
 app.get("/admin/users/status", async (req, res) => {
   try {
@@ -826,42 +996,35 @@ app.get("/admin/users/status", async (req, res) => {
     );
     const users = usersRes.rows;
 
-    const results = [];
-
-    // 2. Для каждого пользователя дергаем уже существующий эндпоинт /users/:id/roles/verify
-    for (const u of users) {
-      let rolesCount = 0;
-      let hasIssues = false;
+    // 2. Все роли всех пользователей одним запросом и проверка подписей пачками
+    //    (раньше - HTTP-вызов /roles/verify на каждого пользователя и /crypto/access-sign на каждую роль)
+    const rolesRes = await pool.query(
+      "SELECT user_id, role_name, signature FROM user_roles"
+    );
+    const roleRows = rolesRes.rows;
 
-      try {
-        const verifyRes = await fetch(
-          `http://localhost:${port}/users/${u.id}/roles/verify`
-        );
+    const checks = await verifyRoleSignatures(roleRows, { bulk: true });
 
-        if (verifyRes.ok) {
-          const data = await verifyRes.json();
-          const roles = data.roles || [];
-          rolesCount = data.count ?? roles.length;
-          // есть ли хотя бы одна роль с проблемой (valid === false)
-          hasIssues = roles.some((r) => r.valid === false);
-        } else {
-          // если сам запрос /roles/verify вернул ошибку — считаем, что есть проблемы
-          hasIssues = true;
-        }
-      } catch (e) {
-        console.error("Error checking roles for user", u.id, e);
-        hasIssues = true;
-      }
+    const statsByUser = new Map();
+    roleRows.forEach((row, idx) => {
+      const key = String(row.user_id);
+      const stats = statsByUser.get(key) || { rolesCount: 0, hasIssues: false };
+      stats.rolesCount += 1;
+      if (checks[idx].valid === false) stats.hasIssues = true;
+      statsByUser.set(key, stats);
+    });
 
-      results.push({
+    const results = users.map((u) => {
+      const stats = statsByUser.get(String(u.id)) || { rolesCount: 0, hasIssues: false };
+      return {
         id: u.id,
         primary_email: u.primary_email,
         is_active: u.is_active,
         created_at: u.created_at,
-        roles_count: rolesCount,
-        has_issues: hasIssues
-      });
-    }
+        roles_count: stats.rolesCount,
+        has_issues: stats.hasIssues
+      };
+    });
 
     res.json({
       status: "ok",
@@ -1154,6 +1317,18 @@ app.put("/notes/:id", async (req, res) => {
   }
 });
 
-app.listen(port, () => {
-  console.log(`Backend listening on port ${port}`);
+// Колонка слепого индекса телефона и индекс по ней (идемпотентно, при старте)
+async function ensureProfileBlindIndex() {
+  try {
+    await pool.query("ALTER TABLE profiles ADD COLUMN IF NOT EXISTS phone_bidx text");
+    await pool.query("CREATE INDEX IF NOT EXISTS profiles_phone_bidx_idx ON profiles (phone_bidx)");
+  } catch (err) {
+    console.error("Error ensuring profiles.phone_bidx:", err.message);
+  }
+}
+
+ensureProfileBlindIndex().finally(() => {
+  app.listen(port, () => {
+    console.log(`Backend listening on port ${port}`);
+  });
 });
@@ -0,0 +1,160 @@
+// Кодек src/cbor.js против того, что реально пишет и читает обёртка (Jackson CBORMapper 2.17).
+// Фикстуры *_JACKSON - вывод CBORMapper.writeValueAsBytes для DTO CryptoController.Binary*:
+// POJO Jackson пишет indefinite-length map (0xbf ... 0xff), List - массивом известной длины.
+// Половинные float Jackson не пишет, но другой CBOR-клиент может - векторы из RFC 8949, приложение A.
+const test = require("node:test");
+const assert = require("node:assert/strict");
+const cbor = require("../src/cbor");
+
+const hex = (s) => Buffer.from(s, "hex");
+
+function bytes0to299() {
+  const b = Buffer.alloc(300);
+  for (let i = 0; i < b.length; i++) b[i] = i & 0xff;
+  return b;
+}
+
+// new BinaryEncryptResponse(new byte[]{1, 2, 3, -1}, "AES-256-GCM", "master-v2")
+const SINGLE_JACKSON =
+  "bf6a6369706865727465787444010203ff64616c676f6b4145532d3235362d47434d666b65795f6964696d61737465722d7632ff";
+
+// BinaryEncryptBatchResponse: ok с шифротекстом 0..299 (длина в 2 байта) и error без шифротекста
+const BATCH_JACKSON =
+  "bf656974656d7382bf66737461747573626f6b6a6369706865727465787459012c" +
+  bytes0to299().toString("hex") +
+  "666b65795f6964696d61737465722d7632656572726f72f6ff" +
+  "bf66737461747573656572726f726a63697068657274657874f6666b65795f6964f6" +
+  "656572726f7273757365725f6964206973207265717569726564ff" +
+  "64616c676f6b4145532d3235362d47434d666b65795f6964696d61737465722d7632ff";
+
+// LinkedHashMap: 23, 24, 1000, 100000, 5000000000L, -500, 1.5, 0.1, true, null, "ключ"
+const NUMBERS_JACKSON =
+  "bf65736d616c6c17646279746518186573686f72741903e863696e741a000186a0646c6f6e671b000000012a05f200" +
+  "636e65673901f366646f75626c65fb3ff800000000000065726174696ffb3fb999999999999a64666c6167f5" +
+  "646e6f6e65f6647465787468d0bad0bbd18ed187ff";
+
+test("decodes Jackson single response: indefinite-length map and byte string", () => {
+  const value = cbor.decode(hex(SINGLE_JACKSON));
+
+  assert.deepEqual(value, {
+    ciphertext: Buffer.from([1, 2, 3, 0xff]),
+    algo: "AES-256-GCM",
+    key_id: "master-v2"
+  });
+  assert.ok(Buffer.isBuffer(value.ciphertext));
+});
+
+test("decodes Jackson batch response: nested maps, 16-bit byte string length, nulls", () => {
+  const value = cbor.decode(hex(BATCH_JACKSON));
+
+  assert.deepEqual(value, {
+    items: [
+      { status: "ok", ciphertext: bytes0to299(), key_id: "master-v2", error: null },
+      { status: "error", ciphertext: null, key_id: null, error: "user_id is required" }
+    ],
+    algo: "AES-256-GCM",
+    key_id: "master-v2"
+  });
+});
+
+test("decodes Jackson numbers, booleans, null and UTF-8 text", () => {
+  assert.deepEqual(cbor.decode(hex(NUMBERS_JACKSON)), {
+    small: 23,
+    byte: 24,
+    short: 1000,
+    int: 100000,
+    long: 5000000000,
+    neg: -500,
+    double: 1.5,
+    ratio: 0.1,
+    flag: true,
+    none: null,
+    text: "ключ"
+  });
+});
+
+test("encodes a batch decrypt request that Jackson reads back", () => {
+  const request = {
+    items: [
+      { user_id: "user-1", field: "phone", ciphertext: Buffer.from([1, 2, 3, 0xff]), key_id: "master-v2" },
+      { user_id: "user-2", field: "email", ciphertext: bytes0to299(), key_id: undefined }
+    ]
+  };
+
+  const encoded = cbor.encode(request);
+
+  // CBORMapper.readValue(encoded, BinaryDecryptBatchRequest.class) разбирает ровно эти байты
+  assert.equal(
+    encoded.toString("hex"),
+    "a1656974656d7382a467757365725f696466757365722d31656669656c646570686f6e65" +
+      "6a6369706865727465787444010203ff666b65795f6964696d61737465722d7632" +
+      "a367757365725f696466757365722d32656669656c6465656d61696c" +
+      "6a6369706865727465787459012c" + bytes0to299().toString("hex")
+  );
+  // undefined-поле не пишется, а не становится null
+  assert.deepEqual(cbor.decode(encoded), {
+    items: [request.items[0], { user_id: "user-2", field: "email", ciphertext: bytes0to299() }]
+  });
+});
+
+test("round-trips every supported type", () => {
+  const value = {
+    ints: [0, 23, 24, 255, 256, 65535, 65536, 4294967295, 4294967296, Number.MAX_SAFE_INTEGER],
+    negatives: [-1, -24, -25, -256, -257, -65537, Number.MIN_SAFE_INTEGER],
+    floats: [1.5, -0.1, 1e300],
+    bytes: Buffer.alloc(0),
+    view: new Uint8Array([9, 8, 7]),
+    text: "",
+    nested: { list: [[], {}, [null, true, false]] }
+  };
+
+  const decoded = cbor.decode(cbor.encode(value));
+
+  assert.deepEqual(decoded, { ...value, view: Buffer.from([9, 8, 7]) });
+});
+
+test("encodes a Uint8Array view without the rest of its buffer", () => {
+  const backing = Buffer.from([0xaa, 1, 2, 3, 0xbb]);
+  const view = new Uint8Array(backing.buffer, backing.byteOffset + 1, 3);
+
+  assert.equal(cbor.encode(view).toString("hex"), "43010203");
+});
+
+test("decodes indefinite-length byte strings, text strings and arrays (RFC 8949 A)", () => {
+  assert.deepEqual(cbor.decode(hex("5f42010243030405ff")), Buffer.from([1, 2, 3, 4, 5]));
+  assert.equal(cbor.decode(hex("7f657374726561646d696e67ff")), "streaming");
+  assert.deepEqual(cbor.decode(hex("9f018202039f0405ffff")), [1, [2, 3], [4, 5]]);
+  assert.deepEqual(cbor.decode(hex("bf61610161629f0203ffff")), { a: 1, b: [2, 3] });
+  assert.deepEqual(cbor.decode(hex("5fff")), Buffer.alloc(0));
+});
+
+test("decodes half-precision floats (RFC 8949 A)", () => {
+  const vectors = [
+    ["f90000", 0],
+    ["f93c00", 1],
+    ["f93e00", 1.5],
+    ["f97bff", 65504],
+    ["f90001", 5.960464477539063e-8],
+    ["f90400", 0.00006103515625],
+    ["f9c400", -4],
+    ["f97c00", Infinity],
+    ["f9fc00", -Infinity]
+  ];
+  for (const [input, expected] of vectors) {
+    assert.equal(cbor.decode(hex(input)), expected, input);
+  }
+  assert.ok(Object.is(cbor.decode(hex("f98000")), -0));
+  assert.ok(Number.isNaN(cbor.decode(hex("f97e00"))));
+  assert.equal(cbor.decode(hex("fa47c35000")), 100000);
+});
+
+test("rejects malformed input", () => {
+  assert.throws(() => cbor.decode(hex("bf6161")), /unexpected end/);
+  assert.throws(() => cbor.decode(hex("4401")), /unexpected end/);
+  assert.throws(() => cbor.decode(hex("0102")), /trailing data/);
+  assert.throws(() => cbor.decode(hex("ff")), /unexpected break/);
+  assert.throws(() => cbor.decode(hex("5f6161ff")), /bad chunk/);
+  assert.throws(() => cbor.decode(hex("c074323031332d30332d32315432303a30343a30305a")), /tags/);
+  assert.throws(() => cbor.decode(hex("1bffffffffffffffff")), /too large/);
+  assert.throws(() => cbor.encode({ f: () => 1 }), /unsupported type/);
+});
@@ -0,0 +1,58 @@
+package com.example.wrapper;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Точка входа benchmarks.jar.
+ *
+ * Без аргументов - базовый прогон: для 1, 4 и 16 потоков
+ *   1) throughput в ops/s + профайлер gc (alloc rate, B/op),
+ *   2) sample time в мкс (p50/p99/p99.9).
+ * Результаты - в jmh-*.json рядом с jar.
+ *
+ * С аргументами - обычный JMH CLI, например:
+ *   java -jar target/benchmarks.jar FieldCryptoBenchmark.decrypt -t 8 -prof gc
+ */
+public class BenchmarkMain {
+
+    private static final int[] THREADS = {1, 4, 16};
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        for (int threads : THREADS) {
+            Options throughput = new OptionsBuilder()
+                    .include(FieldCryptoBenchmark.class.getSimpleName())
+                    .include(MockMvcBenchmark.class.getSimpleName())
+                    .mode(Mode.Throughput)
+                    .timeUnit(TimeUnit.SECONDS)
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("jmh-throughput-t" + threads + ".json")
+                    .build();
+            new Runner(throughput).run();
+
+            Options latency = new OptionsBuilder()
+                    .include(FieldCryptoBenchmark.class.getSimpleName())
+                    .include(MockMvcBenchmark.class.getSimpleName())
+                    .mode(Mode.SampleTime)
+                    .timeUnit(TimeUnit.MICROSECONDS)
+                    .threads(threads)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("jmh-latency-t" + threads + ".json")
+                    .build();
+            new Runner(latency).run();
+        }
+    }
+}
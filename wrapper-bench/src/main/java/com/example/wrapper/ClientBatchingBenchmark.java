@@ -0,0 +1,242 @@
+package com.example.wrapper;
+
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * WrapperClient с объединением вызовов в пакеты против запроса на каждый вызов.
+ * Вызывающий код одинаковый: --concurrency одиночных асинхронных вызовов в полёте
+ * (закрытая модель - следующий вызов по завершении предыдущего).
+ *
+ *   java -cp target/benchmarks.jar com.example.wrapper.ClientBatchingBenchmark --op=encrypt --concurrency=256
+ *
+ * Режимы (--modes=unbatched,batched):
+ *   unbatched - пакет из одного вызова, запросов в полёте = concurrency
+ *   batched   - --max-batch=128 --max-delay-us=500 --in-flight=8
+ *
+ * Операции: encrypt, decrypt, access-sign. Остальные параметры: --seconds=20 --warmup-seconds=5
+ * --payload=64 --users=1000, --url=http://host:8080 (уже запущенный экземпляр),
+ * --client-token=<токен из crypto.admission.client-tokens> (иначе лимиты допуска - по адресу),
+ * --app.<property>=<value> (свойство Spring встроенной обёртки).
+ */
+public class ClientBatchingBenchmark {
+
+    private static final int MAX_SAMPLES = 2_000_000;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = ConnectionLoadBenchmark.parseArgs(args);
+        String op = opts.getOrDefault("op", "encrypt");
+        if (!op.equals("encrypt") && !op.equals("decrypt") && !op.equals("access-sign")) {
+            throw new IllegalArgumentException("unknown op '" + op + "', expected encrypt, decrypt or access-sign");
+        }
+        List<String> modes = Arrays.asList(opts.getOrDefault("modes", "unbatched,batched").split(","));
+        int concurrency = Integer.parseInt(opts.getOrDefault("concurrency", "256"));
+        int seconds = Integer.parseInt(opts.getOrDefault("seconds", "20"));
+        int warmupSeconds = Integer.parseInt(opts.getOrDefault("warmup-seconds", "5"));
+        int users = Integer.parseInt(opts.getOrDefault("users", "1000"));
+        String payload = FieldCryptoBenchmark.payload(Integer.parseInt(opts.getOrDefault("payload", "64")));
+
+        InProcessVaultStub vault = null;
+        ConfigurableApplicationContext context = null;
+        String url = opts.get("url");
+        try {
+            if (url == null) {
+                vault = InProcessVaultStub.start();
+                List<String> properties = new ArrayList<>(Arrays.asList(
+                        "server.port=0",
+                        "VAULT_ADDR=" + vault.url(),
+                        "VAULT_TOKEN=root",
+                        "crypto.rewrap.resume-on-startup=false",
+                        // в режиме unbatched все вызовы - отдельные запросы одного клиента;
+                        // включить: --app.crypto.admission.enabled=true
+                        "crypto.admission.enabled=false",
+                        "crypto.rewrap.checkpoint-file=" +
+                                Files.createTempFile("client-rewrap", ".json").toAbsolutePath()));
+                for (Map.Entry<String, String> e : opts.entrySet()) {
+                    if (e.getKey().startsWith("app.")) {
+                        properties.add(e.getKey().substring("app.".length()) + "=" + e.getValue());
+                    }
+                }
+                context = new SpringApplicationBuilder(Application.class)
+                        .web(WebApplicationType.SERVLET)
+                        .properties(properties.toArray(new String[0]))
+                        .run();
+                url = "http://127.0.0.1:" + ((WebServerApplicationContext) context).getWebServer().getPort();
+            }
+            System.out.println("ClientBatchingBenchmark: url=" + url + ", op=" + op + ", concurrency=" + concurrency +
+                    ", payload=" + payload.length() + ", users=" + users);
+
+            for (String mode : modes) {
+                WrapperClientSettings settings = settingsFor(mode.trim(), url, concurrency, opts);
+                try (WrapperClient client = new WrapperClient(settings)) {
+                    Workload workload = Workload.prepare(client, op, users, payload);
+                    run(client, workload, concurrency, warmupSeconds, null);
+                    run(client, workload, concurrency, seconds, mode.trim());
+                }
+            }
+        } finally {
+            if (context != null) {
+                context.close();
+            }
+            if (vault != null) {
+                vault.close();
+            }
+        }
+    }
+
+    static WrapperClientSettings settingsFor(String mode, String url, int concurrency, Map<String, String> opts) {
+        if (mode.equals("unbatched")) {
+            return WrapperClientSettings.unbatched(url, concurrency);
+        }
+        if (mode.equals("batched")) {
+            return new WrapperClientSettings(url, "client-batching-benchmark", opts.get("client-token"),
+                    WrapperClientSettings.INTERACTIVE,
+                    Integer.parseInt(opts.getOrDefault("max-batch", "128")),
+                    Long.parseLong(opts.getOrDefault("max-delay-us", "500")),
+                    Integer.parseInt(opts.getOrDefault("in-flight", "8")),
+                    100_000, "HTTP_1_1", 2000, 10000);
+        }
+        throw new IllegalArgumentException("unknown mode '" + mode + "', expected unbatched or batched");
+    }
+
+    /**
+     * Один вызов выбранной операции для i-го пользователя; шифротексты для decrypt - заранее.
+     */
+    static class Workload {
+        final WrapperClient client;
+        final String op;
+        final int users;
+        final String payload;
+        final String[] ciphertexts;
+
+        Workload(WrapperClient client, String op, int users, String payload, String[] ciphertexts) {
+            this.client = client;
+            this.op = op;
+            this.users = users;
+            this.payload = payload;
+            this.ciphertexts = ciphertexts;
+        }
+
+        static Workload prepare(WrapperClient client, String op, int users, String payload) throws Exception {
+            String[] ciphertexts = null;
+            if (op.equals("decrypt")) {
+                ciphertexts = new String[users];
+                List<CompletableFuture<CryptoController.EncryptResponse>> futures = new ArrayList<>();
+                for (int i = 0; i < users; i++) {
+                    futures.add(client.encrypt("user-" + i, "phone", payload));
+                }
+                for (int i = 0; i < users; i++) {
+                    ciphertexts[i] = futures.get(i).get().ciphertext;
+                }
+            }
+            return new Workload(client, op, users, payload, ciphertexts);
+        }
+
+        CompletableFuture<?> call(int i) {
+            int user = i % users;
+            switch (op) {
+                case "decrypt":
+                    return client.decrypt("user-" + user, "phone", ciphertexts[user]);
+                case "access-sign":
+                    return client.accessSign("user-" + user, "admin", "GRANT_ROLE");
+                default:
+                    return client.encrypt("user-" + user, "phone", payload);
+            }
+        }
+    }
+
+    static void run(WrapperClient client, Workload workload, int concurrency, int seconds, String label)
+            throws InterruptedException {
+        int[] latenciesMicros = new int[MAX_SAMPLES];
+        AtomicInteger samples = new AtomicInteger();
+        AtomicLong ok = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        AtomicInteger sequence = new AtomicInteger();
+        long batchesBefore = client.getBatchesSent();
+        long itemsBefore = client.getItemsSent();
+
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+        CountDownLatch done = new CountDownLatch(concurrency);
+        for (int c = 0; c < concurrency; c++) {
+            new Caller(workload, sequence, deadline, latenciesMicros, samples, ok, errors, done).next();
+        }
+        done.await();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        if (label == null) {
+            return;
+        }
+
+        int n = Math.min(samples.get(), MAX_SAMPLES);
+        int[] sorted = Arrays.copyOf(latenciesMicros, n);
+        Arrays.sort(sorted);
+        long batches = client.getBatchesSent() - batchesBefore;
+        long items = client.getItemsSent() - itemsBefore;
+        System.out.printf("ClientBatchingBenchmark: %-9s %8.0f calls/s  ok=%d errors=%d  http=%.0f req/s  " +
+                        "batch avg=%.1f  p50=%.2fms p99=%.2fms p99.9=%.2fms max=%.2fms%n",
+                label, ok.get() / elapsed, ok.get(), errors.get(), batches / elapsed,
+                batches == 0 ? 0.0 : (double) items / batches,
+                ConnectionLoadBenchmark.percentile(sorted, 0.50), ConnectionLoadBenchmark.percentile(sorted, 0.99),
+                ConnectionLoadBenchmark.percentile(sorted, 0.999), ConnectionLoadBenchmark.percentile(sorted, 1.0));
+    }
+
+    /**
+     * Цепочка вызовов одного "вызывающего": следующий - из завершения предыдущего.
+     */
+    static class Caller {
+        final Workload workload;
+        final AtomicInteger sequence;
+        final long deadline;
+        final int[] latenciesMicros;
+        final AtomicInteger samples;
+        final AtomicLong ok;
+        final AtomicLong errors;
+        final CountDownLatch done;
+
+        Caller(Workload workload, AtomicInteger sequence, long deadline, int[] latenciesMicros,
+               AtomicInteger samples, AtomicLong ok, AtomicLong errors, CountDownLatch done) {
+            this.workload = workload;
+            this.sequence = sequence;
+            this.deadline = deadline;
+            this.latenciesMicros = latenciesMicros;
+            this.samples = samples;
+            this.ok = ok;
+            this.errors = errors;
+            this.done = done;
+        }
+
+        void next() {
+            long sent = System.nanoTime();
+            workload.call(sequence.getAndIncrement()).whenComplete((result, error) -> {
+                long now = System.nanoTime();
+                if (error == null) {
+                    ok.incrementAndGet();
+                    int idx = samples.getAndIncrement();
+                    if (idx < MAX_SAMPLES) {
+                        latenciesMicros[idx] = (int) Math.min(Integer.MAX_VALUE, (now - sent) / 1000);
+                    }
+                } else if (errors.incrementAndGet() <= 3) {
+                    System.out.println("ClientBatchingBenchmark: call failed: " + error);
+                }
+                if (now < deadline) {
+                    next();
+                } else {
+                    done.countDown();
+                }
+            });
+        }
+    }
+}
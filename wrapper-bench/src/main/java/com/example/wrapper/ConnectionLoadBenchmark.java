@@ -0,0 +1,169 @@
+package com.example.wrapper;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Нагрузка по настоящему сокету: N одновременных HTTP/1.1 соединений бьют в /crypto/encrypt.
+ * Нужен, чтобы сравнить пул потоков Tomcat и виртуальные потоки
+ * (spring.threads.virtual.enabled) - JMH/MockMvc этого не покажут.
+ *
+ * По умолчанию поднимает обёртку в этом же процессе (Vault - InProcessVaultStub):
+ *
+ *   java -cp target/benchmarks.jar com.example.wrapper.ConnectionLoadBenchmark --virtual=false
+ *   java -cp target/benchmarks.jar com.example.wrapper.ConnectionLoadBenchmark --virtual=true   (нужна Java 21+)
+ *
+ * Или бьёт в уже запущенный экземпляр: --url=http://localhost:8080
+ *
+ * Параметры: --connections=5000 --seconds=30 --warmup-seconds=5 --payload=256
+ */
+public class ConnectionLoadBenchmark {
+
+    // столько задержек храним для перцентилей; дальше только считаем запросы
+    private static final int MAX_SAMPLES = 4_000_000;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = parseArgs(args);
+        int connections = Integer.parseInt(opts.getOrDefault("connections", "5000"));
+        int seconds = Integer.parseInt(opts.getOrDefault("seconds", "30"));
+        int warmupSeconds = Integer.parseInt(opts.getOrDefault("warmup-seconds", "5"));
+        int payload = Integer.parseInt(opts.getOrDefault("payload", "256"));
+        boolean virtual = Boolean.parseBoolean(opts.getOrDefault("virtual", "false"));
+
+        InProcessVaultStub vault = null;
+        ConfigurableApplicationContext context = null;
+        String url = opts.get("url");
+        if (url == null) {
+            vault = InProcessVaultStub.start();
+            context = new SpringApplicationBuilder(Application.class)
+                    .web(WebApplicationType.SERVLET)
+                    .properties(
+                            "server.port=0",
+                            "spring.threads.virtual.enabled=" + virtual,
+                            // Tomcat по умолчанию держит 8192 соединения и 200 потоков
+                            "server.tomcat.max-connections=" + Math.max(8192, connections * 2),
+                            "server.tomcat.accept-count=" + connections,
+                            "VAULT_ADDR=" + vault.url(),
+                            "VAULT_TOKEN=root",
+                            "crypto.rewrap.resume-on-startup=false",
+                            // тысячи соединений с одного адреса - лимиты допуска мерили бы сами себя
+                            "crypto.admission.enabled=false",
+                            "crypto.rewrap.checkpoint-file=" +
+                                    Files.createTempFile("bench-rewrap", ".json").toAbsolutePath())
+                    .run();
+            int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+            url = "http://127.0.0.1:" + port;
+        }
+
+        System.out.println("ConnectionLoadBenchmark: url=" + url + ", connections=" + connections +
+                ", virtual_threads=" + (opts.get("url") == null ? virtual : "n/a (external)") +
+                ", java=" + System.getProperty("java.version"));
+
+        try {
+            HttpClient client = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_1_1)
+                    .connectTimeout(Duration.ofSeconds(10))
+                    .build();
+
+            ObjectMapper om = new ObjectMapper();
+            byte[][] bodies = new byte[256][];
+            for (int i = 0; i < bodies.length; i++) {
+                bodies[i] = om.writeValueAsBytes(new CryptoController.EncryptRequest(
+                        "load-user-" + i, "phone", FieldCryptoBenchmark.payload(payload)));
+            }
+            URI encryptUri = URI.create(url + "/crypto/encrypt");
+
+            run(client, encryptUri, bodies, connections, warmupSeconds, "warmup");
+            run(client, encryptUri, bodies, connections, seconds, "measure");
+        } finally {
+            if (context != null) {
+                context.close();
+            }
+            if (vault != null) {
+                vault.close();
+            }
+        }
+    }
+
+    private static void run(HttpClient client, URI uri, byte[][] bodies, int connections,
+                            int seconds, String phase) throws Exception {
+        Semaphore inFlight = new Semaphore(connections);
+        AtomicLong ok = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        AtomicInteger sampleCount = new AtomicInteger();
+        int[] latenciesMicros = new int[MAX_SAMPLES];
+
+        long started = System.nanoTime();
+        long deadline = started + seconds * 1_000_000_000L;
+        int i = 0;
+        while (System.nanoTime() < deadline) {
+            inFlight.acquire();
+            HttpRequest request = HttpRequest.newBuilder(uri)
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(bodies[i++ & (bodies.length - 1)]))
+                    .build();
+            long sent = System.nanoTime();
+            client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((response, error) -> {
+                if (error == null && response.statusCode() == 200) {
+                    ok.incrementAndGet();
+                    int idx = sampleCount.getAndIncrement();
+                    if (idx < MAX_SAMPLES) {
+                        latenciesMicros[idx] = (int) Math.min(Integer.MAX_VALUE, (System.nanoTime() - sent) / 1_000);
+                    }
+                } else {
+                    errors.incrementAndGet();
+                }
+                inFlight.release();
+            });
+        }
+        // дожидаемся хвоста
+        inFlight.acquire(connections);
+        double elapsed = (System.nanoTime() - started) / 1e9;
+
+        int n = Math.min(sampleCount.get(), MAX_SAMPLES);
+        int[] sorted = Arrays.copyOf(latenciesMicros, n);
+        Arrays.sort(sorted);
+
+        System.out.printf("ConnectionLoadBenchmark: %-7s %8.0f req/s  ok=%d errors=%d  " +
+                        "p50=%.1fms p99=%.1fms p99.9=%.1fms max=%.1fms%n",
+                phase, ok.get() / elapsed, ok.get(), errors.get(),
+                percentile(sorted, 0.50), percentile(sorted, 0.99),
+                percentile(sorted, 0.999), percentile(sorted, 1.0));
+    }
+
+    static double percentile(int[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int idx = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(0, idx)] / 1000.0;
+    }
+
+    static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> opts = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("expected --name=value, got " + arg);
+            }
+            int eq = arg.indexOf('=');
+            opts.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        return opts;
+    }
+}
@@ -0,0 +1,88 @@
+package com.example.wrapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.Provider;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * encrypt / decrypt / access-sign через CryptoEngine с разными JCA-провайдерами -
+ * проверка того, что выбирает фоновая калибровка CryptoProviderSelector.
+ *
+ * ACCP есть только в сборке wrapper-java с -Paccp; без него прогон с provider=ACCP падает в setUp.
+ * Хост без AES-NI/CLMUL: -jvmArgsAppend "-XX:-UseAES -XX:-UseCLMUL".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class CryptoProviderBenchmark {
+
+    private static final String FIELD = "phone";
+
+    @Param({"SunJCE", "BC"})
+    public String provider;
+
+    @Param({"256", "4096"})
+    public int payloadSize;
+
+    private InProcessVaultStub vault;
+    private FieldCryptoService fieldCryptoService;
+    private VaultKeyService vaultKeyService;
+
+    private AesKeyring.Generation current;
+    private String plaintext;
+    private String ciphertext;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Provider p = CryptoProviderSelector.resolveProvider(provider);
+        CryptoEngine.useProviders(p, p);
+
+        vault = InProcessVaultStub.start();
+        CryptoMetrics metrics = CryptoMetrics.inMemory();
+        vaultKeyService = new VaultKeyService(VaultHttpClient.withDefaults(vault.url(), "root", metrics), 1000,
+                EnvelopeSettings.disabled());
+        DerivedKeyCache cache = new DerivedKeyCache(vaultKeyService, metrics, 10000, 300);
+        fieldCryptoService = new FieldCryptoService(vaultKeyService, cache, metrics, DecryptCoalescer.disabled());
+
+        current = vaultKeyService.getAesKeyring().current();
+        plaintext = FieldCryptoBenchmark.payload(payloadSize);
+        ciphertext = fieldCryptoService.encrypt(current, "bench-user", FIELD, plaintext);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        CryptoEngine.useProviders(null, null);
+        vault.close();
+    }
+
+    @Benchmark
+    public String encrypt() throws Exception {
+        return fieldCryptoService.encrypt(current, "bench-user", FIELD, plaintext);
+    }
+
+    @Benchmark
+    public String decrypt() {
+        return fieldCryptoService.decrypt("bench-user", FIELD, ciphertext, null);
+    }
+
+    @Benchmark
+    public String hmac() throws Exception {
+        return CryptoEngine.hmacSha256Base64(vaultKeyService.getHmacKey(), plaintext);
+    }
+}
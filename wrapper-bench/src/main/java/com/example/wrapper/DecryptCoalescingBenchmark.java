@@ -0,0 +1,98 @@
+package com.example.wrapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * "Популярный профиль": все потоки расшифровывают одни и те же несколько шифротекстов.
+ *
+ *   mode = off        - каждый запрос считает HKDF + GCM сам
+ *   mode = coalescing - одновременные одинаковые запросы ждут одно вычисление
+ *   mode = cache      - плюс короткоживущий кэш открытого текста
+ *
+ * DerivedKeyCache выключен (keyCacheSize = 0), как сразу после сброса кэша или деплоя.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Threads(16)
+@Fork(1)
+public class DecryptCoalescingBenchmark {
+
+    private static final int HOT_PROFILES = 4;
+    private static final String FIELD = "phone";
+
+    @Param({"off", "coalescing", "cache"})
+    public String mode;
+
+    @Param({"256", "4096"})
+    public int payloadSize;
+
+    private InProcessVaultStub vault;
+    private FieldCryptoService fieldCryptoService;
+    private DecryptCoalescer coalescer;
+
+    private String[] userIds;
+    private String[] ciphertexts;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        vault = InProcessVaultStub.start();
+        CryptoMetrics metrics = CryptoMetrics.inMemory();
+        VaultKeyService vaultKeyService = new VaultKeyService(
+                VaultHttpClient.withDefaults(vault.url(), "root", metrics), 1000, EnvelopeSettings.disabled());
+        DerivedKeyCache cache = new DerivedKeyCache(vaultKeyService, metrics, 0, 300);
+        coalescer = new DecryptCoalescer(metrics, !"off".equals(mode), "cache".equals(mode), 1000, 5000);
+        fieldCryptoService = new FieldCryptoService(vaultKeyService, cache, metrics, coalescer);
+
+        String plaintext = FieldCryptoBenchmark.payload(payloadSize);
+        AesKeyring.Generation current = vaultKeyService.getAesKeyring().current();
+        userIds = new String[HOT_PROFILES];
+        ciphertexts = new String[HOT_PROFILES];
+        for (int i = 0; i < HOT_PROFILES; i++) {
+            userIds[i] = "hot-user-" + i;
+            ciphertexts[i] = fieldCryptoService.encrypt(current, userIds[i], FIELD, plaintext);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.out.println();
+        System.out.println("DecryptCoalescingBenchmark: mode=" + mode + " coalesced=" + coalescer.getCoalesced() +
+                " cache_hits=" + coalescer.getCacheHits());
+        vault.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+
+        int nextProfile() {
+            int i = next;
+            next = (i + 1) % HOT_PROFILES;
+            return i;
+        }
+    }
+
+    @Benchmark
+    public String decryptHotProfile(Cursor cursor) {
+        int i = cursor.nextProfile();
+        return fieldCryptoService.decrypt(userIds[i], FIELD, ciphertexts[i], null);
+    }
+}
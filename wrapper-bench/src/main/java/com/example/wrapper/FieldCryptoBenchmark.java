@@ -0,0 +1,181 @@
+package com.example.wrapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Горячие пути обёртки напрямую, без Spring и HTTP:
+ * encrypt, decrypt (текущее и старое поколение), decrypt старого формата
+ * с перебором current -> prev, HKDF и HMAC access-sign.
+ *
+ * keyCacheSize = 0 отключает DerivedKeyCache - так видна чистая цена HKDF.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class FieldCryptoBenchmark {
+
+    private static final int USERS = 1024;
+    private static final String FIELD = "phone";
+
+    @Param({"16", "256", "4096"})
+    public int payloadSize;
+
+    @Param({"0", "10000"})
+    public int keyCacheSize;
+
+    private InProcessVaultStub vault;
+    private VaultKeyService vaultKeyService;
+    private FieldCryptoService fieldCryptoService;
+    private CryptoController controller;
+
+    private String[] userIds;
+    private String plaintext;
+    private String[] currentCiphertexts;   // конверт, текущее поколение
+    private String[] oldCiphertexts;       // конверт, поколение до ротации
+    private String[] legacyCiphertexts;    // старый формат IV||ct под prev-ключом
+    private byte[] masterBytes;
+    private byte[] hkdfInfo;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        vault = InProcessVaultStub.start();
+        CryptoMetrics metrics = CryptoMetrics.inMemory();
+        vaultKeyService = new VaultKeyService(VaultHttpClient.withDefaults(vault.url(), "root", metrics), 1000,
+                EnvelopeSettings.disabled());
+        DerivedKeyCache cache = new DerivedKeyCache(vaultKeyService, metrics, keyCacheSize, 300);
+        fieldCryptoService = new FieldCryptoService(vaultKeyService, cache, metrics, DecryptCoalescer.disabled());
+        controller = new CryptoController(vaultKeyService, cache, fieldCryptoService, metrics);
+
+        plaintext = payload(payloadSize);
+        userIds = new String[USERS];
+        oldCiphertexts = new String[USERS];
+        legacyCiphertexts = new String[USERS];
+        currentCiphertexts = new String[USERS];
+
+        AesKeyring.Generation before = vaultKeyService.getAesKeyring().current();
+        for (int i = 0; i < USERS; i++) {
+            userIds[i] = "bench-user-" + i;
+            oldCiphertexts[i] = fieldCryptoService.encrypt(before, userIds[i], FIELD, plaintext);
+            legacyCiphertexts[i] = legacyEncrypt(before.key, userIds[i], plaintext);
+        }
+
+        vaultKeyService.rotateAesMasterKey();
+
+        AesKeyring.Generation current = vaultKeyService.getAesKeyring().current();
+        for (int i = 0; i < USERS; i++) {
+            currentCiphertexts[i] = fieldCryptoService.encrypt(current, userIds[i], FIELD, plaintext);
+        }
+
+        masterBytes = current.key.getEncoded();
+        hkdfInfo = ("profile:" + userIds[0] + ":" + FIELD).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        vault.close();
+    }
+
+    /**
+     * Свой индекс пользователя у каждого потока - ключи кэша разные, как в жизни.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+
+        int nextUser() {
+            int i = next;
+            next = (i + 1) & (USERS - 1);
+            return i;
+        }
+    }
+
+    @Benchmark
+    public String encrypt(Cursor cursor) throws Exception {
+        int i = cursor.nextUser();
+        return fieldCryptoService.encrypt(vaultKeyService.getAesKeyring().current(), userIds[i], FIELD, plaintext);
+    }
+
+    @Benchmark
+    public String decrypt(Cursor cursor) {
+        int i = cursor.nextUser();
+        return fieldCryptoService.decrypt(userIds[i], FIELD, currentCiphertexts[i], null);
+    }
+
+    @Benchmark
+    public String decryptOldGeneration(Cursor cursor) {
+        int i = cursor.nextUser();
+        return fieldCryptoService.decrypt(userIds[i], FIELD, oldCiphertexts[i], null);
+    }
+
+    @Benchmark
+    public String decryptLegacyFallback(Cursor cursor) {
+        // старый формат без key_id: current падает на теге, затем prev
+        int i = cursor.nextUser();
+        return fieldCryptoService.decrypt(userIds[i], FIELD, legacyCiphertexts[i], null);
+    }
+
+    @Benchmark
+    public byte[] hkdfExpand() throws Exception {
+        return Hkdf.expand(masterBytes, hkdfInfo, Hkdf.USER_KEY_LENGTH);
+    }
+
+    @Benchmark
+    public CryptoController.AccessSignResponse accessSign(Cursor cursor) {
+        CryptoController.AccessSignRequest req = new CryptoController.AccessSignRequest();
+        req.user_id = userIds[cursor.nextUser()];
+        req.role_name = "ADMIN";
+        req.action = "GRANT_ROLE";
+        return controller.accessSign(req);
+    }
+
+    // ----- подготовка данных -----
+
+    static String payload(int size) {
+        StringBuilder sb = new StringBuilder(size);
+        for (int i = 0; i < size; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Шифротекст в формате до появления конверта: Base64(IV || ciphertext+tag).
+     */
+    private static String legacyEncrypt(SecretKeySpec master, String userId, String plaintext) throws Exception {
+        byte[] userKey = Hkdf.deriveUserKeyBytes(master.getEncoded(), userId, FIELD);
+        byte[] iv = new byte[12];
+        new SecureRandom().nextBytes(iv);
+
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(userKey, "AES"), new GCMParameterSpec(128, iv));
+        byte[] ct = cipher.doFinal(plaintext.getBytes(StandardCharsets.UTF_8));
+
+        byte[] combined = new byte[iv.length + ct.length];
+        System.arraycopy(iv, 0, combined, 0, iv.length);
+        System.arraycopy(ct, 0, combined, iv.length, ct.length);
+        return Base64.getEncoder().encodeToString(combined);
+    }
+}
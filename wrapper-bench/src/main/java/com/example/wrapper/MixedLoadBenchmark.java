@@ -0,0 +1,503 @@
+package com.example.wrapper;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.File;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Сквозная нагрузка смесью операций: encrypt / decrypt / access-sign / rotate-master
+ * по настоящему HTTP. Без docker-compose: обёртка поднимается в этом же процессе,
+ * Vault - InProcessVaultStub с инъекцией задержки и ошибок.
+ *
+ *   java -cp target/benchmarks.jar com.example.wrapper.MixedLoadBenchmark --mix=read-heavy --seconds=60
+ *   java -cp target/benchmarks.jar com.example.wrapper.MixedLoadBenchmark \
+ *        --mix=encrypt=45,decrypt=45,access-sign=9,rotate=1 --vault-latency-ms=5 --vault-error-rate=0.02
+ *
+ * Смеси: read-heavy (по умолчанию), write-heavy, rotation или веса name=weight через запятую.
+ *
+ * Режим нагрузки:
+ *   --concurrency=64   - столько запросов одновременно в полёте (закрытая модель)
+ *   --rate=N           - плюс N запросов/с по расписанию; задержка считается от запланированного
+ *                        момента отправки, так что отставание генератора не прячет хвосты
+ *
+ * Отчёт - throughput и p50/p90/p99/p99.9/max по каждой операции и в сумме, коды ошибок.
+ * Для CI: --json=result.json и пороги --max-p99-ms / --min-throughput / --max-error-rate
+ * (нарушение - код выхода 1).
+ *
+ * Остальные параметры: --warmup-seconds=10 --payload=64 --users=1000
+ * --vault-latency-ms=0 --vault-jitter-ms=0 --vault-error-rate=0 (только со встроенной заглушкой),
+ * --url=http://host:8080 (уже запущенный экземпляр), --app.<property>=<value> (свойство Spring).
+ */
+public class MixedLoadBenchmark {
+
+    // столько задержек на операцию храним для перцентилей; дальше только считаем запросы
+    private static final int MAX_SAMPLES = 2_000_000;
+    // шифротексты для decrypt готовим заранее, не больше стольких
+    private static final int MAX_PREPARED = 512;
+
+    enum Operation {
+        ENCRYPT("encrypt"),
+        DECRYPT("decrypt"),
+        ACCESS_SIGN("access-sign"),
+        ROTATE("rotate");
+
+        final String label;
+
+        Operation(String label) {
+            this.label = label;
+        }
+
+        static Operation of(String label) {
+            for (Operation op : values()) {
+                if (op.label.equals(label)) {
+                    return op;
+                }
+            }
+            throw new IllegalArgumentException("unknown operation '" + label + "', expected one of " +
+                    "encrypt, decrypt, access-sign, rotate");
+        }
+    }
+
+    private static final Map<String, String> PRESETS = new LinkedHashMap<>();
+
+    static {
+        PRESETS.put("read-heavy", "decrypt=80,encrypt=15,access-sign=5");
+        PRESETS.put("write-heavy", "encrypt=70,decrypt=25,access-sign=5");
+        // ротация раз в ~1000 запросов: проверяем, что хвосты не растут во время смены ключа
+        PRESETS.put("rotation", "encrypt=45,decrypt=45,access-sign=9.9,rotate=0.1");
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = ConnectionLoadBenchmark.parseArgs(args);
+        String mixSpec = opts.getOrDefault("mix", "read-heavy");
+        Map<Operation, Double> mix = parseMix(PRESETS.getOrDefault(mixSpec, mixSpec));
+        int concurrency = Integer.parseInt(opts.getOrDefault("concurrency", "64"));
+        double rate = Double.parseDouble(opts.getOrDefault("rate", "0"));
+        int seconds = Integer.parseInt(opts.getOrDefault("seconds", "60"));
+        int warmupSeconds = Integer.parseInt(opts.getOrDefault("warmup-seconds", "10"));
+        int payload = Integer.parseInt(opts.getOrDefault("payload", "64"));
+        int users = Integer.parseInt(opts.getOrDefault("users", "1000"));
+
+        InProcessVaultStub vault = null;
+        ConfigurableApplicationContext context = null;
+        String url = opts.get("url");
+        int exitCode = 0;
+        try {
+            if (url == null) {
+                vault = InProcessVaultStub.start();
+                List<String> properties = new ArrayList<>(Arrays.asList(
+                        "server.port=0",
+                        "VAULT_ADDR=" + vault.url(),
+                        "VAULT_TOKEN=root",
+                        "crypto.rewrap.resume-on-startup=false",
+                        // весь поток идёт от одного клиента - без лимитов допуска,
+                        // включить: --app.crypto.admission.enabled=true
+                        "crypto.admission.enabled=false",
+                        "crypto.rewrap.checkpoint-file=" +
+                                Files.createTempFile("load-rewrap", ".json").toAbsolutePath()));
+                for (Map.Entry<String, String> e : opts.entrySet()) {
+                    if (e.getKey().startsWith("app.")) {
+                        properties.add(e.getKey().substring("app.".length()) + "=" + e.getValue());
+                    }
+                }
+                // ключи создаются при старте - сбои включаем после него
+                context = new SpringApplicationBuilder(Application.class)
+                        .web(WebApplicationType.SERVLET)
+                        .properties(properties.toArray(new String[0]))
+                        .run();
+                int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+                url = "http://127.0.0.1:" + port;
+            }
+
+            StringBuilder mixDescription = new StringBuilder();
+            for (Map.Entry<Operation, Double> e : mix.entrySet()) {
+                mixDescription.append(mixDescription.length() == 0 ? "" : ",").append(e.getKey().label)
+                        .append('=').append(e.getValue());
+            }
+            System.out.println("MixedLoadBenchmark: url=" + url + ", mix=" + mixDescription +
+                    ", concurrency=" + concurrency +
+                    ", rate=" + (rate > 0 ? rate + "/s" : "unbounded") + ", payload=" + payload +
+                    ", users=" + users + ", java=" + System.getProperty("java.version"));
+
+            HttpClient client = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_1_1)
+                    .connectTimeout(Duration.ofSeconds(10))
+                    .build();
+            Requests requests = Requests.prepare(client, url, users, payload);
+
+            if (vault != null) {
+                vault.injectLatency(Long.parseLong(opts.getOrDefault("vault-latency-ms", "0")),
+                        Long.parseLong(opts.getOrDefault("vault-jitter-ms", "0")));
+                vault.injectErrors(Double.parseDouble(opts.getOrDefault("vault-error-rate", "0")));
+            }
+
+            run(client, requests, mix, concurrency, rate, warmupSeconds);
+            long vaultRequestsBefore = vault == null ? 0 : vault.getRequests();
+            long vaultErrorsBefore = vault == null ? 0 : vault.getInjectedErrors();
+            Result result = run(client, requests, mix, concurrency, rate, seconds);
+            result.print();
+            if (vault != null) {
+                System.out.println("MixedLoadBenchmark: vault stub requests=" +
+                        (vault.getRequests() - vaultRequestsBefore) +
+                        " injected_errors=" + (vault.getInjectedErrors() - vaultErrorsBefore));
+            }
+
+            String json = opts.get("json");
+            if (json != null) {
+                new ObjectMapper().writerWithDefaultPrettyPrinter()
+                        .writeValue(new File(json), result.toJson(mixSpec, concurrency, rate));
+                System.out.println("MixedLoadBenchmark: results written to " + json);
+            }
+            exitCode = result.checkThresholds(opts) ? 0 : 1;
+        } finally {
+            if (context != null) {
+                context.close();
+            }
+            if (vault != null) {
+                vault.close();
+            }
+        }
+        System.exit(exitCode);
+    }
+
+    static Map<Operation, Double> parseMix(String spec) {
+        Map<Operation, Double> mix = new LinkedHashMap<>();
+        for (String part : spec.split(",")) {
+            int eq = part.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("mix must be a preset " + PRESETS.keySet() +
+                        " or name=weight list, got " + spec);
+            }
+            double weight = Double.parseDouble(part.substring(eq + 1).trim());
+            if (weight < 0) {
+                throw new IllegalArgumentException("mix weight must be >= 0: " + part);
+            }
+            if (weight > 0) {
+                mix.put(Operation.of(part.substring(0, eq).trim()), weight);
+            }
+        }
+        if (mix.isEmpty()) {
+            throw new IllegalArgumentException("mix has no operations with positive weight: " + spec);
+        }
+        return mix;
+    }
+
+    private static Result run(HttpClient client, Requests requests, Map<Operation, Double> mix,
+                              int concurrency, double rate, int seconds) throws Exception {
+        Operation[] ops = mix.keySet().toArray(new Operation[0]);
+        double[] cumulative = new double[ops.length];
+        double total = 0;
+        for (int i = 0; i < ops.length; i++) {
+            total += mix.get(ops[i]);
+            cumulative[i] = total;
+        }
+
+        Map<Operation, Stats> stats = new LinkedHashMap<>();
+        for (Operation op : ops) {
+            stats.put(op, new Stats());
+        }
+
+        Semaphore inFlight = new Semaphore(concurrency);
+        long intervalNanos = rate > 0 ? (long) (1_000_000_000L / rate) : 0;
+        long started = System.nanoTime();
+        long deadline = started + seconds * 1_000_000_000L;
+        long sentCount = 0;
+        while (true) {
+            long scheduled;
+            if (intervalNanos > 0) {
+                scheduled = started + sentCount * intervalNanos;
+                if (scheduled >= deadline) {
+                    break;
+                }
+                long wait = scheduled - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            } else if (System.nanoTime() >= deadline) {
+                break;
+            }
+            inFlight.acquire();
+            long sent = System.nanoTime();
+            long from = intervalNanos > 0 ? Math.min(sent, started + sentCount * intervalNanos) : sent;
+            sentCount++;
+
+            double pick = ThreadLocalRandom.current().nextDouble(total);
+            int idx = 0;
+            while (idx < ops.length - 1 && pick >= cumulative[idx]) {
+                idx++;
+            }
+            Operation op = ops[idx];
+            Stats s = stats.get(op);
+            client.sendAsync(requests.next(op), HttpResponse.BodyHandlers.discarding()).whenComplete((response, error) -> {
+                long micros = (System.nanoTime() - from) / 1_000;
+                s.record(error == null ? response.statusCode() : -1, micros);
+                inFlight.release();
+            });
+        }
+        // дожидаемся хвоста
+        inFlight.acquire(concurrency);
+        return new Result(stats, (System.nanoTime() - started) / 1e9);
+    }
+
+    /**
+     * Заранее собранные тела запросов; decrypt - по шифротекстам, полученным от самой обёртки.
+     */
+    static final class Requests {
+        private final URI encryptUri;
+        private final URI decryptUri;
+        private final URI accessSignUri;
+        private final URI rotateUri;
+        private final byte[][] encryptBodies;
+        private final byte[][] decryptBodies;
+        private final byte[][] accessSignBodies;
+
+        private Requests(String url, byte[][] encryptBodies, byte[][] decryptBodies, byte[][] accessSignBodies) {
+            this.encryptUri = URI.create(url + "/crypto/encrypt");
+            this.decryptUri = URI.create(url + "/crypto/decrypt");
+            this.accessSignUri = URI.create(url + "/crypto/access-sign");
+            this.rotateUri = URI.create(url + "/crypto/rotate-master");
+            this.encryptBodies = encryptBodies;
+            this.decryptBodies = decryptBodies;
+            this.accessSignBodies = accessSignBodies;
+        }
+
+        static Requests prepare(HttpClient client, String url, int users, int payload) throws Exception {
+            ObjectMapper om = new ObjectMapper();
+            String plaintext = FieldCryptoBenchmark.payload(payload);
+            int prepared = Math.max(1, Math.min(users, MAX_PREPARED));
+
+            byte[][] encryptBodies = new byte[prepared][];
+            byte[][] decryptBodies = new byte[prepared][];
+            byte[][] accessSignBodies = new byte[prepared][];
+            for (int i = 0; i < prepared; i++) {
+                String userId = "load-user-" + (users <= MAX_PREPARED ? i : ThreadLocalRandom.current().nextInt(users));
+                encryptBodies[i] = om.writeValueAsBytes(new CryptoController.EncryptRequest(userId, "phone", plaintext));
+
+                HttpResponse<byte[]> encrypted = client.send(post(URI.create(url + "/crypto/encrypt"), encryptBodies[i]),
+                        HttpResponse.BodyHandlers.ofByteArray());
+                if (encrypted.statusCode() != 200) {
+                    throw new IllegalStateException("prepare: encrypt returned " + encrypted.statusCode() + ": " +
+                            new String(encrypted.body()));
+                }
+                CryptoController.EncryptResponse resp =
+                        om.readValue(encrypted.body(), CryptoController.EncryptResponse.class);
+                decryptBodies[i] = om.writeValueAsBytes(
+                        new CryptoController.DecryptRequest(userId, "phone", resp.ciphertext, resp.key_id));
+
+                ObjectNode sign = om.createObjectNode();
+                sign.put("user_id", userId);
+                sign.put("role_name", "role-" + (i % 8));
+                sign.put("action", "GRANT_ROLE");
+                accessSignBodies[i] = om.writeValueAsBytes(sign);
+            }
+            return new Requests(url, encryptBodies, decryptBodies, accessSignBodies);
+        }
+
+        HttpRequest next(Operation op) {
+            int i = ThreadLocalRandom.current().nextInt(encryptBodies.length);
+            switch (op) {
+                case ENCRYPT:
+                    return post(encryptUri, encryptBodies[i]);
+                case DECRYPT:
+                    return post(decryptUri, decryptBodies[i]);
+                case ACCESS_SIGN:
+                    return post(accessSignUri, accessSignBodies[i]);
+                case ROTATE:
+                    return HttpRequest.newBuilder(rotateUri).POST(HttpRequest.BodyPublishers.noBody()).build();
+                default:
+                    throw new IllegalArgumentException("unknown operation " + op);
+            }
+        }
+
+        private static HttpRequest post(URI uri, byte[] body) {
+            return HttpRequest.newBuilder(uri)
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                    .build();
+        }
+    }
+
+    static final class Stats {
+        final AtomicLong ok = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        // HTTP-статус ошибки (-1 - ошибка соединения/таймаут) -> количество
+        final ConcurrentHashMap<Integer, AtomicLong> errorStatuses = new ConcurrentHashMap<>();
+        final AtomicInteger sampleCount = new AtomicInteger();
+        final int[] latenciesMicros = new int[MAX_SAMPLES];
+
+        void record(int status, long micros) {
+            if (status == 200) {
+                ok.incrementAndGet();
+            } else {
+                errors.incrementAndGet();
+                errorStatuses.computeIfAbsent(status, k -> new AtomicLong()).incrementAndGet();
+            }
+            // ошибки тоже в перцентилях: медленный 503 - такая же проблема, как медленный 200
+            int idx = sampleCount.getAndIncrement();
+            if (idx < MAX_SAMPLES) {
+                latenciesMicros[idx] = (int) Math.min(Integer.MAX_VALUE, micros);
+            }
+        }
+
+        int[] sorted() {
+            int[] sorted = Arrays.copyOf(latenciesMicros, Math.min(sampleCount.get(), MAX_SAMPLES));
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+
+    static final class Result {
+        private final Map<Operation, Stats> stats;
+        private final double elapsedSeconds;
+        private final Map<String, int[]> sorted = new LinkedHashMap<>();
+
+        Result(Map<Operation, Stats> stats, double elapsedSeconds) {
+            this.stats = stats;
+            this.elapsedSeconds = elapsedSeconds;
+            int totalSamples = 0;
+            for (Map.Entry<Operation, Stats> e : stats.entrySet()) {
+                int[] s = e.getValue().sorted();
+                sorted.put(e.getKey().label, s);
+                totalSamples += s.length;
+            }
+            int[] all = new int[totalSamples];
+            int pos = 0;
+            for (int[] s : sorted.values()) {
+                System.arraycopy(s, 0, all, pos, s.length);
+                pos += s.length;
+            }
+            Arrays.sort(all);
+            sorted.put("total", all);
+        }
+
+        long ok(String label) {
+            long sum = 0;
+            for (Map.Entry<Operation, Stats> e : stats.entrySet()) {
+                if ("total".equals(label) || e.getKey().label.equals(label)) {
+                    sum += e.getValue().ok.get();
+                }
+            }
+            return sum;
+        }
+
+        long errors(String label) {
+            long sum = 0;
+            for (Map.Entry<Operation, Stats> e : stats.entrySet()) {
+                if ("total".equals(label) || e.getKey().label.equals(label)) {
+                    sum += e.getValue().errors.get();
+                }
+            }
+            return sum;
+        }
+
+        Map<Integer, Long> errorStatuses(String label) {
+            Map<Integer, Long> merged = new TreeMap<>();
+            for (Map.Entry<Operation, Stats> e : stats.entrySet()) {
+                if ("total".equals(label) || e.getKey().label.equals(label)) {
+                    for (Map.Entry<Integer, AtomicLong> s : e.getValue().errorStatuses.entrySet()) {
+                        merged.merge(s.getKey(), s.getValue().get(), Long::sum);
+                    }
+                }
+            }
+            return merged;
+        }
+
+        void print() {
+            System.out.printf("MixedLoadBenchmark: %-12s %10s %10s %8s %9s %9s %9s %9s %9s  %s%n",
+                    "operation", "req/s", "ok", "errors", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms",
+                    "error statuses");
+            for (Map.Entry<String, int[]> e : sorted.entrySet()) {
+                String label = e.getKey();
+                int[] s = e.getValue();
+                System.out.printf("MixedLoadBenchmark: %-12s %10.0f %10d %8d %9.2f %9.2f %9.2f %9.2f %9.2f  %s%n",
+                        label, ok(label) / elapsedSeconds, ok(label), errors(label),
+                        ConnectionLoadBenchmark.percentile(s, 0.50), ConnectionLoadBenchmark.percentile(s, 0.90),
+                        ConnectionLoadBenchmark.percentile(s, 0.99), ConnectionLoadBenchmark.percentile(s, 0.999),
+                        ConnectionLoadBenchmark.percentile(s, 1.0), errorStatuses(label));
+            }
+        }
+
+        ObjectNode toJson(String mix, int concurrency, double rate) {
+            ObjectMapper om = new ObjectMapper();
+            ObjectNode root = om.createObjectNode();
+            root.put("mix", mix);
+            root.put("concurrency", concurrency);
+            root.put("rate", rate);
+            root.put("elapsed_seconds", elapsedSeconds);
+            ArrayNode operations = root.putArray("operations");
+            for (Map.Entry<String, int[]> e : sorted.entrySet()) {
+                String label = e.getKey();
+                int[] s = e.getValue();
+                ObjectNode op = operations.addObject();
+                op.put("operation", label);
+                op.put("throughput", ok(label) / elapsedSeconds);
+                op.put("ok", ok(label));
+                op.put("errors", errors(label));
+                op.put("p50_ms", ConnectionLoadBenchmark.percentile(s, 0.50));
+                op.put("p90_ms", ConnectionLoadBenchmark.percentile(s, 0.90));
+                op.put("p99_ms", ConnectionLoadBenchmark.percentile(s, 0.99));
+                op.put("p999_ms", ConnectionLoadBenchmark.percentile(s, 0.999));
+                op.put("max_ms", ConnectionLoadBenchmark.percentile(s, 1.0));
+                ObjectNode statuses = op.putObject("error_statuses");
+                for (Map.Entry<Integer, Long> st : errorStatuses(label).entrySet()) {
+                    statuses.put(String.valueOf(st.getKey()), st.getValue());
+                }
+            }
+            return root;
+        }
+
+        /**
+         * Пороги по сумме всех операций; false - хотя бы один нарушен.
+         */
+        boolean checkThresholds(Map<String, String> opts) {
+            boolean passed = true;
+            double p99 = ConnectionLoadBenchmark.percentile(sorted.get("total"), 0.99);
+            double throughput = ok("total") / elapsedSeconds;
+            long requests = ok("total") + errors("total");
+            double errorRate = requests == 0 ? 0 : (double) errors("total") / requests;
+
+            String maxP99 = opts.get("max-p99-ms");
+            if (maxP99 != null && p99 > Double.parseDouble(maxP99)) {
+                System.out.println("MixedLoadBenchmark: FAIL p99=" + p99 + "ms > max-p99-ms=" + maxP99);
+                passed = false;
+            }
+            String minThroughput = opts.get("min-throughput");
+            if (minThroughput != null && throughput < Double.parseDouble(minThroughput)) {
+                System.out.printf("MixedLoadBenchmark: FAIL throughput=%.0f req/s < min-throughput=%s%n",
+                        throughput, minThroughput);
+                passed = false;
+            }
+            String maxErrorRate = opts.get("max-error-rate");
+            if (maxErrorRate != null && errorRate > Double.parseDouble(maxErrorRate)) {
+                System.out.printf("MixedLoadBenchmark: FAIL error rate=%.4f > max-error-rate=%s%n",
+                        errorRate, maxErrorRate);
+                passed = false;
+            }
+            return passed;
+        }
+    }
+}
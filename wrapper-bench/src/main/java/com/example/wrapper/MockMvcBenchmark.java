@@ -0,0 +1,131 @@
+package com.example.wrapper;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.context.WebApplicationContext;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+
+/**
+ * Сквозной путь через Spring MVC (MockMvc): JSON-разбор DTO, контроллер,
+ * сериализация ответа - всё, кроме сокета. Vault - InProcessVaultStub.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class MockMvcBenchmark {
+
+    private static final int BATCH_ITEMS = 100;
+
+    @Param({"16", "1024"})
+    public int payloadSize;
+
+    private InProcessVaultStub vault;
+    private ConfigurableApplicationContext context;
+    private MockMvc mockMvc;
+
+    private byte[] encryptBody;
+    private byte[] decryptBody;
+    private byte[] accessSignBody;
+    private byte[] encryptBatchBody;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        vault = InProcessVaultStub.start();
+        context = new SpringApplicationBuilder(Application.class)
+                .web(WebApplicationType.SERVLET)
+                .properties(
+                        "server.port=0",
+                        "VAULT_ADDR=" + vault.url(),
+                        "VAULT_TOKEN=root",
+                        "crypto.rewrap.resume-on-startup=false",
+                        "crypto.rewrap.checkpoint-file=" +
+                                Files.createTempFile("bench-rewrap", ".json").toAbsolutePath())
+                .run();
+        mockMvc = MockMvcBuilders.webAppContextSetup((WebApplicationContext) context).build();
+
+        ObjectMapper om = new ObjectMapper();
+        String plaintext = FieldCryptoBenchmark.payload(payloadSize);
+
+        encryptBody = om.writeValueAsBytes(new CryptoController.EncryptRequest("bench-user", "phone", plaintext));
+
+        MvcResult encrypted = mockMvc.perform(post("/crypto/encrypt")
+                .contentType(MediaType.APPLICATION_JSON).content(encryptBody)).andReturn();
+        String ciphertext = om.readTree(encrypted.getResponse().getContentAsByteArray()).path("ciphertext").asText();
+        decryptBody = om.writeValueAsBytes(new CryptoController.DecryptRequest("bench-user", "phone", ciphertext, null));
+
+        CryptoController.AccessSignRequest sign = new CryptoController.AccessSignRequest();
+        sign.user_id = "bench-user";
+        sign.role_name = "ADMIN";
+        sign.action = "GRANT_ROLE";
+        accessSignBody = om.writeValueAsBytes(sign);
+
+        List<CryptoController.EncryptRequest> items = new ArrayList<>();
+        for (int i = 0; i < BATCH_ITEMS; i++) {
+            items.add(new CryptoController.EncryptRequest("bench-user-" + i, "phone", plaintext));
+        }
+        encryptBatchBody = om.writeValueAsBytes(new CryptoController.EncryptBatchRequest(items));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+        vault.close();
+    }
+
+    @Benchmark
+    public MvcResult encrypt() throws Exception {
+        return perform("/crypto/encrypt", encryptBody);
+    }
+
+    @Benchmark
+    public MvcResult decrypt() throws Exception {
+        return perform("/crypto/decrypt", decryptBody);
+    }
+
+    @Benchmark
+    public MvcResult accessSign() throws Exception {
+        return perform("/crypto/access-sign", accessSignBody);
+    }
+
+    @Benchmark
+    public MvcResult encryptBatch100() throws Exception {
+        return perform("/crypto/encrypt-batch", encryptBatchBody);
+    }
+
+    private MvcResult perform(String path, byte[] body) throws Exception {
+        MvcResult result = mockMvc.perform(post(path).contentType(MediaType.APPLICATION_JSON).content(body))
+                .andReturn();
+        if (result.getResponse().getStatus() != 200) {
+            throw new IllegalStateException(path + " -> HTTP " + result.getResponse().getStatus());
+        }
+        return result;
+    }
+}
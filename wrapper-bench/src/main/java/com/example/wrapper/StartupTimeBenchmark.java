@@ -0,0 +1,308 @@
+package com.example.wrapper;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Время старта обёртки в разных упаковках: обычный jar, AppCDS + AOT (Dockerfile.cds),
+ * native image (Dockerfile.native). Каждый вариант - команда оболочки, которая запускает
+ * обёртку на переднем плане; харнесс поднимает InProcessVaultStub и передаёт команде
+ * окружение VAULT_ADDR, VAULT_TOKEN=root и SERVER_PORT.
+ *
+ *   java -cp target/benchmarks.jar com.example.wrapper.StartupTimeBenchmark --runs=5 \
+ *        --cmd.jar="java -jar ../wrapper-java/target/wrapper-0.0.1-SNAPSHOT-exec.jar" \
+ *        --cmd.cds="java -XX:SharedArchiveFile=/tmp/cds/app.jsa -Dspring.aot.enabled=true -jar /tmp/cds/app.jar"
+ *
+ * Образы docker (заглушка слушает 0.0.0.0, контейнер - в сети хоста):
+ *   --cmd.native='docker run --rm --network host -e VAULT_ADDR -e VAULT_TOKEN -e SERVER_PORT wrapper-java:native'
+ *
+ * По каждому запуску:
+ *   ready          - от запуска команды до первого 200 от /health
+ *   first_encrypt  - от запуска до ответа на первый POST /crypto/encrypt (ключи из Vault,
+ *                    первая инициализация Cipher, Jackson и т.п.)
+ *   encrypt_rps    - последовательные encrypt по секундам в первые --warm-seconds после старта:
+ *                    видно, сколько JIT догоняет native
+ *   rss            - RSS дерева процессов в конце прогона (для docker - только клиент, n/a)
+ *
+ * Сводка - медиана и минимум по --runs прогонам (первый прогон - лишний, прогревает
+ * page cache; --discard-first=false, чтобы учитывать). --json=result.json - для CI.
+ * Остальные параметры: --port=18090 --vault-port=0 --timeout-seconds=120 --payload=64.
+ */
+public class StartupTimeBenchmark {
+
+    private static final long POLL_INTERVAL_MS = 5;
+
+    static class Run {
+        long readyMs;
+        long firstEncryptMs;
+        long firstEncryptLatencyMs;
+        int[] encryptPerSecond;
+        long rssKb = -1;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = ConnectionLoadBenchmark.parseArgs(args);
+        Map<String, String> variants = new TreeMap<>();
+        for (Map.Entry<String, String> e : opts.entrySet()) {
+            if (e.getKey().startsWith("cmd.")) {
+                variants.put(e.getKey().substring("cmd.".length()), e.getValue());
+            }
+        }
+        if (variants.isEmpty()) {
+            throw new IllegalArgumentException("no variants, expected --cmd.<name>=<shell command>");
+        }
+        int runs = Integer.parseInt(opts.getOrDefault("runs", "5"));
+        boolean discardFirst = Boolean.parseBoolean(opts.getOrDefault("discard-first", "true"));
+        int port = Integer.parseInt(opts.getOrDefault("port", "18090"));
+        int warmSeconds = Integer.parseInt(opts.getOrDefault("warm-seconds", "5"));
+        long timeoutMs = TimeUnit.SECONDS.toMillis(Long.parseLong(opts.getOrDefault("timeout-seconds", "120")));
+        String payload = FieldCryptoBenchmark.payload(Integer.parseInt(opts.getOrDefault("payload", "64")));
+
+        InProcessVaultStub vault = InProcessVaultStub.start("0.0.0.0",
+                Integer.parseInt(opts.getOrDefault("vault-port", "0")));
+        HttpClient http = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofMillis(200))
+                .build();
+        ObjectMapper mapper = new ObjectMapper();
+        String encryptBody = mapper.writeValueAsString(
+                new CryptoController.EncryptRequest("startup-user", "phone", payload));
+
+        Map<String, List<Run>> results = new LinkedHashMap<>();
+        try {
+            for (Map.Entry<String, String> variant : variants.entrySet()) {
+                List<Run> measured = new ArrayList<>();
+                int total = discardFirst ? runs + 1 : runs;
+                for (int i = 0; i < total; i++) {
+                    Run run = runOnce(variant.getKey(), variant.getValue(), vault, port, http,
+                            encryptBody, warmSeconds, timeoutMs);
+                    boolean discarded = discardFirst && i == 0;
+                    System.out.printf("StartupTimeBenchmark: %-8s run %d%s ready=%dms first_encrypt=%dms " +
+                                    "(latency %dms) encrypt/s=%s rss=%s%n",
+                            variant.getKey(), i + 1, discarded ? " (discarded)" : "",
+                            run.readyMs, run.firstEncryptMs, run.firstEncryptLatencyMs,
+                            Arrays.toString(run.encryptPerSecond), formatRss(run.rssKb));
+                    if (!discarded) {
+                        measured.add(run);
+                    }
+                }
+                results.put(variant.getKey(), measured);
+            }
+        } finally {
+            vault.close();
+        }
+
+        System.out.println();
+        System.out.printf("%-10s %12s %12s %18s %12s %12s %10s%n", "variant", "ready p50", "ready min",
+                "first_encrypt p50", "rps 1st s", "rps last s", "rss p50");
+        for (Map.Entry<String, List<Run>> e : results.entrySet()) {
+            List<Run> rs = e.getValue();
+            System.out.printf("%-10s %10dms %10dms %16dms %12d %12d %10s%n", e.getKey(),
+                    median(rs, r -> r.readyMs), min(rs, r -> r.readyMs),
+                    median(rs, r -> r.firstEncryptMs),
+                    median(rs, r -> r.encryptPerSecond.length > 0 ? r.encryptPerSecond[0] : 0),
+                    median(rs, r -> r.encryptPerSecond.length > 0 ? r.encryptPerSecond[r.encryptPerSecond.length - 1] : 0),
+                    formatRss(median(rs, r -> r.rssKb)));
+        }
+
+        String json = opts.get("json");
+        if (json != null) {
+            mapper.writerWithDefaultPrettyPrinter().writeValue(new File(json), toJson(mapper, results, variants));
+            System.out.println("StartupTimeBenchmark: results written to " + json);
+        }
+    }
+
+    static Run runOnce(String name, String command, InProcessVaultStub vault, int port, HttpClient http,
+                       String encryptBody, int warmSeconds, long timeoutMs) throws Exception {
+        Path log = Files.createTempFile("startup-" + name, ".log");
+        Path checkpoint = log.resolveSibling(log.getFileName() + ".rewrap.json");
+
+        ProcessBuilder pb = new ProcessBuilder("sh", "-c", command)
+                .redirectErrorStream(true)
+                .redirectOutput(log.toFile());
+        pb.environment().put("VAULT_ADDR", vault.url());
+        pb.environment().put("VAULT_TOKEN", "root");
+        pb.environment().put("SERVER_PORT", String.valueOf(port));
+        pb.environment().put("CRYPTO_REWRAP_RESUME_ON_STARTUP", "false");
+        pb.environment().put("CRYPTO_REWRAP_CHECKPOINT_FILE", checkpoint.toString());
+
+        Run run = new Run();
+        long start = System.nanoTime();
+        Process process = pb.start();
+        try {
+            URI health = URI.create("http://127.0.0.1:" + port + "/health");
+            URI encrypt = URI.create("http://127.0.0.1:" + port + "/crypto/encrypt");
+            long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+
+            while (true) {
+                if (!process.isAlive()) {
+                    throw new IllegalStateException(name + " exited with code " + process.exitValue()
+                            + " before becoming ready, see " + log);
+                }
+                if (System.nanoTime() > deadline) {
+                    throw new IllegalStateException(name + " not ready after " + timeoutMs + "ms, see " + log);
+                }
+                try {
+                    HttpResponse<Void> resp = http.send(HttpRequest.newBuilder(health)
+                            .timeout(Duration.ofSeconds(1)).GET().build(), HttpResponse.BodyHandlers.discarding());
+                    if (resp.statusCode() == 200) {
+                        break;
+                    }
+                } catch (IOException notYet) {
+                    // порт ещё не слушается
+                }
+                Thread.sleep(POLL_INTERVAL_MS);
+            }
+            run.readyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            HttpRequest encryptRequest = HttpRequest.newBuilder(encrypt)
+                    .timeout(Duration.ofSeconds(30))
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(encryptBody))
+                    .build();
+            long sent = System.nanoTime();
+            HttpResponse<String> first = http.send(encryptRequest, HttpResponse.BodyHandlers.ofString());
+            long done = System.nanoTime();
+            if (first.statusCode() != 200) {
+                throw new IllegalStateException(name + ": first encrypt returned " + first.statusCode()
+                        + " " + first.body());
+            }
+            run.firstEncryptMs = TimeUnit.NANOSECONDS.toMillis(done - start);
+            run.firstEncryptLatencyMs = TimeUnit.NANOSECONDS.toMillis(done - sent);
+
+            run.encryptPerSecond = new int[warmSeconds];
+            long warmStart = System.nanoTime();
+            long warmEnd = warmStart + TimeUnit.SECONDS.toNanos(warmSeconds);
+            long now;
+            while ((now = System.nanoTime()) < warmEnd) {
+                HttpResponse<Void> resp = http.send(encryptRequest, HttpResponse.BodyHandlers.discarding());
+                if (resp.statusCode() != 200) {
+                    throw new IllegalStateException(name + ": encrypt returned " + resp.statusCode());
+                }
+                int second = (int) TimeUnit.NANOSECONDS.toSeconds(now - warmStart);
+                if (second < warmSeconds) {
+                    run.encryptPerSecond[second]++;
+                }
+            }
+            run.rssKb = treeRssKb(process.toHandle());
+        } finally {
+            destroyTree(process);
+            Files.deleteIfExists(checkpoint);
+        }
+        Files.deleteIfExists(log);
+        return run;
+    }
+
+    /**
+     * Сумма VmRSS процесса и всех потомков (Linux); -1, если /proc недоступен.
+     */
+    static long treeRssKb(ProcessHandle root) {
+        List<ProcessHandle> handles = new ArrayList<>();
+        handles.add(root);
+        root.descendants().forEach(handles::add);
+        long total = 0;
+        for (ProcessHandle h : handles) {
+            Path status = Paths.get("/proc", String.valueOf(h.pid()), "status");
+            try {
+                for (String line : Files.readAllLines(status)) {
+                    if (line.startsWith("VmRSS:")) {
+                        total += Long.parseLong(line.replaceAll("[^0-9]", ""));
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                return -1;
+            }
+        }
+        return total;
+    }
+
+    static void destroyTree(Process process) throws InterruptedException {
+        List<ProcessHandle> descendants = new ArrayList<>();
+        process.toHandle().descendants().forEach(descendants::add);
+        for (ProcessHandle h : descendants) {
+            h.destroy();
+        }
+        process.destroy();
+        if (!process.waitFor(10, TimeUnit.SECONDS)) {
+            process.destroyForcibly();
+        }
+        for (ProcessHandle h : descendants) {
+            if (h.isAlive()) {
+                h.destroyForcibly();
+            }
+        }
+        // порт должен освободиться до следующего прогона
+        for (ProcessHandle h : descendants) {
+            try {
+                h.onExit().get(10, TimeUnit.SECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                System.out.println("StartupTimeBenchmark: process " + h.pid() + " did not exit: " + e);
+            }
+        }
+    }
+
+    interface Metric {
+        long of(Run run);
+    }
+
+    static long median(List<Run> runs, Metric metric) {
+        long[] values = runs.stream().mapToLong(metric::of).sorted().toArray();
+        return values.length == 0 ? 0 : values[(values.length - 1) / 2];
+    }
+
+    static long min(List<Run> runs, Metric metric) {
+        return runs.stream().mapToLong(metric::of).min().orElse(0);
+    }
+
+    static String formatRss(long kb) {
+        return kb < 0 ? "n/a" : (kb / 1024) + "MB";
+    }
+
+    static ObjectNode toJson(ObjectMapper mapper, Map<String, List<Run>> results, Map<String, String> variants) {
+        ObjectNode root = mapper.createObjectNode();
+        for (Map.Entry<String, List<Run>> e : results.entrySet()) {
+            List<Run> rs = e.getValue();
+            ObjectNode v = root.putObject(e.getKey());
+            v.put("command", variants.get(e.getKey()));
+            v.put("ready_ms_p50", median(rs, r -> r.readyMs));
+            v.put("ready_ms_min", min(rs, r -> r.readyMs));
+            v.put("first_encrypt_ms_p50", median(rs, r -> r.firstEncryptMs));
+            v.put("first_encrypt_ms_min", min(rs, r -> r.firstEncryptMs));
+            v.put("first_encrypt_latency_ms_p50", median(rs, r -> r.firstEncryptLatencyMs));
+            v.put("rss_kb_p50", median(rs, r -> r.rssKb));
+            ArrayNode runs = v.putArray("runs");
+            for (Run r : rs) {
+                ObjectNode n = runs.addObject();
+                n.put("ready_ms", r.readyMs);
+                n.put("first_encrypt_ms", r.firstEncryptMs);
+                n.put("first_encrypt_latency_ms", r.firstEncryptLatencyMs);
+                ArrayNode perSecond = n.putArray("encrypt_per_second");
+                for (int c : r.encryptPerSecond) {
+                    perSecond.add(c);
+                }
+                n.put("rss_kb", r.rssKb);
+            }
+        }
+        return root;
+    }
+}
@@ -0,0 +1,159 @@
+package com.example.wrapper;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.context.WebApplicationContext;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+
+/**
+ * JSON+Base64 против application/cbor (шифротекст сырыми байтами) на одних и тех же данных:
+ * MockMvc, разбор запроса, крипто, сериализация ответа.
+ *
+ * Время/alloc - в результатах JMH (-prof gc), байты на проводе печатаются в setup:
+ *
+ *   java -jar target/benchmarks.jar WireFormatBenchmark -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class WireFormatBenchmark {
+
+    private static final int BATCH_ITEMS = 100;
+
+    @Param({"json", "cbor"})
+    public String format;
+
+    @Param({"16", "1024"})
+    public int payloadSize;
+
+    private InProcessVaultStub vault;
+    private ConfigurableApplicationContext context;
+    private MockMvc mockMvc;
+    private MediaType mediaType;
+
+    private byte[] decryptBody;
+    private byte[] encryptBatchBody;
+    private byte[] decryptBatchBody;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        vault = InProcessVaultStub.start();
+        context = new SpringApplicationBuilder(Application.class)
+                .web(WebApplicationType.SERVLET)
+                .properties(
+                        "server.port=0",
+                        "VAULT_ADDR=" + vault.url(),
+                        "VAULT_TOKEN=root",
+                        "crypto.rewrap.resume-on-startup=false",
+                        "crypto.rewrap.checkpoint-file=" +
+                                Files.createTempFile("bench-rewrap", ".json").toAbsolutePath())
+                .run();
+        mockMvc = MockMvcBuilders.webAppContextSetup((WebApplicationContext) context).build();
+
+        boolean cbor = "cbor".equals(format);
+        mediaType = cbor ? MediaType.APPLICATION_CBOR : MediaType.APPLICATION_JSON;
+        ObjectMapper json = new ObjectMapper();
+        ObjectMapper om = cbor ? new ObjectMapper(new CBORFactory()) : json;
+        String plaintext = FieldCryptoBenchmark.payload(payloadSize);
+
+        List<CryptoController.EncryptRequest> items = new ArrayList<>();
+        for (int i = 0; i < BATCH_ITEMS; i++) {
+            items.add(new CryptoController.EncryptRequest("bench-user-" + i, "phone", plaintext));
+        }
+        encryptBatchBody = om.writeValueAsBytes(new CryptoController.EncryptBatchRequest(items));
+
+        // шифротексты берём из JSON-ответа, чтобы обе ветки расшифровывали одно и то же
+        MvcResult encrypted = mockMvc.perform(post("/crypto/encrypt-batch")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(json.writeValueAsBytes(new CryptoController.EncryptBatchRequest(items)))).andReturn();
+        JsonNode results = json.readTree(encrypted.getResponse().getContentAsByteArray()).path("items");
+
+        List<CryptoController.DecryptRequest> textItems = new ArrayList<>();
+        List<CryptoController.BinaryDecryptRequest> binaryItems = new ArrayList<>();
+        for (int i = 0; i < BATCH_ITEMS; i++) {
+            String ciphertext = results.get(i).path("ciphertext").asText();
+            textItems.add(new CryptoController.DecryptRequest("bench-user-" + i, "phone", ciphertext, null));
+            binaryItems.add(new CryptoController.BinaryDecryptRequest("bench-user-" + i, "phone",
+                    Base64.getDecoder().decode(ciphertext), null));
+        }
+        if (cbor) {
+            decryptBody = om.writeValueAsBytes(binaryItems.get(0));
+            decryptBatchBody = om.writeValueAsBytes(new CryptoController.BinaryDecryptBatchRequest(binaryItems));
+        } else {
+            decryptBody = om.writeValueAsBytes(textItems.get(0));
+            decryptBatchBody = om.writeValueAsBytes(new CryptoController.DecryptBatchRequest(textItems));
+        }
+
+        System.out.println();
+        report("decrypt", decryptBody);
+        report("encrypt-batch", encryptBatchBody);
+        report("decrypt-batch", decryptBatchBody);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+        vault.close();
+    }
+
+    @Benchmark
+    public MvcResult decrypt() throws Exception {
+        return perform("/crypto/decrypt", decryptBody);
+    }
+
+    @Benchmark
+    public MvcResult encryptBatch100() throws Exception {
+        return perform("/crypto/encrypt-batch", encryptBatchBody);
+    }
+
+    @Benchmark
+    public MvcResult decryptBatch100() throws Exception {
+        return perform("/crypto/decrypt-batch", decryptBatchBody);
+    }
+
+    private void report(String operation, byte[] body) throws Exception {
+        MvcResult result = perform("/crypto/" + operation, body);
+        System.out.printf("WireFormatBenchmark: format=%s payload=%d %-14s request=%7d B  response=%7d B%n",
+                format, payloadSize, operation, body.length, result.getResponse().getContentAsByteArray().length);
+    }
+
+    private MvcResult perform(String path, byte[] body) throws Exception {
+        MvcResult result = mockMvc.perform(post(path).contentType(mediaType).accept(mediaType).content(body))
+                .andReturn();
+        if (result.getResponse().getStatus() != 200) {
+            throw new IllegalStateException(path + " -> HTTP " + result.getResponse().getStatus());
+        }
+        return result;
+    }
+}
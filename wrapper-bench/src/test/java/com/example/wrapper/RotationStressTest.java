@@ -0,0 +1,306 @@
+package com.example.wrapper;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Стресс ротации мастер-ключа под нагрузкой: rotation.threads потоков без остановки шифруют
+ * и расшифровывают, а отдельный поток каждые rotation.rotate-every-ms вызывает /crypto/rotate-master.
+ * Запись ротации в Vault замедлена (rotation.vault-latency-ms), чтобы окно "Vault уже записан,
+ * снимок ещё не подменён" было широким.
+ *
+ * Проверки:
+ *   - key_id в ответе encrypt совпадает с key_id в заголовке шифротекста;
+ *   - каждый полученный шифротекст расшифровывается в исходный текст - сразу
+ *     (случайный из уже записанных, во время ротаций) и в конце (все, до rotation.max-verify штук);
+ *   - запросы не ждут ротацию: p99 задержки encrypt/decrypt, начатых во время ротации, не больше
+ *     p99 остальных запросов + rotation.max-p99-excess-ms (по умолчанию - задержка одной записи
+ *     в Vault: запрос, ждавший ротацию, ждал бы хотя бы её). Сравнение с запросами вне ротации,
+ *     а не абсолютный порог - на паре ядер 8 потоков и так дают десятки мс.
+ *
+ *   mvn test -Dtest=RotationStressTest -Drotation.seconds=30 -Drotation.threads=16
+ *
+ * Остальные параметры: -Drotation.rotate-every-ms=200 -Drotation.vault-latency-ms=50 -Drotation.max-verify=200000.
+ */
+class RotationStressTest {
+
+    private static final String FIELD = "phone";
+
+    private static final class Written {
+        final String userId;
+        final String plaintext;
+        final String ciphertext;
+        final String keyId;
+
+        Written(String userId, String plaintext, String ciphertext, String keyId) {
+            this.userId = userId;
+            this.plaintext = plaintext;
+            this.ciphertext = ciphertext;
+            this.keyId = keyId;
+        }
+    }
+
+    private final int seconds = Integer.getInteger("rotation.seconds", 10);
+    private final int threads = Integer.getInteger("rotation.threads", 8);
+    private final long rotateEveryMs = Long.getLong("rotation.rotate-every-ms", 200);
+    private final long vaultLatencyMs = Long.getLong("rotation.vault-latency-ms", 50);
+    private final long maxP99ExcessMs = Long.getLong("rotation.max-p99-excess-ms", vaultLatencyMs);
+    private final int maxVerify = Integer.getInteger("rotation.max-verify", 200_000);
+
+    private final ObjectMapper om = new ObjectMapper();
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+
+    private InProcessVaultStub vault;
+    private ConfigurableApplicationContext context;
+    private URI encryptUri;
+    private URI decryptUri;
+    private URI rotateUri;
+
+    // первые maxVerify шифротекстов по порядку записи; слот заполняется после инкремента счётчика
+    private AtomicReferenceArray<Written> written;
+    private final AtomicInteger writtenCount = new AtomicInteger();
+    private final AtomicLong encrypts = new AtomicLong();
+    private final AtomicLong decrypts = new AtomicLong();
+    private final AtomicLong rotations = new AtomicLong();
+    private final AtomicLong keyIdMismatches = new AtomicLong();
+    private final AtomicLong decryptFailures = new AtomicLong();
+    private final AtomicLong requestErrors = new AtomicLong();
+    // задержки (мкс) запросов, начатых во время ротации и вне её
+    private final ConcurrentLinkedQueue<Long> duringRotationMicros = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Long> otherMicros = new ConcurrentLinkedQueue<>();
+    private final AtomicLong maxRotateMicros = new AtomicLong();
+    private final AtomicBoolean rotating = new AtomicBoolean();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        written = new AtomicReferenceArray<>(maxVerify);
+        vault = InProcessVaultStub.start();
+        context = new SpringApplicationBuilder(Application.class)
+                .web(WebApplicationType.SERVLET)
+                .properties("server.port=0",
+                        "VAULT_ADDR=" + vault.url(),
+                        "VAULT_TOKEN=root",
+                        "crypto.rewrap.resume-on-startup=false",
+                        "crypto.admission.enabled=false",
+                        "crypto.rewrap.checkpoint-file=" +
+                                Files.createTempFile("stress-rewrap", ".json").toAbsolutePath())
+                .run();
+        String url = "http://127.0.0.1:" + ((WebServerApplicationContext) context).getWebServer().getPort();
+        encryptUri = URI.create(url + "/crypto/encrypt");
+        decryptUri = URI.create(url + "/crypto/decrypt");
+        rotateUri = URI.create(url + "/crypto/rotate-master");
+        // ключи уже загружены - замедляем только дальнейшие обращения к Vault (записи ротаций)
+        vault.injectLatency(vaultLatencyMs, 0);
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (context != null) {
+            context.close();
+        }
+        vault.close();
+    }
+
+    @Test
+    void rotationUnderLoadKeepsEveryCiphertextReadableWithoutStallingRequests() throws Exception {
+        System.out.println("RotationStressTest: threads=" + threads + ", seconds=" + seconds +
+                ", rotate_every_ms=" + rotateEveryMs + ", vault_latency_ms=" + vaultLatencyMs);
+
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        CountDownLatch done = new CountDownLatch(threads + 1);
+
+        Thread rotator = new Thread(() -> {
+            try {
+                while (System.nanoTime() < deadline) {
+                    Thread.sleep(rotateEveryMs);
+                    rotating.set(true);
+                    long started = System.nanoTime();
+                    try {
+                        HttpResponse<String> response = client.send(
+                                HttpRequest.newBuilder(rotateUri).POST(HttpRequest.BodyPublishers.noBody()).build(),
+                                HttpResponse.BodyHandlers.ofString());
+                        if (response.statusCode() == 200) {
+                            rotations.incrementAndGet();
+                        } else {
+                            requestErrors.incrementAndGet();
+                            System.out.println("RotationStressTest: rotate failed " + response.statusCode() +
+                                    ": " + response.body());
+                        }
+                    } finally {
+                        rotating.set(false);
+                        maxRotateMicros.accumulateAndGet((System.nanoTime() - started) / 1_000, Math::max);
+                    }
+                }
+            } catch (Exception e) {
+                requestErrors.incrementAndGet();
+                System.out.println("RotationStressTest: rotator stopped: " + e);
+            } finally {
+                done.countDown();
+            }
+        }, "stress-rotator");
+        rotator.start();
+
+        for (int t = 0; t < threads; t++) {
+            final int worker = t;
+            Thread thread = new Thread(() -> {
+                try {
+                    long n = 0;
+                    while (System.nanoTime() < deadline) {
+                        String userId = "stress-user-" + worker + "-" + (n % 64);
+                        String plaintext = "value-" + worker + "-" + n++;
+                        encryptAndCheck(userId, plaintext);
+                        // каждый четвёртый раз расшифровываем случайный ранее записанный шифротекст
+                        Written earlier = randomWritten();
+                        if (earlier != null && ThreadLocalRandom.current().nextInt(4) == 0) {
+                            decryptAndCheck(earlier, true);
+                        }
+                    }
+                } catch (Exception e) {
+                    requestErrors.incrementAndGet();
+                    System.out.println("RotationStressTest: worker " + worker + " stopped: " + e);
+                } finally {
+                    done.countDown();
+                }
+            }, "stress-worker-" + t);
+            thread.start();
+        }
+        done.await();
+
+        int toVerify = Math.min(writtenCount.get(), maxVerify);
+        System.out.println("RotationStressTest: load done, encrypts=" + encrypts.get() + " decrypts=" + decrypts.get() +
+                " rotations=" + rotations.get() + ", verifying " + toVerify + " ciphertexts");
+        for (int i = 0; i < toVerify; i++) {
+            decryptAndCheck(written.get(i), false);
+        }
+
+        List<Long> latencies = sorted(duringRotationMicros);
+        long p99Micros = p99(latencies);
+        long otherP99Micros = p99(sorted(otherMicros));
+        System.out.printf("RotationStressTest: rotations=%d encrypts=%d decrypts=%d verified=%d " +
+                        "key_id_mismatches=%d decrypt_failures=%d request_errors=%d%n",
+                rotations.get(), encrypts.get(), decrypts.get(), toVerify,
+                keyIdMismatches.get(), decryptFailures.get(), requestErrors.get());
+        System.out.printf("RotationStressTest: requests started during rotation=%d, p99=%.1fms " +
+                        "(other requests p99=%.1fms); max rotate-master latency=%.1fms (Vault write delay %dms)%n",
+                latencies.size(), p99Micros / 1000.0, otherP99Micros / 1000.0,
+                maxRotateMicros.get() / 1000.0, vaultLatencyMs);
+
+        assertTrue(rotations.get() > 0, "no rotation completed");
+        assertEquals(0, requestErrors.get(), "request errors");
+        assertEquals(0, keyIdMismatches.get(), "key_id in response differs from ciphertext header");
+        assertEquals(0, decryptFailures.get(), "ciphertexts not decrypted to their plaintext");
+        assertTrue(!latencies.isEmpty(), "no request started during a rotation");
+        assertTrue(p99Micros <= otherP99Micros + maxP99ExcessMs * 1000,
+                "p99 of requests during rotation " + p99Micros / 1000.0 + "ms exceeds other requests' p99 " +
+                        otherP99Micros / 1000.0 + "ms by more than " + maxP99ExcessMs +
+                        "ms: requests wait for the rotation's Vault write");
+    }
+
+    private static List<Long> sorted(ConcurrentLinkedQueue<Long> micros) {
+        List<Long> list = new ArrayList<>(micros);
+        Collections.sort(list);
+        return list;
+    }
+
+    private static long p99(List<Long> sorted) {
+        return sorted.isEmpty() ? 0 : sorted.get((int) Math.ceil(sorted.size() * 0.99) - 1);
+    }
+
+    private Written randomWritten() {
+        int count = Math.min(writtenCount.get(), maxVerify);
+        if (count == 0) {
+            return null;
+        }
+        // слот может быть ещё пуст: счётчик увеличен, запись - следом
+        return written.get(ThreadLocalRandom.current().nextInt(count));
+    }
+
+    private void encryptAndCheck(String userId, String plaintext) throws Exception {
+        boolean duringRotation = rotating.get();
+        long started = System.nanoTime();
+        HttpResponse<byte[]> response = client.send(post(encryptUri,
+                om.writeValueAsBytes(new CryptoController.EncryptRequest(userId, FIELD, plaintext))),
+                HttpResponse.BodyHandlers.ofByteArray());
+        recordLatency(duringRotation, started);
+        if (response.statusCode() != 200) {
+            requestErrors.incrementAndGet();
+            return;
+        }
+        encrypts.incrementAndGet();
+        CryptoController.EncryptResponse resp = om.readValue(response.body(), CryptoController.EncryptResponse.class);
+        CiphertextEnvelope envelope = CiphertextEnvelope.tryParse(Base64.getDecoder().decode(resp.ciphertext));
+        if (envelope == null || !envelope.keyId.equals(resp.key_id)) {
+            if (keyIdMismatches.incrementAndGet() <= 10) {
+                System.out.println("RotationStressTest: key_id mismatch, response=" + resp.key_id +
+                        " header=" + (envelope == null ? null : envelope.keyId));
+            }
+        }
+        int index = writtenCount.getAndIncrement();
+        if (index < maxVerify) {
+            written.set(index, new Written(userId, plaintext, resp.ciphertext, resp.key_id));
+        }
+    }
+
+    private void decryptAndCheck(Written w, boolean measure) throws Exception {
+        boolean duringRotation = measure && rotating.get();
+        long started = System.nanoTime();
+        HttpResponse<byte[]> response = client.send(post(decryptUri,
+                om.writeValueAsBytes(new CryptoController.DecryptRequest(w.userId, FIELD, w.ciphertext, w.keyId))),
+                HttpResponse.BodyHandlers.ofByteArray());
+        if (measure) {
+            recordLatency(duringRotation, started);
+        }
+        decrypts.incrementAndGet();
+        String plaintext = response.statusCode() == 200
+                ? om.readValue(response.body(), CryptoController.DecryptResponse.class).plaintext
+                : null;
+        if (!w.plaintext.equals(plaintext)) {
+            if (decryptFailures.incrementAndGet() <= 10) {
+                System.out.println("RotationStressTest: decrypt failed, key_id=" + w.keyId + " status=" +
+                        response.statusCode() + " body=" + new String(response.body()));
+            }
+        }
+    }
+
+    private void recordLatency(boolean duringRotation, long started) {
+        long micros = (System.nanoTime() - started) / 1_000;
+        (duringRotation ? duringRotationMicros : otherMicros).add(micros);
+    }
+
+    private static HttpRequest post(URI uri, byte[] body) {
+        return HttpRequest.newBuilder(uri)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                .build();
+    }
+}
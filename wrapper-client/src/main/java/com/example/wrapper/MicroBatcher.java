@@ -0,0 +1,193 @@
+package com.example.wrapper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Объединение одиночных вызовов одного вида в пакетные запросы.
+ *
+ * Пакет уходит, когда набралось maxBatchSize вызовов или первый из них ждёт maxDelay.
+ * В полёте не больше maxInFlight пакетов: пока все заняты, вызовы копятся, и следующий
+ * пакет уходит сразу по завершении любого из них - под нагрузкой пакеты растут сами,
+ * без нагрузки задержка не больше окна.
+ */
+class MicroBatcher<I, O> {
+
+    static final class Pending<I, O> {
+        final I item;
+        final CompletableFuture<O> future = new CompletableFuture<>();
+
+        Pending(I item) {
+            this.item = item;
+        }
+    }
+
+    /**
+     * Отправка пакета. Завершает future каждого элемента; что останется незавершённым
+     * после завершения возвращённого future - завершится ошибкой.
+     */
+    interface Sender<I, O> {
+        CompletableFuture<?> send(List<Pending<I, O>> batch);
+    }
+
+    private final String name;
+    private final Sender<I, O> sender;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final int maxInFlight;
+    private final int maxQueued;
+    private final ScheduledExecutorService timer;
+
+    // всё ниже - под монитором this
+    private List<Pending<I, O>> queue = new ArrayList<>();
+    private int inFlight;
+    private boolean timerArmed;
+    private boolean closed;
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong items = new AtomicLong();
+
+    MicroBatcher(String name, Sender<I, O> sender, int maxBatchSize, long maxDelayMicros, int maxInFlight,
+                 int maxQueued, ScheduledExecutorService timer) {
+        this.name = name;
+        this.sender = sender;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+        this.maxInFlight = maxInFlight;
+        this.maxQueued = maxQueued;
+        this.timer = timer;
+    }
+
+    CompletableFuture<O> submit(I item) {
+        Pending<I, O> pending = new Pending<>(item);
+        List<List<Pending<I, O>>> ready;
+        synchronized (this) {
+            if (closed) {
+                pending.future.completeExceptionally(new WrapperClientException(
+                        WrapperClientException.CLIENT_CLOSED, 0, "client is closed", 0, null));
+                return pending.future;
+            }
+            if (queue.size() >= maxQueued) {
+                pending.future.completeExceptionally(new WrapperClientException(
+                        WrapperClientException.CLIENT_QUEUE_FULL, 0,
+                        name + ": " + queue.size() + " calls already queued", 0, null));
+                return pending.future;
+            }
+            queue.add(pending);
+            if (queue.size() >= maxBatchSize || maxDelayNanos == 0) {
+                ready = takeReady();
+            } else {
+                if (!timerArmed) {
+                    timerArmed = true;
+                    timer.schedule(this::onWindowElapsed, maxDelayNanos, TimeUnit.NANOSECONDS);
+                }
+                ready = Collections.emptyList();
+            }
+        }
+        dispatch(ready);
+        return pending.future;
+    }
+
+    long getBatches() {
+        return batches.get();
+    }
+
+    long getItems() {
+        return items.get();
+    }
+
+    /**
+     * Остаток очереди уходит сразу, без учёта maxInFlight; новые вызовы отклоняются.
+     */
+    void close() {
+        List<List<Pending<I, O>>> ready = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            while (!queue.isEmpty()) {
+                ready.add(takeBatch());
+            }
+        }
+        dispatch(ready);
+    }
+
+    private void onWindowElapsed() {
+        List<List<Pending<I, O>>> ready;
+        synchronized (this) {
+            timerArmed = false;
+            ready = takeReady();
+        }
+        dispatch(ready);
+    }
+
+    private void onBatchDone() {
+        List<List<Pending<I, O>>> ready;
+        synchronized (this) {
+            inFlight--;
+            // окно у оставшихся уже истекло (таймер не взведён) или набрался полный пакет -
+            // ждали только свободного места
+            ready = !timerArmed || queue.size() >= maxBatchSize
+                    ? takeReady()
+                    : Collections.<List<Pending<I, O>>>emptyList();
+        }
+        dispatch(ready);
+    }
+
+    // под монитором this
+    private List<List<Pending<I, O>>> takeReady() {
+        if (queue.isEmpty() || inFlight >= maxInFlight) {
+            return Collections.emptyList();
+        }
+        List<List<Pending<I, O>>> ready = new ArrayList<>();
+        while (!queue.isEmpty() && inFlight < maxInFlight) {
+            ready.add(takeBatch());
+        }
+        return ready;
+    }
+
+    // под монитором this
+    private List<Pending<I, O>> takeBatch() {
+        List<Pending<I, O>> batch;
+        if (queue.size() <= maxBatchSize) {
+            batch = queue;
+            queue = new ArrayList<>();
+        } else {
+            batch = new ArrayList<>(queue.subList(0, maxBatchSize));
+            queue.subList(0, maxBatchSize).clear();
+        }
+        inFlight++;
+        return batch;
+    }
+
+    private void dispatch(List<List<Pending<I, O>>> ready) {
+        for (List<Pending<I, O>> batch : ready) {
+            batches.incrementAndGet();
+            items.addAndGet(batch.size());
+            CompletableFuture<?> sent;
+            try {
+                sent = sender.send(batch);
+            } catch (RuntimeException e) {
+                sent = CompletableFuture.failedFuture(e);
+            }
+            sent.whenComplete((ignored, error) -> {
+                try {
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null
+                            ? error.getCause() : error;
+                    for (Pending<I, O> p : batch) {
+                        if (!p.future.isDone()) {
+                            p.future.completeExceptionally(cause != null ? cause : new WrapperClientException(
+                                    WrapperClientException.ITEM_ERROR, 0, name + ": no result for item", 0, null));
+                        }
+                    }
+                } finally {
+                    onBatchDone();
+                }
+            });
+        }
+    }
+}
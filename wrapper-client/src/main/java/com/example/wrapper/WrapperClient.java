@@ -0,0 +1,321 @@
+package com.example.wrapper;
+
+import com.example.wrapper.CryptoController.AccessSignBatchItemResult;
+import com.example.wrapper.CryptoController.AccessSignBatchRequest;
+import com.example.wrapper.CryptoController.AccessSignBatchResponse;
+import com.example.wrapper.CryptoController.AccessSignRequest;
+import com.example.wrapper.CryptoController.AccessSignResponse;
+import com.example.wrapper.CryptoController.AccessVerifyBatchRequest;
+import com.example.wrapper.CryptoController.AccessVerifyBatchResponse;
+import com.example.wrapper.CryptoController.AccessVerifyItemResult;
+import com.example.wrapper.CryptoController.AccessVerifyRequest;
+import com.example.wrapper.CryptoController.DecryptBatchItemResult;
+import com.example.wrapper.CryptoController.DecryptBatchRequest;
+import com.example.wrapper.CryptoController.DecryptBatchResponse;
+import com.example.wrapper.CryptoController.DecryptRequest;
+import com.example.wrapper.CryptoController.DecryptResponse;
+import com.example.wrapper.CryptoController.EncryptBatchItemResult;
+import com.example.wrapper.CryptoController.EncryptBatchRequest;
+import com.example.wrapper.CryptoController.EncryptBatchResponse;
+import com.example.wrapper.CryptoController.EncryptRequest;
+import com.example.wrapper.CryptoController.EncryptResponse;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+/**
+ * Асинхронный клиент обёртки для JVM-сервисов.
+ *
+ * Вызовы одиночные (encrypt, decrypt, accessSign, accessVerify), а по сети идут пакетами:
+ * одновременные вызовы одного вида собираются в /crypto/encrypt-batch, /crypto/decrypt-batch,
+ * /crypto/access-sign-batch, /crypto/access-verify-batch в пределах окна и размера пакета
+ * (см. WrapperClientSettings, MicroBatcher). Пакеты идут параллельно по пулу keep-alive
+ * соединений одного HttpClient. Запросы и ответы - DTO самой обёртки (CryptoController).
+ *
+ * Ошибка одного элемента пакета завершает с WrapperClientException только его вызов;
+ * ошибка всего запроса (429, 503 Vault, нет соединения) - все вызовы пакета.
+ * Повторов клиент не делает: код и Retry-After есть в исключении.
+ *
+ * Один клиент на процесс; потокобезопасен. close() отправляет то, что уже в очереди.
+ */
+public class WrapperClient implements AutoCloseable {
+
+    private static final String ENCRYPT_BATCH = "/crypto/encrypt-batch";
+    private static final String DECRYPT_BATCH = "/crypto/decrypt-batch";
+    private static final String ACCESS_SIGN_BATCH = "/crypto/access-sign-batch";
+    private static final String ACCESS_VERIFY_BATCH = "/crypto/access-verify-batch";
+
+    private final WrapperClientSettings settings;
+    private final HttpClient httpClient;
+    private final ObjectMapper mapper;
+    private final ScheduledThreadPoolExecutor timer;
+
+    private final MicroBatcher<EncryptRequest, EncryptResponse> encryptBatcher;
+    private final MicroBatcher<DecryptRequest, DecryptResponse> decryptBatcher;
+    private final MicroBatcher<AccessSignRequest, AccessSignResponse> accessSignBatcher;
+    private final MicroBatcher<AccessVerifyRequest, Boolean> accessVerifyBatcher;
+
+    public WrapperClient(WrapperClientSettings settings) {
+        this.settings = settings;
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.valueOf(settings.httpVersion))
+                .connectTimeout(Duration.ofMillis(settings.connectTimeoutMs))
+                .build();
+        // новые поля в ответах обёртки не ломают старый клиент
+        this.mapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+        this.timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "wrapper-client-batcher");
+            t.setDaemon(true);
+            return t;
+        });
+
+        this.encryptBatcher = batcher("encrypt", this::sendEncrypt);
+        this.decryptBatcher = batcher("decrypt", this::sendDecrypt);
+        this.accessSignBatcher = batcher("access-sign", this::sendAccessSign);
+        this.accessVerifyBatcher = batcher("access-verify", this::sendAccessVerify);
+    }
+
+    // ----- Вызовы -----
+
+    public CompletableFuture<EncryptResponse> encrypt(EncryptRequest req) {
+        return encryptBatcher.submit(req);
+    }
+
+    public CompletableFuture<EncryptResponse> encrypt(String userId, String field, String plaintext) {
+        return encrypt(new EncryptRequest(userId, field, plaintext));
+    }
+
+    public CompletableFuture<DecryptResponse> decrypt(DecryptRequest req) {
+        return decryptBatcher.submit(req);
+    }
+
+    public CompletableFuture<DecryptResponse> decrypt(String userId, String field, String ciphertext) {
+        return decrypt(new DecryptRequest(userId, field, ciphertext, null));
+    }
+
+    public CompletableFuture<AccessSignResponse> accessSign(AccessSignRequest req) {
+        return accessSignBatcher.submit(req);
+    }
+
+    public CompletableFuture<AccessSignResponse> accessSign(String userId, String roleName, String action) {
+        return accessSign(new AccessSignRequest(userId, roleName, action));
+    }
+
+    /**
+     * true - подпись верна; некорректный элемент (нет user_id и т.п.) - WrapperClientException.
+     */
+    public CompletableFuture<Boolean> accessVerify(AccessVerifyRequest req) {
+        return accessVerifyBatcher.submit(req);
+    }
+
+    public CompletableFuture<Boolean> accessVerify(String userId, String roleName, String action, String signature) {
+        return accessVerify(new AccessVerifyRequest(userId, roleName, action, signature));
+    }
+
+    /**
+     * Сколько пакетных запросов отправлено (все виды).
+     */
+    public long getBatchesSent() {
+        return encryptBatcher.getBatches() + decryptBatcher.getBatches()
+                + accessSignBatcher.getBatches() + accessVerifyBatcher.getBatches();
+    }
+
+    /**
+     * Сколько вызовов ушло в этих запросах.
+     */
+    public long getItemsSent() {
+        return encryptBatcher.getItems() + decryptBatcher.getItems()
+                + accessSignBatcher.getItems() + accessVerifyBatcher.getItems();
+    }
+
+    public WrapperClientSettings getSettings() {
+        return settings;
+    }
+
+    @Override
+    public void close() {
+        encryptBatcher.close();
+        decryptBatcher.close();
+        accessSignBatcher.close();
+        accessVerifyBatcher.close();
+        timer.shutdown();
+    }
+
+    // ----- Пакеты -----
+
+    private <I, O> MicroBatcher<I, O> batcher(String name, MicroBatcher.Sender<I, O> sender) {
+        return new MicroBatcher<>(name, sender, settings.maxBatchSize, settings.maxDelayMicros,
+                settings.maxInFlightBatches, settings.maxQueuedItems, timer);
+    }
+
+    private CompletableFuture<?> sendEncrypt(List<MicroBatcher.Pending<EncryptRequest, EncryptResponse>> batch) {
+        List<EncryptRequest> items = new ArrayList<>(batch.size());
+        for (MicroBatcher.Pending<EncryptRequest, EncryptResponse> p : batch) {
+            items.add(p.item);
+        }
+        return post(ENCRYPT_BATCH, new EncryptBatchRequest(items), EncryptBatchResponse.class)
+                .thenAccept(resp -> {
+                    List<EncryptBatchItemResult> results = resultsOf(resp.items, batch.size(), ENCRYPT_BATCH);
+                    for (int i = 0; i < batch.size(); i++) {
+                        EncryptBatchItemResult r = results.get(i);
+                        if ("ok".equals(r.status)) {
+                            batch.get(i).future.complete(new EncryptResponse(r.ciphertext, resp.algo, r.key_id));
+                        } else {
+                            batch.get(i).future.completeExceptionally(itemError(ENCRYPT_BATCH, r.error));
+                        }
+                    }
+                });
+    }
+
+    private CompletableFuture<?> sendDecrypt(List<MicroBatcher.Pending<DecryptRequest, DecryptResponse>> batch) {
+        List<DecryptRequest> items = new ArrayList<>(batch.size());
+        for (MicroBatcher.Pending<DecryptRequest, DecryptResponse> p : batch) {
+            items.add(p.item);
+        }
+        return post(DECRYPT_BATCH, new DecryptBatchRequest(items), DecryptBatchResponse.class)
+                .thenAccept(resp -> {
+                    List<DecryptBatchItemResult> results = resultsOf(resp.items, batch.size(), DECRYPT_BATCH);
+                    for (int i = 0; i < batch.size(); i++) {
+                        DecryptBatchItemResult r = results.get(i);
+                        if ("ok".equals(r.status)) {
+                            batch.get(i).future.complete(new DecryptResponse(r.plaintext));
+                        } else {
+                            batch.get(i).future.completeExceptionally(itemError(DECRYPT_BATCH, r.error));
+                        }
+                    }
+                });
+    }
+
+    private CompletableFuture<?> sendAccessSign(
+            List<MicroBatcher.Pending<AccessSignRequest, AccessSignResponse>> batch) {
+        List<AccessSignRequest> items = new ArrayList<>(batch.size());
+        for (MicroBatcher.Pending<AccessSignRequest, AccessSignResponse> p : batch) {
+            items.add(p.item);
+        }
+        return post(ACCESS_SIGN_BATCH, new AccessSignBatchRequest(items), AccessSignBatchResponse.class)
+                .thenAccept(resp -> {
+                    List<AccessSignBatchItemResult> results = resultsOf(resp.items, batch.size(), ACCESS_SIGN_BATCH);
+                    for (int i = 0; i < batch.size(); i++) {
+                        AccessSignBatchItemResult r = results.get(i);
+                        if ("ok".equals(r.status)) {
+                            batch.get(i).future.complete(new AccessSignResponse(r.hmac, resp.algo, resp.key_id));
+                        } else {
+                            batch.get(i).future.completeExceptionally(itemError(ACCESS_SIGN_BATCH, r.error));
+                        }
+                    }
+                });
+    }
+
+    private CompletableFuture<?> sendAccessVerify(List<MicroBatcher.Pending<AccessVerifyRequest, Boolean>> batch) {
+        List<AccessVerifyRequest> items = new ArrayList<>(batch.size());
+        for (MicroBatcher.Pending<AccessVerifyRequest, Boolean> p : batch) {
+            items.add(p.item);
+        }
+        return post(ACCESS_VERIFY_BATCH, new AccessVerifyBatchRequest(items), AccessVerifyBatchResponse.class)
+                .thenAccept(resp -> {
+                    List<AccessVerifyItemResult> results = resultsOf(resp.items, batch.size(), ACCESS_VERIFY_BATCH);
+                    for (int i = 0; i < batch.size(); i++) {
+                        AccessVerifyItemResult r = results.get(i);
+                        if ("ok".equals(r.status)) {
+                            batch.get(i).future.complete(r.valid);
+                        } else {
+                            batch.get(i).future.completeExceptionally(itemError(ACCESS_VERIFY_BATCH, r.error));
+                        }
+                    }
+                });
+    }
+
+    // ----- HTTP -----
+
+    private <T> CompletableFuture<T> post(String path, Object body, Class<T> responseType) {
+        byte[] json;
+        try {
+            json = mapper.writeValueAsBytes(body);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException(
+                    "cannot serialize request for " + path + ": " + e.getMessage(), e));
+        }
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(settings.baseUrl + path))
+                .timeout(Duration.ofMillis(settings.requestTimeoutMs))
+                .header("Content-Type", "application/json")
+                .header("Accept", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(json));
+        if (settings.clientId != null) {
+            request.header(CryptoAdmissionFilter.CLIENT_ID_HEADER, settings.clientId);
+        }
+        if (settings.clientToken != null) {
+            request.header(CryptoAdmissionFilter.CLIENT_TOKEN_HEADER, settings.clientToken);
+        }
+        if (settings.priority != null) {
+            request.header(CryptoAdmissionFilter.PRIORITY_HEADER, settings.priority);
+        }
+
+        return httpClient.sendAsync(request.build(), HttpResponse.BodyHandlers.ofByteArray())
+                .handle((resp, error) -> {
+                    if (error != null) {
+                        Throwable cause = error instanceof CompletionException && error.getCause() != null
+                                ? error.getCause() : error;
+                        throw new WrapperClientException(WrapperClientException.IO_ERROR, 0,
+                                path + ": " + cause, 0, cause);
+                    }
+                    if (resp.statusCode() / 100 != 2) {
+                        throw httpError(path, resp);
+                    }
+                    try {
+                        return mapper.readValue(resp.body(), responseType);
+                    } catch (IOException e) {
+                        throw new WrapperClientException(WrapperClientException.HTTP_ERROR, resp.statusCode(),
+                                path + ": malformed response: " + e.getMessage(), 0, e);
+                    }
+                });
+    }
+
+    private WrapperClientException httpError(String path, HttpResponse<byte[]> resp) {
+        long retryAfter = resp.headers().firstValue("Retry-After").map(v -> {
+            try {
+                return Long.parseLong(v.trim());
+            } catch (NumberFormatException e) {
+                return 0L;
+            }
+        }).orElse(0L);
+        String code = WrapperClientException.HTTP_ERROR;
+        String message = path + ": HTTP " + resp.statusCode();
+        try {
+            VaultErrorHandler.ErrorResponse err = mapper.readValue(resp.body(), VaultErrorHandler.ErrorResponse.class);
+            // ErrorResponse обёртки - код в error; общий ответ Spring - текст статуса, код оставляем свой
+            if (err.error != null && err.error.indexOf(' ') < 0 && err.error.equals(err.error.toLowerCase())) {
+                code = err.error;
+            }
+            if (err.message != null) {
+                message = message + ": " + err.message;
+            }
+        } catch (IOException | RuntimeException ignored) {
+            // тело не JSON
+        }
+        return new WrapperClientException(code, resp.statusCode(), message, retryAfter, null);
+    }
+
+    private static <T> List<T> resultsOf(List<T> results, int expected, String path) {
+        if (results == null || results.size() != expected) {
+            throw new WrapperClientException(WrapperClientException.HTTP_ERROR, 200, path + ": expected "
+                    + expected + " items in response, got " + (results == null ? 0 : results.size()), 0, null);
+        }
+        return results;
+    }
+
+    private static WrapperClientException itemError(String path, String error) {
+        return new WrapperClientException(WrapperClientException.ITEM_ERROR, 200, path + ": " + error, 0, null);
+    }
+}
@@ -0,0 +1,47 @@
+package com.example.wrapper;
+
+/**
+ * Вызов обёртки не удался. Код - error из ответа обёртки (rate_limited, queue_full,
+ * vault_unavailable и т.д.) или один из кодов клиента ниже.
+ */
+public class WrapperClientException extends RuntimeException {
+
+    // обёртка обработала пакет, но этот элемент - с ошибкой (status=error)
+    public static final String ITEM_ERROR = "item_error";
+    // ответ не 2xx без тела ErrorResponse
+    public static final String HTTP_ERROR = "http_error";
+    // нет ответа: соединение, таймаут
+    public static final String IO_ERROR = "io_error";
+    // очередь вызовов клиента переполнена (maxQueuedItems)
+    public static final String CLIENT_QUEUE_FULL = "client_queue_full";
+    public static final String CLIENT_CLOSED = "client_closed";
+
+    private final String code;
+    private final int status;
+    private final long retryAfterSeconds;
+
+    public WrapperClientException(String code, int status, String message, long retryAfterSeconds, Throwable cause) {
+        super(message, cause);
+        this.code = code;
+        this.status = status;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    /**
+     * HTTP-статус ответа; 0 - ответа не было.
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * Retry-After из ответа (0 - нет): для 429 и 503.
+     */
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.wrapper;
+
+/**
+ * Настройки WrapperClient.
+ *
+ *   baseUrl             - адрес обёртки или балансировщика перед репликами (http://wrapper-lb:8080)
+ *   clientId            - X-Client-Id: подпись клиента; на лимиты обёртки не влияет
+ *   clientToken         - X-Client-Token из crypto.admission.client-tokens обёртки: по нему обёртка
+ *                         считает лимиты клиента и список bulk-клиентов; null - по адресу
+ *   priority            - X-Crypto-Priority: interactive | bulk; null - обёртка решает сама
+ *                         (по списку bulk-клиентов и размеру тела)
+ *   maxBatchSize        - столько вызовов максимум в одном пакетном запросе (лимит обёртки - 10000)
+ *   maxDelayMicros      - столько первый вызов в пакете ждёт попутчиков; 0 - пакет уходит сразу,
+ *                         и вызовы копятся только пока занято maxInFlightBatches запросов
+ *   maxInFlightBatches  - пакетных запросов одного вида в полёте одновременно (и соединений под них)
+ *   maxQueuedItems      - вызовов в очереди одного вида; дальше вызов сразу падает с queue_full
+ *   httpVersion         - HTTP_1_1 (пул keep-alive соединений) | HTTP_2 (h2c, HTTP2_ENABLED у обёртки)
+ *   connectTimeoutMs, requestTimeoutMs
+ */
+public class WrapperClientSettings {
+
+    public static final String INTERACTIVE = "interactive";
+    public static final String BULK = "bulk";
+
+    public final String baseUrl;
+    public final String clientId;
+    public final String clientToken;
+    public final String priority;
+    public final int maxBatchSize;
+    public final long maxDelayMicros;
+    public final int maxInFlightBatches;
+    public final int maxQueuedItems;
+    public final String httpVersion;
+    public final long connectTimeoutMs;
+    public final long requestTimeoutMs;
+
+    public WrapperClientSettings(String baseUrl, String clientId, String clientToken, String priority,
+                                 int maxBatchSize, long maxDelayMicros, int maxInFlightBatches, int maxQueuedItems,
+                                 String httpVersion, long connectTimeoutMs, long requestTimeoutMs) {
+        if (baseUrl == null || baseUrl.isEmpty()) {
+            throw new IllegalArgumentException("baseUrl is required");
+        }
+        if (priority != null && !INTERACTIVE.equals(priority) && !BULK.equals(priority)) {
+            throw new IllegalArgumentException("priority must be interactive, bulk or null, got " + priority);
+        }
+        if (maxBatchSize < 1 || maxBatchSize > 10000) {
+            throw new IllegalArgumentException("maxBatchSize must be in 1..10000, got " + maxBatchSize);
+        }
+        if (maxDelayMicros < 0) {
+            throw new IllegalArgumentException("maxDelayMicros must be >= 0, got " + maxDelayMicros);
+        }
+        if (maxInFlightBatches < 1) {
+            throw new IllegalArgumentException("maxInFlightBatches must be >= 1, got " + maxInFlightBatches);
+        }
+        if (maxQueuedItems < maxBatchSize) {
+            throw new IllegalArgumentException("maxQueuedItems must be >= maxBatchSize, got " + maxQueuedItems);
+        }
+        if (!"HTTP_1_1".equals(httpVersion) && !"HTTP_2".equals(httpVersion)) {
+            throw new IllegalArgumentException("httpVersion must be HTTP_1_1 or HTTP_2, got " + httpVersion);
+        }
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        this.clientId = clientId;
+        this.clientToken = clientToken;
+        this.priority = priority;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayMicros = maxDelayMicros;
+        this.maxInFlightBatches = maxInFlightBatches;
+        this.maxQueuedItems = maxQueuedItems;
+        this.httpVersion = httpVersion;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.requestTimeoutMs = requestTimeoutMs;
+    }
+
+    /**
+     * Интерактивный трафик: пакеты до 128 вызовов, окно 500 мкс, 8 пакетов в полёте.
+     */
+    public static WrapperClientSettings defaults(String baseUrl) {
+        return new WrapperClientSettings(baseUrl, null, null, INTERACTIVE, 128, 500, 8, 100_000,
+                "HTTP_1_1", 2000, 5000);
+    }
+
+    /**
+     * Без объединения: каждый вызов - свой запрос (в пакете из одного элемента).
+     * Для сравнения и отладки.
+     */
+    public static WrapperClientSettings unbatched(String baseUrl, int maxInFlight) {
+        return new WrapperClientSettings(baseUrl, null, null, INTERACTIVE, 1, 0, maxInFlight, 100_000,
+                "HTTP_1_1", 2000, 5000);
+    }
+}
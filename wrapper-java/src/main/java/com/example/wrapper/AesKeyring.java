@@ -0,0 +1,130 @@
+package com.example.wrapper;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Неизменяемый снимок мастер-ключей профиля: current + все уже загруженные
+ * старые поколения, индекс по key_id.
+ *
+ * VaultKeyService держит ссылку на текущий снимок и подменяет её целиком
+ * (ротация, догрузка старого поколения), поэтому читатели работают без блокировок
+ * и всегда видят согласованную пару (ключ, key_id).
+ */
+public final class AesKeyring {
+
+    /**
+     * Одно поколение мастер-ключа.
+     * kvVersion - версия секрета secret/data/crypto/master-key в Vault KV v2,
+     * из которой ключ загружен (0 - неизвестно).
+     */
+    public static final class Generation {
+        public final String keyId;
+        public final SecretKeySpec key;
+        public final int kvVersion;
+
+        public Generation(String keyId, SecretKeySpec key, int kvVersion) {
+            this.keyId = keyId;
+            this.key = key;
+            this.kvVersion = kvVersion;
+        }
+    }
+
+    private final Generation current;
+    private final String prevKeyId;
+    private final Map<String, Generation> byId;
+
+    // Самая старая версия KV, которую уже просмотрели при догрузке истории.
+    // 1 = история прочитана целиком, неизвестного key_id в Vault нет.
+    private final int oldestScannedKvVersion;
+
+    private AesKeyring(Generation current, String prevKeyId, Map<String, Generation> byId,
+                       int oldestScannedKvVersion) {
+        this.current = current;
+        this.prevKeyId = prevKeyId;
+        this.byId = byId;
+        this.oldestScannedKvVersion = oldestScannedKvVersion;
+    }
+
+    public static AesKeyring of(Generation current, String prevKeyId) {
+        Map<String, Generation> byId = new HashMap<>();
+        byId.put(current.keyId, current);
+        return new AesKeyring(current, prevKeyId, Collections.unmodifiableMap(byId),
+                current.kvVersion > 0 ? current.kvVersion : 1);
+    }
+
+    public Generation current() {
+        return current;
+    }
+
+    public String prevKeyId() {
+        return prevKeyId;
+    }
+
+    /**
+     * O(1) поиск поколения по key_id, null - если в снимке его нет.
+     */
+    public Generation get(String keyId) {
+        return keyId == null ? null : byId.get(keyId);
+    }
+
+    public Set<String> keyIds() {
+        return byId.keySet();
+    }
+
+    public int size() {
+        return byId.size();
+    }
+
+    /**
+     * Все загруженные поколения от нового к старому (по версии KV; current - первым).
+     */
+    public List<Generation> newestFirst() {
+        List<Generation> generations = new ArrayList<>(byId.values());
+        generations.sort((a, b) -> a == current ? -1 : b == current ? 1 : Integer.compare(b.kvVersion, a.kvVersion));
+        return generations;
+    }
+
+    public int oldestScannedKvVersion() {
+        return oldestScannedKvVersion;
+    }
+
+    /**
+     * Новый снимок после ротации: новый current, старый current становится prev.
+     */
+    public AesKeyring withNewCurrent(Generation newCurrent) {
+        return withNewCurrent(newCurrent, current.keyId);
+    }
+
+    /**
+     * Новый current с явным prev (ротация на другой реплике: между нашим current
+     * и новым могло быть несколько поколений).
+     */
+    public AesKeyring withNewCurrent(Generation newCurrent, String newPrevKeyId) {
+        Map<String, Generation> copy = new HashMap<>(byId);
+        copy.put(newCurrent.keyId, newCurrent);
+        return new AesKeyring(newCurrent, newPrevKeyId, Collections.unmodifiableMap(copy),
+                oldestScannedKvVersion);
+    }
+
+    /**
+     * Новый снимок с догруженным старым поколением (если такого key_id ещё нет).
+     */
+    public AesKeyring withOldGeneration(Generation old) {
+        if (byId.containsKey(old.keyId)) {
+            return this;
+        }
+        Map<String, Generation> copy = new HashMap<>(byId);
+        copy.put(old.keyId, old);
+        return new AesKeyring(current, prevKeyId, Collections.unmodifiableMap(copy), oldestScannedKvVersion);
+    }
+
+    public AesKeyring withOldestScannedKvVersion(int kvVersion) {
+        return new AesKeyring(current, prevKeyId, byId, Math.min(kvVersion, oldestScannedKvVersion));
+    }
+}
@@ -2,8 +2,10 @@ package com.example.wrapper;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.annotation.ImportRuntimeHints;
 
 @SpringBootApplication
+@ImportRuntimeHints(WrapperRuntimeHints.class)
 public class Application {
   public static void main(String[] args) {
     SpringApplication.run(Application.class, args);
@@ -0,0 +1,154 @@
+package com.example.wrapper;
+
+import io.micrometer.core.instrument.Timer;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+
+/**
+ * Токены слепого индекса (см. BlindIndexService): backend хранит их в отдельной
+ * индексированной колонке и ищет по ним вместо расшифровки всех строк.
+ * Токен не зависит от user_id - одно значение у разных пользователей даёт один токен.
+ */
+@RestController
+public class BlindIndexController {
+
+    private final BlindIndexService blindIndexService;
+    private final CryptoMetrics cryptoMetrics;
+
+    public BlindIndexController(BlindIndexService blindIndexService, CryptoMetrics cryptoMetrics) {
+        this.blindIndexService = blindIndexService;
+        this.cryptoMetrics = cryptoMetrics;
+    }
+
+    // ----- DTO для /crypto/blind-index -----
+
+    public static class BlindIndexRequest {
+        public String field;
+        public String value;
+
+        public BlindIndexRequest() {}
+
+        public BlindIndexRequest(String field, String value) {
+            this.field = field;
+            this.value = value;
+        }
+    }
+
+    public static class BlindIndexResponse {
+        public String token;
+        public String algo;
+        public String key_id;
+
+        public BlindIndexResponse() {}
+
+        public BlindIndexResponse(String token, String algo, String key_id) {
+            this.token = token;
+            this.algo = algo;
+            this.key_id = key_id;
+        }
+    }
+
+    public static class BlindIndexBatchRequest {
+        public List<BlindIndexRequest> items;
+
+        public BlindIndexBatchRequest() {}
+
+        public BlindIndexBatchRequest(List<BlindIndexRequest> items) {
+            this.items = items;
+        }
+    }
+
+    public static class BlindIndexItemResult {
+        public String status; // "ok" | "error"
+        public String token;
+        public String error;
+
+        public BlindIndexItemResult() {}
+
+        public BlindIndexItemResult(String status, String token, String error) {
+            this.status = status;
+            this.token = token;
+            this.error = error;
+        }
+    }
+
+    public static class BlindIndexBatchResponse {
+        public List<BlindIndexItemResult> items;
+        public String algo;
+        public String key_id;
+
+        public BlindIndexBatchResponse() {}
+
+        public BlindIndexBatchResponse(List<BlindIndexItemResult> items, String algo, String key_id) {
+            this.items = items;
+            this.algo = algo;
+            this.key_id = key_id;
+        }
+    }
+
+    // ----- Эндпоинты -----
+
+    /**
+     * Токен для записи в колонку индекса или для поиска; value == null - token == null.
+     * Значение, которое не нормализуется (например, не телефон), - ошибка с текстом причины.
+     */
+    @PostMapping("/crypto/blind-index")
+    public BlindIndexResponse blindIndex(@RequestBody BlindIndexRequest req) {
+        Timer.Sample sample = cryptoMetrics.start();
+        boolean success = false;
+        try {
+            String token;
+            VaultKeyService.HmacKey hmacKey = blindIndexService.currentKey();
+            try {
+                token = blindIndexService.token(hmacKey, req.field, req.value);
+            } catch (IllegalArgumentException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException("Blind index error: " + e.getMessage(), e);
+            }
+            success = true;
+            return new BlindIndexResponse(token, "HMAC-SHA256", hmacKey.keyId);
+        } finally {
+            cryptoMetrics.recordOperation(sample, "blind-index", success);
+        }
+    }
+
+    /**
+     * Пакетная форма (заполнение колонки индекса для существующих строк, upsert нескольких полей).
+     * Ошибка нормализации одного элемента не роняет пакет.
+     */
+    @PostMapping("/crypto/blind-index-batch")
+    public BlindIndexBatchResponse blindIndexBatch(@RequestBody BlindIndexBatchRequest req) {
+        Timer.Sample sample = cryptoMetrics.start();
+        boolean success = false;
+        try {
+            List<BlindIndexRequest> items = CryptoController.requireBatchItems(req == null ? null : req.items);
+            // все токены пакета и key_id в ответе - от одного ключа
+            VaultKeyService.HmacKey hmacKey = blindIndexService.currentKey();
+
+            BlindIndexItemResult[] results = new BlindIndexItemResult[items.size()];
+
+            CryptoController.forEachBatchItem(items.size(), i -> {
+                BlindIndexRequest item = items.get(i);
+                if (item == null) {
+                    results[i] = new BlindIndexItemResult("error", null, "item is null");
+                    return;
+                }
+                try {
+                    results[i] = new BlindIndexItemResult("ok",
+                            blindIndexService.token(hmacKey, item.field, item.value), null);
+                } catch (Exception e) {
+                    results[i] = new BlindIndexItemResult("error", null, e.getMessage());
+                }
+            });
+
+            success = true;
+            return new BlindIndexBatchResponse(CryptoController.toList(results), "HMAC-SHA256", hmacKey.keyId);
+        } finally {
+            cryptoMetrics.recordOperation(sample, "blind-index-batch", success);
+        }
+    }
+}
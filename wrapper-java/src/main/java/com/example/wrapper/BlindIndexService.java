@@ -0,0 +1,152 @@
+package com.example.wrapper;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.text.Normalizer;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Слепой индекс зашифрованных полей: детерминированный токен
+ * HMAC-SHA256(K_field, normalize(field, value)), укороченный до token-bytes.
+ *
+ * K_field = HKDF(HMAC-ключ из Vault, "blind-index:" + field) - свой ключ на поле,
+ * поэтому одинаковые значения разных полей дают разные токены. Токен хранится в БД
+ * рядом с шифротекстом, поиск по значению - индексный запрос по токену.
+ *
+ * Нормализация (один и тот же номер в разной записи - один токен):
+ *   phone      - E.164 (+<код страны><номер>); национальный формат дополняется
+ *                crypto.blind-index.phone.default-country-code, без trunk-prefix
+ *   email      - trim + нижний регистр
+ *   остальные  - NFKC + trim
+ */
+@Service
+public class BlindIndexService {
+
+    private static final String INFO_PREFIX = "blind-index:";
+    // имя поля приходит из запроса - кэш ключей полей не растёт бесконечно
+    private static final int MAX_CACHED_FIELDS = 256;
+
+    private final VaultKeyService vaultKeyService;
+    private final int tokenBytes;
+    private final String defaultCountryCode;
+    private final String trunkPrefix;
+
+    // field -> K_field для текущего HMAC-ключа
+    private final ConcurrentHashMap<String, FieldKey> fieldKeys = new ConcurrentHashMap<>();
+
+    public BlindIndexService(VaultKeyService vaultKeyService,
+                             @Value("${crypto.blind-index.token-bytes:16}") int tokenBytes,
+                             @Value("${crypto.blind-index.phone.default-country-code:7}") String defaultCountryCode,
+                             @Value("${crypto.blind-index.phone.trunk-prefix:8}") String trunkPrefix) {
+        if (tokenBytes < 8 || tokenBytes > 32) {
+            throw new IllegalArgumentException("crypto.blind-index.token-bytes must be 8..32, got " + tokenBytes);
+        }
+        this.vaultKeyService = vaultKeyService;
+        this.tokenBytes = tokenBytes;
+        this.defaultCountryCode = defaultCountryCode == null ? "" : defaultCountryCode.trim();
+        this.trunkPrefix = trunkPrefix == null ? "" : trunkPrefix.trim();
+    }
+
+    /**
+     * Токен слепого индекса; value == null - null.
+     * Значение, которое нельзя нормализовать (например, не телефон), - IllegalArgumentException.
+     */
+    public String token(String field, String value) throws Exception {
+        return token(vaultKeyService.getHmacKeySnapshot(), field, value);
+    }
+
+    /**
+     * Токен от заданного HMAC-ключа: пакет и key_id в ответе - от одного снимка.
+     */
+    public String token(VaultKeyService.HmacKey hmacKey, String field, String value) throws Exception {
+        if (field == null || field.isEmpty()) {
+            throw new IllegalArgumentException("field is required for blind index");
+        }
+        if (value == null) {
+            return null;
+        }
+        return CryptoEngine.hmacSha256Base64(fieldKey(hmacKey.key, field), normalize(field, value), tokenBytes);
+    }
+
+    /**
+     * Текущий HMAC-ключ; его key_id отдаётся вместе с токенами (после смены ключа индекс пересчитывается).
+     */
+    public VaultKeyService.HmacKey currentKey() {
+        return vaultKeyService.getHmacKeySnapshot();
+    }
+
+    public String normalize(String field, String value) {
+        switch (field) {
+            case "phone":
+                return normalizePhone(value);
+            case "email":
+                return value.trim().toLowerCase(Locale.ROOT);
+            default:
+                return Normalizer.normalize(value, Normalizer.Form.NFKC).trim();
+        }
+    }
+
+    /**
+     * E.164: "+" и 8..15 цифр. Разделители (пробелы, скобки, дефисы, точки) отбрасываются,
+     * "00" в начале - международный префикс, номер без "+" - национальный.
+     */
+    String normalizePhone(String value) {
+        StringBuilder digits = new StringBuilder(value.length());
+        boolean plus = false;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits.append(c);
+            } else if (c == '+' && digits.length() == 0 && !plus) {
+                plus = true;
+            } else if (!Character.isWhitespace(c) && c != '-' && c != '(' && c != ')' && c != '.' && c != '/') {
+                throw new IllegalArgumentException("phone contains invalid character '" + c + "'");
+            }
+        }
+
+        String number = digits.toString();
+        if (!plus) {
+            if (number.startsWith("00")) {
+                number = number.substring(2);
+            } else if (!defaultCountryCode.isEmpty()) {
+                if (!trunkPrefix.isEmpty() && number.startsWith(trunkPrefix)
+                        && number.length() == defaultCountryCode.length() + 10) {
+                    number = number.substring(trunkPrefix.length());
+                }
+                number = defaultCountryCode + number;
+            } else {
+                throw new IllegalArgumentException("phone without country code and no default country code configured");
+            }
+        }
+        if (number.length() < 8 || number.length() > 15 || number.charAt(0) == '0') {
+            throw new IllegalArgumentException("phone is not a valid E.164 number");
+        }
+        return "+" + number;
+    }
+
+    private byte[] fieldKey(byte[] hmacKey, String field) throws Exception {
+        FieldKey cached = fieldKeys.get(field);
+        // сравнение по ссылке: VaultKeyService подменяет массив при смене ключа
+        if (cached != null && cached.source == hmacKey) {
+            return cached.key;
+        }
+        byte[] key = Hkdf.expand(hmacKey, (INFO_PREFIX + field).getBytes(StandardCharsets.UTF_8), Hkdf.USER_KEY_LENGTH);
+        if (cached != null || fieldKeys.size() < MAX_CACHED_FIELDS) {
+            fieldKeys.put(field, new FieldKey(hmacKey, key));
+        }
+        return key;
+    }
+
+    private static final class FieldKey {
+        final byte[] source;
+        final byte[] key;
+
+        FieldKey(byte[] source, byte[] key) {
+            this.source = source;
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.wrapper;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Самоописывающий формат шифротекста (до Base64):
+ *
+ *   [1 байт версия = 0x01][1 байт длина key_id][key_id (UTF-8)][IV 12 байт][ciphertext+tag]
+ *
+ * Заголовок (версия + key_id) подаётся в AES-GCM как AAD, поэтому подменить key_id
+ * без провала проверки тега нельзя.
+ *
+ * Старый формат - просто IV || ciphertext+tag. Первый байт там случайный, так что
+ * совпадение с заголовком возможно; поэтому разбор конверта - это только подсказка,
+ * а при неудаче расшифровки вызывающий код откатывается на старый формат.
+ */
+final class CiphertextEnvelope {
+
+    static final byte VERSION_1 = 0x01;
+
+    static final int IV_LENGTH_BYTES = 12;
+    static final int TAG_LENGTH_BYTES = 16;
+
+    private static final int MAX_KEY_ID_LENGTH = 255;
+
+    final String keyId;
+    final int headerLength; // версия + длина + key_id, он же AAD
+    final int ivOffset;
+
+    private CiphertextEnvelope(String keyId, int headerLength) {
+        this.keyId = keyId;
+        this.headerLength = headerLength;
+        this.ivOffset = headerLength;
+    }
+
+    /**
+     * Заголовок конверта для key_id (он же AAD при шифровании).
+     */
+    static byte[] header(String keyId) {
+        byte[] keyIdBytes = keyId.getBytes(StandardCharsets.UTF_8);
+        if (keyIdBytes.length == 0 || keyIdBytes.length > MAX_KEY_ID_LENGTH) {
+            throw new IllegalArgumentException("key_id length must be 1.." + MAX_KEY_ID_LENGTH + " bytes");
+        }
+        byte[] header = new byte[2 + keyIdBytes.length];
+        header[0] = VERSION_1;
+        header[1] = (byte) keyIdBytes.length;
+        System.arraycopy(keyIdBytes, 0, header, 2, keyIdBytes.length);
+        return header;
+    }
+
+    /**
+     * Пытается разобрать данные как конверт. null - точно не конверт (старый формат).
+     */
+    static CiphertextEnvelope tryParse(byte[] data) {
+        return tryParse(data, data.length);
+    }
+
+    /**
+     * То же для первых length байт буфера (рабочий буфер CryptoEngine длиннее данных).
+     */
+    static CiphertextEnvelope tryParse(byte[] data, int length) {
+        if (length < 2 || data[0] != VERSION_1) {
+            return null;
+        }
+        int keyIdLength = data[1] & 0xFF;
+        int headerLength = 2 + keyIdLength;
+        if (keyIdLength == 0 || length < headerLength + IV_LENGTH_BYTES + TAG_LENGTH_BYTES) {
+            return null;
+        }
+        String keyId = new String(data, 2, keyIdLength, StandardCharsets.UTF_8);
+        return new CiphertextEnvelope(keyId, headerLength);
+    }
+}
@@ -0,0 +1,615 @@
+package com.example.wrapper;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Допуск запросов к /crypto/*: два класса трафика с отдельными ограничениями,
+ * чтобы пакетные задачи (проверка подписей всех пользователей, переиндексация)
+ * не поднимали p99 интерактивным запросам пользователей.
+ *
+ * Клиент (ключ token bucket и список bulk-клиентов):
+ *   - X-Client-Token совпал с токеном из crypto.admission.client-tokens (имя=токен,...) -
+ *     имя этого клиента;
+ *   - иначе адрес клиента: последний адрес X-Forwarded-For, если crypto.admission.trust-forwarded-for
+ *     (его дописывает наш балансировщик, всё левее мог прислать сам клиент), иначе адрес соединения.
+ * X-Client-Id на лимиты не влияет: его задаёт кто угодно, и сменой значения получал бы новое ведро
+ * или выходил из списка bulk.
+ *
+ * Класс запроса - bulk, если хоть одно из:
+ *   1) заголовок X-Crypto-Priority: bulk;
+ *   2) потоковые /crypto/encrypt-stream, /crypto/decrypt-stream (тело chunked, длина неизвестна,
+ *      а разрешение держится всю передачу);
+ *   3) клиент (имя по токену или адрес) из crypto.admission.bulk-clients;
+ *   4) тело больше crypto.admission.bulk-min-body-bytes;
+ * иначе interactive. Заголовок может только перевести запрос в bulk: X-Crypto-Priority: interactive
+ * не выводит из bulk ни клиента из списка, ни большое тело, ни поток.
+ *
+ * У каждого класса:
+ *   - token bucket на клиента (rate-per-second, burst); нет токена - 429, Retry-After
+ *     через сколько он появится;
+ *   - ограничение одновременных запросов (max-concurrent) и очередь ожидания (max-queue);
+ *     очередь полна или ожидание дольше queue-timeout - 429, Retry-After по глубине
+ *     очереди и среднему времени запроса класса.
+ * Interactive ждёт в очереди на потоке Tomcat (очередь короткая). Bulk - через свой пул
+ * (max-concurrent потоков, очередь max-queue): запрос переводится в async, поток Tomcat
+ * освобождается, и запрос ждёт в очереди пула; взявший его поток пула делает dispatch
+ * и держит место до конца обработки. Так bulk занимает не больше max-concurrent потоков Tomcat,
+ * а его очередь - ни одного.
+ *
+ * Параллельная обработка элементов пакета bulk-запроса идёт в отдельном ForkJoinPool
+ * (bulk.parallelism), а не в общем - см. CryptoController.forEachBatchItem.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE + 10)
+public class CryptoAdmissionFilter extends OncePerRequestFilter {
+
+    public static final String PRIORITY_HEADER = "X-Crypto-Priority";
+    public static final String CLIENT_ID_HEADER = "X-Client-Id";
+    public static final String CLIENT_TOKEN_HEADER = "X-Client-Token";
+    static final String FORWARDED_FOR_HEADER = "X-Forwarded-For";
+
+    static final String INTERACTIVE = "interactive";
+    static final String BULK = "bulk";
+
+    // ключ ведра клиента без токена; имена клиентов с токеном этим не начинаются
+    private static final String ADDRESS_PREFIX = "addr:";
+    private static final int MAX_ADDRESS_LENGTH = 64;
+    private static final String BULK_TICKET_ATTRIBUTE = CryptoAdmissionFilter.class.getName() + ".bulkTicket";
+    // столько клиентов помним; дальше вытесняем простаивающих (полное ведро = нет долга)
+    private static final int MAX_TRACKED_CLIENTS = 10_000;
+
+    // класс текущего запроса - для forEachBatchItem (пул bulk)
+    private static final ThreadLocal<Lane> CURRENT = new ThreadLocal<>();
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final CryptoMetrics cryptoMetrics;
+    private final boolean enabled;
+    private final Map<String, byte[]> clientTokens;
+    private final boolean trustForwardedFor;
+    private final Set<String> bulkClients;
+    private final long bulkMinBodyBytes;
+    private final long queueTimeoutMillis;
+
+    private final Lane interactive;
+    private final Lane bulk;
+
+    public CryptoAdmissionFilter(CryptoMetrics cryptoMetrics,
+                                 @Value("${crypto.admission.enabled:true}") boolean enabled,
+                                 @Value("${crypto.admission.client-tokens:}") String clientTokens,
+                                 @Value("${crypto.admission.trust-forwarded-for:false}") boolean trustForwardedFor,
+                                 @Value("${crypto.admission.bulk-clients:}") String bulkClients,
+                                 @Value("${crypto.admission.bulk-min-body-bytes:262144}") long bulkMinBodyBytes,
+                                 @Value("${crypto.admission.queue-timeout-ms:2000}") long queueTimeoutMillis,
+                                 @Value("${crypto.admission.interactive.max-concurrent:160}") int interactiveMaxConcurrent,
+                                 @Value("${crypto.admission.interactive.max-queue:24}") int interactiveMaxQueue,
+                                 @Value("${crypto.admission.interactive.rate-per-second:5000}") double interactiveRate,
+                                 @Value("${crypto.admission.interactive.burst:10000}") double interactiveBurst,
+                                 @Value("${crypto.admission.bulk.max-concurrent:4}") int bulkMaxConcurrent,
+                                 @Value("${crypto.admission.bulk.max-queue:8}") int bulkMaxQueue,
+                                 @Value("${crypto.admission.bulk.rate-per-second:20}") double bulkRate,
+                                 @Value("${crypto.admission.bulk.burst:20}") double bulkBurst,
+                                 @Value("${crypto.admission.bulk.parallelism:0}") int bulkParallelism,
+                                 @Value("${server.tomcat.threads.max:200}") int tomcatMaxThreads) {
+        this.cryptoMetrics = cryptoMetrics;
+        this.enabled = enabled;
+        this.clientTokens = parseClientTokens(clientTokens);
+        this.trustForwardedFor = trustForwardedFor;
+        this.bulkClients = new HashSet<>();
+        for (String client : bulkClients.split(",")) {
+            if (!client.trim().isEmpty()) {
+                this.bulkClients.add(client.trim());
+            }
+        }
+        this.bulkMinBodyBytes = bulkMinBodyBytes;
+        this.queueTimeoutMillis = Math.max(0, queueTimeoutMillis);
+
+        int parallelism = bulkParallelism > 0
+                ? bulkParallelism
+                : Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+        this.interactive = new Lane(INTERACTIVE, interactiveMaxConcurrent, interactiveMaxQueue,
+                interactiveRate, interactiveBurst, null, null);
+        this.bulk = new Lane(BULK, bulkMaxConcurrent, bulkMaxQueue, bulkRate, bulkBurst,
+                new ForkJoinPool(parallelism), newAdmissionExecutor(bulkMaxConcurrent, bulkMaxQueue));
+
+        if (enabled) {
+            cryptoMetrics.bindAdmissionLane(interactive);
+            cryptoMetrics.bindAdmissionLane(bulk);
+            // очередь bulk потоков Tomcat не держит
+            int held = interactiveMaxConcurrent + interactiveMaxQueue + bulkMaxConcurrent;
+            if (held > tomcatMaxThreads) {
+                System.out.println("CryptoAdmissionFilter: WARNING interactive max-concurrent + max-queue + bulk " +
+                        "max-concurrent (" + held + ") exceeds server.tomcat.threads.max (" + tomcatMaxThreads +
+                        "), bulk can still take threads from interactive requests");
+            }
+            System.out.println("CryptoAdmissionFilter: interactive max_concurrent=" + interactiveMaxConcurrent +
+                    " max_queue=" + interactiveMaxQueue + " rate=" + interactiveRate + "/s; bulk max_concurrent=" +
+                    bulkMaxConcurrent + " max_queue=" + bulkMaxQueue + " rate=" + bulkRate + "/s parallelism=" +
+                    parallelism + "; authenticated clients=" + this.clientTokens.keySet() +
+                    " trust_forwarded_for=" + trustForwardedFor);
+        }
+    }
+
+    /**
+     * "имя=токен,имя=токен" -> имя -> токен.
+     */
+    static Map<String, byte[]> parseClientTokens(String clientTokens) {
+        Map<String, byte[]> tokens = new LinkedHashMap<>();
+        for (String pair : clientTokens.split(",")) {
+            if (pair.trim().isEmpty()) {
+                continue;
+            }
+            int eq = pair.indexOf('=');
+            String name = eq < 0 ? "" : pair.substring(0, eq).trim();
+            String token = eq < 0 ? "" : pair.substring(eq + 1).trim();
+            if (name.isEmpty() || token.isEmpty() || name.startsWith(ADDRESS_PREFIX)) {
+                throw new IllegalArgumentException("crypto.admission.client-tokens: expected name=token, got '" +
+                        (eq < 0 ? pair.trim() : name + "=...") + "'");
+            }
+            tokens.put(name, token.getBytes(StandardCharsets.UTF_8));
+        }
+        return tokens;
+    }
+
+    private static ThreadPoolExecutor newAdmissionExecutor(int maxConcurrent, int maxQueue) {
+        if (maxConcurrent <= 0) {
+            return null;
+        }
+        BlockingQueue<Runnable> queue = maxQueue > 0 ? new ArrayBlockingQueue<>(maxQueue) : new SynchronousQueue<>();
+        AtomicInteger threadNumber = new AtomicInteger();
+        return new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 0L, TimeUnit.MILLISECONDS, queue, r -> {
+            Thread t = new Thread(r, "crypto-bulk-admission-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Пул для параллельной обработки пакета текущего запроса; null - общий ForkJoinPool.
+     */
+    static ForkJoinPool currentBatchPool() {
+        Lane lane = CURRENT.get();
+        return lane == null ? null : lane.batchPool;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !enabled
+                || !request.getRequestURI().startsWith("/crypto/")
+                || "GET".equals(request.getMethod());
+    }
+
+    @Override
+    protected boolean shouldNotFilterAsyncDispatch() {
+        // dispatch допущенного bulk-запроса из его пула проходит здесь же
+        return false;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        if (request.getDispatcherType() == DispatcherType.ASYNC) {
+            BulkTicket ticket = (BulkTicket) request.getAttribute(BULK_TICKET_ATTRIBUTE);
+            if (ticket == null) {
+                chain.doFilter(request, response);
+                return;
+            }
+            CURRENT.set(ticket.lane);
+            try {
+                chain.doFilter(request, response);
+            } finally {
+                CURRENT.remove();
+                if (!request.isAsyncStarted()) {
+                    ticket.finish();
+                }
+            }
+            return;
+        }
+
+        String authenticated = authenticatedClient(request);
+        String address = clientAddress(request);
+        String client = authenticated != null ? authenticated : ADDRESS_PREFIX + address;
+        Lane lane = classify(request, authenticated, address);
+
+        long waitNanos = lane.tryConsumeToken(client);
+        if (waitNanos > 0) {
+            reject(response, lane, "rate_limited", TimeUnit.NANOSECONDS.toSeconds(waitNanos - 1) + 1,
+                    "rate limit exceeded for client " + client + " (" + lane.name + ")");
+            return;
+        }
+
+        if (lane.executor != null && request.isAsyncSupported()) {
+            admitAsync(request, response, lane);
+            return;
+        }
+
+        String refused = lane.acquire(queueTimeoutMillis);
+        if (refused != null) {
+            rejectCapacity(response, lane, refused);
+            return;
+        }
+
+        long started = System.nanoTime();
+        CURRENT.set(lane);
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            CURRENT.remove();
+            lane.release(System.nanoTime() - started);
+        }
+    }
+
+    /**
+     * Запрос уходит в очередь пула класса, поток Tomcat свободен сразу.
+     */
+    private void admitAsync(HttpServletRequest request, HttpServletResponse response, Lane lane) throws IOException {
+        AsyncContext asyncContext = request.startAsync(request, response);
+        // ожидание в очереди; после dispatch таймаут не действует
+        asyncContext.setTimeout(Math.max(1, queueTimeoutMillis));
+        BulkTicket ticket = new BulkTicket(asyncContext, lane);
+        request.setAttribute(BULK_TICKET_ATTRIBUTE, ticket);
+        asyncContext.addListener(ticket);
+        try {
+            lane.executor.execute(ticket);
+        } catch (RejectedExecutionException e) {
+            if (ticket.expire()) {
+                rejectCapacity(response, lane, "queue_full");
+                asyncContext.complete();
+            }
+        }
+    }
+
+    private Lane classify(HttpServletRequest request, String authenticated, String address) {
+        String priority = request.getHeader(PRIORITY_HEADER);
+        if (priority != null && BULK.equalsIgnoreCase(priority.trim())) {
+            return bulk;
+        }
+        if (request.getRequestURI().endsWith("-stream")) {
+            return bulk;
+        }
+        if (bulkClients.contains(authenticated != null ? authenticated : address)) {
+            return bulk;
+        }
+        if (bulkMinBodyBytes > 0 && request.getContentLengthLong() >= bulkMinBodyBytes) {
+            return bulk;
+        }
+        return interactive;
+    }
+
+    /**
+     * Имя клиента, чей токен пришёл в X-Client-Token; null - токена нет или он чужой
+     * (тогда лимиты по адресу, как у любого неизвестного клиента).
+     */
+    String authenticatedClient(HttpServletRequest request) {
+        String token = request.getHeader(CLIENT_TOKEN_HEADER);
+        if (token == null || token.trim().isEmpty() || clientTokens.isEmpty()) {
+            return null;
+        }
+        byte[] presented = token.trim().getBytes(StandardCharsets.UTF_8);
+        for (Map.Entry<String, byte[]> entry : clientTokens.entrySet()) {
+            if (MessageDigest.isEqual(entry.getValue(), presented)) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    String clientAddress(HttpServletRequest request) {
+        if (trustForwardedFor) {
+            String forwarded = request.getHeader(FORWARDED_FOR_HEADER);
+            if (forwarded != null) {
+                // $proxy_add_x_forwarded_for дописывает адрес, с которого пришёл балансировщику, в конец
+                String last = forwarded.substring(forwarded.lastIndexOf(',') + 1).trim();
+                if (!last.isEmpty()) {
+                    return last.length() > MAX_ADDRESS_LENGTH ? last.substring(0, MAX_ADDRESS_LENGTH) : last;
+                }
+            }
+        }
+        return request.getRemoteAddr();
+    }
+
+    private void rejectCapacity(HttpServletResponse response, Lane lane, String reason) throws IOException {
+        reject(response, lane, reason, lane.retryAfterSeconds(),
+                lane.name + " capacity exhausted (" + reason + "), in_flight=" + lane.getInFlight() +
+                        " queued=" + lane.getQueued());
+    }
+
+    private void reject(HttpServletResponse response, Lane lane, String reason, long retryAfterSeconds,
+                        String message) throws IOException {
+        cryptoMetrics.admissionRejected(lane.name, reason);
+        response.setStatus(429);
+        response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, retryAfterSeconds)));
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        objectMapper.writeValue(response.getOutputStream(), new VaultErrorHandler.ErrorResponse(reason, message));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        bulk.batchPool.shutdownNow();
+        if (bulk.executor != null) {
+            bulk.executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Bulk-запрос в очереди пула класса. Поток пула берёт его, занимает место класса,
+     * делает dispatch и ждёт конца обработки (finish из прохода ASYNC или onComplete/onError).
+     * Кто первым вышел из QUEUED - поток пула (dispatch) или таймаут/ошибка (429/закрытие), - тот
+     * и отвечает за запрос.
+     */
+    final class BulkTicket implements Runnable, AsyncListener {
+        private static final int QUEUED = 0;
+        private static final int DISPATCHED = 1;
+        private static final int EXPIRED = 2;
+
+        final Lane lane;
+        private final AsyncContext asyncContext;
+        private final AtomicInteger state = new AtomicInteger(QUEUED);
+        private final CountDownLatch finished = new CountDownLatch(1);
+
+        BulkTicket(AsyncContext asyncContext, Lane lane) {
+            this.asyncContext = asyncContext;
+            this.lane = lane;
+        }
+
+        @Override
+        public void run() {
+            if (!state.compareAndSet(QUEUED, DISPATCHED)) {
+                return;
+            }
+            lane.acquireForWorker();
+            long started = System.nanoTime();
+            try {
+                asyncContext.dispatch();
+                finished.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                // запрос уже завершён (клиент ушёл) - dispatch невозможен
+                System.out.println("CryptoAdmissionFilter: bulk dispatch failed: " + e);
+            } finally {
+                lane.release(System.nanoTime() - started);
+            }
+        }
+
+        boolean expire() {
+            if (!state.compareAndSet(QUEUED, EXPIRED)) {
+                return false;
+            }
+            // из очереди сразу - иначе до выборки потоком пула считался бы в queued и Retry-After
+            lane.executor.remove(this);
+            return true;
+        }
+
+        void finish() {
+            finished.countDown();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+            if (expire()) {
+                rejectCapacity((HttpServletResponse) asyncContext.getResponse(), lane, "queue_timeout");
+                asyncContext.complete();
+            }
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            if (expire()) {
+                asyncContext.complete();
+            }
+            finish();
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            expire();
+            finish();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            // обработчик снова ушёл в async - слушаем и новый цикл, иначе место не освободится
+            event.getAsyncContext().addListener(this);
+        }
+    }
+
+    /**
+     * Ограничения одного класса трафика.
+     */
+    static final class Lane {
+        final String name;
+        final int maxConcurrent;
+        final int maxQueue;
+        final double ratePerSecond;
+        final double burst;
+        final ForkJoinPool batchPool;
+        // bulk: очередь и потоки, держащие место на время dispatch; null - ожидание на потоке Tomcat
+        final ThreadPoolExecutor executor;
+
+        private final Semaphore permits;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger queued = new AtomicInteger();
+        // EWMA длительности запроса, нс - для Retry-After по глубине очереди
+        private final AtomicLong avgServiceNanos = new AtomicLong(TimeUnit.MILLISECONDS.toNanos(50));
+        private final ConcurrentHashMap<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+        Lane(String name, int maxConcurrent, int maxQueue, double ratePerSecond, double burst,
+             ForkJoinPool batchPool, ThreadPoolExecutor executor) {
+            this.name = name;
+            this.maxConcurrent = maxConcurrent;
+            this.maxQueue = Math.max(0, maxQueue);
+            this.ratePerSecond = ratePerSecond;
+            this.burst = Math.max(1, burst);
+            this.batchPool = batchPool;
+            this.executor = executor;
+            this.permits = maxConcurrent > 0 ? new Semaphore(maxConcurrent) : null;
+        }
+
+        /**
+         * 0 - токен взят; иначе через сколько наносекунд он появится.
+         */
+        long tryConsumeToken(String clientId) {
+            if (ratePerSecond <= 0) {
+                return 0;
+            }
+            TokenBucket bucket = buckets.get(clientId);
+            if (bucket == null) {
+                if (buckets.size() >= MAX_TRACKED_CLIENTS) {
+                    evictIdleBuckets();
+                }
+                bucket = buckets.computeIfAbsent(clientId, k -> new TokenBucket(ratePerSecond, burst));
+            }
+            return bucket.tryConsume();
+        }
+
+        /**
+         * null - допущен; иначе причина отказа (queue_full / queue_timeout).
+         */
+        String acquire(long timeoutMillis) {
+            if (permits == null) {
+                inFlight.incrementAndGet();
+                return null;
+            }
+            if (!permits.tryAcquire()) {
+                if (queued.incrementAndGet() > maxQueue) {
+                    queued.decrementAndGet();
+                    return "queue_full";
+                }
+                try {
+                    if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                        return "queue_timeout";
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return "queue_timeout";
+                } finally {
+                    queued.decrementAndGet();
+                }
+            }
+            inFlight.incrementAndGet();
+            return null;
+        }
+
+        /**
+         * Место для потока пула класса: потоков столько же, сколько мест, поэтому ждать
+         * приходится только запросам, допущенным в обход пула (async не поддерживается).
+         */
+        void acquireForWorker() {
+            if (permits != null) {
+                permits.acquireUninterruptibly();
+            }
+            inFlight.incrementAndGet();
+        }
+
+        void release(long serviceNanos) {
+            inFlight.decrementAndGet();
+            if (permits != null) {
+                permits.release();
+            }
+            // EWMA с весом 1/8
+            long prev = avgServiceNanos.get();
+            avgServiceNanos.compareAndSet(prev, prev + (serviceNanos - prev) / 8);
+        }
+
+        /**
+         * Через сколько секунд освободится место: очередь (+1 - сам отклонённый)
+         * разбирается max-concurrent потоками со средним временем запроса.
+         */
+        long retryAfterSeconds() {
+            int slots = Math.max(1, maxConcurrent);
+            double seconds = (queued.get() + 1) * (avgServiceNanos.get() / 1e9) / slots;
+            return Math.max(1, (long) Math.ceil(seconds));
+        }
+
+        int getInFlight() {
+            return inFlight.get();
+        }
+
+        int getQueued() {
+            return queued.get() + (executor == null ? 0 : executor.getQueue().size());
+        }
+
+        private void evictIdleBuckets() {
+            Iterator<TokenBucket> it = buckets.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().isFull()) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Token bucket: burst токенов, пополнение ratePerSecond в секунду.
+     */
+    static final class TokenBucket {
+        private final double ratePerNano;
+        private final double capacity;
+        private double tokens;
+        private long refilledAt;
+
+        TokenBucket(double ratePerSecond, double capacity) {
+            this.ratePerNano = ratePerSecond / 1e9;
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.refilledAt = System.nanoTime();
+        }
+
+        synchronized long tryConsume() {
+            refill();
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            return (long) Math.ceil((1 - tokens) / ratePerNano);
+        }
+
+        synchronized boolean isFull() {
+            refill();
+            return tokens >= capacity;
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - refilledAt) * ratePerNano);
+            refilledAt = now;
+        }
+    }
+}
@@ -1,26 +1,32 @@
 package com.example.wrapper;
 
+import io.micrometer.core.instrument.Timer;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
 
-import javax.crypto.Cipher;
-import javax.crypto.Mac;
-import javax.crypto.spec.GCMParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
-import java.nio.charset.StandardCharsets;
-import java.security.SecureRandom;
-import java.util.Base64;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 
 @RestController
 public class CryptoController {
 
     private final VaultKeyService vaultKeyService;
+    private final DerivedKeyCache derivedKeyCache;
+    private final FieldCryptoService fieldCryptoService;
+    private final CryptoMetrics cryptoMetrics;
 
-    private static final int GCM_TAG_LENGTH_BITS = 128; // 16 байт тега
-    private static final int IV_LENGTH_BYTES = 12;       // стандарт для GCM
-    private static final SecureRandom RANDOM = new SecureRandom();
+    // Ограничения batch-эндпоинтов
+    private static final int MAX_BATCH_ITEMS = 10_000;
+    private static final int PARALLEL_BATCH_THRESHOLD = 256; // меньше - обрабатываем в одном потоке
 
-    public CryptoController(VaultKeyService vaultKeyService) {
+    public CryptoController(VaultKeyService vaultKeyService, DerivedKeyCache derivedKeyCache,
+                            FieldCryptoService fieldCryptoService, CryptoMetrics cryptoMetrics) {
         this.vaultKeyService = vaultKeyService;
+        this.derivedKeyCache = derivedKeyCache;
+        this.fieldCryptoService = fieldCryptoService;
+        this.cryptoMetrics = cryptoMetrics;
     }
 
     // ----- DTO для /crypto/encrypt -----
@@ -93,6 +99,12 @@ public class CryptoController {
         public String action;
 
         public AccessSignRequest() {}
+
+        public AccessSignRequest(String user_id, String role_name, String action) {
+            this.user_id = user_id;
+            this.role_name = role_name;
+            this.action = action;
+        }
     }
 
     public static class AccessSignResponse {
@@ -109,6 +121,289 @@ public class CryptoController {
         }
     }
 
+    // ----- DTO для batch-эндпоинтов -----
+
+    public static class EncryptBatchRequest {
+        public List<EncryptRequest> items;
+
+        public EncryptBatchRequest() {
+        }
+
+        public EncryptBatchRequest(List<EncryptRequest> items) {
+            this.items = items;
+        }
+    }
+
+    public static class EncryptBatchItemResult {
+        public String status; // "ok" | "error"
+        public String ciphertext;
+        public String key_id;
+        public String error;
+
+        public EncryptBatchItemResult() {
+        }
+
+        public EncryptBatchItemResult(String status, String ciphertext, String key_id, String error) {
+            this.status = status;
+            this.ciphertext = ciphertext;
+            this.key_id = key_id;
+            this.error = error;
+        }
+    }
+
+    public static class EncryptBatchResponse {
+        public List<EncryptBatchItemResult> items;
+        public String algo;
+        public String key_id;
+
+        public EncryptBatchResponse() {
+        }
+
+        public EncryptBatchResponse(List<EncryptBatchItemResult> items, String algo, String key_id) {
+            this.items = items;
+            this.algo = algo;
+            this.key_id = key_id;
+        }
+    }
+
+    public static class DecryptBatchRequest {
+        public List<DecryptRequest> items;
+
+        public DecryptBatchRequest() {
+        }
+
+        public DecryptBatchRequest(List<DecryptRequest> items) {
+            this.items = items;
+        }
+    }
+
+    public static class DecryptBatchItemResult {
+        public String status; // "ok" | "error"
+        public String plaintext;
+        public String error;
+
+        public DecryptBatchItemResult() {
+        }
+
+        public DecryptBatchItemResult(String status, String plaintext, String error) {
+            this.status = status;
+            this.plaintext = plaintext;
+            this.error = error;
+        }
+    }
+
+    public static class DecryptBatchResponse {
+        public List<DecryptBatchItemResult> items;
+
+        public DecryptBatchResponse() {
+        }
+
+        public DecryptBatchResponse(List<DecryptBatchItemResult> items) {
+            this.items = items;
+        }
+    }
+
+    // ----- DTO для /crypto/access-sign-batch -----
+
+    public static class AccessSignBatchRequest {
+        public List<AccessSignRequest> items;
+
+        public AccessSignBatchRequest() {
+        }
+
+        public AccessSignBatchRequest(List<AccessSignRequest> items) {
+            this.items = items;
+        }
+    }
+
+    public static class AccessSignBatchItemResult {
+        public String status; // "ok" | "error"
+        public String hmac;
+        public String error;
+
+        public AccessSignBatchItemResult() {
+        }
+
+        public AccessSignBatchItemResult(String status, String hmac, String error) {
+            this.status = status;
+            this.hmac = hmac;
+            this.error = error;
+        }
+    }
+
+    public static class AccessSignBatchResponse {
+        public List<AccessSignBatchItemResult> items;
+        public String algo;
+        public String key_id;
+
+        public AccessSignBatchResponse() {
+        }
+
+        public AccessSignBatchResponse(List<AccessSignBatchItemResult> items, String algo, String key_id) {
+            this.items = items;
+            this.algo = algo;
+            this.key_id = key_id;
+        }
+    }
+
+    // ----- DTO для /crypto/access-verify-batch -----
+
+    public static class AccessVerifyRequest {
+        public String user_id;
+        public String role_name;
+        public String action;
+        public String signature; // Base64 HMAC, как его вернул /crypto/access-sign
+
+        public AccessVerifyRequest() {
+        }
+
+        public AccessVerifyRequest(String user_id, String role_name, String action, String signature) {
+            this.user_id = user_id;
+            this.role_name = role_name;
+            this.action = action;
+            this.signature = signature;
+        }
+    }
+
+    public static class AccessVerifyBatchRequest {
+        public List<AccessVerifyRequest> items;
+
+        public AccessVerifyBatchRequest() {
+        }
+
+        public AccessVerifyBatchRequest(List<AccessVerifyRequest> items) {
+            this.items = items;
+        }
+    }
+
+    public static class AccessVerifyItemResult {
+        public String status; // "ok" - проверка выполнена (см. valid), "error" - элемент некорректен
+        public boolean valid;
+        public String error;
+
+        public AccessVerifyItemResult() {
+        }
+
+        public AccessVerifyItemResult(String status, boolean valid, String error) {
+            this.status = status;
+            this.valid = valid;
+            this.error = error;
+        }
+    }
+
+    public static class AccessVerifyBatchResponse {
+        public List<AccessVerifyItemResult> items;
+        public String algo;
+        public String key_id;
+
+        public AccessVerifyBatchResponse() {
+        }
+
+        public AccessVerifyBatchResponse(List<AccessVerifyItemResult> items, String algo, String key_id) {
+            this.items = items;
+            this.algo = algo;
+            this.key_id = key_id;
+        }
+    }
+
+    // ----- DTO для application/cbor -----
+    // Те же поля, что у JSON-DTO, но шифротекст - byte[]: в CBOR это байтовая строка
+    // без Base64. Если клиент попросит JSON-ответ (Accept), Jackson отдаст byte[] в Base64.
+
+    public static class BinaryEncryptResponse {
+        public byte[] ciphertext;
+        public String algo;
+        public String key_id;
+
+        public BinaryEncryptResponse() {
+        }
+
+        public BinaryEncryptResponse(byte[] ciphertext, String algo, String key_id) {
+            this.ciphertext = ciphertext;
+            this.algo = algo;
+            this.key_id = key_id;
+        }
+    }
+
+    public static class BinaryDecryptRequest {
+        public String user_id;
+        public String field;
+        public byte[] ciphertext;
+        public String key_id;
+
+        public BinaryDecryptRequest() {
+        }
+
+        public BinaryDecryptRequest(String user_id, String field, byte[] ciphertext, String key_id) {
+            this.user_id = user_id;
+            this.field = field;
+            this.ciphertext = ciphertext;
+            this.key_id = key_id;
+        }
+    }
+
+    public static class BinaryEncryptBatchItemResult {
+        public String status; // "ok" | "error"
+        public byte[] ciphertext;
+        public String key_id;
+        public String error;
+
+        public BinaryEncryptBatchItemResult() {
+        }
+
+        public BinaryEncryptBatchItemResult(String status, byte[] ciphertext, String key_id, String error) {
+            this.status = status;
+            this.ciphertext = ciphertext;
+            this.key_id = key_id;
+            this.error = error;
+        }
+    }
+
+    public static class BinaryEncryptBatchResponse {
+        public List<BinaryEncryptBatchItemResult> items;
+        public String algo;
+        public String key_id;
+
+        public BinaryEncryptBatchResponse() {
+        }
+
+        public BinaryEncryptBatchResponse(List<BinaryEncryptBatchItemResult> items, String algo, String key_id) {
+            this.items = items;
+            this.algo = algo;
+            this.key_id = key_id;
+        }
+    }
+
+    public static class BinaryDecryptBatchRequest {
+        public List<BinaryDecryptRequest> items;
+
+        public BinaryDecryptBatchRequest() {
+        }
+
+        public BinaryDecryptBatchRequest(List<BinaryDecryptRequest> items) {
+            this.items = items;
+        }
+    }
+
+    // ----- DTO для статистики кэша ключей -----
+
+    public static class KeyCacheStatsResponse {
+        public int size;
+        public long hits;
+        public long misses;
+        public long evictions;
+
+        public KeyCacheStatsResponse() {
+        }
+
+        public KeyCacheStatsResponse(int size, long hits, long misses, long evictions) {
+            this.size = size;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+        }
+    }
+
     // ----- Эндпоинты -----
 
     @GetMapping("/health")
@@ -122,6 +417,10 @@ public class CryptoController {
      */
     @PostMapping("/crypto/encrypt")
     public EncryptResponse encrypt(@RequestBody EncryptRequest req) {
+        return timed("encrypt", () -> encryptImpl(req));
+    }
+
+    private EncryptResponse encryptImpl(EncryptRequest req) {
         if (req.plaintext == null) {
             return new EncryptResponse(null, "AES-256-GCM", vaultKeyService.getKeyId());
         }
@@ -131,37 +430,14 @@ public class CryptoController {
         }
 
         try {
-            // 1) мастер-ключ из Vault
-            SecretKeySpec masterKey = vaultKeyService.getAesKey();
-            byte[] masterBytes = masterKey.getEncoded();
-
-            // 2) derive per-user ключ через HKDF (HMAC-SHA256)
-            String infoStr = "profile:" + req.user_id + ":" + req.field;
-            byte[] info = infoStr.getBytes(StandardCharsets.UTF_8);
-            byte[] userKeyBytes = hkdfExpand(masterBytes, info, 32); // 32 байта = 256 бит
-
-            SecretKeySpec userKey = new SecretKeySpec(userKeyBytes, "AES");
-
-            byte[] plaintextBytes = req.plaintext.getBytes(StandardCharsets.UTF_8);
-
-            // Случайный IV (nonce) для GCM
-            byte[] iv = new byte[IV_LENGTH_BYTES];
-            RANDOM.nextBytes(iv);
+            // текущее поколение мастер-ключа: ключ и key_id из одного снимка;
+            // в режиме конверта - ключ данных пользователя
+            AesKeyring.Generation key = vaultKeyService.encryptionKeyFor(req.user_id,
+                    vaultKeyService.getAesKeyring().current());
 
-            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-            GCMParameterSpec spec = new GCMParameterSpec(GCM_TAG_LENGTH_BITS, iv);
-            cipher.init(Cipher.ENCRYPT_MODE, userKey, spec);
+            String ciphertextB64 = fieldCryptoService.encrypt(key, req.user_id, req.field, req.plaintext);
 
-            byte[] cipherBytes = cipher.doFinal(plaintextBytes);
-
-            // Склеиваем IV + ciphertext+tag
-            byte[] combined = new byte[iv.length + cipherBytes.length];
-            System.arraycopy(iv, 0, combined, 0, iv.length);
-            System.arraycopy(cipherBytes, 0, combined, iv.length, cipherBytes.length);
-
-            String ciphertextB64 = Base64.getEncoder().encodeToString(combined);
-
-            return new EncryptResponse(ciphertextB64, "AES-256-GCM", vaultKeyService.getKeyId());
+            return new EncryptResponse(ciphertextB64, "AES-256-GCM", key.keyId);
         } catch (Exception e) {
             throw new RuntimeException("AES-GCM encrypt error: " + e.getMessage(), e);
         }
@@ -170,9 +446,14 @@ public class CryptoController {
     /**
      * Расшифровка чувствительного поля профиля.
      * Используем тот же derive-процесс HKDF(master_key, "profile:user_id:field").
+     * Мастер-ключ выбирается по key_id из заголовка шифротекста, без перебора.
      */
     @PostMapping("/crypto/decrypt")
     public DecryptResponse decrypt(@RequestBody DecryptRequest req) {
+        return timed("decrypt", () -> decryptImpl(req));
+    }
+
+    private DecryptResponse decryptImpl(DecryptRequest req) {
         if (req.ciphertext == null) {
             return new DecryptResponse(null);
         }
@@ -181,26 +462,85 @@ public class CryptoController {
             throw new IllegalArgumentException("user_id and field are required for per-user key derivation");
         }
 
-        // 1) пробуем current мастер-ключ
-        try {
-            SecretKeySpec currentMaster = vaultKeyService.getAesKey();
-            String plaintext = decryptWithMaster(req, currentMaster);
-            return new DecryptResponse(plaintext);
-        } catch (Exception e) {
-            // 2) если есть prev-ключ — пробуем его
-            SecretKeySpec prevMaster = vaultKeyService.getPrevAesKeyOrNull();
-            if (prevMaster == null) {
-                throw new RuntimeException("AES-GCM decrypt error (current key only): " + e.getMessage(), e);
+        return new DecryptResponse(fieldCryptoService.decrypt(req.user_id, req.field, req.ciphertext, req.key_id));
+    }
+
+    /**
+     * Пакетное шифрование: элементы {user_id, field, plaintext}, ответ в том же порядке.
+     * Мастер-ключ и key_id берутся один раз на весь пакет, per-user ключи
+     * берутся из DerivedKeyCache; большие пакеты разбираются параллельно.
+     * В режиме конверта key_id у каждого элемента свой (ключ данных пользователя).
+     * Ошибка одного элемента не роняет весь пакет - у каждого элемента свой status.
+     */
+    @PostMapping("/crypto/encrypt-batch")
+    public EncryptBatchResponse encryptBatch(@RequestBody EncryptBatchRequest req) {
+        return timed("encrypt-batch", () -> encryptBatchImpl(req));
+    }
+
+    private EncryptBatchResponse encryptBatchImpl(EncryptBatchRequest req) {
+        List<EncryptRequest> items = requireBatchItems(req == null ? null : req.items);
+
+        AesKeyring.Generation master = vaultKeyService.getAesKeyring().current();
+        String keyId = master.keyId;
+
+        EncryptBatchItemResult[] results = new EncryptBatchItemResult[items.size()];
+
+        forEachBatchItem(items.size(), i -> {
+            EncryptRequest item = items.get(i);
+            if (item == null) {
+                results[i] = new EncryptBatchItemResult("error", null, null, "item is null");
+                return;
+            }
+            if (item.plaintext == null) {
+                results[i] = new EncryptBatchItemResult("ok", null, keyId, null);
+                return;
             }
             try {
-                String plaintext = decryptWithMaster(req, prevMaster);
-                return new DecryptResponse(plaintext);
-            } catch (Exception e2) {
-                throw new RuntimeException("AES-GCM decrypt error (current & prev keys failed): " + e2.getMessage(), e2);
+                AesKeyring.Generation key = vaultKeyService.encryptionKeyFor(item.user_id, master);
+                String ciphertextB64 = fieldCryptoService.encrypt(key, item.user_id, item.field, item.plaintext);
+                results[i] = new EncryptBatchItemResult("ok", ciphertextB64, key.keyId, null);
+            } catch (Exception e) {
+                results[i] = new EncryptBatchItemResult("error", null, null, "AES-GCM encrypt error: " + e.getMessage());
             }
-        }
+        });
+
+        return new EncryptBatchResponse(toList(results), "AES-256-GCM", keyId);
     }
 
+    /**
+     * Пакетная расшифровка: элементы {user_id, field, ciphertext}, ответ в том же порядке.
+     * Выбор мастер-ключа для каждого элемента - как в /crypto/decrypt.
+     */
+    @PostMapping("/crypto/decrypt-batch")
+    public DecryptBatchResponse decryptBatch(@RequestBody DecryptBatchRequest req) {
+        return timed("decrypt-batch", () -> decryptBatchImpl(req));
+    }
+
+    private DecryptBatchResponse decryptBatchImpl(DecryptBatchRequest req) {
+        List<DecryptRequest> items = requireBatchItems(req == null ? null : req.items);
+
+        DecryptBatchItemResult[] results = new DecryptBatchItemResult[items.size()];
+
+        forEachBatchItem(items.size(), i -> {
+            DecryptRequest item = items.get(i);
+            if (item == null) {
+                results[i] = new DecryptBatchItemResult("error", null, "item is null");
+                return;
+            }
+            if (item.ciphertext == null) {
+                results[i] = new DecryptBatchItemResult("ok", null, null);
+                return;
+            }
+            try {
+                String plaintext = fieldCryptoService.decrypt(item.user_id, item.field, item.ciphertext, item.key_id);
+                results[i] = new DecryptBatchItemResult("ok", plaintext, null);
+            } catch (Exception e) {
+                results[i] = new DecryptBatchItemResult("error", null, e.getMessage());
+            }
+        });
+
+        return new DecryptBatchResponse(toList(results));
+    }
 
     /**
      * Подпись операций назначения ролей:
@@ -208,6 +548,10 @@ public class CryptoController {
      */
     @PostMapping("/crypto/access-sign")
     public AccessSignResponse accessSign(@RequestBody AccessSignRequest req) {
+        return timed("access-sign", () -> accessSignImpl(req));
+    }
+
+    private AccessSignResponse accessSignImpl(AccessSignRequest req) {
         try {
             String action = (req.action == null || req.action.isEmpty())
                     ? "GRANT_ROLE"
@@ -220,94 +564,301 @@ public class CryptoController {
             // Что подписываем: user_id | role_name | action
             String dataToSign = req.user_id + "|" + req.role_name + "|" + action;
 
-            byte[] hmacKey = vaultKeyService.getHmacKey();
-
-            Mac mac = Mac.getInstance("HmacSHA256");
-            SecretKeySpec keySpec =
-                    new SecretKeySpec(hmacKey, "HmacSHA256");
-            mac.init(keySpec);
-            byte[] macBytes = mac.doFinal(dataToSign.getBytes(StandardCharsets.UTF_8));
+            // ключ и key_id - из одного снимка
+            VaultKeyService.HmacKey hmacKey = vaultKeyService.getHmacKeySnapshot();
 
-            String hmacB64 = Base64.getEncoder().encodeToString(macBytes);
+            // Mac из пула CryptoEngine, UTF-8 и Base64 - без промежуточных массивов
+            String hmacB64 = CryptoEngine.hmacSha256Base64(hmacKey.key, dataToSign);
 
-            return new AccessSignResponse(hmacB64, "HMAC-SHA256", vaultKeyService.getHmacKeyId());
+            return new AccessSignResponse(hmacB64, "HMAC-SHA256", hmacKey.keyId);
         } catch (Exception e) {
             throw new RuntimeException("HMAC access-sign error: " + e.getMessage(), e);
         }
     }
 
-    // ----- HKDF (HMAC-SHA256) для derive per-user ключей -----
+    /**
+     * Пакетная подпись операций доступа: элементы {user_id, role_name, action}, ответ в том же порядке.
+     * HMAC-ключ и key_id - один снимок на весь пакет.
+     */
+    @PostMapping("/crypto/access-sign-batch")
+    public AccessSignBatchResponse accessSignBatch(@RequestBody AccessSignBatchRequest req) {
+        return timed("access-sign-batch", () -> accessSignBatchImpl(req));
+    }
+
+    private AccessSignBatchResponse accessSignBatchImpl(AccessSignBatchRequest req) {
+        List<AccessSignRequest> items = requireBatchItems(req == null ? null : req.items);
+
+        VaultKeyService.HmacKey snapshot = vaultKeyService.getHmacKeySnapshot();
+
+        AccessSignBatchItemResult[] results = new AccessSignBatchItemResult[items.size()];
+
+        forEachBatchItem(items.size(), i -> {
+            AccessSignRequest item = items.get(i);
+            if (item == null) {
+                results[i] = new AccessSignBatchItemResult("error", null, "item is null");
+                return;
+            }
+            if (item.user_id == null || item.role_name == null) {
+                results[i] = new AccessSignBatchItemResult("error", null, "user_id and role_name are required");
+                return;
+            }
+            String action = (item.action == null || item.action.isEmpty()) ? "GRANT_ROLE" : item.action;
+            try {
+                String hmacB64 = CryptoEngine.hmacSha256Base64(snapshot.key,
+                        item.user_id + "|" + item.role_name + "|" + action);
+                results[i] = new AccessSignBatchItemResult("ok", hmacB64, null);
+            } catch (Exception e) {
+                results[i] = new AccessSignBatchItemResult("error", null, "HMAC access-sign error: " + e.getMessage());
+            }
+        });
+
+        return new AccessSignBatchResponse(toList(results), "HMAC-SHA256", snapshot.keyId);
+    }
 
     /**
-     * Упрощённый HKDF-Expand с HMAC-SHA256 без явного salt (salt = нули),
-     * основной сценарий: derive из мастер-ключа 32 байта на конкретного пользователя/поле.
+     * Пакетная проверка подписей ролей: элементы {user_id, role_name, action, signature},
+     * ответ в том же порядке. HMAC-ключ берётся один раз на пакет, Mac инициализируется
+     * один раз на рабочий Workspace, сравнение - за постоянное время.
      */
-    private static byte[] hkdfExpand(byte[] ikm, byte[] info, int length) throws Exception {
-        // Для простоты: используем ikm как PRK (без отдельного Extract с солью)
-        // В дипломе можно описать это как HKDF(ikm, info) на базе HMAC-SHA256.
-        byte[] prk = ikm;
+    @PostMapping("/crypto/access-verify-batch")
+    public AccessVerifyBatchResponse accessVerifyBatch(@RequestBody AccessVerifyBatchRequest req) {
+        return timed("access-verify-batch", () -> accessVerifyBatchImpl(req));
+    }
 
-        Mac mac = Mac.getInstance("HmacSHA256");
-        mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+    private AccessVerifyBatchResponse accessVerifyBatchImpl(AccessVerifyBatchRequest req) {
+        List<AccessVerifyRequest> items = requireBatchItems(req == null ? null : req.items);
 
-        byte[] result = new byte[length];
-        byte[] t = new byte[0];
+        VaultKeyService.HmacKey snapshot = vaultKeyService.getHmacKeySnapshot();
+        byte[] hmacKey = snapshot.key;
+        String keyId = snapshot.keyId;
 
-        int offset = 0;
-        byte counter = 1;
+        AccessVerifyItemResult[] results = new AccessVerifyItemResult[items.size()];
 
-        while (offset < length) {
-            mac.reset();
-            mac.update(t);
-            mac.update(info);
-            mac.update(counter);
+        forEachBatchItem(items.size(), i -> {
+            AccessVerifyRequest item = items.get(i);
+            if (item == null) {
+                results[i] = new AccessVerifyItemResult("error", false, "item is null");
+                return;
+            }
+            if (item.user_id == null || item.role_name == null || item.signature == null) {
+                results[i] = new AccessVerifyItemResult("error", false,
+                        "user_id, role_name and signature are required");
+                return;
+            }
+            String action = (item.action == null || item.action.isEmpty()) ? "GRANT_ROLE" : item.action;
+            try {
+                boolean valid = CryptoEngine.hmacSha256Verify(hmacKey,
+                        item.user_id + "|" + item.role_name + "|" + action, item.signature);
+                results[i] = new AccessVerifyItemResult("ok", valid, null);
+            } catch (Exception e) {
+                results[i] = new AccessVerifyItemResult("error", false, "HMAC verify error: " + e.getMessage());
+            }
+        });
 
-            t = mac.doFinal();
+        return new AccessVerifyBatchResponse(toList(results), "HMAC-SHA256", keyId);
+    }
 
-            int toCopy = Math.min(t.length, length - offset);
-            System.arraycopy(t, 0, result, offset, toCopy);
-            offset += toCopy;
-            counter++;
+    // ----- application/cbor -----
+    // Тело в CBOR (Content-Type: application/cbor) - шифротекст сырыми байтами.
+    // JSON остаётся по умолчанию: без этого Content-Type работают методы выше.
+    // Ответ - CBOR, если Accept не просит JSON. Остальные /crypto/* эндпоинты тоже
+    // принимают и отдают CBOR (общий конвертер), но там нет байтовых полей.
+
+    @PostMapping(value = "/crypto/encrypt", consumes = MediaType.APPLICATION_CBOR_VALUE,
+            produces = {MediaType.APPLICATION_CBOR_VALUE, MediaType.APPLICATION_JSON_VALUE})
+    public BinaryEncryptResponse encryptBinary(@RequestBody EncryptRequest req) {
+        return timed("encrypt", () -> encryptBinaryImpl(req));
+    }
+
+    private BinaryEncryptResponse encryptBinaryImpl(EncryptRequest req) {
+        if (req.plaintext == null) {
+            return new BinaryEncryptResponse(null, "AES-256-GCM", vaultKeyService.getKeyId());
         }
 
-        return result;
+        if (req.user_id == null || req.field == null) {
+            throw new IllegalArgumentException("user_id and field are required for per-user key derivation");
+        }
+
+        try {
+            AesKeyring.Generation key = vaultKeyService.encryptionKeyFor(req.user_id,
+                    vaultKeyService.getAesKeyring().current());
+
+            byte[] ciphertext = fieldCryptoService.encryptToBytes(key, req.user_id, req.field, req.plaintext);
+
+            return new BinaryEncryptResponse(ciphertext, "AES-256-GCM", key.keyId);
+        } catch (Exception e) {
+            throw new RuntimeException("AES-GCM encrypt error: " + e.getMessage(), e);
+        }
+    }
+
+    @PostMapping(value = "/crypto/decrypt", consumes = MediaType.APPLICATION_CBOR_VALUE,
+            produces = {MediaType.APPLICATION_CBOR_VALUE, MediaType.APPLICATION_JSON_VALUE})
+    public DecryptResponse decryptBinary(@RequestBody BinaryDecryptRequest req) {
+        return timed("decrypt", () -> decryptBinaryImpl(req));
+    }
+
+    private DecryptResponse decryptBinaryImpl(BinaryDecryptRequest req) {
+        if (req.ciphertext == null) {
+            return new DecryptResponse(null);
+        }
+
+        if (req.user_id == null || req.field == null) {
+            throw new IllegalArgumentException("user_id and field are required for per-user key derivation");
+        }
+
+        return new DecryptResponse(fieldCryptoService.decrypt(req.user_id, req.field, req.ciphertext, req.key_id));
+    }
+
+    @PostMapping(value = "/crypto/encrypt-batch", consumes = MediaType.APPLICATION_CBOR_VALUE,
+            produces = {MediaType.APPLICATION_CBOR_VALUE, MediaType.APPLICATION_JSON_VALUE})
+    public BinaryEncryptBatchResponse encryptBatchBinary(@RequestBody EncryptBatchRequest req) {
+        return timed("encrypt-batch", () -> encryptBatchBinaryImpl(req));
     }
 
-        /**
-     * Расшифровка с конкретным мастер-ключом:
-     * HKDF(master, "profile:user_id:field") -> per-user ключ -> AES-GCM.
+    private BinaryEncryptBatchResponse encryptBatchBinaryImpl(EncryptBatchRequest req) {
+        List<EncryptRequest> items = requireBatchItems(req == null ? null : req.items);
+
+        AesKeyring.Generation master = vaultKeyService.getAesKeyring().current();
+        String keyId = master.keyId;
+
+        BinaryEncryptBatchItemResult[] results = new BinaryEncryptBatchItemResult[items.size()];
+
+        forEachBatchItem(items.size(), i -> {
+            EncryptRequest item = items.get(i);
+            if (item == null) {
+                results[i] = new BinaryEncryptBatchItemResult("error", null, null, "item is null");
+                return;
+            }
+            if (item.plaintext == null) {
+                results[i] = new BinaryEncryptBatchItemResult("ok", null, keyId, null);
+                return;
+            }
+            try {
+                AesKeyring.Generation key = vaultKeyService.encryptionKeyFor(item.user_id, master);
+                byte[] ciphertext = fieldCryptoService.encryptToBytes(key, item.user_id, item.field, item.plaintext);
+                results[i] = new BinaryEncryptBatchItemResult("ok", ciphertext, key.keyId, null);
+            } catch (Exception e) {
+                results[i] = new BinaryEncryptBatchItemResult("error", null, null,
+                        "AES-GCM encrypt error: " + e.getMessage());
+            }
+        });
+
+        return new BinaryEncryptBatchResponse(toList(results), "AES-256-GCM", keyId);
+    }
+
+    @PostMapping(value = "/crypto/decrypt-batch", consumes = MediaType.APPLICATION_CBOR_VALUE,
+            produces = {MediaType.APPLICATION_CBOR_VALUE, MediaType.APPLICATION_JSON_VALUE})
+    public DecryptBatchResponse decryptBatchBinary(@RequestBody BinaryDecryptBatchRequest req) {
+        return timed("decrypt-batch", () -> decryptBatchBinaryImpl(req));
+    }
+
+    private DecryptBatchResponse decryptBatchBinaryImpl(BinaryDecryptBatchRequest req) {
+        List<BinaryDecryptRequest> items = requireBatchItems(req == null ? null : req.items);
+
+        DecryptBatchItemResult[] results = new DecryptBatchItemResult[items.size()];
+
+        forEachBatchItem(items.size(), i -> {
+            BinaryDecryptRequest item = items.get(i);
+            if (item == null) {
+                results[i] = new DecryptBatchItemResult("error", null, "item is null");
+                return;
+            }
+            if (item.ciphertext == null) {
+                results[i] = new DecryptBatchItemResult("ok", null, null);
+                return;
+            }
+            try {
+                String plaintext = fieldCryptoService.decrypt(item.user_id, item.field, item.ciphertext, item.key_id);
+                results[i] = new DecryptBatchItemResult("ok", plaintext, null);
+            } catch (Exception e) {
+                results[i] = new DecryptBatchItemResult("error", null, e.getMessage());
+            }
+        });
+
+        return new DecryptBatchResponse(toList(results));
+    }
+
+    // ----- Метрики -----
+
+    private interface TimedOperation<T> {
+        T run();
+    }
+
+    /**
+     * Время операции -> crypto.operation{operation, outcome}.
      */
-    private String decryptWithMaster(DecryptRequest req, SecretKeySpec masterKey) throws Exception {
-        byte[] masterBytes = masterKey.getEncoded();
-    
-        String infoStr = "profile:" + req.user_id + ":" + req.field;
-        byte[] info = infoStr.getBytes(StandardCharsets.UTF_8);
-        byte[] userKeyBytes = hkdfExpand(masterBytes, info, 32);
-    
-        SecretKeySpec userKey = new SecretKeySpec(userKeyBytes, "AES");
-    
-        byte[] combined = java.util.Base64.getDecoder().decode(req.ciphertext);
-    
-        if (combined.length < IV_LENGTH_BYTES + 16) {
-            throw new IllegalArgumentException("ciphertext too short");
-        }
-    
-        byte[] iv = new byte[IV_LENGTH_BYTES];
-        byte[] cipherBytes = new byte[combined.length - IV_LENGTH_BYTES];
-    
-        System.arraycopy(combined, 0, iv, 0, IV_LENGTH_BYTES);
-        System.arraycopy(combined, IV_LENGTH_BYTES, cipherBytes, 0, cipherBytes.length);
-    
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-        GCMParameterSpec spec = new GCMParameterSpec(GCM_TAG_LENGTH_BITS, iv);
-        cipher.init(Cipher.DECRYPT_MODE, userKey, spec);
-    
-        byte[] plaintextBytes = cipher.doFinal(cipherBytes);
-        return new String(plaintextBytes, StandardCharsets.UTF_8);
-    }
-    
+    private <T> T timed(String operation, TimedOperation<T> body) {
+        Timer.Sample sample = cryptoMetrics.start();
+        boolean success = false;
+        try {
+            T result = body.run();
+            success = true;
+            return result;
+        } finally {
+            cryptoMetrics.recordOperation(sample, operation, success);
+        }
+    }
+
+    // ----- Вспомогательное для batch -----
+
+    interface BatchItemTask {
+        void run(int index);
+    }
+
+    static <T> List<T> requireBatchItems(List<T> items) {
+        if (items == null) {
+            throw new IllegalArgumentException("items are required");
+        }
+        if (items.size() > MAX_BATCH_ITEMS) {
+            throw new IllegalArgumentException("too many items in batch: " + items.size() +
+                    " (max " + MAX_BATCH_ITEMS + ")");
+        }
+        return items;
+    }
+
+    /**
+     * Маленькие пакеты - последовательно (накладные расходы на fork/join не окупаются),
+     * большие - параллельно: bulk-запросы в своём ограниченном пуле (CryptoAdmissionFilter),
+     * чтобы не занимать ядра интерактивных запросов, остальные - на общем ForkJoinPool.
+     */
+    static void forEachBatchItem(int size, BatchItemTask task) {
+        IntStream range = IntStream.range(0, size);
+        if (size < PARALLEL_BATCH_THRESHOLD) {
+            range.forEach(task::run);
+            return;
+        }
+        ForkJoinPool pool = CryptoAdmissionFilter.currentBatchPool();
+        if (pool == null) {
+            range.parallel().forEach(task::run);
+            return;
+        }
+        // параллельный stream, запущенный из задачи пула, делится на задачи этого же пула
+        pool.submit(() -> range.parallel().forEach(task::run)).join();
+    }
+
+    static <T> List<T> toList(T[] results) {
+        List<T> list = new ArrayList<>(results.length);
+        for (T r : results) {
+            list.add(r);
+        }
+        return list;
+    }
+
+    /**
+     * Статистика кэша derived-ключей (hit/miss/вытеснения).
+     */
+    @GetMapping("/crypto/key-cache/stats")
+    public KeyCacheStatsResponse keyCacheStats() {
+        return new KeyCacheStatsResponse(derivedKeyCache.size(), derivedKeyCache.getHits(),
+                derivedKeyCache.getMisses(), derivedKeyCache.getEvictions());
+    }
+
     @PostMapping("/crypto/rotate-master")
     public String rotateMaster() {
+        return timed("rotate-master", () -> rotateMasterImpl());
+    }
+
+    private String rotateMasterImpl() {
         try {
             vaultKeyService.rotateAesMasterKey();
             return "master key rotated";
@@ -0,0 +1,463 @@
+package com.example.wrapper;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * AES-GCM и HMAC-SHA256 без лишних аллокаций на горячем пути.
+ *
+ * Cipher/Mac и рабочие буферы живут в Workspace, а Workspace'ы - в общем пуле.
+ * Пул, а не ThreadLocal: на виртуальных потоках ThreadLocal создавал бы новый
+ * Cipher на каждый запрос и ничего бы не переиспользовал.
+ *
+ * Base64 и UTF-8 кодируются прямо в буферы Workspace, поэтому на одну операцию
+ * остаются только неизбежные объекты: итоговая строка, GCMParameterSpec и то,
+ * что выделяет сам провайдер.
+ *
+ * Workspace не потокобезопасен: взял через acquire() - верни через release()
+ * в finally и не держи ссылки на его буферы после этого.
+ *
+ * Провайдеры AES-GCM и HMAC выбирает CryptoProviderSelector (калибровка при старте);
+ * до выбора и без него - провайдеры JCA по умолчанию.
+ */
+final class CryptoEngine {
+
+    static final int IV_LENGTH_BYTES = CiphertextEnvelope.IV_LENGTH_BYTES;
+    static final int TAG_LENGTH_BYTES = CiphertextEnvelope.TAG_LENGTH_BYTES;
+    static final int HMAC_LENGTH_BYTES = 32;
+
+    private static final int POOL_SIZE = Math.max(8, Runtime.getRuntime().availableProcessors() * 2);
+    // буферы крупнее не держим в пуле, чтобы редкий большой запрос не занимал память навсегда
+    private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+    private static final int INITIAL_BUFFER = 512;
+
+    static final String GCM_ALGORITHM = "AES/GCM/NoPadding";
+    static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final ArrayBlockingQueue<Workspace> POOL = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    // null - провайдер JCA по умолчанию
+    private static volatile Providers providers = new Providers(null, null);
+
+    private static final byte[] B64_ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.ISO_8859_1);
+    private static final int[] B64_DECODE = new int[128];
+
+    static {
+        Arrays.fill(B64_DECODE, -1);
+        for (int i = 0; i < B64_ALPHABET.length; i++) {
+            B64_DECODE[B64_ALPHABET[i]] = i;
+        }
+    }
+
+    private CryptoEngine() {
+    }
+
+    static Workspace acquire() {
+        Workspace workspace = POOL.poll();
+        return workspace != null ? workspace : new Workspace();
+    }
+
+    static void release(Workspace workspace) {
+        // затираем и тот, что в пул не вернётся: в буферах остались открытые тексты
+        workspace.trim();
+        if (workspace.providers != providers) {
+            return; // создан до смены провайдеров
+        }
+        POOL.offer(workspace); // пул полон - лишний Workspace просто уйдёт в GC
+    }
+
+    /**
+     * Провайдеры для новых Workspace (null - по умолчанию). Пул сбрасывается,
+     * занятые сейчас Workspace'ы в него уже не вернутся.
+     */
+    static void useProviders(Provider gcm, Provider hmac) {
+        providers = new Providers(gcm, hmac);
+        POOL.clear();
+    }
+
+    static Provider gcmProvider() {
+        Provider provider = providers.gcm;
+        return provider != null ? provider : defaultProvider(GCM_ALGORITHM);
+    }
+
+    static Provider hmacProvider() {
+        Provider provider = providers.hmac;
+        return provider != null ? provider : defaultProvider(HMAC_ALGORITHM);
+    }
+
+    /**
+     * Cipher AES-GCM выбранного провайдера - для кода вне Workspace (обёртка ключей данных).
+     */
+    static Cipher newGcmCipher() throws GeneralSecurityException {
+        return newGcmCipher(providers.gcm);
+    }
+
+    static Cipher newGcmCipher(Provider provider) throws GeneralSecurityException {
+        return provider == null ? Cipher.getInstance(GCM_ALGORITHM) : Cipher.getInstance(GCM_ALGORITHM, provider);
+    }
+
+    static Mac newHmac(Provider provider) throws GeneralSecurityException {
+        return provider == null ? Mac.getInstance(HMAC_ALGORITHM) : Mac.getInstance(HMAC_ALGORITHM, provider);
+    }
+
+    static Provider defaultProvider(String algorithm) {
+        try {
+            return GCM_ALGORITHM.equals(algorithm)
+                    ? Cipher.getInstance(algorithm).getProvider()
+                    : Mac.getInstance(algorithm).getProvider();
+        } catch (GeneralSecurityException e) {
+            return null;
+        }
+    }
+
+    private static final class Providers {
+        final Provider gcm;
+        final Provider hmac;
+
+        Providers(Provider gcm, Provider hmac) {
+            this.gcm = gcm;
+            this.hmac = hmac;
+        }
+    }
+
+    /**
+     * HMAC-SHA256(key, UTF-8(data)) в Base64.
+     */
+    static String hmacSha256Base64(byte[] key, String data) throws Exception {
+        Workspace ws = acquire();
+        try {
+            ws.hmac(key, data);
+            return ws.encodeBase64(ws.block, HMAC_LENGTH_BYTES);
+        } finally {
+            release(ws);
+        }
+    }
+
+    /**
+     * Первые length байт HMAC-SHA256(key, UTF-8(data)) в Base64 (укороченный токен слепого индекса).
+     */
+    static String hmacSha256Base64(byte[] key, String data, int length) throws Exception {
+        if (length < 1 || length > HMAC_LENGTH_BYTES) {
+            throw new IllegalArgumentException("HMAC length must be 1.." + HMAC_LENGTH_BYTES + " bytes");
+        }
+        Workspace ws = acquire();
+        try {
+            ws.hmac(key, data);
+            return ws.encodeBase64(ws.block, length);
+        } finally {
+            release(ws);
+        }
+    }
+
+    /**
+     * Проверка HMAC-SHA256(key, UTF-8(data)) против подписи в Base64.
+     * Сравнение за постоянное время (не зависит от того, где первый несовпавший байт);
+     * не-Base64 подпись - IllegalArgumentException.
+     */
+    static boolean hmacSha256Verify(byte[] key, String data, String signatureB64) throws Exception {
+        Workspace ws = acquire();
+        try {
+            ws.hmac(key, data);
+            int length = ws.decodeBase64(signatureB64);
+            if (length != HMAC_LENGTH_BYTES) {
+                return false; // длина подписи не секрет
+            }
+            int diff = 0;
+            for (int i = 0; i < HMAC_LENGTH_BYTES; i++) {
+                diff |= ws.block[i] ^ ws.input[i];
+            }
+            return diff == 0;
+        } finally {
+            release(ws);
+        }
+    }
+
+    static final class Workspace {
+
+        final Cipher cipher;
+        final Mac mac;
+        private final Providers providers;
+
+        // input  - открытый текст (encrypt) или декодированный шифротекст (decrypt)
+        // output - шифротекст (encrypt) или открытый текст (decrypt)
+        // text   - символы Base64
+        byte[] input = new byte[INITIAL_BUFFER];
+        byte[] output = new byte[INITIAL_BUFFER];
+        byte[] text = new byte[INITIAL_BUFFER];
+        // сколько байт с начала буфера могло быть записано с прошлого release - столько и затираем:
+        // после одного большого поля буфер остаётся большим, а мелкие операции не должны чистить его целиком
+        private int inputUsed;
+        private int outputUsed;
+        private int textUsed;
+        final byte[] block = new byte[HMAC_LENGTH_BYTES];
+        private final byte[] iv = new byte[IV_LENGTH_BYTES];
+
+        // ключ, которым уже инициализирован mac (сравнение по ссылке)
+        private byte[] macKey;
+
+        // заголовок конверта для последнего key_id (обычно он один - текущий)
+        private String headerKeyId;
+        private byte[] header;
+
+        private Workspace() {
+            this.providers = CryptoEngine.providers;
+            try {
+                this.cipher = newGcmCipher(providers.gcm);
+                this.mac = newHmac(providers.hmac);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("AES-GCM / HMAC-SHA256 provider is not available", e);
+            }
+        }
+
+        /**
+         * mac, готовый к работе с ключом key. reuse = true - долгоживущий ключ
+         * (HMAC-ключ из VaultKeyService): повторная инициализация тем же массивом
+         * пропускается. Временный материал (HKDF) передаётся с reuse = false,
+         * чтобы Workspace в пуле не держал на него ссылку.
+         */
+        Mac initMac(byte[] key, boolean reuse) throws Exception {
+            if (reuse && macKey == key) {
+                mac.reset();
+                return mac;
+            }
+            macKey = null;
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            if (reuse) {
+                macKey = key;
+            }
+            return mac;
+        }
+
+        /**
+         * HMAC-SHA256(key, UTF-8(data)) в block; input после этого свободен.
+         */
+        void hmac(byte[] key, String data) throws Exception {
+            int length = encodeUtf8(data);
+            Mac m = initMac(key, true);
+            m.update(input, 0, length);
+            m.doFinal(block, 0);
+        }
+
+        /**
+         * UTF-8 строки в input, возвращает длину в байтах.
+         */
+        int encodeUtf8(String s) {
+            int length = s.length();
+            byte[] dst = ensureInput(length * 3);
+            int pos = 0;
+            for (int i = 0; i < length; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    dst[pos++] = (byte) c;
+                } else if (c < 0x800) {
+                    dst[pos++] = (byte) (0xC0 | (c >> 6));
+                    dst[pos++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    dst[pos++] = (byte) (0xF0 | (cp >> 18));
+                    dst[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    dst[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    dst[pos++] = (byte) (0x80 | (cp & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    dst[pos++] = (byte) '?'; // одиночный суррогат - как String.getBytes(UTF_8)
+                } else {
+                    dst[pos++] = (byte) (0xE0 | (c >> 12));
+                    dst[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    dst[pos++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+            return pos;
+        }
+
+        /**
+         * Base64 (стандартный алфавит, '=' в конце необязателен) прямо в input.
+         * Возвращает длину; IllegalArgumentException - не Base64.
+         */
+        int decodeBase64(String s) {
+            int length = s.length();
+            while (length > 0 && s.charAt(length - 1) == '=') {
+                length--;
+            }
+            int padding = s.length() - length;
+            if (padding > 2 || length % 4 == 1 || (padding > 0 && s.length() % 4 != 0)) {
+                throw new IllegalArgumentException("invalid Base64 length");
+            }
+            byte[] dst = ensureInput(length / 4 * 3 + 2);
+            int pos = 0;
+            int bits = 0;
+            int count = 0;
+            for (int i = 0; i < length; i++) {
+                char c = s.charAt(i);
+                int v = c < 128 ? B64_DECODE[c] : -1;
+                if (v < 0) {
+                    throw new IllegalArgumentException("illegal Base64 character at " + i);
+                }
+                bits = (bits << 6) | v;
+                if (++count == 4) {
+                    dst[pos++] = (byte) (bits >> 16);
+                    dst[pos++] = (byte) (bits >> 8);
+                    dst[pos++] = (byte) bits;
+                    bits = 0;
+                    count = 0;
+                }
+            }
+            if (count == 2) {
+                dst[pos++] = (byte) (bits >> 4);
+            } else if (count == 3) {
+                dst[pos++] = (byte) (bits >> 10);
+                dst[pos++] = (byte) (bits >> 2);
+            }
+            return pos;
+        }
+
+        /**
+         * Base64 первых length байт src; строка - единственная аллокация.
+         */
+        String encodeBase64(byte[] src, int length) {
+            byte[] dst = ensureText((length + 2) / 3 * 4);
+            int pos = 0;
+            int i = 0;
+            for (; i + 3 <= length; i += 3) {
+                int bits = (src[i] & 0xFF) << 16 | (src[i + 1] & 0xFF) << 8 | (src[i + 2] & 0xFF);
+                dst[pos++] = B64_ALPHABET[bits >>> 18];
+                dst[pos++] = B64_ALPHABET[(bits >>> 12) & 0x3F];
+                dst[pos++] = B64_ALPHABET[(bits >>> 6) & 0x3F];
+                dst[pos++] = B64_ALPHABET[bits & 0x3F];
+            }
+            int rest = length - i;
+            if (rest > 0) {
+                int bits = (src[i] & 0xFF) << 16 | (rest == 2 ? (src[i + 1] & 0xFF) << 8 : 0);
+                dst[pos++] = B64_ALPHABET[bits >>> 18];
+                dst[pos++] = B64_ALPHABET[(bits >>> 12) & 0x3F];
+                dst[pos++] = rest == 2 ? B64_ALPHABET[(bits >>> 6) & 0x3F] : (byte) '=';
+                dst[pos++] = '=';
+            }
+            return new String(dst, 0, pos, StandardCharsets.ISO_8859_1);
+        }
+
+        /**
+         * AES-GCM первых length байт input со случайным IV.
+         * Результат - Base64(заголовок с key_id || IV || ciphertext+tag).
+         */
+        String encryptToBase64(SecretKeySpec userKey, String keyId, int length) throws Exception {
+            int written = encrypt(userKey, keyId, length); // может заменить output на больший
+            return encodeBase64(output, written);
+        }
+
+        /**
+         * То же без Base64 (application/cbor): копия готового конверта.
+         */
+        byte[] encryptToBytes(SecretKeySpec userKey, String keyId, int length) throws Exception {
+            int written = encrypt(userKey, keyId, length);
+            return Arrays.copyOf(output, written);
+        }
+
+        /**
+         * Сырые байты шифротекста в input (вместо decodeBase64), возвращает длину.
+         */
+        int load(byte[] src) {
+            System.arraycopy(src, 0, ensureInput(src.length), 0, src.length);
+            return src.length;
+        }
+
+        // конверт в output, возвращает его длину
+        private int encrypt(SecretKeySpec userKey, String keyId, int length) throws Exception {
+            byte[] aad = header(keyId);
+            RANDOM.nextBytes(iv);
+
+            cipher.init(Cipher.ENCRYPT_MODE, userKey, new GCMParameterSpec(TAG_LENGTH_BYTES * 8, iv));
+            cipher.updateAAD(aad);
+
+            int ciphertextOffset = aad.length + IV_LENGTH_BYTES;
+            byte[] dst = ensureOutput(ciphertextOffset + length + TAG_LENGTH_BYTES);
+            System.arraycopy(aad, 0, dst, 0, aad.length);
+            System.arraycopy(iv, 0, dst, aad.length, IV_LENGTH_BYTES);
+            int written = cipher.doFinal(input, 0, length, dst, ciphertextOffset);
+            return ciphertextOffset + written;
+        }
+
+        /**
+         * AES-GCM расшифровка первых length байт input: IV по ivOffset, за ним ciphertext+tag,
+         * первые aadLength байт - AAD. Для старого формата ivOffset = aadLength = 0.
+         * input не меняется, так что при неудаче можно пробовать следующий ключ.
+         */
+        String decryptToString(SecretKeySpec userKey, int length, int ivOffset, int aadLength) throws Exception {
+            int ciphertextOffset = ivOffset + IV_LENGTH_BYTES;
+            if (length < ciphertextOffset + TAG_LENGTH_BYTES) {
+                throw new IllegalArgumentException("ciphertext too short");
+            }
+
+            cipher.init(Cipher.DECRYPT_MODE, userKey,
+                    new GCMParameterSpec(TAG_LENGTH_BYTES * 8, input, ivOffset, IV_LENGTH_BYTES));
+            if (aadLength > 0) {
+                cipher.updateAAD(input, 0, aadLength);
+            }
+
+            int ciphertextLength = length - ciphertextOffset;
+            byte[] dst = ensureOutput(ciphertextLength);
+            int written = cipher.doFinal(input, ciphertextOffset, ciphertextLength, dst, 0);
+            return new String(dst, 0, written, StandardCharsets.UTF_8);
+        }
+
+        private byte[] header(String keyId) {
+            if (!keyId.equals(headerKeyId)) {
+                header = CiphertextEnvelope.header(keyId);
+                headerKeyId = keyId;
+            }
+            return header;
+        }
+
+        private byte[] ensureInput(int size) {
+            if (input.length < size) {
+                input = new byte[Math.max(size, input.length * 2)];
+            }
+            inputUsed = Math.max(inputUsed, size);
+            return input;
+        }
+
+        private byte[] ensureOutput(int size) {
+            if (output.length < size) {
+                output = new byte[Math.max(size, output.length * 2)];
+            }
+            outputUsed = Math.max(outputUsed, size);
+            return output;
+        }
+
+        private byte[] ensureText(int size) {
+            if (text.length < size) {
+                text = new byte[Math.max(size, text.length * 2)];
+            }
+            textUsed = Math.max(textUsed, size);
+            return text;
+        }
+
+        /**
+         * Перед возвратом в пул: затираем записанное за операцию и отпускаем слишком большие буферы.
+         * Все записи в input/output/text идут через ensure*, так что за пределами *Used данных нет.
+         */
+        private void trim() {
+            input = wipeOrDrop(input, inputUsed);
+            output = wipeOrDrop(output, outputUsed);
+            text = wipeOrDrop(text, textUsed);
+            inputUsed = 0;
+            outputUsed = 0;
+            textUsed = 0;
+            Arrays.fill(block, (byte) 0);
+        }
+
+        private static byte[] wipeOrDrop(byte[] buffer, int used) {
+            Arrays.fill(buffer, 0, Math.min(used, buffer.length), (byte) 0);
+            return buffer.length > MAX_RETAINED_BUFFER ? new byte[INITIAL_BUFFER] : buffer;
+        }
+    }
+}
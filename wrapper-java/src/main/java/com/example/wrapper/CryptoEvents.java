@@ -0,0 +1,195 @@
+package com.example.wrapper;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * События JDK Flight Recorder обёртки: шифрование/расшифровка полей, HKDF-Expand,
+ * HTTP-вызовы Vault, ожидание блокировок ключей. Записываются, только пока идёт запись
+ * JFR (JfrRecordingService, /admin/jfr/* или -XX:StartFlightRecording); без неё
+ * begin/commit - пустые методы.
+ *
+ * CryptoOperation и HkdfExpand создаются на каждую операцию, поэтому без записи их нет вовсе
+ * (beginCryptoOperation/beginHkdfExpand возвращают null): C2 убирал аллокацию пустого события
+ * не везде - в encrypt с маленьким полем оставалось +56 байт на вызов.
+ *
+ * Мониторы (synchronized в DerivedKeyCache, DataKeyManager) JFR видит и сам - jdk.JavaMonitorEnter;
+ * ReentrantLock там виден только как jdk.ThreadPark без имени блокировки - отсюда KeyLockContention.
+ *
+ * Значения ключей, открытый текст и user_id в события не пишутся.
+ */
+final class CryptoEvents {
+
+    private static final String CATEGORY = "Key Storage Wrapper";
+
+    // true, пока идёт хоть одна запись JFR; обновляет RecordingListener
+    private static volatile boolean recording;
+
+    static {
+        // JFR не инициализирует; если он уже запущен - сразу вызовет recorderInitialized
+        FlightRecorder.addListener(new RecordingListener());
+    }
+
+    private CryptoEvents() {
+    }
+
+    @Name("com.example.wrapper.CryptoOperation")
+    @Label("Crypto Operation")
+    @Category({CATEGORY, "Crypto"})
+    @Description("Encryption or decryption of one field (single, batch item, CBOR, stream)")
+    @StackTrace(false)
+    static class CryptoOperation extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("Field")
+        String field;
+
+        @Label("Payload Size")
+        @Description("Plaintext for encrypt, ciphertext envelope for decrypt")
+        @DataAmount
+        long payloadBytes;
+
+        @Label("Key ID")
+        @Description("Master key generation (or data key) that did the work")
+        String keyId;
+
+        @Label("Fallback")
+        @Description("Legacy format: envelope parse fell back, or more than one key was tried")
+        boolean fallback;
+
+        @Label("Failed")
+        boolean failed;
+    }
+
+    @Name("com.example.wrapper.HkdfExpand")
+    @Label("HKDF Expand")
+    @Category({CATEGORY, "Crypto"})
+    @Description("Per-user key derivation (DerivedKeyCache miss)")
+    @StackTrace(false)
+    static class HkdfExpand extends Event {
+        @Label("Info Size")
+        @DataAmount
+        int infoBytes;
+
+        @Label("Output Size")
+        @DataAmount
+        int outputBytes;
+    }
+
+    @Name("com.example.wrapper.VaultCall")
+    @Label("Vault Call")
+    @Category({CATEGORY, "Vault"})
+    @Description("HTTP call to Vault through VaultHttpClient")
+    static class VaultCall extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("Method")
+        String method;
+
+        @Label("Path")
+        String path;
+
+        @Label("Status")
+        @Description("HTTP status, 0 - no response")
+        int status;
+
+        @Label("Outcome")
+        @Description("HTTP status, timeout, io_error or circuit_open")
+        String outcome;
+
+        @Label("Response Size")
+        @DataAmount
+        int responseBytes;
+    }
+
+    @Name("com.example.wrapper.KeyLockContention")
+    @Label("Key Lock Contention")
+    @Category({CATEGORY, "Locks"})
+    @Description("Thread waited for a key lock (load, rotation, refresh)")
+    static class KeyLockContention extends Event {
+        @Label("Lock")
+        String lock;
+
+        @Label("Queue Length")
+        @Description("Threads already waiting when this one arrived")
+        int queueLength;
+    }
+
+    /**
+     * Начатое событие CryptoOperation или null, если запись JFR не идёт.
+     */
+    static CryptoOperation beginCryptoOperation() {
+        if (!recording) {
+            return null;
+        }
+        CryptoOperation event = new CryptoOperation();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Начатое событие HkdfExpand или null, если запись JFR не идёт.
+     */
+    static HkdfExpand beginHkdfExpand() {
+        if (!recording) {
+            return null;
+        }
+        HkdfExpand event = new HkdfExpand();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * lock.lock(), но если блокировка занята - ожидание попадает в запись как KeyLockContention.
+     */
+    static void lock(ReentrantLock lock, String name) {
+        if (lock.tryLock()) {
+            return;
+        }
+        KeyLockContention event = new KeyLockContention();
+        int queueLength = event.isEnabled() ? lock.getQueueLength() : 0;
+        event.begin();
+        lock.lock();
+        event.end();
+        if (event.shouldCommit()) {
+            event.lock = name;
+            event.queueLength = queueLength;
+            event.commit();
+        }
+    }
+
+    private static final class RecordingListener implements FlightRecorderListener {
+        @Override
+        public void recorderInitialized(FlightRecorder recorder) {
+            update(recorder);
+        }
+
+        @Override
+        public void recordingStateChanged(Recording changed) {
+            update(FlightRecorder.getFlightRecorder());
+        }
+
+        private static void update(FlightRecorder recorder) {
+            boolean running = false;
+            for (Recording r : recorder.getRecordings()) {
+                if (r.getState() == RecordingState.RUNNING) {
+                    running = true;
+                }
+            }
+            recording = running;
+        }
+    }
+}
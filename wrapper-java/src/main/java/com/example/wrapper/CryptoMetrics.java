@@ -0,0 +1,194 @@
+package com.example.wrapper;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Метрики обёртки (Micrometer, наружу - /actuator/prometheus):
+ *
+ *   crypto.operation        - таймер на операцию (encrypt, decrypt, access-sign, rotate-master, ...), outcome
+ *   crypto.payload.size     - размер открытого текста / шифротекста, байт
+ *   crypto.decrypt.format   - какой формат шифротекста пришёл (envelope / legacy)
+ *   crypto.decrypt.fallback - расшифровка потребовала перебора ключей
+ *   crypto.key_cache.*      - hit/miss/вытеснения DerivedKeyCache
+ *   crypto.decrypt.dedup    - расшифровки, не выполнявшиеся заново (coalesced / cache_hit)
+ *   vault.http.requests     - таймер HTTP-вызовов Vault по операции и статусу
+ *   vault.circuit.state     - circuit breaker клиента Vault (0 closed, 1 open, 2 half-open)
+ *   crypto.keys.refresh     - фоновая сверка ключей с Vault (unchanged / changed / error)
+ *   crypto.admission.*      - допуск по классам трафика: in_flight / queued, rejected по причине
+ *   crypto.provider.*       - выбранный JCA-провайдер (selected = 1) и его пропускная способность при калибровке
+ *
+ * Гистограммы включены, чтобы p99 считался в Prometheus по всем репликам.
+ */
+@Component
+public class CryptoMetrics {
+
+    private final MeterRegistry registry;
+
+    // Meter'ы кэшируем: builder.register() на каждый вызов - лишний поиск и аллокации
+    private final Map<String, Timer> operationTimers = new ConcurrentHashMap<>();
+    private final Map<String, DistributionSummary> payloadSummaries = new ConcurrentHashMap<>();
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, Timer> vaultTimers = new ConcurrentHashMap<>();
+
+    public CryptoMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Метрики в памяти, без экспорта - для бенчмарков и ручной сборки сервисов.
+     */
+    public static CryptoMetrics inMemory() {
+        return new CryptoMetrics(new SimpleMeterRegistry());
+    }
+
+    public MeterRegistry getRegistry() {
+        return registry;
+    }
+
+    public Timer.Sample start() {
+        return Timer.start(registry);
+    }
+
+    public void recordOperation(Timer.Sample sample, String operation, boolean success) {
+        String outcome = success ? "success" : "error";
+        Timer timer = operationTimers.computeIfAbsent(operation + "|" + outcome, k ->
+                Timer.builder("crypto.operation")
+                        .description("Crypto endpoint latency")
+                        .tag("operation", operation)
+                        .tag("outcome", outcome)
+                        .publishPercentileHistogram()
+                        .register(registry));
+        sample.stop(timer);
+    }
+
+    public void recordPayload(String operation, long bytes) {
+        payloadSummaries.computeIfAbsent(operation, k ->
+                DistributionSummary.builder("crypto.payload.size")
+                        .description("Plaintext (encrypt) / ciphertext (decrypt) size")
+                        .baseUnit("bytes")
+                        .tag("operation", operation)
+                        .publishPercentileHistogram()
+                        .register(registry))
+                .record(bytes);
+    }
+
+    public void decryptFormat(String format) {
+        counter("crypto.decrypt.format", "format", format).increment();
+    }
+
+    /**
+     * reason: legacy_key_retry - старый формат, первый ключ не подошёл;
+     *         envelope_to_legacy - конверт не расшифровался, ушли в старый формат.
+     */
+    public void decryptFallback(String reason) {
+        counter("crypto.decrypt.fallback", "reason", reason).increment();
+    }
+
+    /**
+     * status - HTTP-код ответа Vault; без ответа - "timeout", "io_error"
+     * или "circuit_open" (вызов не выполнялся).
+     */
+    public void recordVaultCall(String operation, String status, long durationNanos) {
+        vaultTimers.computeIfAbsent(operation + "|" + status, k ->
+                Timer.builder("vault.http.requests")
+                        .description("Vault HTTP call latency")
+                        .tag("operation", operation)
+                        .tag("status", status)
+                        .publishPercentileHistogram()
+                        .register(registry))
+                .record(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void keyRefresh(String outcome) {
+        counter("crypto.keys.refresh", "outcome", outcome).increment();
+    }
+
+    public void bindKeyCache(DerivedKeyCache cache) {
+        FunctionCounter.builder("crypto.key_cache.requests", cache, DerivedKeyCache::getHits)
+                .tag("result", "hit")
+                .register(registry);
+        FunctionCounter.builder("crypto.key_cache.requests", cache, DerivedKeyCache::getMisses)
+                .tag("result", "miss")
+                .register(registry);
+        FunctionCounter.builder("crypto.key_cache.evictions", cache, DerivedKeyCache::getEvictions)
+                .register(registry);
+        Gauge.builder("crypto.key_cache.size", cache, DerivedKeyCache::size)
+                .register(registry);
+    }
+
+    public void bindDecryptCoalescer(DecryptCoalescer coalescer) {
+        FunctionCounter.builder("crypto.decrypt.dedup", coalescer, DecryptCoalescer::getCoalesced)
+                .description("Decrypts served by an identical in-flight request")
+                .tag("result", "coalesced")
+                .register(registry);
+        FunctionCounter.builder("crypto.decrypt.dedup", coalescer, DecryptCoalescer::getCacheHits)
+                .tag("result", "cache_hit")
+                .register(registry);
+        Gauge.builder("crypto.decrypt.plaintext_cache.size", coalescer, DecryptCoalescer::getCacheSize)
+                .register(registry);
+    }
+
+    public void bindVaultClient(VaultHttpClient client) {
+        Gauge.builder("vault.circuit.state", client, VaultHttpClient::getCircuitState)
+                .description("Vault circuit breaker: 0 closed, 1 open, 2 half-open")
+                .register(registry);
+        Gauge.builder("vault.circuit.consecutive_failures", client, VaultHttpClient::getConsecutiveFailures)
+                .register(registry);
+    }
+
+    public void bindAdmissionLane(CryptoAdmissionFilter.Lane lane) {
+        Gauge.builder("crypto.admission.in_flight", lane, CryptoAdmissionFilter.Lane::getInFlight)
+                .tag("class", lane.name)
+                .register(registry);
+        Gauge.builder("crypto.admission.queued", lane, CryptoAdmissionFilter.Lane::getQueued)
+                .tag("class", lane.name)
+                .register(registry);
+    }
+
+    public void admissionRejected(String trafficClass, String reason) {
+        counters.computeIfAbsent("crypto.admission.rejected|" + trafficClass + "|" + reason, k ->
+                Counter.builder("crypto.admission.rejected")
+                        .tag("class", trafficClass)
+                        .tag("reason", reason)
+                        .register(registry))
+                .increment();
+    }
+
+    public void bindProviderSelection(CryptoProviderSelector selector) {
+        for (CryptoProviderSelector.Selection selection
+                : new CryptoProviderSelector.Selection[]{selector.getGcmSelection(), selector.getHmacSelection()}) {
+            Gauge.builder("crypto.provider.selected", () -> 1)
+                    .description("JCA provider in use per algorithm")
+                    .tag("algorithm", selection.algorithm)
+                    .tag("provider", selection.name)
+                    .tag("reason", selection.reason)
+                    .register(registry);
+        }
+        for (CryptoProviderSelector.CandidateResult result : selector.getResults()) {
+            if (result.mbPerSecond > 0) {
+                double mbPerSecond = result.mbPerSecond;
+                Gauge.builder("crypto.provider.calibration.throughput", () -> mbPerSecond)
+                        .baseUnit("megabytes_per_second")
+                        .tag("algorithm", result.algorithm)
+                        .tag("provider", result.provider)
+                        .register(registry);
+            }
+        }
+    }
+
+    private Counter counter(String name, String tagKey, String tagValue) {
+        return counters.computeIfAbsent(name + "|" + tagValue, k ->
+                Counter.builder(name).tag(tagKey, tagValue).register(registry));
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.wrapper;
+
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RestController
+public class CryptoProviderController {
+
+    private final CryptoProviderSelector selector;
+
+    public CryptoProviderController(CryptoProviderSelector selector) {
+        this.selector = selector;
+    }
+
+    // ----- DTO для /crypto/providers -----
+
+    public static class SelectedProvider {
+        public String provider;
+        public String reason; // calibrated, configured, default
+
+        public SelectedProvider() {
+        }
+
+        public SelectedProvider(String provider, String reason) {
+            this.provider = provider;
+            this.reason = reason;
+        }
+    }
+
+    public static class ProviderCandidate {
+        public String algorithm;
+        public String provider;
+        public String version;
+        public String status; // ok, unavailable, self_test_failed
+        public String error;
+        public double ops_per_second;
+        public double mb_per_second;
+
+        public ProviderCandidate() {
+        }
+    }
+
+    public static class HostInfo {
+        public String os_arch;
+        public int available_processors;
+        public String java_version;
+        // флаги HotSpot: AES-NI, CLMUL (GHASH в GCM, только x86), SHA-расширения; null - флага нет
+        public Boolean use_aes;
+        public Boolean use_clmul;
+        public Boolean use_sha;
+
+        public HostInfo() {
+        }
+    }
+
+    public static class CryptoProvidersResponse {
+        public SelectedProvider gcm;
+        public SelectedProvider hmac;
+        public String calibration; // disabled, not_needed, running, done, failed
+        public long calibration_ms;
+        public int payload_bytes;
+        public HostInfo host;
+        public List<ProviderCandidate> candidates;
+
+        public CryptoProvidersResponse() {
+        }
+    }
+
+    // ----- Эндпоинты -----
+
+    /**
+     * Какие провайдеры AES-GCM / HMAC-SHA256 выбраны и почему, результаты self-test
+     * и калибровки по каждому кандидату, аппаратное ускорение AES/GHASH/SHA у JVM на этом хосте.
+     */
+    @GetMapping("/crypto/providers")
+    public CryptoProvidersResponse providers() {
+        CryptoProvidersResponse response = new CryptoProvidersResponse();
+        response.gcm = new SelectedProvider(selector.getGcmSelection().name, selector.getGcmSelection().reason);
+        response.hmac = new SelectedProvider(selector.getHmacSelection().name, selector.getHmacSelection().reason);
+        response.calibration = selector.getCalibrationState();
+        response.calibration_ms = selector.getCalibrationTookMillis();
+        response.payload_bytes = selector.getPayloadBytes();
+
+        HostInfo host = new HostInfo();
+        host.os_arch = System.getProperty("os.arch");
+        host.available_processors = Runtime.getRuntime().availableProcessors();
+        host.java_version = System.getProperty("java.version");
+        host.use_aes = CryptoProviderSelector.vmFlag("UseAES");
+        host.use_clmul = CryptoProviderSelector.vmFlag("UseCLMUL");
+        host.use_sha = CryptoProviderSelector.vmFlag("UseSHA");
+        response.host = host;
+
+        List<ProviderCandidate> candidates = new ArrayList<>();
+        for (CryptoProviderSelector.CandidateResult r : selector.getResults()) {
+            ProviderCandidate c = new ProviderCandidate();
+            c.algorithm = r.algorithm;
+            c.provider = r.provider;
+            c.version = r.version;
+            c.status = r.status;
+            c.error = r.error;
+            c.ops_per_second = Math.round(r.opsPerSecond);
+            c.mb_per_second = Math.round(r.mbPerSecond * 10) / 10.0;
+            candidates.add(c);
+        }
+        response.candidates = candidates;
+        return response;
+    }
+}
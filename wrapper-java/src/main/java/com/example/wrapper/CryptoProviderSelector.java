@@ -0,0 +1,621 @@
+package com.example.wrapper;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Выбор JCA-провайдера для AES-GCM и HMAC-SHA256.
+ *
+ * Кандидаты - crypto.provider.candidates: имя зарегистрированного провайдера (SunJCE),
+ * псевдоним (BC - BouncyCastle, ACCP - Amazon Corretto Crypto Provider, нативный
+ * на OpenSSL/AWS-LC) или имя класса. Чего нет в classpath - помечается unavailable.
+ *
+ * При старте каждый кандидат проходит self-test: известные векторы (GCM spec, RFC 4231),
+ * совпадение с провайдером по умолчанию и отказ на испорченном теге. Пока нет замеров,
+ * работает провайдер по умолчанию (или заданный явно).
+ *
+ * Калибровка - в фоновом потоке: каждый кандидат прогревается до стабильного результата,
+ * затем кандидаты чередуются по раундам над crypto.provider.calibration.payload-bytes
+ * (новый IV на каждое шифрование, как на горячем пути), берётся лучший раунд.
+ * После этого CryptoEngine переключается на победителя.
+ *
+ * Калибровка занимает ядро целиком: до warmup-ms на каждый прогрев (кандидат x алгоритм)
+ * плюс duration-ms замеров. Всё вместе ограничено max-total-ms - прогревы делят остаток
+ * бюджета поровну. Приоритет потоку не понижаем: на Linux без -XX:ThreadPriorityPolicy=1
+ * он ни на что не влияет. Идёт параллельно с запросами - под нагрузкой замер шумный:
+ * от перекоса защищают чередование кандидатов по раундам и min-gain, а где шум недопустим,
+ * провайдер задают явно (crypto.provider.gcm / hmac) - тогда калибровки нет.
+ *
+ * crypto.provider.gcm / crypto.provider.hmac = auto - быстрейший прошедший self-test,
+ * но провайдер по умолчанию меняем, только если выигрыш больше min-gain (шум замера);
+ * иначе - конкретный кандидат (не прошёл self-test - остаётся провайдер по умолчанию).
+ * Выбор и замеры - в /crypto/providers и метриках crypto.provider.*.
+ */
+@Component
+public class CryptoProviderSelector {
+
+    static final String GCM = "AES-GCM";
+    static final String HMAC = "HMAC-SHA256";
+    static final String AUTO = "auto";
+
+    private static final Map<String, String> ALIASES = new HashMap<>();
+
+    static {
+        ALIASES.put("BC", "org.bouncycastle.jce.provider.BouncyCastleProvider");
+        ALIASES.put("ACCP", "com.amazon.corretto.crypto.provider.AmazonCorrettoCryptoProvider");
+    }
+
+    private static final int ROUNDS = 3;
+    private static final long WARMUP_SLICE_NANOS = 100_000_000L;
+    // прогрев закончен после стольких операций и трёх замеров подряд в пределах 5%:
+    // до компиляции C2 (тысячи вызовов, очередь компиляции после старта Spring) бывает
+    // ложное плато интерпретатора/C1
+    private static final long WARMUP_MIN_OPS = 100_000;
+    private static final int WARMUP_STABLE_SLICES = 3;
+    private static final double WARMUP_STABLE = 0.05;
+
+    private final CryptoMetrics cryptoMetrics;
+    private final String gcmSetting;
+    private final String hmacSetting;
+    private final long calibrationMillis;
+    private final long warmupMillis;
+    private final long maxTotalMillis;
+    private final long delayMillis;
+    private final int payloadBytes;
+    private final double minGain;
+
+    private volatile List<CandidateResult> results;
+    private volatile Selection gcm;
+    private volatile Selection hmac;
+    private volatile String state; // disabled, not_needed, running, done, failed
+    private volatile long calibrationTookMillis;
+    private final Thread calibrationThread;
+
+    // остаток бюджета на прогревы; только в потоке калибровки
+    private long warmupBudgetNanos;
+    private int warmupsLeft;
+
+    public CryptoProviderSelector(CryptoMetrics cryptoMetrics,
+                                  @Value("${crypto.provider.candidates:SunJCE,BC,ACCP}") String candidates,
+                                  @Value("${crypto.provider.gcm:auto}") String gcmSetting,
+                                  @Value("${crypto.provider.hmac:auto}") String hmacSetting,
+                                  @Value("${crypto.provider.calibration.enabled:true}") boolean calibrationEnabled,
+                                  @Value("${crypto.provider.calibration.duration-ms:3000}") long calibrationMillis,
+                                  @Value("${crypto.provider.calibration.warmup-ms:10000}") long warmupMillis,
+                                  @Value("${crypto.provider.calibration.max-total-ms:20000}") long maxTotalMillis,
+                                  @Value("${crypto.provider.calibration.delay-ms:5000}") long delayMillis,
+                                  @Value("${crypto.provider.calibration.payload-bytes:1024}") int payloadBytes,
+                                  @Value("${crypto.provider.calibration.min-gain:0.1}") double minGain) {
+        this.cryptoMetrics = cryptoMetrics;
+        this.gcmSetting = gcmSetting.trim();
+        this.hmacSetting = hmacSetting.trim();
+        this.calibrationMillis = Math.max(0, calibrationMillis);
+        this.warmupMillis = Math.max(0, warmupMillis);
+        this.maxTotalMillis = Math.max(this.calibrationMillis, maxTotalMillis);
+        this.delayMillis = Math.max(0, delayMillis);
+        this.payloadBytes = Math.max(16, payloadBytes);
+        this.minGain = Math.max(0, minGain);
+
+        // self-test - сразу: до выбора провайдера ни одного запроса через непроверенный
+        List<Candidate> resolved = resolve(candidates);
+        List<CandidateResult> gcmTested = selfTest(GCM, resolved);
+        List<CandidateResult> hmacTested = selfTest(HMAC, resolved);
+        this.gcm = select(GCM, this.gcmSetting, gcmTested);
+        this.hmac = select(HMAC, this.hmacSetting, hmacTested);
+        this.results = concat(gcmTested, hmacTested);
+        CryptoEngine.useProviders(gcm.provider, hmac.provider);
+        for (CandidateResult r : results) {
+            if (r.instance == null) {
+                System.out.println("CryptoProviderSelector: " + r.algorithm + " " + r.provider + " " + r.status +
+                        " (" + r.error + ")");
+            }
+        }
+
+        // калибровка - в фоне: на холодной JVM замер показывает интерпретатор, а не JIT
+        // с интринсиками AES-NI/CLMUL, и провайдер на чистой Java выигрывал бы нечестно
+        boolean auto = AUTO.equalsIgnoreCase(this.gcmSetting) || AUTO.equalsIgnoreCase(this.hmacSetting);
+        if (calibrationEnabled && auto) {
+            this.state = "running";
+            this.calibrationThread = new Thread(() -> calibrate(gcmTested, hmacTested), "crypto-provider-calibration");
+            calibrationThread.setDaemon(true);
+            calibrationThread.start();
+        } else {
+            this.state = calibrationEnabled ? "not_needed" : "disabled";
+            this.calibrationThread = null;
+            cryptoMetrics.bindProviderSelection(this);
+        }
+        System.out.println("CryptoProviderSelector: " + GCM + "=" + gcm.name + " (" + gcm.reason + "), " +
+                HMAC + "=" + hmac.name + " (" + hmac.reason + "), calibration " + state);
+    }
+
+    private void calibrate(List<CandidateResult> gcmTested, List<CandidateResult> hmacTested) {
+        long started = System.nanoTime();
+        try {
+            Thread.sleep(delayMillis); // после старта JIT занят самим приложением
+            warmupBudgetNanos = (maxTotalMillis - calibrationMillis) * 1_000_000L;
+            warmupsLeft = (AUTO.equalsIgnoreCase(gcmSetting) ? countPassed(gcmTested) : 0)
+                    + (AUTO.equalsIgnoreCase(hmacSetting) ? countPassed(hmacTested) : 0);
+            List<CandidateResult> gcmMeasured = AUTO.equalsIgnoreCase(gcmSetting) ? measure(GCM, gcmTested) : gcmTested;
+            List<CandidateResult> hmacMeasured = AUTO.equalsIgnoreCase(hmacSetting) ? measure(HMAC, hmacTested) : hmacTested;
+            Selection newGcm = select(GCM, gcmSetting, gcmMeasured);
+            Selection newHmac = select(HMAC, hmacSetting, hmacMeasured);
+            if (newGcm.provider != gcm.provider || newHmac.provider != hmac.provider) {
+                CryptoEngine.useProviders(newGcm.provider, newHmac.provider);
+            }
+            gcm = newGcm;
+            hmac = newHmac;
+            results = concat(gcmMeasured, hmacMeasured);
+            state = "done";
+        } catch (InterruptedException e) {
+            state = "failed";
+            return;
+        } catch (Exception e) {
+            state = "failed";
+            System.out.println("CryptoProviderSelector: calibration failed: " + e.getMessage());
+            return;
+        } finally {
+            calibrationTookMillis = (System.nanoTime() - started) / 1_000_000;
+        }
+        cryptoMetrics.bindProviderSelection(this);
+
+        for (CandidateResult r : results) {
+            if (r.instance != null) {
+                System.out.println("CryptoProviderSelector: " + r.algorithm + " " + r.provider +
+                        String.format(" %.1f MB/s", r.mbPerSecond));
+            }
+        }
+        System.out.println("CryptoProviderSelector: calibrated " + GCM + "=" + gcm.name + ", " + HMAC + "=" +
+                hmac.name + ", took " + calibrationTookMillis + " ms");
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (calibrationThread != null) {
+            calibrationThread.interrupt();
+        }
+    }
+
+    private static int countPassed(List<CandidateResult> tested) {
+        int passed = 0;
+        for (CandidateResult r : tested) {
+            if (r.instance != null) {
+                passed++;
+            }
+        }
+        return passed;
+    }
+
+    private static List<CandidateResult> concat(List<CandidateResult> a, List<CandidateResult> b) {
+        List<CandidateResult> all = new ArrayList<>(a);
+        all.addAll(b);
+        return Collections.unmodifiableList(all);
+    }
+
+    // ----- Кандидаты -----
+
+    static final class Candidate {
+        final String name;
+        final Provider provider;
+        final String error;
+
+        Candidate(String name, Provider provider, String error) {
+            this.name = name;
+            this.provider = provider;
+            this.error = error;
+        }
+    }
+
+    static final class CandidateResult {
+        final String algorithm;
+        final String provider;
+        final String version;
+        final String status; // ok, unavailable, self_test_failed
+        final String error;
+        final double opsPerSecond;
+        final double mbPerSecond;
+        final Provider instance;
+
+        CandidateResult(String algorithm, String provider, String version, String status, String error,
+                        double opsPerSecond, double mbPerSecond, Provider instance) {
+            this.algorithm = algorithm;
+            this.provider = provider;
+            this.version = version;
+            this.status = status;
+            this.error = error;
+            this.opsPerSecond = opsPerSecond;
+            this.mbPerSecond = mbPerSecond;
+            this.instance = instance;
+        }
+    }
+
+    static final class Selection {
+        final String algorithm;
+        final String name;
+        final Provider provider;
+        final String reason; // calibrated, configured, default
+
+        Selection(String algorithm, String name, Provider provider, String reason) {
+            this.algorithm = algorithm;
+            this.name = name;
+            this.provider = provider;
+            this.reason = reason;
+        }
+    }
+
+    private static List<Candidate> resolve(String candidates) {
+        List<Candidate> resolved = new ArrayList<>();
+        Map<String, Boolean> seen = new LinkedHashMap<>();
+        for (String raw : candidates.split(",")) {
+            String name = raw.trim();
+            if (name.isEmpty() || seen.put(name.toUpperCase(), Boolean.TRUE) != null) {
+                continue;
+            }
+            try {
+                resolved.add(new Candidate(name, resolveProvider(name), null));
+            } catch (ClassNotFoundException e) {
+                resolved.add(new Candidate(name, null, "not on classpath"));
+            } catch (Throwable e) {
+                // нативный провайдер без своей библиотеки под эту платформу и т.п.
+                resolved.add(new Candidate(name, null, e.getClass().getSimpleName() + ": " + e.getMessage()));
+            }
+        }
+        return resolved;
+    }
+
+    /**
+     * Провайдер по имени (Security.getProvider), псевдониму или имени класса.
+     */
+    static Provider resolveProvider(String name) throws Exception {
+        Provider provider = Security.getProvider(name);
+        if (provider != null) {
+            return provider;
+        }
+        String className = ALIASES.getOrDefault(name.toUpperCase(), name.contains(".") ? name : null);
+        if (className == null) {
+            throw new IllegalArgumentException("no such provider");
+        }
+        Class<?> type = Class.forName(className);
+        try {
+            // ACCP: единственный экземпляр в INSTANCE
+            Object instance = type.getField("INSTANCE").get(null);
+            if (instance instanceof Provider) {
+                return (Provider) instance;
+            }
+        } catch (NoSuchFieldException e) {
+            // обычный провайдер с конструктором без аргументов
+        }
+        return (Provider) type.getDeclaredConstructor().newInstance();
+    }
+
+    private static List<CandidateResult> selfTest(String algorithm, List<Candidate> candidates) {
+        List<CandidateResult> out = new ArrayList<>();
+        for (Candidate c : candidates) {
+            if (c.provider == null) {
+                out.add(new CandidateResult(algorithm, c.name, null, "unavailable", c.error, 0, 0, null));
+                continue;
+            }
+            try {
+                if (GCM.equals(algorithm)) {
+                    selfTestGcm(c.provider);
+                } else {
+                    selfTestHmac(c.provider);
+                }
+                out.add(new CandidateResult(algorithm, c.name, c.provider.getVersionStr(), "ok", null, 0, 0,
+                        c.provider));
+            } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+                out.add(new CandidateResult(algorithm, c.name, c.provider.getVersionStr(),
+                        "unavailable", e.getMessage(), 0, 0, null));
+            } catch (Exception e) {
+                out.add(new CandidateResult(algorithm, c.name, c.provider.getVersionStr(),
+                        "self_test_failed", e.getMessage(), 0, 0, null));
+            }
+        }
+        return out;
+    }
+
+    private List<CandidateResult> measure(String algorithm, List<CandidateResult> tested) throws Exception {
+        List<CandidateResult> passed = new ArrayList<>();
+        for (CandidateResult r : tested) {
+            if (r.instance != null) {
+                passed.add(r);
+            }
+        }
+        if (passed.isEmpty()) {
+            return tested;
+        }
+
+        // прогрев до стабильного результата: C2 и интринсики включаются не сразу;
+        // каждому - не больше warmup-ms и своей доли остатка общего бюджета
+        for (CandidateResult r : passed) {
+            long warmupStarted = System.nanoTime();
+            long share = warmupBudgetNanos / Math.max(1, warmupsLeft);
+            long deadline = warmupStarted + Math.min(warmupMillis * 1_000_000L, share);
+            boolean warmedUp = false;
+            long totalOps = 0;
+            double previous = 0;
+            int stable = 0;
+            while (System.nanoTime() < deadline) {
+                double opsPerSecond = run(algorithm, r.instance, WARMUP_SLICE_NANOS);
+                totalOps += (long) (opsPerSecond * WARMUP_SLICE_NANOS / 1e9);
+                stable = previous > 0 && Math.abs(opsPerSecond - previous) < previous * WARMUP_STABLE ? stable + 1 : 0;
+                if (totalOps >= WARMUP_MIN_OPS && stable >= WARMUP_STABLE_SLICES) {
+                    warmedUp = true;
+                    break;
+                }
+                previous = opsPerSecond;
+            }
+            warmupBudgetNanos = Math.max(0, warmupBudgetNanos - (System.nanoTime() - warmupStarted));
+            warmupsLeft--;
+            if (!warmedUp) {
+                System.out.println("CryptoProviderSelector: " + algorithm + " " + r.provider +
+                        " warmup budget exhausted before the result stabilized, measurement may be noisy");
+            }
+        }
+
+        // половина бюджета на GCM, половина на HMAC; кандидаты чередуются, берётся лучший раунд
+        double[] best = new double[passed.size()];
+        long sliceNanos = Math.max(1, calibrationMillis * 1_000_000L / 2 / ROUNDS / passed.size());
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int k = 0; k < passed.size(); k++) {
+                int i = (k + round) % passed.size();
+                best[i] = Math.max(best[i], run(algorithm, passed.get(i).instance, sliceNanos));
+            }
+        }
+
+        List<CandidateResult> out = new ArrayList<>();
+        for (CandidateResult r : tested) {
+            int i = passed.indexOf(r);
+            out.add(i < 0 ? r : new CandidateResult(algorithm, r.provider, r.version, "ok", null,
+                    best[i], best[i] * payloadBytes / (1024.0 * 1024.0), r.instance));
+        }
+        return out;
+    }
+
+    private double run(String algorithm, Provider provider, long sliceNanos) throws Exception {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedException();
+        }
+        return GCM.equals(algorithm) ? measureGcm(provider, sliceNanos) : measureHmac(provider, sliceNanos);
+    }
+
+    private Selection select(String algorithm, String setting, List<CandidateResult> candidates) {
+        Provider fallback = CryptoEngine.defaultProvider(GCM.equals(algorithm)
+                ? CryptoEngine.GCM_ALGORITHM : CryptoEngine.HMAC_ALGORITHM);
+        String fallbackName = fallback != null ? fallback.getName() : "default";
+
+        if (!AUTO.equalsIgnoreCase(setting)) {
+            for (CandidateResult r : candidates) {
+                if (r.provider.equalsIgnoreCase(setting) && r.instance != null) {
+                    return new Selection(algorithm, r.provider, r.instance, "configured");
+                }
+            }
+            System.out.println("CryptoProviderSelector: WARNING " + algorithm + " provider " + setting +
+                    " is not available or failed self-test, using " + fallbackName);
+            return new Selection(algorithm, fallbackName, null, "default");
+        }
+        CandidateResult fastest = null;
+        CandidateResult baseline = null;
+        for (CandidateResult r : candidates) {
+            if (r.instance == null || r.opsPerSecond <= 0) {
+                continue; // не прошёл self-test или ещё не замерен
+            }
+            if (fastest == null || r.opsPerSecond > fastest.opsPerSecond) {
+                fastest = r;
+            }
+            if (fallback != null && r.instance.getName().equals(fallback.getName())) {
+                baseline = r;
+            }
+        }
+        if (fastest == null) {
+            return new Selection(algorithm, fallbackName, null, "default");
+        }
+        if (baseline != null && fastest != baseline
+                && fastest.opsPerSecond < baseline.opsPerSecond * (1 + minGain)) {
+            return new Selection(algorithm, baseline.provider, baseline.instance, "calibrated");
+        }
+        return new Selection(algorithm, fastest.provider, fastest.instance, "calibrated");
+    }
+
+    // ----- Self-test -----
+
+    // GCM spec, test case 13/14: AES-256, нулевые ключ и IV
+    private static final byte[] GCM_KAT_KEY = new byte[32];
+    private static final byte[] GCM_KAT_IV = new byte[12];
+    private static final byte[] GCM_KAT_EMPTY_TAG = HexFormat.of().parseHex("530f8afbc74536b9a963b4f1c4cb738b");
+    private static final byte[] GCM_KAT_BLOCK_CT = HexFormat.of().parseHex(
+            "cea7403d4d606b6e074ec5d3baf39d18d0d1c8a799996bf0265b98b5d48ab919");
+
+    // RFC 4231, test case 2
+    private static final byte[] HMAC_KAT_KEY = "Jefe".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HMAC_KAT_DATA = "what do ya want for nothing?".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HMAC_KAT_MAC = HexFormat.of().parseHex(
+            "5bdcc146bf60754e6a042426089575c75a003f089d2739839dec58b964ec3843");
+
+    private static void selfTestGcm(Provider provider) throws Exception {
+        SecretKeySpec zeroKey = new SecretKeySpec(GCM_KAT_KEY, "AES");
+        Cipher cipher = CryptoEngine.newGcmCipher(provider);
+        cipher.init(Cipher.ENCRYPT_MODE, zeroKey, new GCMParameterSpec(128, GCM_KAT_IV));
+        check(cipher.doFinal(), GCM_KAT_EMPTY_TAG, "GCM known answer (empty)");
+        cipher = CryptoEngine.newGcmCipher(provider);
+        cipher.init(Cipher.ENCRYPT_MODE, zeroKey, new GCMParameterSpec(128, GCM_KAT_IV));
+        check(cipher.doFinal(new byte[16]), GCM_KAT_BLOCK_CT, "GCM known answer (block)");
+
+        // как в CryptoEngine: AAD, IV из середины буфера, запись по смещению - и в обе стороны с эталоном
+        SecureRandom random = new SecureRandom();
+        byte[] key = new byte[32];
+        byte[] iv = new byte[12];
+        byte[] aad = new byte[23];
+        byte[] plaintext = new byte[1000];
+        random.nextBytes(key);
+        random.nextBytes(iv);
+        random.nextBytes(aad);
+        random.nextBytes(plaintext);
+        SecretKeySpec spec = new SecretKeySpec(key, "AES");
+
+        byte[] ours = gcmEncrypt(provider, spec, iv, aad, plaintext);
+        byte[] reference = gcmEncrypt(null, spec, iv, aad, plaintext);
+        check(ours, reference, "GCM matches default provider");
+        check(gcmDecrypt(provider, spec, iv, aad, reference), plaintext, "GCM decrypt");
+
+        byte[] tampered = Arrays.copyOf(ours, ours.length);
+        tampered[tampered.length - 1] ^= 1;
+        try {
+            gcmDecrypt(provider, spec, iv, aad, tampered);
+            throw new IllegalStateException("GCM accepted a tampered tag");
+        } catch (AEADBadTagException expected) {
+            // ok
+        }
+    }
+
+    private static byte[] gcmEncrypt(Provider provider, SecretKeySpec key, byte[] iv, byte[] aad, byte[] plaintext)
+            throws Exception {
+        Cipher cipher = CryptoEngine.newGcmCipher(provider);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(128, iv));
+        cipher.updateAAD(aad);
+        byte[] out = new byte[7 + plaintext.length + 16];
+        int written = cipher.doFinal(plaintext, 0, plaintext.length, out, 7);
+        return Arrays.copyOfRange(out, 7, 7 + written);
+    }
+
+    private static byte[] gcmDecrypt(Provider provider, SecretKeySpec key, byte[] iv, byte[] aad, byte[] ciphertext)
+            throws Exception {
+        byte[] in = new byte[iv.length + ciphertext.length];
+        System.arraycopy(iv, 0, in, 0, iv.length);
+        System.arraycopy(ciphertext, 0, in, iv.length, ciphertext.length);
+        Cipher cipher = CryptoEngine.newGcmCipher(provider);
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(128, in, 0, iv.length));
+        cipher.updateAAD(aad, 0, aad.length);
+        return cipher.doFinal(in, iv.length, ciphertext.length);
+    }
+
+    private static void selfTestHmac(Provider provider) throws Exception {
+        Mac mac = CryptoEngine.newHmac(provider);
+        mac.init(new SecretKeySpec(HMAC_KAT_KEY, CryptoEngine.HMAC_ALGORITHM));
+        check(mac.doFinal(HMAC_KAT_DATA), HMAC_KAT_MAC, "HMAC known answer");
+        // повторное использование после doFinal - как в Workspace
+        mac.update(HMAC_KAT_DATA);
+        check(mac.doFinal(), HMAC_KAT_MAC, "HMAC reuse");
+    }
+
+    private static void check(byte[] actual, byte[] expected, String what) {
+        if (!MessageDigest.isEqual(actual, expected)) {
+            throw new IllegalStateException(what + " mismatch");
+        }
+    }
+
+    // ----- Калибровка -----
+
+    private double measureGcm(Provider provider, long sliceNanos) throws Exception {
+        Cipher cipher = CryptoEngine.newGcmCipher(provider);
+        byte[] keyBytes = new byte[32];
+        new SecureRandom().nextBytes(keyBytes);
+        SecretKeySpec key = new SecretKeySpec(keyBytes, "AES");
+        byte[] iv = new byte[12];
+        byte[] aad = new byte[24];
+        byte[] input = new byte[payloadBytes];
+        byte[] output = new byte[payloadBytes + 16];
+        long counter = 0;
+
+        long deadline = System.nanoTime() + sliceNanos;
+        long ops = 0;
+        long started = System.nanoTime();
+        long now;
+        do {
+            // IV не должен повторяться под одним ключом - провайдер это проверяет
+            counter++;
+            for (int b = 0; b < 8; b++) {
+                iv[b] = (byte) (counter >>> (8 * b));
+            }
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(128, iv));
+            cipher.updateAAD(aad);
+            cipher.doFinal(input, 0, input.length, output, 0);
+            ops++;
+            now = System.nanoTime();
+        } while (now < deadline);
+        return ops * 1e9 / (now - started);
+    }
+
+    private double measureHmac(Provider provider, long sliceNanos) throws Exception {
+        Mac mac = CryptoEngine.newHmac(provider);
+        byte[] keyBytes = new byte[32];
+        new SecureRandom().nextBytes(keyBytes);
+        mac.init(new SecretKeySpec(keyBytes, CryptoEngine.HMAC_ALGORITHM));
+        byte[] input = new byte[payloadBytes];
+        byte[] output = new byte[mac.getMacLength()];
+
+        long deadline = System.nanoTime() + sliceNanos;
+        long ops = 0;
+        long started = System.nanoTime();
+        long now;
+        do {
+            mac.update(input, 0, input.length);
+            mac.doFinal(output, 0);
+            ops++;
+            now = System.nanoTime();
+        } while (now < deadline);
+        return ops * 1e9 / (now - started);
+    }
+
+    // ----- Отчёт -----
+
+    Selection getGcmSelection() {
+        return gcm;
+    }
+
+    Selection getHmacSelection() {
+        return hmac;
+    }
+
+    List<CandidateResult> getResults() {
+        return results;
+    }
+
+    public String getCalibrationState() {
+        return state;
+    }
+
+    public long getCalibrationTookMillis() {
+        return calibrationTookMillis;
+    }
+
+    public int getPayloadBytes() {
+        return payloadBytes;
+    }
+
+    /**
+     * Флаг HotSpot (UseAES, UseCLMUL ...); null - не HotSpot или флага нет на этой платформе.
+     * UseAESIntrinsics и подобные - диагностические, без UnlockDiagnosticVMOptions их не видно.
+     */
+    static Boolean vmFlag(String name) {
+        try {
+            HotSpotDiagnosticMXBean bean = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            return bean == null ? null : Boolean.valueOf(bean.getVMOption(name).getValue());
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+}
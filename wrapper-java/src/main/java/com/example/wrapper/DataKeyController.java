@@ -0,0 +1,98 @@
+package com.example.wrapper;
+
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+@RestController
+public class DataKeyController {
+
+    private final VaultKeyService vaultKeyService;
+
+    public DataKeyController(VaultKeyService vaultKeyService) {
+        this.vaultKeyService = vaultKeyService;
+    }
+
+    // ----- DTO для /crypto/data-keys/* -----
+
+    public static class DataKeyStatsResponse {
+        public boolean enabled;
+        public String wrap;
+        public String transit_key;
+        public int cached;
+        public long unwraps;
+        public long creates;
+
+        public DataKeyStatsResponse() {
+        }
+    }
+
+    public static class DataKeyRewrapResponse {
+        public long scanned;
+        public long rewrapped;
+        public long unchanged;
+        public long conflicts;
+        public long failed;
+        public String last_error;
+
+        public DataKeyRewrapResponse() {
+        }
+    }
+
+    // ----- Эндпоинты -----
+
+    /**
+     * Перезаворачивает все ключи данных текущим KEK (после ротации мастер-ключа
+     * или ключа transit, смены crypto.envelope.wrap). Данные пользователей не трогаются.
+     */
+    @PostMapping("/crypto/data-keys/rewrap")
+    public DataKeyRewrapResponse rewrap() {
+        try {
+            return toResponse(vaultKeyService.rewrapDataKeys());
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("Data key rewrap error: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Ротация KEK (ключ transit или мастер-ключ при wrap=local) + rewrap ключей данных.
+     */
+    @PostMapping("/crypto/data-keys/rotate-kek")
+    public DataKeyRewrapResponse rotateKek() {
+        try {
+            return toResponse(vaultKeyService.rotateDataKeyKek());
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("Data key KEK rotation error: " + e.getMessage(), e);
+        }
+    }
+
+    @GetMapping("/crypto/data-keys/stats")
+    public DataKeyStatsResponse stats() {
+        EnvelopeSettings settings = vaultKeyService.getEnvelopeSettings();
+        DataKeyManager dataKeys = vaultKeyService.getDataKeys();
+
+        DataKeyStatsResponse resp = new DataKeyStatsResponse();
+        resp.enabled = settings.enabled;
+        resp.wrap = settings.wrap;
+        resp.transit_key = "transit".equals(settings.wrap) ? settings.transitKey : null;
+        resp.cached = dataKeys.size();
+        resp.unwraps = dataKeys.getUnwraps();
+        resp.creates = dataKeys.getCreates();
+        return resp;
+    }
+
+    private static DataKeyRewrapResponse toResponse(DataKeyManager.RewrapResult result) {
+        DataKeyRewrapResponse resp = new DataKeyRewrapResponse();
+        resp.scanned = result.scanned;
+        resp.rewrapped = result.rewrapped;
+        resp.unchanged = result.unchanged;
+        resp.conflicts = result.conflicts;
+        resp.failed = result.failed;
+        resp.last_error = result.lastError;
+        return resp;
+    }
+}
@@ -0,0 +1,593 @@
+package com.example.wrapper;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.net.URLEncoder;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Ключи данных (DEK) режима конверта: свой случайный AES-256 ключ на пользователя.
+ *
+ * Ключ генерируется в обёртке, в Vault KV (secret/data/crypto/data-keys/<hash>) лежит
+ * только обёрнутым: transit engine Vault (transit/encrypt|decrypt) или, в режиме local,
+ * AES-GCM под текущим мастер-ключом (AAD = dek_id). Развёрнутый ключ живёт в памяти
+ * ограниченное время (LRU + TTL), так что Vault видит одно чтение и одно unwrap на ключ
+ * данных, а не на запрос. Параллельные промахи по одному ключу ждут одну загрузку.
+ *
+ * DEK играет роль мастер-ключа: поля шифруются HKDF(DEK, "profile:user_id:field"),
+ * key_id в заголовке шифротекста - dek_id. Ротация KEK перезаписывает только обёртки
+ * ключей данных (rewrapAll), шифротексты пользователей не трогаются.
+ */
+public final class DataKeyManager {
+
+    public static final String ID_PREFIX = "dek-";
+
+    private static final String DATA_PATH = "secret/data/crypto/data-keys/";
+    private static final String METADATA_PATH = "secret/metadata/crypto/data-keys";
+    private static final String LOCAL_AAD_PREFIX = "data-key:";
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+
+    private final VaultHttpClient vault;
+    private final VaultKeyService masterKeys;
+    private final EnvelopeSettings settings;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final SecureRandom random = new SecureRandom();
+
+    private final long ttlNanos;
+
+    // access-order LinkedHashMap = LRU; доступ только под монитором entries
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    // dek_id -> идущая загрузка (single-flight)
+    private final ConcurrentHashMap<String, CompletableFuture<AesKeyring.Generation>> loading =
+            new ConcurrentHashMap<>();
+
+    // rewrap всех ключей данных - один за раз
+    private final ReentrantLock rewrapLock = new ReentrantLock();
+
+    private final AtomicLong unwraps = new AtomicLong();
+    private final AtomicLong creates = new AtomicLong();
+
+    /**
+     * Итог rewrapAll.
+     */
+    public static final class RewrapResult {
+        public final long scanned;
+        public final long rewrapped;
+        public final long unchanged;
+        public final long conflicts;
+        public final long failed;
+        public final String lastError;
+
+        RewrapResult(long scanned, long rewrapped, long unchanged, long conflicts, long failed, String lastError) {
+            this.scanned = scanned;
+            this.rewrapped = rewrapped;
+            this.unchanged = unchanged;
+            this.conflicts = conflicts;
+            this.failed = failed;
+            this.lastError = lastError;
+        }
+    }
+
+    DataKeyManager(VaultHttpClient vault, VaultKeyService masterKeys, EnvelopeSettings settings) {
+        this.vault = vault;
+        this.masterKeys = masterKeys;
+        this.settings = settings;
+        this.ttlNanos = settings.cacheTtlSeconds * 1_000_000_000L;
+    }
+
+    /**
+     * dek_id пользователя: префикс + первые 16 байт SHA-256 от user_id (user_id в путь Vault не попадает).
+     */
+    public static String idFor(String userId) {
+        if (userId == null) {
+            throw new IllegalArgumentException("user_id is required for envelope encryption");
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest(("user:" + userId).getBytes(StandardCharsets.UTF_8));
+            return ID_PREFIX + bytesToHex(Arrays.copyOf(digest, 16));
+        } catch (Exception e) {
+            throw new RuntimeException("SHA-256 is not available", e);
+        }
+    }
+
+    public static boolean isDataKeyId(String keyId) {
+        return keyId != null && keyId.startsWith(ID_PREFIX);
+    }
+
+    /**
+     * Ключ данных пользователя для шифрования; нет в Vault - создаётся.
+     */
+    public AesKeyring.Generation forUser(String userId) throws Exception {
+        return get(idFor(userId), true);
+    }
+
+    /**
+     * Ключ данных по dek_id из заголовка шифротекста; null - такого ключа нет.
+     */
+    public AesKeyring.Generation byIdOrNull(String dekId) throws Exception {
+        if (!isWellFormed(dekId)) {
+            return null;
+        }
+        return get(dekId, false);
+    }
+
+    public long getUnwraps() {
+        return unwraps.get();
+    }
+
+    public long getCreates() {
+        return creates.get();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Сброс развёрнутых ключей (материал затирается).
+     */
+    public void invalidateAll() {
+        synchronized (entries) {
+            for (Entry entry : entries.values()) {
+                entry.wipe();
+            }
+            entries.clear();
+        }
+    }
+
+    // ================= Кэш и загрузка =================
+
+    private AesKeyring.Generation get(String dekId, boolean create) throws Exception {
+        while (true) {
+            AesKeyring.Generation cached = fromCache(dekId);
+            if (cached != null) {
+                return cached;
+            }
+
+            CompletableFuture<AesKeyring.Generation> mine = new CompletableFuture<>();
+            CompletableFuture<AesKeyring.Generation> running = loading.putIfAbsent(dekId, mine);
+            if (running != null) {
+                AesKeyring.Generation loaded = await(running);
+                if (loaded != null || !create) {
+                    return loaded;
+                }
+                // ждали загрузку "без создания", а нам ключ нужен для шифрования: создание - тоже
+                // через single-flight, иначе параллельные создатели гоняются за cas=0 и лишний раз ходят в Vault
+                continue;
+            }
+            try {
+                AesKeyring.Generation loaded = load(dekId, create);
+                mine.complete(loaded);
+                return loaded;
+            } catch (Throwable t) {
+                // и Error тоже: незавершённый future, уже убранный из loading, подвесил бы ждущих навсегда
+                mine.completeExceptionally(t);
+                throw t;
+            } finally {
+                loading.remove(dekId, mine);
+            }
+        }
+    }
+
+    private AesKeyring.Generation fromCache(String dekId) {
+        synchronized (entries) {
+            Entry entry = entries.get(dekId);
+            if (entry == null) {
+                return null;
+            }
+            if (System.nanoTime() - entry.loadedAtNanos < ttlNanos) {
+                return entry.toGeneration(dekId);
+            }
+            entries.remove(dekId);
+            entry.wipe();
+            return null;
+        }
+    }
+
+    private AesKeyring.Generation load(String dekId, boolean create) throws Exception {
+        StoredKey stored = readStored(dekId);
+        byte[] material;
+        if (stored != null) {
+            material = unwrap(stored);
+        } else if (create) {
+            material = createInVault(dekId);
+        } else {
+            return null;
+        }
+        try {
+            AesKeyring.Generation generation = new AesKeyring.Generation(dekId, new SecretKeySpec(material, "AES"), 0);
+            if (settings.cacheMaxSize > 0) {
+                synchronized (entries) {
+                    Entry previous = entries.put(dekId, new Entry(material, System.nanoTime()));
+                    if (previous != null) {
+                        previous.wipe();
+                    }
+                    evictOverflow();
+                }
+            }
+            return generation;
+        } finally {
+            Arrays.fill(material, (byte) 0);
+        }
+    }
+
+    /**
+     * Новый ключ данных: пишем с cas=0, чтобы две реплики не создали два разных ключа
+     * одному пользователю. Проиграли гонку - берём ключ победителя.
+     */
+    private byte[] createInVault(String dekId) throws Exception {
+        byte[] material = new byte[32]; // 256 bit
+        random.nextBytes(material);
+
+        HttpResponse<String> response = writeStored(wrap(dekId, material), 0, "create_data_key");
+        if (response.statusCode() == 400) {
+            Arrays.fill(material, (byte) 0);
+            StoredKey stored = readStored(dekId);
+            if (stored == null) {
+                throw new RuntimeException("Vault data key create conflict, but " + dekId + " is not readable");
+            }
+            return unwrap(stored);
+        }
+        if (response.statusCode() / 100 != 2) {
+            throw new RuntimeException("Vault data key write error: " + response.statusCode());
+        }
+        creates.incrementAndGet();
+        System.out.println("DataKeyManager: created data key " + dekId + ", wrap=" + settings.wrap);
+        return material;
+    }
+
+    // вызывается под монитором entries
+    private void evictOverflow() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (entries.size() > settings.cacheMaxSize && it.hasNext()) {
+            Entry eldest = it.next().getValue();
+            it.remove();
+            eldest.wipe();
+        }
+    }
+
+    private static AesKeyring.Generation await(CompletableFuture<AesKeyring.Generation> future) throws Exception {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    // ================= Rewrap =================
+
+    /**
+     * Перезаворачивает все ключи данных текущим KEK (и текущим режимом wrap).
+     * Пишем с cas = прочитанная версия: параллельная запись другой реплики не теряется,
+     * такой ключ считается conflict. Повторный запуск безопасен.
+     */
+    public RewrapResult rewrapAll() throws Exception {
+        CryptoEvents.lock(rewrapLock, "data-key-rewrap");
+        try {
+            long scanned = 0;
+            long rewrapped = 0;
+            long unchanged = 0;
+            long conflicts = 0;
+            long failed = 0;
+            String lastError = null;
+
+            for (String name : listStored()) {
+                String dekId = ID_PREFIX + name;
+                if (!isWellFormed(dekId)) {
+                    continue;
+                }
+                scanned++;
+                try {
+                    StoredKey stored = readStored(dekId);
+                    if (stored == null) {
+                        continue;
+                    }
+                    ObjectNode updated = rewrapDocument(dekId, stored);
+                    if (updated == null) {
+                        unchanged++;
+                        continue;
+                    }
+                    HttpResponse<String> response = writeStored(updated, stored.kvVersion, "rewrap_data_key");
+                    if (response.statusCode() == 400) {
+                        conflicts++;
+                    } else if (response.statusCode() / 100 != 2) {
+                        throw new RuntimeException("Vault data key write error: " + response.statusCode());
+                    } else {
+                        rewrapped++;
+                    }
+                } catch (VaultUnavailableException e) {
+                    throw e;
+                } catch (Exception e) {
+                    failed++;
+                    lastError = dekId + ": " + e.getMessage();
+                }
+            }
+
+            System.out.println("DataKeyManager: rewrap done, scanned=" + scanned + ", rewrapped=" + rewrapped +
+                    ", unchanged=" + unchanged + ", conflicts=" + conflicts + ", failed=" + failed);
+            return new RewrapResult(scanned, rewrapped, unchanged, conflicts, failed, lastError);
+        } finally {
+            rewrapLock.unlock();
+        }
+    }
+
+    /**
+     * Новый документ ключа под текущий KEK; null - обёртка уже актуальна.
+     */
+    private ObjectNode rewrapDocument(String dekId, StoredKey stored) throws Exception {
+        if ("transit".equals(settings.wrap) && "transit".equals(stored.wrap)
+                && settings.transitKey.equals(stored.kekId)) {
+            // transit/rewrap: ключ данных не покидает Vault в открытом виде
+            ObjectNode body = objectMapper.createObjectNode();
+            body.put("ciphertext", stored.wrappedKey);
+            JsonNode data = transit("rewrap", body, "transit_rewrap");
+            String ciphertext = data.path("ciphertext").asText(null);
+            if (ciphertext == null || ciphertext.equals(stored.wrappedKey)) {
+                return null;
+            }
+            return document(dekId, "transit", settings.transitKey, ciphertext);
+        }
+        if ("local".equals(settings.wrap) && "local".equals(stored.wrap)
+                && masterKeys.getKeyId().equals(stored.kekId)) {
+            return null;
+        }
+        // сменился мастер-ключ (local) или режим wrap - разворачиваем и заворачиваем заново
+        byte[] material = unwrap(stored);
+        try {
+            return wrap(dekId, material);
+        } finally {
+            Arrays.fill(material, (byte) 0);
+        }
+    }
+
+    // ================= Wrap / unwrap =================
+
+    private ObjectNode wrap(String dekId, byte[] material) throws Exception {
+        if ("transit".equals(settings.wrap)) {
+            ObjectNode body = objectMapper.createObjectNode();
+            body.put("plaintext", Base64.getEncoder().encodeToString(material));
+            JsonNode data = transit("encrypt", body, "transit_encrypt");
+            String ciphertext = data.path("ciphertext").asText(null);
+            if (ciphertext == null) {
+                throw new RuntimeException("Vault transit encrypt returned no ciphertext");
+            }
+            return document(dekId, "transit", settings.transitKey, ciphertext);
+        }
+
+        AesKeyring.Generation kek = masterKeys.getAesKeyring().current();
+        byte[] iv = new byte[IV_LENGTH];
+        random.nextBytes(iv);
+        Cipher cipher = CryptoEngine.newGcmCipher();
+        cipher.init(Cipher.ENCRYPT_MODE, kek.key, new GCMParameterSpec(TAG_BITS, iv));
+        cipher.updateAAD((LOCAL_AAD_PREFIX + dekId).getBytes(StandardCharsets.UTF_8));
+        byte[] ct = cipher.doFinal(material);
+
+        byte[] out = new byte[IV_LENGTH + ct.length];
+        System.arraycopy(iv, 0, out, 0, IV_LENGTH);
+        System.arraycopy(ct, 0, out, IV_LENGTH, ct.length);
+        return document(dekId, "local", kek.keyId, Base64.getEncoder().encodeToString(out));
+    }
+
+    private byte[] unwrap(StoredKey stored) throws Exception {
+        unwraps.incrementAndGet();
+        if ("transit".equals(stored.wrap)) {
+            ObjectNode body = objectMapper.createObjectNode();
+            body.put("ciphertext", stored.wrappedKey);
+            JsonNode data = transitFor(stored.kekId, "decrypt", body, "transit_decrypt");
+            String plaintext = data.path("plaintext").asText(null);
+            if (plaintext == null) {
+                throw new RuntimeException("Vault transit decrypt returned no plaintext");
+            }
+            return Base64.getDecoder().decode(plaintext);
+        }
+
+        SecretKeySpec kek = masterKeys.getAesKeyByIdOrNull(stored.kekId);
+        if (kek == null) {
+            throw new IllegalStateException("master key " + stored.kekId + " for data key " + stored.dekId +
+                    " is not available");
+        }
+        byte[] in = Base64.getDecoder().decode(stored.wrappedKey);
+        Cipher cipher = CryptoEngine.newGcmCipher();
+        cipher.init(Cipher.DECRYPT_MODE, kek, new GCMParameterSpec(TAG_BITS, in, 0, IV_LENGTH));
+        cipher.updateAAD((LOCAL_AAD_PREFIX + stored.dekId).getBytes(StandardCharsets.UTF_8));
+        return cipher.doFinal(in, IV_LENGTH, in.length - IV_LENGTH);
+    }
+
+    /**
+     * Ротация ключа transit (новая версия; старые версии Vault продолжает расшифровывать).
+     */
+    public void rotateTransitKey() throws Exception {
+        HttpRequest request = vault.request("transit/keys/" + encode(settings.transitKey) + "/rotate")
+                .POST(HttpRequest.BodyPublishers.noBody())
+                .build();
+        HttpResponse<String> response = vault.send(request, "transit_rotate");
+        if (response.statusCode() / 100 != 2) {
+            System.out.println("DataKeyManager: Vault transit rotate error, status=" +
+                    response.statusCode() + " body=" + response.body());
+            throw new RuntimeException("Vault transit rotate error: " + response.statusCode());
+        }
+        System.out.println("DataKeyManager: rotated transit key " + settings.transitKey);
+    }
+
+    private JsonNode transit(String op, ObjectNode body, String operation) throws Exception {
+        return transitFor(settings.transitKey, op, body, operation);
+    }
+
+    private JsonNode transitFor(String keyName, String op, ObjectNode body, String operation) throws Exception {
+        HttpRequest request = vault.request("transit/" + op + "/" + encode(keyName))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(objectMapper.writeValueAsString(body)))
+                .build();
+        HttpResponse<String> response = vault.send(request, operation);
+        if (response.statusCode() / 100 != 2) {
+            System.out.println("DataKeyManager: Vault transit " + op + " error, status=" +
+                    response.statusCode() + " body=" + response.body());
+            throw new RuntimeException("Vault transit " + op + " error: " + response.statusCode());
+        }
+        return objectMapper.readTree(response.body()).path("data");
+    }
+
+    // ================= Vault KV =================
+
+    private ObjectNode document(String dekId, String wrap, String kekId, String wrappedKey) {
+        ObjectNode doc = objectMapper.createObjectNode();
+        doc.put("dek_id", dekId);
+        doc.put("wrap", wrap);
+        doc.put("kek_id", kekId);
+        doc.put("wrapped_key", wrappedKey);
+        doc.put("algo", "AES-256-GCM");
+        return doc;
+    }
+
+    /**
+     * null - ключа данных нет (404).
+     */
+    private StoredKey readStored(String dekId) throws Exception {
+        HttpRequest request = vault.request(DATA_PATH + dekId.substring(ID_PREFIX.length()))
+                .GET()
+                .build();
+        HttpResponse<String> response = vault.send(request, "read_data_key");
+        if (response.statusCode() == 404) {
+            return null;
+        }
+        if (response.statusCode() / 100 != 2) {
+            System.out.println("DataKeyManager: Vault data key read error, status=" +
+                    response.statusCode() + " body=" + response.body());
+            throw new RuntimeException("Vault data key read error: " + response.statusCode());
+        }
+        JsonNode root = objectMapper.readTree(response.body()).path("data");
+        JsonNode doc = root.path("data");
+        String wrappedKey = doc.path("wrapped_key").asText(null);
+        if (wrappedKey == null || wrappedKey.isEmpty()) {
+            // удалённая (soft delete) версия - считаем, что ключа нет
+            return null;
+        }
+        return new StoredKey(dekId, doc.path("wrap").asText("local"), doc.path("kek_id").asText(null),
+                wrappedKey, root.path("metadata").path("version").asInt(0));
+    }
+
+    private HttpResponse<String> writeStored(ObjectNode doc, int cas, String operation) throws Exception {
+        ObjectNode outer = objectMapper.createObjectNode();
+        outer.putObject("options").put("cas", cas);
+        outer.set("data", doc);
+        HttpRequest request = vault.request(DATA_PATH + doc.path("dek_id").asText().substring(ID_PREFIX.length()))
+                .header("Content-Type", "application/json")
+                .PUT(HttpRequest.BodyPublishers.ofString(objectMapper.writeValueAsString(outer)))
+                .build();
+        return vault.send(request, operation);
+    }
+
+    private List<String> listStored() throws Exception {
+        HttpRequest request = vault.request(METADATA_PATH + "?list=true")
+                .GET()
+                .build();
+        HttpResponse<String> response = vault.send(request, "list_data_keys");
+        if (response.statusCode() == 404) {
+            return new ArrayList<>();
+        }
+        if (response.statusCode() / 100 != 2) {
+            throw new RuntimeException("Vault data key list error: " + response.statusCode());
+        }
+        List<String> names = new ArrayList<>();
+        for (JsonNode key : objectMapper.readTree(response.body()).path("data").path("keys")) {
+            names.add(key.asText());
+        }
+        return names;
+    }
+
+    private static boolean isWellFormed(String dekId) {
+        if (!isDataKeyId(dekId) || dekId.length() != ID_PREFIX.length() + 32) {
+            return false;
+        }
+        for (int i = ID_PREFIX.length(); i < dekId.length(); i++) {
+            if (Character.digit(dekId.charAt(i), 16) == -1 || Character.isUpperCase(dekId.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String encode(String pathSegment) {
+        return URLEncoder.encode(pathSegment, StandardCharsets.UTF_8);
+    }
+
+    private static String bytesToHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            int v = b & 0xFF;
+            if (v < 16) sb.append('0');
+            sb.append(Integer.toHexString(v));
+        }
+        return sb.toString();
+    }
+
+    private static final class StoredKey {
+        final String dekId;
+        final String wrap;
+        final String kekId;
+        final String wrappedKey;
+        final int kvVersion;
+
+        StoredKey(String dekId, String wrap, String kekId, String wrappedKey, int kvVersion) {
+            this.dekId = dekId;
+            this.wrap = wrap;
+            this.kekId = kekId;
+            this.wrappedKey = wrappedKey;
+            this.kvVersion = kvVersion;
+        }
+    }
+
+    /**
+     * Развёрнутый ключ храним массивом, чтобы затереть при вытеснении
+     * (как в DerivedKeyCache); наружу - копия в SecretKeySpec.
+     */
+    private static final class Entry {
+        private final byte[] material;
+        private final long loadedAtNanos;
+
+        Entry(byte[] material, long loadedAtNanos) {
+            this.material = material.clone();
+            this.loadedAtNanos = loadedAtNanos;
+        }
+
+        AesKeyring.Generation toGeneration(String dekId) {
+            return new AesKeyring.Generation(dekId, new SecretKeySpec(material, "AES"), 0);
+        }
+
+        void wipe() {
+            Arrays.fill(material, (byte) 0);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.example.wrapper;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Дедупликация одинаковых расшифровок.
+ *
+ * Одновременные запросы с одним и тем же (user_id, field, ciphertext, key_id) ждут
+ * одно вычисление (single-flight): популярный профиль после сброса кэша или деплоя
+ * не расшифровывается N раз параллельно. Ошибка ведущего запроса достаётся всем ждущим.
+ *
+ * Опционально (по умолчанию выключен) - короткоживущий кэш открытого текста:
+ * ограничен по размеру (LRU) и времени жизни, текст хранится UTF-8 массивом
+ * и затирается нулями при вытеснении/истечении, при ротации мастер-ключа
+ * (FieldCryptoService подписывает invalidateAll) и при остановке.
+ */
+@Component
+public class DecryptCoalescer {
+
+    /**
+     * Сама расшифровка (выполняется только ведущим запросом).
+     */
+    public interface Decryption {
+        String run();
+    }
+
+    // большие тексты не кэшируем: кэш - для коротких полей профиля
+    private static final int MAX_CACHED_PLAINTEXT_BYTES = 16 * 1024;
+
+    private final boolean coalescingEnabled;
+    private final boolean cacheEnabled;
+    private final int cacheMaxSize;
+    private final long cacheTtlNanos;
+
+    private final ConcurrentHashMap<Key, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+
+    // access-order LinkedHashMap = LRU; доступ только под монитором this
+    private final LinkedHashMap<Key, Entry> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+
+    public DecryptCoalescer(CryptoMetrics cryptoMetrics,
+                            @Value("${crypto.decrypt.coalescing.enabled:true}") boolean coalescingEnabled,
+                            @Value("${crypto.decrypt.plaintext-cache.enabled:false}") boolean cacheEnabled,
+                            @Value("${crypto.decrypt.plaintext-cache.max-size:1000}") int cacheMaxSize,
+                            @Value("${crypto.decrypt.plaintext-cache.ttl-ms:5000}") long cacheTtlMs) {
+        this.coalescingEnabled = coalescingEnabled;
+        this.cacheEnabled = cacheEnabled && cacheMaxSize > 0 && cacheTtlMs > 0;
+        this.cacheMaxSize = cacheMaxSize;
+        this.cacheTtlNanos = cacheTtlMs * 1_000_000L;
+        cryptoMetrics.bindDecryptCoalescer(this);
+    }
+
+    /**
+     * Без дедупликации и кэша - для бенчмарков и ручной сборки сервисов.
+     */
+    public static DecryptCoalescer disabled() {
+        return new DecryptCoalescer(CryptoMetrics.inMemory(), false, false, 0, 0);
+    }
+
+    public String decrypt(String userId, String field, String ciphertextB64, String keyIdHint,
+                          Decryption decryption) {
+        if (!coalescingEnabled && !cacheEnabled) {
+            return decryption.run();
+        }
+        return decrypt(new Key(userId, field, ciphertextB64, keyIdHint), decryption);
+    }
+
+    /**
+     * Шифротекст сырыми байтами (application/cbor); массив не должен меняться до конца вызова.
+     */
+    public String decrypt(String userId, String field, byte[] ciphertext, String keyIdHint,
+                          Decryption decryption) {
+        if ((!coalescingEnabled && !cacheEnabled) || ciphertext == null) {
+            return decryption.run();
+        }
+        return decrypt(new Key(userId, field, ByteBuffer.wrap(ciphertext), keyIdHint), decryption);
+    }
+
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    public synchronized int getCacheSize() {
+        return cache.size();
+    }
+
+    /**
+     * Сброс кэша открытого текста (материал затирается).
+     */
+    public synchronized void invalidateAll() {
+        for (Entry entry : cache.values()) {
+            entry.wipe();
+        }
+        cache.clear();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        invalidateAll();
+    }
+
+    private String decrypt(Key key, Decryption decryption) {
+        if (cacheEnabled) {
+            String cached = fromCache(key);
+            if (cached != null) {
+                cacheHits.incrementAndGet();
+                return cached;
+            }
+        }
+        if (!coalescingEnabled) {
+            String plaintext = decryption.run();
+            toCache(key, plaintext);
+            return plaintext;
+        }
+
+        CompletableFuture<String> mine = new CompletableFuture<>();
+        CompletableFuture<String> running = inFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            coalesced.incrementAndGet();
+            return await(running);
+        }
+        try {
+            String plaintext = decryption.run();
+            mine.complete(plaintext);
+            toCache(key, plaintext);
+            return plaintext;
+        } catch (Throwable t) {
+            // и Error тоже: незавершённый future, уже убранный из inFlight, подвесил бы ждущих навсегда
+            mine.completeExceptionally(t);
+            throw t;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    private static String await(CompletableFuture<String> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private synchronized String fromCache(Key key) {
+        Entry entry = cache.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (System.nanoTime() - entry.createdAtNanos < cacheTtlNanos) {
+            return new String(entry.utf8, StandardCharsets.UTF_8);
+        }
+        cache.remove(key);
+        entry.wipe();
+        return null;
+    }
+
+    private void toCache(Key key, String plaintext) {
+        if (!cacheEnabled || plaintext == null) {
+            return;
+        }
+        byte[] utf8 = plaintext.getBytes(StandardCharsets.UTF_8);
+        if (utf8.length > MAX_CACHED_PLAINTEXT_BYTES) {
+            Arrays.fill(utf8, (byte) 0);
+            return;
+        }
+        // ключ переживёт запрос - свой экземпляр байтов шифротекста
+        Key detached = key.detached();
+        synchronized (this) {
+            Entry previous = cache.put(detached, new Entry(utf8, System.nanoTime()));
+            if (previous != null) {
+                previous.wipe();
+            }
+            Iterator<Map.Entry<Key, Entry>> it = cache.entrySet().iterator();
+            while (cache.size() > cacheMaxSize && it.hasNext()) {
+                Entry eldest = it.next().getValue();
+                it.remove();
+                eldest.wipe();
+            }
+        }
+    }
+
+    /**
+     * ciphertext - String (Base64) или ByteBuffer (сырые байты); equals/hashCode по содержимому.
+     */
+    private static final class Key {
+        private final String userId;
+        private final String field;
+        private final Object ciphertext;
+        private final String keyIdHint;
+        private final int hash;
+
+        Key(String userId, String field, Object ciphertext, String keyIdHint) {
+            this.userId = userId;
+            this.field = field;
+            this.ciphertext = ciphertext;
+            this.keyIdHint = keyIdHint;
+            this.hash = Objects.hash(userId, field, ciphertext, keyIdHint);
+        }
+
+        Key detached() {
+            if (!(ciphertext instanceof ByteBuffer)) {
+                return this;
+            }
+            ByteBuffer src = (ByteBuffer) ciphertext;
+            byte[] copy = new byte[src.remaining()];
+            src.duplicate().get(copy);
+            return new Key(userId, field, ByteBuffer.wrap(copy), keyIdHint);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return hash == other.hash
+                    && Objects.equals(userId, other.userId)
+                    && Objects.equals(field, other.field)
+                    && Objects.equals(keyIdHint, other.keyIdHint)
+                    && Objects.equals(ciphertext, other.ciphertext);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Entry {
+        private final byte[] utf8;
+        private final long createdAtNanos;
+
+        Entry(byte[] utf8, long createdAtNanos) {
+            this.utf8 = utf8;
+            this.createdAtNanos = createdAtNanos;
+        }
+
+        void wipe() {
+            Arrays.fill(utf8, (byte) 0);
+        }
+    }
+}
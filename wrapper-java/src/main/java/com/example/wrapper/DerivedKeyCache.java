@@ -0,0 +1,237 @@
+package com.example.wrapper;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Кэш per-user ключей, полученных через HKDF.
+ * Ключ кэша - (key_id мастер-ключа, user_id, field), значение - готовый SecretKeySpec.
+ *
+ * Ограничен по размеру (приблизительный LRU) и по времени жизни записи. При ротации
+ * мастер-ключа кэш полностью сбрасывается.
+ *
+ * Затереть SecretKeySpec нельзя (destroy() бросает DestroyFailedException, массив внутри
+ * закрыт), а провайдер всё равно копирует ключ через getEncoded() на каждом init. Поэтому
+ * кэш держит одну копию на ключ и отдаёт её же при каждом попадании, а не копию на каждую
+ * операцию; вытесненный ключ просто отпускается сборщику. Затираются массивы, которыми
+ * владеем сами: копия мастер-ключа и выход HKDF при промахе.
+ *
+ * Попадание - без блокировок и без копирования ключа (ConcurrentHashMap + volatile-поле записи): каждое
+ * шифрование и расшифровка идёт через кэш, общий монитор на нём был бы точкой конкуренции
+ * всех потоков запросов. При переполнении один поток (tryLock) вытесняет сразу пачку
+ * давно не использованных записей, так что сортировка по времени доступа редкая.
+ */
+@Component
+public class DerivedKeyCache {
+
+    // при переполнении освобождаем ещё столько процентов maxSize сверх лишнего
+    private static final int EVICTION_BATCH_PERCENT = 10;
+    // время доступа обновляем не чаще - горячая запись не гоняет строку кэша CPU между потоками
+    private static final long ACCESS_GRANULARITY_NANOS = 1_000_000L;
+
+    private final int maxSize;
+    private final long ttlNanos;
+
+    private final ConcurrentHashMap<CacheKey, Entry> entries = new ConcurrentHashMap<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public DerivedKeyCache(VaultKeyService vaultKeyService,
+                           CryptoMetrics cryptoMetrics,
+                           @Value("${crypto.key-cache.max-size:10000}") int maxSize,
+                           @Value("${crypto.key-cache.ttl-seconds:300}") long ttlSeconds) {
+        this.maxSize = maxSize;
+        this.ttlNanos = ttlSeconds * 1_000_000_000L;
+        vaultKeyService.addRotationListener(this::invalidateAll);
+        cryptoMetrics.bindKeyCache(this);
+    }
+
+    /**
+     * Готовый per-user ключ для AES-GCM: из кэша или через HKDF(master, "profile:user_id:field").
+     */
+    public SecretKeySpec getOrDerive(String masterKeyId, SecretKeySpec masterKey,
+                                     String userId, String field) throws Exception {
+        if (userId == null || field == null) {
+            throw new IllegalArgumentException("user_id and field are required for per-user key derivation");
+        }
+        if (maxSize <= 0) {
+            misses.incrementAndGet();
+            return derive(masterKey, userId, field);
+        }
+
+        CacheKey cacheKey = new CacheKey(masterKeyId, userId, field);
+        long now = System.nanoTime();
+
+        Entry entry = entries.get(cacheKey);
+        if (entry != null) {
+            if (now - entry.createdAtNanos < ttlNanos) {
+                entry.touch(now);
+                hits.incrementAndGet();
+                return entry.keySpec;
+            }
+            if (entries.remove(cacheKey, entry)) {
+                evictions.incrementAndGet();
+            }
+        }
+
+        misses.incrementAndGet();
+        SecretKeySpec keySpec = derive(masterKey, userId, field);
+        // параллельный промах по тому же ключу просто заменяет запись тем же ключом
+        entries.put(cacheKey, new Entry(keySpec, now));
+        if (entries.size() > maxSize) {
+            evictOverflow();
+        }
+        return keySpec;
+    }
+
+    /**
+     * HKDF(master, "profile:user_id:field"); промежуточные массивы затираются и при ошибке.
+     */
+    private static SecretKeySpec derive(SecretKeySpec masterKey, String userId, String field) throws Exception {
+        byte[] masterBytes = masterKey.getEncoded();
+        byte[] material = null;
+        try {
+            material = Hkdf.deriveUserKeyBytes(masterBytes, userId, field);
+            return new SecretKeySpec(material, "AES");
+        } finally {
+            Arrays.fill(masterBytes, (byte) 0);
+            if (material != null) {
+                Arrays.fill(material, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * Полный сброс кэша (вызывается при ротации мастер-ключа).
+     */
+    public void invalidateAll() {
+        for (Map.Entry<CacheKey, Entry> e : entries.entrySet()) {
+            if (entries.remove(e.getKey(), e.getValue())) {
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Вытеснение давно не использованных записей: лишние + EVICTION_BATCH_PERCENT от maxSize.
+     * Если вытесняет другой поток - не ждём, размер ненадолго может превысить maxSize.
+     */
+    private void evictOverflow() {
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            int overflow = entries.size() - maxSize;
+            if (overflow <= 0) {
+                return;
+            }
+            // время доступа фиксируем до сортировки: оно меняется на ходу
+            List<Candidate> candidates = new ArrayList<>(entries.size());
+            for (Map.Entry<CacheKey, Entry> e : entries.entrySet()) {
+                candidates.add(new Candidate(e.getKey(), e.getValue()));
+            }
+            candidates.sort(Comparator.comparingLong(c -> c.lastAccessNanos));
+
+            int target = overflow + maxSize / 100 * EVICTION_BATCH_PERCENT;
+            int removed = 0;
+            for (int i = 0; i < candidates.size() && removed < target; i++) {
+                Candidate c = candidates.get(i);
+                if (entries.remove(c.key, c.entry)) {
+                    evictions.incrementAndGet();
+                    removed++;
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private static final class Candidate {
+        final CacheKey key;
+        final Entry entry;
+        final long lastAccessNanos;
+
+        Candidate(CacheKey key, Entry entry) {
+            this.key = key;
+            this.entry = entry;
+            this.lastAccessNanos = entry.lastAccessNanos;
+        }
+    }
+
+    private static final class CacheKey {
+        private final String masterKeyId;
+        private final String userId;
+        private final String field;
+        private final int hash;
+
+        CacheKey(String masterKeyId, String userId, String field) {
+            this.masterKeyId = masterKeyId;
+            this.userId = userId;
+            this.field = field;
+            this.hash = Objects.hash(masterKeyId, userId, field);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof CacheKey)) return false;
+            CacheKey other = (CacheKey) o;
+            return Objects.equals(masterKeyId, other.masterKeyId)
+                    && userId.equals(other.userId)
+                    && field.equals(other.field);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Entry {
+        final SecretKeySpec keySpec;
+        final long createdAtNanos;
+        volatile long lastAccessNanos;
+
+        Entry(SecretKeySpec keySpec, long createdAtNanos) {
+            this.keySpec = keySpec;
+            this.createdAtNanos = createdAtNanos;
+            this.lastAccessNanos = createdAtNanos;
+        }
+
+        void touch(long now) {
+            if (now - lastAccessNanos > ACCESS_GRANULARITY_NANOS) {
+                lastAccessNanos = now;
+            }
+        }
+    }
+}
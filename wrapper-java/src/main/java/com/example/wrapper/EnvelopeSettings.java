@@ -0,0 +1,47 @@
+package com.example.wrapper;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Настройки режима конверта (ключи данных, см. DataKeyManager).
+ *
+ *   crypto.envelope.enabled          - новые шифротексты под ключом данных пользователя
+ *   crypto.envelope.wrap             - transit (Vault transit engine) | local (текущий мастер-ключ)
+ *   crypto.envelope.transit-key      - имя ключа в transit
+ *   crypto.envelope.cache.max-size   - сколько развёрнутых ключей данных держать в памяти
+ *   crypto.envelope.cache.ttl-seconds
+ *
+ * Выключенный режим не мешает расшифровке уже выданных шифротекстов с ключом данных.
+ */
+@Component
+public class EnvelopeSettings {
+
+    public final boolean enabled;
+    public final String wrap;
+    public final String transitKey;
+    public final int cacheMaxSize;
+    public final long cacheTtlSeconds;
+
+    public EnvelopeSettings(@Value("${crypto.envelope.enabled:false}") boolean enabled,
+                            @Value("${crypto.envelope.wrap:local}") String wrap,
+                            @Value("${crypto.envelope.transit-key:wrapper-kek}") String transitKey,
+                            @Value("${crypto.envelope.cache.max-size:10000}") int cacheMaxSize,
+                            @Value("${crypto.envelope.cache.ttl-seconds:600}") long cacheTtlSeconds) {
+        if (!"transit".equals(wrap) && !"local".equals(wrap)) {
+            throw new IllegalArgumentException("crypto.envelope.wrap must be transit or local, got " + wrap);
+        }
+        this.enabled = enabled;
+        this.wrap = wrap;
+        this.transitKey = transitKey;
+        this.cacheMaxSize = cacheMaxSize;
+        this.cacheTtlSeconds = cacheTtlSeconds;
+    }
+
+    /**
+     * Режим конверта выключен - для бенчмарков и ручной сборки сервисов.
+     */
+    public static EnvelopeSettings disabled() {
+        return new EnvelopeSettings(false, "local", "wrapper-kek", 10000, 600);
+    }
+}
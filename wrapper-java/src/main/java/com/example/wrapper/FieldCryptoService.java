@@ -0,0 +1,335 @@
+package com.example.wrapper;
+
+import org.springframework.stereotype.Service;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Шифрование/расшифровка полей профиля: HKDF(master, "profile:user_id:field") -> AES-256-GCM.
+ * Общая часть для CryptoController и фоновых задач (rewrap).
+ *
+ * Каждое шифрование/расшифровка - событие JFR CryptoOperation (CryptoEvents). Расшифровки,
+ * отданные DecryptCoalescer без вычисления (попутчики и кэш), событий не дают - их считают метрики.
+ */
+@Service
+public class FieldCryptoService {
+
+    private final VaultKeyService vaultKeyService;
+    private final DerivedKeyCache derivedKeyCache;
+    private final CryptoMetrics cryptoMetrics;
+    private final DecryptCoalescer decryptCoalescer;
+
+    public FieldCryptoService(VaultKeyService vaultKeyService, DerivedKeyCache derivedKeyCache,
+                              CryptoMetrics cryptoMetrics, DecryptCoalescer decryptCoalescer) {
+        this.vaultKeyService = vaultKeyService;
+        this.derivedKeyCache = derivedKeyCache;
+        this.cryptoMetrics = cryptoMetrics;
+        this.decryptCoalescer = decryptCoalescer;
+        // после ротации кэш открытого текста сбрасывается вместе с кэшем ключей
+        vaultKeyService.addRotationListener(decryptCoalescer::invalidateAll);
+    }
+
+    /**
+     * Шифрование поля указанным поколением мастер-ключа.
+     * Результат - Base64(заголовок с key_id || IV || ciphertext+tag).
+     */
+    public String encrypt(AesKeyring.Generation master, String userId, String field, String plaintext) throws Exception {
+        CryptoEvents.CryptoOperation event = CryptoEvents.beginCryptoOperation();
+        int length = 0;
+        boolean success = false;
+        SecretKeySpec userKey = derivedKeyCache.getOrDerive(master.keyId, master.key, userId, field);
+        CryptoEngine.Workspace ws = CryptoEngine.acquire();
+        try {
+            length = ws.encodeUtf8(plaintext);
+            cryptoMetrics.recordPayload("encrypt", length);
+            String ciphertext = ws.encryptToBase64(userKey, master.keyId, length);
+            success = true;
+            return ciphertext;
+        } finally {
+            CryptoEngine.release(ws);
+            commit(event, "encrypt", field, length, master.keyId, false, success);
+        }
+    }
+
+    /**
+     * То же, но конверт сырыми байтами - для application/cbor, где Base64 не нужен.
+     */
+    public byte[] encryptToBytes(AesKeyring.Generation master, String userId, String field,
+                                 String plaintext) throws Exception {
+        CryptoEvents.CryptoOperation event = CryptoEvents.beginCryptoOperation();
+        int length = 0;
+        boolean success = false;
+        SecretKeySpec userKey = derivedKeyCache.getOrDerive(master.keyId, master.key, userId, field);
+        CryptoEngine.Workspace ws = CryptoEngine.acquire();
+        try {
+            length = ws.encodeUtf8(plaintext);
+            cryptoMetrics.recordPayload("encrypt", length);
+            byte[] ciphertext = ws.encryptToBytes(userKey, master.keyId, length);
+            success = true;
+            return ciphertext;
+        } finally {
+            CryptoEngine.release(ws);
+            commit(event, "encrypt", field, length, master.keyId, false, success);
+        }
+    }
+
+    /**
+     * Потоковое шифрование (StreamingAead) указанным поколением мастер-ключа.
+     * Возвращает число байт открытого текста.
+     */
+    public long encryptStream(AesKeyring.Generation master, String userId, String field, int segmentSize,
+                              InputStream in, OutputStream out) throws Exception {
+        CryptoEvents.CryptoOperation event = CryptoEvents.beginCryptoOperation();
+        long bytes = 0;
+        boolean success = false;
+        try {
+            SecretKeySpec userKey = derivedKeyCache.getOrDerive(master.keyId, master.key, userId, field);
+            bytes = StreamingAead.encrypt(userKey, master.keyId, segmentSize, in, out);
+            success = true;
+            return bytes;
+        } finally {
+            commit(event, "encrypt-stream", field, bytes, master.keyId, false, success);
+        }
+    }
+
+    /**
+     * Потоковая расшифровка: мастер-ключ - по key_id из заголовка потока.
+     */
+    public long decryptStream(String userId, String field, InputStream in, OutputStream out) throws Exception {
+        if (userId == null || field == null) {
+            throw new IllegalArgumentException("user_id and field are required for per-user key derivation");
+        }
+        CryptoEvents.CryptoOperation event = CryptoEvents.beginCryptoOperation();
+        String[] streamKeyId = new String[1];
+        long bytes = 0;
+        boolean success = false;
+        try {
+            bytes = StreamingAead.decrypt(keyId -> {
+                SecretKeySpec masterKey = vaultKeyService.getAesKeyByIdOrNull(keyId);
+                if (masterKey == null) {
+                    throw new IllegalArgumentException("unknown key_id " + keyId);
+                }
+                streamKeyId[0] = keyId;
+                return derivedKeyCache.getOrDerive(keyId, masterKey, userId, field);
+            }, in, out);
+            success = true;
+            return bytes;
+        } finally {
+            commit(event, "decrypt-stream", field, bytes, streamKeyId[0], false, success);
+        }
+    }
+
+    /**
+     * key_id из заголовка шифротекста; null - старый формат IV||ct (или мусор).
+     */
+    public String keyIdOf(String ciphertextB64) {
+        CryptoEngine.Workspace ws = CryptoEngine.acquire();
+        try {
+            int length = ws.decodeBase64(ciphertextB64); // может заменить ws.input на больший
+            CiphertextEnvelope envelope = CiphertextEnvelope.tryParse(ws.input, length);
+            return envelope == null ? null : envelope.keyId;
+        } catch (IllegalArgumentException e) {
+            return null;
+        } finally {
+            CryptoEngine.release(ws);
+        }
+    }
+
+    /**
+     * Расшифровка одного поля.
+     * 1) Новый формат (CiphertextEnvelope): мастер-ключ берётся по key_id из заголовка.
+     * 2) Старый формат IV||ct: сначала key_id из запроса (если это поколение уже загружено -
+     *    за подсказкой в Vault не ходим), затем current и prev, затем остальные поколения
+     *    от нового к старому (история из Vault дочитывается один раз).
+     * Base64 декодируется прямо в рабочий буфер CryptoEngine, без промежуточных массивов.
+     * Одновременные одинаковые расшифровки выполняются один раз (DecryptCoalescer).
+     */
+    public String decrypt(String userId, String field, String ciphertextB64, String keyIdHint) {
+        if (userId == null || field == null) {
+            throw new IllegalArgumentException("user_id and field are required for per-user key derivation");
+        }
+
+        return decryptCoalescer.decrypt(userId, field, ciphertextB64, keyIdHint,
+                () -> decryptBase64(userId, field, ciphertextB64, keyIdHint));
+    }
+
+    private String decryptBase64(String userId, String field, String ciphertextB64, String keyIdHint) {
+        CryptoEngine.Workspace ws = CryptoEngine.acquire();
+        try {
+            int length;
+            try {
+                length = ws.decodeBase64(ciphertextB64);
+            } catch (IllegalArgumentException e) {
+                throw new RuntimeException("AES-GCM decrypt error: ciphertext is not valid Base64", e);
+            }
+            return decrypt(ws, userId, field, length, keyIdHint);
+        } finally {
+            CryptoEngine.release(ws);
+        }
+    }
+
+    /**
+     * Расшифровка конверта, пришедшего сырыми байтами (application/cbor).
+     * Выбор мастер-ключа - как в decrypt(String).
+     */
+    public String decrypt(String userId, String field, byte[] ciphertext, String keyIdHint) {
+        if (userId == null || field == null) {
+            throw new IllegalArgumentException("user_id and field are required for per-user key derivation");
+        }
+
+        return decryptCoalescer.decrypt(userId, field, ciphertext, keyIdHint, () -> {
+            CryptoEngine.Workspace ws = CryptoEngine.acquire();
+            try {
+                return decrypt(ws, userId, field, ws.load(ciphertext), keyIdHint);
+            } finally {
+                CryptoEngine.release(ws);
+            }
+        });
+    }
+
+    // шифротекст уже лежит в ws.input (length байт)
+    private String decrypt(CryptoEngine.Workspace ws, String userId, String field,
+                           int length, String keyIdHint) {
+        cryptoMetrics.recordPayload("decrypt", length);
+        CryptoEvents.CryptoOperation event = CryptoEvents.beginCryptoOperation();
+
+        CiphertextEnvelope envelope = CiphertextEnvelope.tryParse(ws.input, length);
+        Exception envelopeError = null;
+        if (envelope != null) {
+            cryptoMetrics.decryptFormat("envelope");
+            SecretKeySpec masterKey = vaultKeyService.getAesKeyByIdOrNull(envelope.keyId);
+            if (masterKey != null) {
+                try {
+                    SecretKeySpec userKey = derivedKeyCache.getOrDerive(envelope.keyId, masterKey, userId, field);
+                    String plaintext = ws.decryptToString(userKey, length, envelope.ivOffset, envelope.headerLength);
+                    commit(event, "decrypt", field, length, envelope.keyId, false, true);
+                    return plaintext;
+                } catch (Exception e) {
+                    // первый байт старого формата мог случайно совпасть с версией - пробуем старый формат
+                    envelopeError = e;
+                }
+            } else {
+                envelopeError = new IllegalArgumentException("unknown key_id " + envelope.keyId);
+            }
+        }
+
+        // старый формат: IV || ciphertext+tag
+        if (envelope != null) {
+            cryptoMetrics.decryptFallback("envelope_to_legacy");
+        } else {
+            cryptoMetrics.decryptFormat("legacy");
+        }
+        Set<String> candidates = new LinkedHashSet<>();
+        if (keyIdHint != null) {
+            candidates.add(keyIdHint);
+        }
+        AesKeyring keyring = vaultKeyService.getAesKeyring();
+        candidates.add(keyring.current().keyId);
+        String prevKeyId = keyring.prevKeyId();
+        if (prevKeyId != null) {
+            candidates.add(prevKeyId);
+        }
+
+        List<String> tried = new ArrayList<>();
+        Exception lastError = null;
+        for (String keyId : candidates) {
+            SecretKeySpec masterKey = keyId.equals(keyIdHint)
+                    ? loadedKeyOrNull(keyring, keyId)
+                    : vaultKeyService.getAesKeyByIdOrNull(keyId);
+            if (masterKey == null) {
+                continue;
+            }
+            if (!tried.isEmpty()) {
+                cryptoMetrics.decryptFallback("legacy_key_retry");
+            }
+            tried.add(keyId);
+            try {
+                SecretKeySpec userKey = derivedKeyCache.getOrDerive(keyId, masterKey, userId, field);
+                String plaintext = ws.decryptToString(userKey, length, 0, 0);
+                commit(event, "decrypt", field, length, keyId, envelope != null || tried.size() > 1, true);
+                return plaintext;
+            } catch (Exception e) {
+                lastError = e;
+            }
+        }
+
+        // Шифротексты старого формата, записанные два и более поколения назад: key_id не знает
+        // ни шифротекст, ни backend - перебираем всю историю keyring от нового к старому.
+        // Без кэша derived-ключей: мусорный шифротекст не должен вытеснять из него рабочие ключи
+        int historyTried = 0;
+        for (AesKeyring.Generation generation : vaultKeyService.getAllAesGenerationsNewestFirst()) {
+            if (candidates.contains(generation.keyId)) {
+                continue;
+            }
+            if (historyTried == 0) {
+                cryptoMetrics.decryptFallback("legacy_history_scan");
+            }
+            historyTried++;
+            try {
+                SecretKeySpec userKey = deriveUncached(generation.key, userId, field);
+                String plaintext = ws.decryptToString(userKey, length, 0, 0);
+                commit(event, "decrypt", field, length, generation.keyId, true, true);
+                return plaintext;
+            } catch (Exception e) {
+                lastError = e;
+            }
+        }
+
+        commit(event, "decrypt", field, length, null, envelope != null || tried.size() + historyTried > 1, false);
+        if (envelopeError != null) {
+            throw new RuntimeException("AES-GCM decrypt error (key_id " + envelope.keyId + "): " +
+                    envelopeError.getMessage(), envelopeError);
+        }
+        throw new RuntimeException("AES-GCM decrypt error (legacy format, keys tried: " + tried +
+                " and " + historyTried + " older generations): " +
+                (lastError == null ? "no keys" : lastError.getMessage()), lastError);
+    }
+
+    private static SecretKeySpec deriveUncached(SecretKeySpec masterKey, String userId, String field) throws Exception {
+        byte[] master = masterKey.getEncoded();
+        byte[] material = null;
+        try {
+            material = Hkdf.deriveUserKeyBytes(master, userId, field);
+            return new SecretKeySpec(material, "AES");
+        } finally {
+            Arrays.fill(master, (byte) 0);
+            if (material != null) {
+                Arrays.fill(material, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * key_id из запроса (не из заголовка шифротекста) - только среди уже загруженных поколений:
+     * неизвестная или мусорная подсказка не должна вести в Vault на основном пути чтения.
+     */
+    private static SecretKeySpec loadedKeyOrNull(AesKeyring keyring, String keyId) {
+        AesKeyring.Generation generation = keyring.get(keyId);
+        return generation == null ? null : generation.key;
+    }
+
+    private static void commit(CryptoEvents.CryptoOperation event, String operation, String field,
+                               long payloadBytes, String keyId, boolean fallback, boolean success) {
+        if (event == null) {
+            return;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = operation;
+            event.field = field;
+            event.payloadBytes = payloadBytes;
+            event.keyId = keyId;
+            event.fallback = fallback;
+            event.failed = !success;
+            event.commit();
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+package com.example.wrapper;
+
+import javax.crypto.Mac;
+
+/**
+ * HKDF (HMAC-SHA256) для derive per-user ключей из мастер-ключа.
+ */
+final class Hkdf {
+
+    static final int USER_KEY_LENGTH = 32; // 32 байта = 256 бит
+
+    private Hkdf() {
+    }
+
+    /**
+     * per-user ключ = HKDF(master, "profile:" + user_id + ":" + field).
+     */
+    static byte[] deriveUserKeyBytes(byte[] masterBytes, String userId, String field) throws Exception {
+        if (userId == null || field == null) {
+            throw new IllegalArgumentException("user_id and field are required for per-user key derivation");
+        }
+        CryptoEngine.Workspace ws = CryptoEngine.acquire();
+        try {
+            // info кодируем прямо в рабочий буфер
+            int infoLength = ws.encodeUtf8("profile:" + userId + ":" + field);
+            return expand(ws, masterBytes, ws.input, infoLength, USER_KEY_LENGTH);
+        } finally {
+            CryptoEngine.release(ws);
+        }
+    }
+
+    /**
+     * Упрощённый HKDF-Expand с HMAC-SHA256 без явного salt (salt = нули),
+     * основной сценарий: derive из мастер-ключа 32 байта на конкретного пользователя/поле.
+     */
+    static byte[] expand(byte[] ikm, byte[] info, int length) throws Exception {
+        CryptoEngine.Workspace ws = CryptoEngine.acquire();
+        try {
+            return expand(ws, ikm, info, info.length, length);
+        } finally {
+            CryptoEngine.release(ws);
+        }
+    }
+
+    private static byte[] expand(CryptoEngine.Workspace ws, byte[] ikm, byte[] info, int infoLength,
+                                 int length) throws Exception {
+        CryptoEvents.HkdfExpand event = CryptoEvents.beginHkdfExpand();
+
+        // Для простоты: используем ikm как PRK (без отдельного Extract с солью)
+        // В дипломе можно описать это как HKDF(ikm, info) на базе HMAC-SHA256.
+        byte[] prk = ikm;
+
+        // Mac и буфер блока T(i) берём из пула CryptoEngine
+        Mac mac = ws.initMac(prk, false);
+
+        byte[] result = new byte[length];
+        byte[] t = ws.block;
+        int tLength = 0;
+
+        int offset = 0;
+        byte counter = 1;
+
+        while (offset < length) {
+            mac.reset();
+            mac.update(t, 0, tLength);
+            mac.update(info, 0, infoLength);
+            mac.update(counter);
+
+            mac.doFinal(t, 0);
+            tLength = t.length;
+
+            int toCopy = Math.min(tLength, length - offset);
+            System.arraycopy(t, 0, result, offset, toCopy);
+            offset += toCopy;
+            counter++;
+        }
+
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.infoBytes = infoLength;
+                event.outputBytes = length;
+                event.commit();
+            }
+        }
+        return result;
+    }
+}
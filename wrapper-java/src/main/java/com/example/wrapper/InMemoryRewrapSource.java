@@ -0,0 +1,62 @@
+package com.example.wrapper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Источник для rewrap в памяти - заменитель таблицы profiles для тестов.
+ */
+public class InMemoryRewrapSource implements RewrapSource {
+
+    // user_id -> (field -> ciphertext), упорядочено по user_id как курсору
+    private final ConcurrentSkipListMap<String, Map<String, String>> rows = new ConcurrentSkipListMap<>();
+
+    public void put(String userId, String field, String ciphertext) {
+        rows.computeIfAbsent(userId, k -> new ConcurrentHashMap<>()).put(field, ciphertext);
+    }
+
+    public String get(String userId, String field) {
+        Map<String, String> fields = rows.get(userId);
+        return fields == null ? null : fields.get(field);
+    }
+
+    public int size() {
+        return rows.size();
+    }
+
+    @Override
+    public String name() {
+        return "in-memory";
+    }
+
+    @Override
+    public List<Row> fetchPage(String afterCursor, int limit) {
+        ConcurrentNavigableMap<String, Map<String, String>> tail =
+                afterCursor == null ? rows : rows.tailMap(afterCursor, false);
+
+        List<Row> page = new ArrayList<>(Math.min(limit, 1024));
+        for (Map.Entry<String, Map<String, String>> e : tail.entrySet()) {
+            if (page.size() >= limit) {
+                break;
+            }
+            page.add(new Row(e.getKey(), e.getKey(), new HashMap<>(e.getValue())));
+        }
+        return page;
+    }
+
+    @Override
+    public boolean[] applyReplacements(List<Replacement> replacements) {
+        boolean[] applied = new boolean[replacements.size()];
+        for (int i = 0; i < replacements.size(); i++) {
+            Replacement r = replacements.get(i);
+            Map<String, String> fields = rows.get(r.userId);
+            applied[i] = fields != null && fields.replace(r.field, r.oldCiphertext, r.newCiphertext);
+        }
+        return applied;
+    }
+}
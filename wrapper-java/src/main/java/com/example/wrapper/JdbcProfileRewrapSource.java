@@ -0,0 +1,146 @@
+package com.example.wrapper;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Источник для rewrap - таблица profiles в Postgres
+ * (phone_encrypted / birth_date_encrypted), курсор - user_id.
+ *
+ * Соединения - из маленького пула (страница и batch обновлений идут по очереди):
+ * без TCP/TLS/аутентификации на каждую страницу. Пул не подключается при старте -
+ * обёртка поднимается и без базы, соединения открываются при первом rewrap.
+ *
+ * user_id сравнивается в своём типе колонки (курсор передаётся без типа,
+ * Postgres выводит его сам): ORDER BY и WHERE идут по индексу первичного ключа.
+ */
+public class JdbcProfileRewrapSource implements RewrapSource, AutoCloseable {
+
+    // поле (как в HKDF info) -> колонка profiles
+    private static final Map<String, String> FIELD_COLUMNS = new LinkedHashMap<>();
+
+    static {
+        FIELD_COLUMNS.put("phone", "phone_encrypted");
+        FIELD_COLUMNS.put("birth_date", "birth_date_encrypted");
+    }
+
+    private static final int POOL_SIZE = 2;
+    private static final long IDLE_TIMEOUT_MS = 60_000;
+
+    private final HikariDataSource dataSource;
+
+    public JdbcProfileRewrapSource(String url, String user, String password) {
+        HikariConfig config = new HikariConfig();
+        config.setPoolName("rewrap");
+        config.setJdbcUrl(url);
+        config.setUsername(user);
+        config.setPassword(password);
+        config.setMaximumPoolSize(POOL_SIZE);
+        config.setMinimumIdle(0); // вне rewrap соединения не держим
+        config.setIdleTimeout(IDLE_TIMEOUT_MS);
+        config.setInitializationFailTimeout(-1);
+        this.dataSource = new HikariDataSource(config);
+    }
+
+    @Override
+    public String name() {
+        return "postgres:profiles";
+    }
+
+    @Override
+    public List<Row> fetchPage(String afterCursor, int limit) throws Exception {
+        String sql = "SELECT user_id::text AS uid, phone_encrypted, birth_date_encrypted FROM profiles " +
+                "WHERE (phone_encrypted IS NOT NULL OR birth_date_encrypted IS NOT NULL) " +
+                (afterCursor != null ? "AND user_id > ? " : "") +
+                "ORDER BY user_id LIMIT ?";
+
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            int idx = 1;
+            if (afterCursor != null) {
+                ps.setObject(idx++, afterCursor, Types.OTHER);
+            }
+            ps.setInt(idx, limit);
+
+            List<Row> page = new ArrayList<>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    String userId = rs.getString("uid");
+                    Map<String, String> ciphertexts = new HashMap<>();
+                    for (Map.Entry<String, String> fc : FIELD_COLUMNS.entrySet()) {
+                        String ct = rs.getString(fc.getValue());
+                        if (ct != null) {
+                            ciphertexts.put(fc.getKey(), ct);
+                        }
+                    }
+                    page.add(new Row(userId, userId, ciphertexts));
+                }
+            }
+            return page;
+        }
+    }
+
+    @Override
+    public boolean[] applyReplacements(List<Replacement> replacements) throws Exception {
+        boolean[] applied = new boolean[replacements.size()];
+        if (replacements.isEmpty()) {
+            return applied;
+        }
+
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                // по одному UPDATE на колонку, замены этой колонки - в одном batch
+                for (Map.Entry<String, String> fc : FIELD_COLUMNS.entrySet()) {
+                    String column = fc.getValue();
+                    List<Integer> indexes = new ArrayList<>();
+                    try (PreparedStatement ps = conn.prepareStatement(
+                            "UPDATE profiles SET " + column + " = ?, updated_at = now() " +
+                                    "WHERE user_id = ? AND " + column + " = ?")) {
+                        for (int i = 0; i < replacements.size(); i++) {
+                            Replacement r = replacements.get(i);
+                            if (!fc.getKey().equals(r.field)) {
+                                continue;
+                            }
+                            ps.setString(1, r.newCiphertext);
+                            ps.setObject(2, r.userId, Types.OTHER);
+                            ps.setString(3, r.oldCiphertext);
+                            ps.addBatch();
+                            indexes.add(i);
+                        }
+                        if (indexes.isEmpty()) {
+                            continue;
+                        }
+                        int[] counts = ps.executeBatch();
+                        for (int j = 0; j < counts.length; j++) {
+                            applied[indexes.get(j)] = counts[j] > 0;
+                        }
+                    }
+                }
+                conn.commit();
+            } catch (Exception e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+        return applied;
+    }
+
+    /**
+     * Закрывает пул (Spring вызывает при остановке контекста).
+     */
+    @Override
+    public void close() {
+        dataSource.close();
+    }
+}
@@ -0,0 +1,151 @@
+package com.example.wrapper;
+
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Запись JFR на работающей обёртке, когда растёт p99 (напрямую на реплику, не через балансировщик):
+ *
+ *   curl -X POST -H "X-Admin-Token: $JFR_ADMIN_TOKEN" 'http://replica:8080/admin/jfr/start?duration_seconds=120&crypto_threshold_us=100'
+ *   curl -H "X-Admin-Token: $JFR_ADMIN_TOKEN" -o wrapper.jfr http://replica:8080/admin/jfr/recording
+ *   jfr print --events com.example.wrapper.VaultCall wrapper.jfr   (или JDK Mission Control)
+ *
+ * Не под /crypto/*: это не операция для backend, а диагностика. Доступ - только с заголовком
+ * X-Admin-Token, равным crypto.jfr.admin-token; пустой токен (по умолчанию) - эндпоинты выключены (404).
+ */
+@RestController
+public class JfrController {
+
+    public static final String ADMIN_TOKEN_HEADER = "X-Admin-Token";
+
+    private final JfrRecordingService recordingService;
+    private final byte[] adminToken;
+
+    public JfrController(JfrRecordingService recordingService,
+                         @Value("${crypto.jfr.admin-token:}") String adminToken) {
+        this.recordingService = recordingService;
+        this.adminToken = adminToken.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // ----- DTO для /admin/jfr/* -----
+
+    public static class JfrStatusResponse {
+        public String state; // none, running, stopped, closed
+        public String settings;
+        public long started_at;
+        public long duration_seconds;
+        public long max_size_bytes;
+        public long size_bytes;
+        public long crypto_threshold_us;
+
+        public JfrStatusResponse() {
+        }
+    }
+
+    /**
+     * Нет доступа к /admin/jfr/*: status - 404 (выключено) или 403 (неверный токен).
+     */
+    static class AdminAccessException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final HttpStatus status;
+
+        AdminAccessException(HttpStatus status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    // ----- Эндпоинты -----
+
+    /**
+     * Новая запись (предыдущая отбрасывается). settings - default | profile;
+     * crypto_threshold_us - порог для событий CryptoOperation и HkdfExpand (0 - все).
+     */
+    @PostMapping("/admin/jfr/start")
+    public JfrStatusResponse start(@RequestHeader(value = ADMIN_TOKEN_HEADER, required = false) String token,
+                                   @RequestParam(value = "settings", defaultValue = "default") String settings,
+                                   @RequestParam(value = "duration_seconds", defaultValue = "60") long durationSeconds,
+                                   @RequestParam(value = "max_size_mb", defaultValue = "64") long maxSizeMb,
+                                   @RequestParam(value = "crypto_threshold_us", defaultValue = "0") long thresholdMicros) {
+        checkAccess(token);
+        recordingService.start(settings, durationSeconds, maxSizeMb, thresholdMicros);
+        return currentStatus();
+    }
+
+    @PostMapping("/admin/jfr/stop")
+    public JfrStatusResponse stop(@RequestHeader(value = ADMIN_TOKEN_HEADER, required = false) String token) {
+        checkAccess(token);
+        recordingService.stop();
+        return currentStatus();
+    }
+
+    @GetMapping("/admin/jfr/status")
+    public JfrStatusResponse status(@RequestHeader(value = ADMIN_TOKEN_HEADER, required = false) String token) {
+        checkAccess(token);
+        return currentStatus();
+    }
+
+    /**
+     * Файл .jfr с записанным на этот момент; идущая запись продолжается. Нет записи - 404.
+     */
+    @GetMapping("/admin/jfr/recording")
+    public void recording(@RequestHeader(value = ADMIN_TOKEN_HEADER, required = false) String token,
+                          HttpServletResponse response) throws Exception {
+        checkAccess(token);
+        String name = "wrapper-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".jfr";
+        response.setContentType("application/octet-stream");
+        response.setHeader("Content-Disposition", "attachment; filename=\"" + name + "\"");
+        if (!recordingService.writeTo(response.getOutputStream())) {
+            response.reset();
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "no JFR recording, POST /admin/jfr/start first");
+        }
+    }
+
+    @ExceptionHandler(IllegalArgumentException.class)
+    public ResponseEntity<VaultErrorHandler.ErrorResponse> badRequest(IllegalArgumentException e) {
+        return new ResponseEntity<>(new VaultErrorHandler.ErrorResponse("bad_request", e.getMessage()),
+                HttpStatus.BAD_REQUEST);
+    }
+
+    @ExceptionHandler(AdminAccessException.class)
+    public ResponseEntity<VaultErrorHandler.ErrorResponse> accessDenied(AdminAccessException e) {
+        String error = e.status == HttpStatus.NOT_FOUND ? "not_found" : "forbidden";
+        return new ResponseEntity<>(new VaultErrorHandler.ErrorResponse(error, e.getMessage()), e.status);
+    }
+
+    private JfrStatusResponse currentStatus() {
+        JfrStatusResponse resp = new JfrStatusResponse();
+        resp.state = recordingService.getState();
+        resp.settings = recordingService.getSettingsName();
+        resp.started_at = recordingService.getStartedAtMillis();
+        resp.duration_seconds = recordingService.getDurationSeconds();
+        resp.max_size_bytes = recordingService.getMaxSizeBytes();
+        resp.size_bytes = recordingService.getSizeBytes();
+        resp.crypto_threshold_us = recordingService.getCryptoThresholdMicros();
+        return resp;
+    }
+
+    private void checkAccess(String token) {
+        if (adminToken.length == 0) {
+            throw new AdminAccessException(HttpStatus.NOT_FOUND, "JFR endpoints are disabled (crypto.jfr.admin-token is not set)");
+        }
+        // сравнение за постоянное время - без подбора токена по времени ответа
+        if (token == null || !MessageDigest.isEqual(adminToken, token.getBytes(StandardCharsets.UTF_8))) {
+            throw new AdminAccessException(HttpStatus.FORBIDDEN, "missing or wrong " + ADMIN_TOKEN_HEADER);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.example.wrapper;
+
+import jakarta.annotation.PreDestroy;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+
+/**
+ * Запись JDK Flight Recorder по запросу (/admin/jfr/*): одна за раз, ограничена
+ * по длительности и размеру на диске, останавливается сама по истечении срока.
+ *
+ * Настройки JDK - default (~1% накладных расходов, для продакшена) или profile (подробнее).
+ * События обёртки (CryptoEvents) включены всегда; CryptoOperation и HkdfExpand - с порогом
+ * crypto-threshold-us: при десятках тысяч операций в секунду без порога запись быстро
+ * упирается в max-size, и старые куски вытесняются.
+ *
+ * Окружение, системные свойства, JVMInformation и SystemProcess в запись не включаются (там VAULT_TOKEN).
+ * Куски JFR общие для всех записей процесса: если параллельно идёт запись с ними
+ * (-XX:StartFlightRecording с default), они окажутся и в скачанном файле.
+ *
+ *   crypto.jfr.max-duration-seconds  - потолок длительности одной записи
+ *   crypto.jfr.max-size-mb           - потолок объёма записи на диске (старые куски вытесняются)
+ */
+@Component
+public class JfrRecordingService {
+
+    private static final String RECORDING_NAME = "wrapper";
+
+    private final long maxDurationSeconds;
+    private final long maxSizeMb;
+
+    // всё ниже - под монитором this
+    private Recording recording;
+    private String settingsName;
+    private long cryptoThresholdMicros;
+    private long startedAtMillis;
+
+    public JfrRecordingService(@Value("${crypto.jfr.max-duration-seconds:900}") long maxDurationSeconds,
+                               @Value("${crypto.jfr.max-size-mb:256}") long maxSizeMb) {
+        this.maxDurationSeconds = maxDurationSeconds;
+        this.maxSizeMb = maxSizeMb;
+    }
+
+    /**
+     * Новая запись; предыдущая (идущая или остановленная, но не скачанная) закрывается.
+     * Длительность и размер урезаются до потолков из настроек.
+     */
+    public synchronized void start(String settings, long durationSeconds, long sizeMb, long thresholdMicros) {
+        if (!"default".equals(settings) && !"profile".equals(settings)) {
+            throw new IllegalArgumentException("settings must be default or profile, got " + settings);
+        }
+        if (durationSeconds <= 0 || sizeMb <= 0 || thresholdMicros < 0) {
+            throw new IllegalArgumentException("duration and size must be positive, threshold non-negative");
+        }
+
+        Configuration configuration;
+        try {
+            configuration = Configuration.getConfiguration(settings);
+        } catch (IOException | ParseException e) {
+            throw new RuntimeException("JFR settings '" + settings + "' are not available: " + e.getMessage(), e);
+        }
+
+        closeLocked();
+        Recording r = new Recording(configuration);
+        r.setName(RECORDING_NAME);
+        r.setToDisk(true);
+        r.setDuration(Duration.ofSeconds(Math.min(durationSeconds, maxDurationSeconds)));
+        r.setMaxSize(Math.min(sizeMb, maxSizeMb) * 1024 * 1024);
+        // переменные окружения (VAULT_TOKEN, DB_PASSWORD), системные свойства, аргументы JVM
+        // и командные строки процессов хоста из default/profile в файл записи не попадают -
+        // его скачивают по сети
+        r.disable("jdk.InitialEnvironmentVariable");
+        r.disable("jdk.InitialSystemProperty");
+        r.disable("jdk.JVMInformation");
+        r.disable("jdk.SystemProcess");
+        Duration threshold = Duration.ofNanos(thresholdMicros * 1000);
+        r.enable(CryptoEvents.CryptoOperation.class).withThreshold(threshold);
+        r.enable(CryptoEvents.HkdfExpand.class).withThreshold(threshold);
+        r.enable(CryptoEvents.VaultCall.class).withStackTrace();
+        r.enable(CryptoEvents.KeyLockContention.class).withStackTrace();
+        r.start();
+
+        recording = r;
+        settingsName = settings;
+        cryptoThresholdMicros = thresholdMicros;
+        startedAtMillis = System.currentTimeMillis();
+        System.out.println("JfrRecordingService: recording started, settings=" + settings +
+                ", duration=" + r.getDuration().getSeconds() + "s, max_size=" + r.getMaxSize() / (1024 * 1024) +
+                "MB, crypto_threshold=" + thresholdMicros + "us");
+    }
+
+    /**
+     * Остановить запись; данные остаются до скачивания или следующего start.
+     */
+    public synchronized void stop() {
+        if (recording != null && recording.getState() == RecordingState.RUNNING) {
+            recording.stop();
+            System.out.println("JfrRecordingService: recording stopped, size=" + recording.getSize() + " bytes");
+        }
+    }
+
+    /**
+     * Записанное на этот момент - в out (формат .jfr). Идущая запись не прерывается.
+     * false - записи нет.
+     */
+    public boolean writeTo(OutputStream out) throws IOException {
+        Path file = Files.createTempFile("wrapper-", ".jfr");
+        try {
+            synchronized (this) {
+                if (recording == null || recording.getState() == RecordingState.NEW
+                        || recording.getState() == RecordingState.CLOSED) {
+                    return false;
+                }
+                recording.dump(file);
+            }
+            Files.copy(file, out);
+            return true;
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    public synchronized String getState() {
+        return recording == null ? "none" : recording.getState().name().toLowerCase();
+    }
+
+    public synchronized String getSettingsName() {
+        return recording == null ? null : settingsName;
+    }
+
+    public synchronized long getCryptoThresholdMicros() {
+        return recording == null ? 0 : cryptoThresholdMicros;
+    }
+
+    public synchronized long getStartedAtMillis() {
+        return recording == null ? 0 : startedAtMillis;
+    }
+
+    public synchronized long getDurationSeconds() {
+        return recording == null || recording.getDuration() == null ? 0 : recording.getDuration().getSeconds();
+    }
+
+    public synchronized long getMaxSizeBytes() {
+        return recording == null ? 0 : recording.getMaxSize();
+    }
+
+    /**
+     * Объём записанного на диск (для идущей записи - без текущего незакрытого куска).
+     */
+    public synchronized long getSizeBytes() {
+        return recording == null ? 0 : recording.getSize();
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        closeLocked();
+    }
+
+    private void closeLocked() {
+        if (recording != null) {
+            recording.close();
+            recording = null;
+        }
+    }
+}
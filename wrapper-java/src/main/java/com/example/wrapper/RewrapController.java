@@ -0,0 +1,74 @@
+package com.example.wrapper;
+
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+@RestController
+public class RewrapController {
+
+    private final RewrapService rewrapService;
+
+    public RewrapController(RewrapService rewrapService) {
+        this.rewrapService = rewrapService;
+    }
+
+    // ----- DTO для /crypto/rewrap/* -----
+
+    public static class RewrapStatusResponse {
+        public String state;
+        public String source;
+        public String target_key_id;
+        public String cursor;
+        public long scanned;
+        public long rewrapped;
+        public long skipped;
+        public long conflicts;
+        public long failed;
+        public long started_at;
+        public long updated_at;
+        public double records_per_second;
+        public String last_error;
+
+        public RewrapStatusResponse() {
+        }
+    }
+
+    // ----- Эндпоинты -----
+
+    /**
+     * Запуск (или продолжение с checkpoint) перешифровки под текущий мастер-ключ.
+     */
+    @PostMapping("/crypto/rewrap/start")
+    public RewrapStatusResponse start() {
+        rewrapService.start();
+        return status();
+    }
+
+    @PostMapping("/crypto/rewrap/stop")
+    public RewrapStatusResponse stop() {
+        rewrapService.stop();
+        return status();
+    }
+
+    @GetMapping("/crypto/rewrap/status")
+    public RewrapStatusResponse status() {
+        RewrapStatusResponse resp = new RewrapStatusResponse();
+        resp.state = rewrapService.getState().name();
+        resp.source = rewrapService.getSource().name();
+        resp.target_key_id = rewrapService.getTargetKeyId();
+        resp.cursor = rewrapService.getCursor();
+        resp.scanned = rewrapService.getScanned();
+        resp.rewrapped = rewrapService.getRewrapped();
+        resp.skipped = rewrapService.getSkipped();
+        resp.conflicts = rewrapService.getConflicts();
+        resp.failed = rewrapService.getFailed();
+        resp.started_at = rewrapService.getStartedAtMillis();
+        resp.updated_at = rewrapService.getUpdatedAtMillis();
+        resp.last_error = rewrapService.getLastError();
+
+        long elapsedMillis = resp.updated_at - resp.started_at;
+        resp.records_per_second = elapsedMillis > 0 ? resp.scanned * 1000.0 / elapsedMillis : 0.0;
+        return resp;
+    }
+}
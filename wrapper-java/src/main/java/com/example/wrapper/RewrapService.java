@@ -0,0 +1,381 @@
+package com.example.wrapper;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Фоновое перешифрование (rewrap) после ротации мастер-ключа:
+ * читаем шифротексты страницами, расшифровываем старым поколением,
+ * шифруем текущим и пишем обратно (только если запись не изменилась).
+ *
+ * Страница обрабатывается параллельно на пуле из parallelism потоков,
+ * общая скорость ограничена max-records-per-second. После каждой страницы
+ * курсор и счётчики пишутся в checkpoint-файл, так что после рестарта
+ * задача продолжается с места остановки.
+ *
+ * Состояние задачи и checkpoint - свои у каждой реплики, общей блокировки нет:
+ * при нескольких репликах /crypto/rewrap/* и /crypto/rotate-master закреплены
+ * балансировщиком за одной из них (nginx/wrapper-lb.conf). Если она выпала из ротации,
+ * задачу запускают заново на следующей - уже перешифрованные поля пропускаются.
+ */
+@Service
+public class RewrapService {
+
+    public enum State { IDLE, RUNNING, STOPPING, STOPPED, COMPLETED, FAILED }
+
+    private final RewrapSource source;
+    private final FieldCryptoService fieldCryptoService;
+    private final VaultKeyService vaultKeyService;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final int batchSize;
+    private final int parallelism;
+    private final int maxRecordsPerSecond;
+    private final Path checkpointFile;
+    private final boolean resumeOnStartup;
+
+    // ---------- состояние текущей задачи ----------
+
+    private volatile State state = State.IDLE;
+    private volatile String targetKeyId;
+    private volatile String cursor;
+    private volatile String lastError;
+    private volatile long startedAtMillis;
+    private volatile long updatedAtMillis;
+
+    private final AtomicLong scanned = new AtomicLong();   // просмотрено записей
+    private final AtomicLong rewrapped = new AtomicLong(); // перешифровано полей
+    private final AtomicLong skipped = new AtomicLong();   // поле уже под текущим ключом
+    private final AtomicLong conflicts = new AtomicLong(); // запись изменилась параллельно
+    private final AtomicLong failed = new AtomicLong();    // не удалось расшифровать/записать
+
+    private Thread runner;
+
+    public RewrapService(RewrapSource source,
+                         FieldCryptoService fieldCryptoService,
+                         VaultKeyService vaultKeyService,
+                         @Value("${crypto.rewrap.batch-size:200}") int batchSize,
+                         @Value("${crypto.rewrap.parallelism:4}") int parallelism,
+                         @Value("${crypto.rewrap.max-records-per-second:500}") int maxRecordsPerSecond,
+                         @Value("${crypto.rewrap.checkpoint-file:rewrap-checkpoint.json}") String checkpointFile,
+                         @Value("${crypto.rewrap.auto-start-on-rotation:false}") boolean autoStartOnRotation,
+                         @Value("${crypto.rewrap.resume-on-startup:true}") boolean resumeOnStartup) {
+        this.source = source;
+        this.fieldCryptoService = fieldCryptoService;
+        this.vaultKeyService = vaultKeyService;
+        this.batchSize = batchSize;
+        this.parallelism = parallelism;
+        this.maxRecordsPerSecond = maxRecordsPerSecond;
+        this.checkpointFile = Paths.get(checkpointFile);
+        this.resumeOnStartup = resumeOnStartup;
+
+        if (autoStartOnRotation) {
+            vaultKeyService.addRotationListener(this::start);
+        }
+    }
+
+    /**
+     * Если процесс упал посреди задачи - продолжаем её с checkpoint.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void resumeAfterRestart() {
+        if (!resumeOnStartup || source.unavailableReason() != null) {
+            return;
+        }
+        JsonNode checkpoint = readCheckpoint();
+        if (checkpoint != null && State.RUNNING.name().equals(checkpoint.path("state").asText())) {
+            System.out.println("RewrapService: resuming rewrap from checkpoint, cursor=" +
+                    checkpoint.path("cursor").asText(null));
+            start();
+        }
+    }
+
+    public RewrapSource getSource() {
+        return source;
+    }
+
+    /**
+     * Запуск (или продолжение) rewrap до текущего мастер-ключа.
+     * false - задача уже идёт или источник не настроен (тогда FAILED с причиной в lastError).
+     */
+    public synchronized boolean start() {
+        if (state == State.RUNNING || state == State.STOPPING) {
+            return false;
+        }
+        String unavailable = source.unavailableReason();
+        if (unavailable != null) {
+            state = State.FAILED;
+            lastError = "rewrap source is not configured: " + unavailable;
+            updatedAtMillis = System.currentTimeMillis();
+            System.out.println("RewrapService: rewrap not started, " + lastError);
+            return false;
+        }
+
+        String currentKeyId = vaultKeyService.getKeyId();
+        resetCounters();
+        targetKeyId = currentKeyId;
+
+        // продолжаем незавершённую задачу к тому же ключу
+        JsonNode checkpoint = readCheckpoint();
+        if (checkpoint != null
+                && currentKeyId.equals(checkpoint.path("target_key_id").asText(null))
+                && !State.COMPLETED.name().equals(checkpoint.path("state").asText())) {
+            cursor = checkpoint.path("cursor").asText(null);
+            scanned.set(checkpoint.path("scanned").asLong());
+            rewrapped.set(checkpoint.path("rewrapped").asLong());
+            skipped.set(checkpoint.path("skipped").asLong());
+            conflicts.set(checkpoint.path("conflicts").asLong());
+            failed.set(checkpoint.path("failed").asLong());
+        }
+
+        state = State.RUNNING;
+        startedAtMillis = System.currentTimeMillis();
+        updatedAtMillis = startedAtMillis;
+
+        runner = new Thread(this::run, "rewrap-runner");
+        runner.setDaemon(true);
+        runner.start();
+
+        System.out.println("RewrapService: rewrap started, source=" + source.name() +
+                ", target_key_id=" + targetKeyId + ", cursor=" + cursor);
+        return true;
+    }
+
+    /**
+     * Останавливает задачу после текущей страницы (checkpoint сохраняется).
+     */
+    public synchronized void stop() {
+        if (state == State.RUNNING) {
+            state = State.STOPPING;
+        }
+    }
+
+    // ---------- статус ----------
+
+    public State getState() {
+        return state;
+    }
+
+    public String getTargetKeyId() {
+        return targetKeyId;
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public long getStartedAtMillis() {
+        return startedAtMillis;
+    }
+
+    public long getUpdatedAtMillis() {
+        return updatedAtMillis;
+    }
+
+    public long getScanned() {
+        return scanned.get();
+    }
+
+    public long getRewrapped() {
+        return rewrapped.get();
+    }
+
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    public long getConflicts() {
+        return conflicts.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    // ---------- основной цикл ----------
+
+    private void run() {
+        ExecutorService workers = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread t = new Thread(r, "rewrap-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        long jobStartNanos = System.nanoTime();
+        long processedInRun = 0;
+        // итог задачи; state меняется только после записи checkpoint с ним -
+        // кто увидел COMPLETED/STOPPED/FAILED, видит и сохранённый checkpoint
+        State outcome = State.STOPPED;
+
+        try {
+            while (state == State.RUNNING) {
+                List<RewrapSource.Row> page = source.fetchPage(cursor, batchSize);
+                if (page.isEmpty()) {
+                    outcome = State.COMPLETED;
+                    break;
+                }
+
+                // шифруем всегда текущим поколением (на случай ротации посреди задачи)
+                AesKeyring.Generation current = vaultKeyService.getAesKeyring().current();
+                targetKeyId = current.keyId;
+
+                List<Future<List<RewrapSource.Replacement>>> futures = new ArrayList<>(page.size());
+                for (RewrapSource.Row row : page) {
+                    futures.add(workers.submit(() -> rewrapRow(row, current)));
+                }
+                List<RewrapSource.Replacement> replacements = new ArrayList<>();
+                for (Future<List<RewrapSource.Replacement>> f : futures) {
+                    replacements.addAll(f.get());
+                }
+
+                boolean[] applied = source.applyReplacements(replacements);
+                for (boolean ok : applied) {
+                    if (ok) {
+                        rewrapped.incrementAndGet();
+                    } else {
+                        conflicts.incrementAndGet();
+                    }
+                }
+
+                scanned.addAndGet(page.size());
+                cursor = page.get(page.size() - 1).cursor;
+                updatedAtMillis = System.currentTimeMillis();
+                writeCheckpoint(State.RUNNING);
+
+                processedInRun += page.size();
+                throttle(jobStartNanos, processedInRun);
+            }
+        } catch (Exception e) {
+            lastError = e.getMessage();
+            outcome = State.FAILED;
+            System.out.println("RewrapService: rewrap failed at cursor=" + cursor + ": " + e.getMessage());
+        } finally {
+            workers.shutdownNow();
+            updatedAtMillis = System.currentTimeMillis();
+            writeCheckpoint(outcome);
+            state = outcome;
+            System.out.println("RewrapService: rewrap " + outcome + ", scanned=" + scanned.get() +
+                    ", rewrapped=" + rewrapped.get() + ", skipped=" + skipped.get() +
+                    ", conflicts=" + conflicts.get() + ", failed=" + failed.get());
+        }
+    }
+
+    /**
+     * Перешифровка полей одной записи; поля, уже зашифрованные текущим ключом, пропускаем.
+     * В режиме конверта целевой ключ - ключ данных пользователя: так старые шифротексты
+     * под мастер-ключом переезжают в конверт, а уже переехавшие пропускаются.
+     */
+    private List<RewrapSource.Replacement> rewrapRow(RewrapSource.Row row, AesKeyring.Generation current) {
+        List<RewrapSource.Replacement> out = new ArrayList<>(row.ciphertexts.size());
+        AesKeyring.Generation target;
+        try {
+            target = vaultKeyService.encryptionKeyFor(row.userId, current);
+        } catch (VaultUnavailableException e) {
+            throw e;
+        } catch (Exception e) {
+            failed.addAndGet(row.ciphertexts.size());
+            lastError = "user_id=" + row.userId + ": " + e.getMessage();
+            return out;
+        }
+        for (Map.Entry<String, String> e : row.ciphertexts.entrySet()) {
+            String field = e.getKey();
+            String oldCiphertext = e.getValue();
+            if (target.keyId.equals(fieldCryptoService.keyIdOf(oldCiphertext))) {
+                skipped.incrementAndGet();
+                continue;
+            }
+            try {
+                String plaintext = fieldCryptoService.decrypt(row.userId, field, oldCiphertext, null);
+                String newCiphertext = fieldCryptoService.encrypt(target, row.userId, field, plaintext);
+                out.add(new RewrapSource.Replacement(row.userId, field, oldCiphertext, newCiphertext));
+            } catch (Exception ex) {
+                failed.incrementAndGet();
+                lastError = "user_id=" + row.userId + " field=" + field + ": " + ex.getMessage();
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Держим среднюю скорость не выше maxRecordsPerSecond.
+     */
+    private void throttle(long jobStartNanos, long processed) throws InterruptedException {
+        if (maxRecordsPerSecond <= 0) {
+            return;
+        }
+        long expectedNanos = processed * 1_000_000_000L / maxRecordsPerSecond;
+        long elapsedNanos = System.nanoTime() - jobStartNanos;
+        if (expectedNanos > elapsedNanos) {
+            Thread.sleep((expectedNanos - elapsedNanos) / 1_000_000L);
+        }
+    }
+
+    private void resetCounters() {
+        cursor = null;
+        lastError = null;
+        scanned.set(0);
+        rewrapped.set(0);
+        skipped.set(0);
+        conflicts.set(0);
+        failed.set(0);
+    }
+
+    // ---------- checkpoint ----------
+
+    private JsonNode readCheckpoint() {
+        try {
+            if (!Files.exists(checkpointFile)) {
+                return null;
+            }
+            return objectMapper.readTree(new String(Files.readAllBytes(checkpointFile), StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            System.out.println("RewrapService: cannot read checkpoint " + checkpointFile + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void writeCheckpoint(State checkpointState) {
+        try {
+            ObjectNode node = objectMapper.createObjectNode();
+            node.put("state", checkpointState.name());
+            node.put("source", source.name());
+            node.put("target_key_id", targetKeyId);
+            node.put("cursor", cursor);
+            node.put("scanned", scanned.get());
+            node.put("rewrapped", rewrapped.get());
+            node.put("skipped", skipped.get());
+            node.put("conflicts", conflicts.get());
+            node.put("failed", failed.get());
+            node.put("updated_at", updatedAtMillis);
+
+            // пишем во временный файл и переименовываем - чтобы не оставить обрезанный checkpoint
+            Path parent = checkpointFile.toAbsolutePath().getParent();
+            Path tmp = Files.createTempFile(parent, "rewrap-checkpoint", ".tmp");
+            Files.write(tmp, objectMapper.writeValueAsBytes(node));
+            Files.move(tmp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            System.out.println("RewrapService: cannot write checkpoint " + checkpointFile + ": " + e.getMessage());
+        }
+    }
+}
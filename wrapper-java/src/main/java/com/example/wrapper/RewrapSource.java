@@ -0,0 +1,91 @@
+package com.example.wrapper;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Откуда rewrap-задача берёт шифротексты и куда пишет перешифрованные.
+ * Записи читаются страницами по возрастанию курсора, курсор последней
+ * обработанной записи сохраняется в checkpoint.
+ */
+public interface RewrapSource {
+
+    /**
+     * Одна запись: поля -> шифротексты (null-поля не передаются).
+     */
+    final class Row {
+        public final String cursor;
+        public final String userId;
+        public final Map<String, String> ciphertexts;
+
+        public Row(String cursor, String userId, Map<String, String> ciphertexts) {
+            this.cursor = cursor;
+            this.userId = userId;
+            this.ciphertexts = ciphertexts;
+        }
+    }
+
+    /**
+     * Замена шифротекста поля: применяется, только если в источнике всё ещё oldCiphertext
+     * (запись могли перезаписать параллельно - тогда не трогаем).
+     */
+    final class Replacement {
+        public final String userId;
+        public final String field;
+        public final String oldCiphertext;
+        public final String newCiphertext;
+
+        public Replacement(String userId, String field, String oldCiphertext, String newCiphertext) {
+            this.userId = userId;
+            this.field = field;
+            this.oldCiphertext = oldCiphertext;
+            this.newCiphertext = newCiphertext;
+        }
+    }
+
+    String name();
+
+    /**
+     * Почему источник не может работать; null - готов.
+     */
+    default String unavailableReason() {
+        return null;
+    }
+
+    /**
+     * Источник-заглушка, когда настоящий не настроен: rewrap с ним не запускается.
+     */
+    static RewrapSource unconfigured(String reason) {
+        return new RewrapSource() {
+            @Override
+            public String name() {
+                return "unconfigured";
+            }
+
+            @Override
+            public String unavailableReason() {
+                return reason;
+            }
+
+            @Override
+            public List<Row> fetchPage(String afterCursor, int limit) {
+                throw new IllegalStateException("rewrap source is not configured: " + reason);
+            }
+
+            @Override
+            public boolean[] applyReplacements(List<Replacement> replacements) {
+                throw new IllegalStateException("rewrap source is not configured: " + reason);
+            }
+        };
+    }
+
+    /**
+     * Следующая страница записей с курсором строго больше afterCursor (null - с начала).
+     */
+    List<Row> fetchPage(String afterCursor, int limit) throws Exception;
+
+    /**
+     * Применяет замены; для каждой - true, если применена, false - если запись уже изменилась.
+     */
+    boolean[] applyReplacements(List<Replacement> replacements) throws Exception;
+}
@@ -0,0 +1,25 @@
+package com.example.wrapper;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Источник для rewrap: Postgres из DB_URL. Без DB_URL источник не настроен и rewrap
+ * не запускается (FAILED с причиной в статусе): пустой источник в памяти молча
+ * "завершал" задачу, не тронув ни одной записи в БД.
+ */
+@Configuration
+public class RewrapSourceConfig {
+
+    @Bean
+    public RewrapSource rewrapSource() {
+        String dbUrl = System.getenv("DB_URL");
+        if (dbUrl == null || dbUrl.isEmpty()) {
+            System.out.println("RewrapSourceConfig: DB_URL is not set, rewrap is unavailable");
+            return RewrapSource.unconfigured("DB_URL is not set");
+        }
+        return new JdbcProfileRewrapSource(dbUrl,
+                System.getenv().getOrDefault("DB_USER", "app"),
+                System.getenv().getOrDefault("DB_PASSWORD", "secret"));
+    }
+}
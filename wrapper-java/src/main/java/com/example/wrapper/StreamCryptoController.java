@@ -0,0 +1,84 @@
+package com.example.wrapper;
+
+import io.micrometer.core.instrument.Timer;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Потоковое шифрование больших тел (application/octet-stream) сегментами AES-GCM,
+ * формат - см. StreamingAead. Ключ - тот же HKDF(master, "profile:user_id:field").
+ *
+ * Тело не буферизуется: память на запрос - пара буферов размера сегмента.
+ * Если поток оказался повреждён или обрезан, часть (проверенного) открытого текста
+ * уже может быть отправлена - тогда ответ обрывается без завершающего чанка,
+ * и клиент обязан считать результат недействительным. Обрыв делает Tomcat: исключение
+ * после отправки заголовков он завершает закрытием соединения, поэтому здесь ошибки
+ * потока не перехватываются (см. StreamCryptoControllerTest).
+ */
+@RestController
+public class StreamCryptoController {
+
+    private final VaultKeyService vaultKeyService;
+    private final FieldCryptoService fieldCryptoService;
+    private final CryptoMetrics cryptoMetrics;
+    private final int segmentSize;
+
+    public StreamCryptoController(VaultKeyService vaultKeyService, FieldCryptoService fieldCryptoService,
+                                  CryptoMetrics cryptoMetrics,
+                                  @Value("${crypto.stream.segment-size:65536}") int segmentSize) {
+        this.vaultKeyService = vaultKeyService;
+        this.fieldCryptoService = fieldCryptoService;
+        this.cryptoMetrics = cryptoMetrics;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Ответ: заголовок потока + зашифрованные сегменты; key_id продублирован в X-Key-Id.
+     */
+    @PostMapping(value = "/crypto/encrypt-stream", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public void encryptStream(@RequestParam("user_id") String userId,
+                              @RequestParam("field") String field,
+                              HttpServletRequest request,
+                              HttpServletResponse response) throws Exception {
+        Timer.Sample sample = cryptoMetrics.start();
+        boolean success = false;
+        try {
+            AesKeyring.Generation key = vaultKeyService.encryptionKeyFor(userId,
+                    vaultKeyService.getAesKeyring().current());
+            response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+            response.setHeader("X-Key-Id", key.keyId);
+            response.setHeader("X-Algo", "AES-256-GCM-STREAM");
+
+            long bytes = fieldCryptoService.encryptStream(key, userId, field, segmentSize,
+                    request.getInputStream(), response.getOutputStream());
+            cryptoMetrics.recordPayload("encrypt-stream", bytes);
+            success = true;
+        } finally {
+            cryptoMetrics.recordOperation(sample, "encrypt-stream", success);
+        }
+    }
+
+    @PostMapping(value = "/crypto/decrypt-stream", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public void decryptStream(@RequestParam("user_id") String userId,
+                              @RequestParam("field") String field,
+                              HttpServletRequest request,
+                              HttpServletResponse response) throws Exception {
+        Timer.Sample sample = cryptoMetrics.start();
+        boolean success = false;
+        try {
+            response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+
+            long bytes = fieldCryptoService.decryptStream(userId, field,
+                    request.getInputStream(), response.getOutputStream());
+            cryptoMetrics.recordPayload("decrypt-stream", bytes);
+            success = true;
+        } finally {
+            cryptoMetrics.recordOperation(sample, "decrypt-stream", success);
+        }
+    }
+}
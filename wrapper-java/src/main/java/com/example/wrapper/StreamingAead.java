@@ -0,0 +1,243 @@
+package com.example.wrapper;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Потоковое шифрование больших тел (заметки, вложения) сегментами AES-256-GCM.
+ * Память - два буфера размера сегмента, независимо от длины потока.
+ *
+ * Формат:
+ *
+ *   заголовок: [0x02][1 байт длина key_id][key_id (UTF-8)][4 байта размер сегмента][16 байт salt]
+ *   сегменты:  [ciphertext+tag] ... последний сегмент короче (от 0 байт открытого текста)
+ *
+ * Ключ потока = HKDF(per-user ключ, "stream-v1:" || salt), поэтому nonce можно строить
+ * из номера сегмента: [7 байт нулей][4 байта номер сегмента][1 байт флаг "последний"].
+ * Заголовок - AAD каждого сегмента. Перестановка сегментов ломает nonce,
+ * обрезка потока - флаг последнего сегмента; и то и другое не проходит проверку тега.
+ *
+ * Расшифровка отдаёт сегмент только после проверки его тега, но обрезка обнаруживается
+ * лишь в конце потока - вызывающий код должен оборвать ответ при ошибке.
+ */
+final class StreamingAead {
+
+    static final byte VERSION_STREAM_1 = 0x02;
+
+    static final int MAX_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private static final int SALT_LENGTH = 16;
+    private static final int TAG_LENGTH_BYTES = CiphertextEnvelope.TAG_LENGTH_BYTES;
+    private static final int NONCE_LENGTH = CiphertextEnvelope.IV_LENGTH_BYTES;
+    private static final int MAX_KEY_ID_LENGTH = 255;
+    private static final byte[] STREAM_INFO_PREFIX = "stream-v1:".getBytes(StandardCharsets.US_ASCII);
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * Per-user ключ по key_id из заголовка (при расшифровке).
+     */
+    interface UserKeyResolver {
+        SecretKeySpec resolve(String keyId) throws Exception;
+    }
+
+    private StreamingAead() {
+    }
+
+    /**
+     * Шифрует in в out. Возвращает число байт открытого текста.
+     */
+    static long encrypt(SecretKeySpec userKey, String keyId, int segmentSize,
+                        InputStream in, OutputStream out) throws Exception {
+        if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("segment size must be 1.." + MAX_SEGMENT_SIZE);
+        }
+        byte[] salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        byte[] header = header(keyId, segmentSize, salt);
+        SecretKeySpec streamKey = streamKey(userKey, salt);
+
+        out.write(header);
+
+        byte[] plain = new byte[segmentSize];
+        byte[] sealed = new byte[segmentSize + TAG_LENGTH_BYTES];
+        byte[] nonce = new byte[NONCE_LENGTH];
+
+        CryptoEngine.Workspace ws = CryptoEngine.acquire();
+        try {
+            Cipher cipher = ws.cipher;
+            long total = 0;
+            int segment = 0;
+            int carry = -1; // байт, прочитанный наперёд, чтобы понять, последний ли сегмент
+            while (true) {
+                int n = 0;
+                if (carry >= 0) {
+                    plain[n++] = (byte) carry;
+                    carry = -1;
+                }
+                n += readFully(in, plain, n, segmentSize - n);
+                boolean last = n < segmentSize || (carry = in.read()) < 0;
+
+                nonce(nonce, segment, last);
+                cipher.init(Cipher.ENCRYPT_MODE, streamKey, new GCMParameterSpec(TAG_LENGTH_BYTES * 8, nonce));
+                cipher.updateAAD(header);
+                int written = cipher.doFinal(plain, 0, n, sealed, 0);
+                out.write(sealed, 0, written);
+
+                total += n;
+                if (last) {
+                    break;
+                }
+                segment = nextSegment(segment);
+            }
+            return total;
+        } finally {
+            CryptoEngine.release(ws);
+            Arrays.fill(plain, (byte) 0);
+        }
+    }
+
+    /**
+     * Расшифровывает in в out, проверяя каждый сегмент. Возвращает число байт открытого текста.
+     * IllegalArgumentException - поток повреждён, переставлен или обрезан.
+     */
+    static long decrypt(UserKeyResolver keys, InputStream in, OutputStream out) throws Exception {
+        int version = in.read();
+        if (version != VERSION_STREAM_1) {
+            throw new IllegalArgumentException("not a stream ciphertext (version " + version + ")");
+        }
+        int keyIdLength = in.read();
+        if (keyIdLength <= 0) {
+            throw new IllegalArgumentException("stream header: bad key_id length");
+        }
+        byte[] header = new byte[2 + keyIdLength + 4 + SALT_LENGTH];
+        header[0] = VERSION_STREAM_1;
+        header[1] = (byte) keyIdLength;
+        if (readFully(in, header, 2, header.length - 2) != header.length - 2) {
+            throw new IllegalArgumentException("stream header is truncated");
+        }
+        String keyId = new String(header, 2, keyIdLength, StandardCharsets.UTF_8);
+        int p = 2 + keyIdLength;
+        int segmentSize = (header[p] & 0xFF) << 24 | (header[p + 1] & 0xFF) << 16
+                | (header[p + 2] & 0xFF) << 8 | (header[p + 3] & 0xFF);
+        if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("stream header: bad segment size " + segmentSize);
+        }
+        byte[] salt = Arrays.copyOfRange(header, p + 4, p + 4 + SALT_LENGTH);
+
+        SecretKeySpec streamKey = streamKey(keys.resolve(keyId), salt);
+
+        int sealedSize = segmentSize + TAG_LENGTH_BYTES;
+        byte[] sealed = new byte[sealedSize];
+        byte[] plain = new byte[segmentSize];
+        byte[] nonce = new byte[NONCE_LENGTH];
+
+        CryptoEngine.Workspace ws = CryptoEngine.acquire();
+        try {
+            Cipher cipher = ws.cipher;
+            long total = 0;
+            int segment = 0;
+            int carry = -1;
+            while (true) {
+                int n = 0;
+                if (carry >= 0) {
+                    sealed[n++] = (byte) carry;
+                    carry = -1;
+                }
+                n += readFully(in, sealed, n, sealedSize - n);
+                boolean last = n < sealedSize || (carry = in.read()) < 0;
+                if (n < TAG_LENGTH_BYTES) {
+                    throw new IllegalArgumentException("stream is truncated at segment " + segment);
+                }
+
+                nonce(nonce, segment, last);
+                cipher.init(Cipher.DECRYPT_MODE, streamKey, new GCMParameterSpec(TAG_LENGTH_BYTES * 8, nonce));
+                cipher.updateAAD(header);
+                int written;
+                try {
+                    written = cipher.doFinal(sealed, 0, n, plain, 0);
+                } catch (AEADBadTagException e) {
+                    throw new IllegalArgumentException("stream segment " + segment +
+                            " failed authentication (tampered, reordered or truncated stream)", e);
+                }
+                out.write(plain, 0, written);
+
+                total += written;
+                if (last) {
+                    break;
+                }
+                segment = nextSegment(segment);
+            }
+            return total;
+        } finally {
+            CryptoEngine.release(ws);
+            Arrays.fill(plain, (byte) 0);
+        }
+    }
+
+    private static byte[] header(String keyId, int segmentSize, byte[] salt) {
+        byte[] keyIdBytes = keyId.getBytes(StandardCharsets.UTF_8);
+        if (keyIdBytes.length == 0 || keyIdBytes.length > MAX_KEY_ID_LENGTH) {
+            throw new IllegalArgumentException("key_id length must be 1.." + MAX_KEY_ID_LENGTH + " bytes");
+        }
+        byte[] header = new byte[2 + keyIdBytes.length + 4 + SALT_LENGTH];
+        header[0] = VERSION_STREAM_1;
+        header[1] = (byte) keyIdBytes.length;
+        System.arraycopy(keyIdBytes, 0, header, 2, keyIdBytes.length);
+        int p = 2 + keyIdBytes.length;
+        header[p] = (byte) (segmentSize >>> 24);
+        header[p + 1] = (byte) (segmentSize >>> 16);
+        header[p + 2] = (byte) (segmentSize >>> 8);
+        header[p + 3] = (byte) segmentSize;
+        System.arraycopy(salt, 0, header, p + 4, SALT_LENGTH);
+        return header;
+    }
+
+    private static SecretKeySpec streamKey(SecretKeySpec userKey, byte[] salt) throws Exception {
+        byte[] info = new byte[STREAM_INFO_PREFIX.length + salt.length];
+        System.arraycopy(STREAM_INFO_PREFIX, 0, info, 0, STREAM_INFO_PREFIX.length);
+        System.arraycopy(salt, 0, info, STREAM_INFO_PREFIX.length, salt.length);
+        byte[] userKeyBytes = userKey.getEncoded();
+        byte[] material = Hkdf.expand(userKeyBytes, info, Hkdf.USER_KEY_LENGTH);
+        SecretKeySpec key = new SecretKeySpec(material, "AES");
+        Arrays.fill(userKeyBytes, (byte) 0);
+        Arrays.fill(material, (byte) 0);
+        return key;
+    }
+
+    private static void nonce(byte[] nonce, int segment, boolean last) {
+        // первые 7 байт всегда нули: ключ свой у каждого потока
+        nonce[7] = (byte) (segment >>> 24);
+        nonce[8] = (byte) (segment >>> 16);
+        nonce[9] = (byte) (segment >>> 8);
+        nonce[10] = (byte) segment;
+        nonce[11] = (byte) (last ? 1 : 0);
+    }
+
+    private static int nextSegment(int segment) {
+        if (segment == -1) { // 0xFFFFFFFF - дальше nonce повторился бы
+            throw new IllegalArgumentException("stream has too many segments");
+        }
+        return segment + 1;
+    }
+
+    private static int readFully(InputStream in, byte[] buf, int off, int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            int n = in.read(buf, off + total, len - total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+}
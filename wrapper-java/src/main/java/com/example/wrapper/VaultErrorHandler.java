@@ -0,0 +1,40 @@
+package com.example.wrapper;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+
+/**
+ * Недоступный Vault - 503 с кодом ошибки вместо общего 500, чтобы backend мог
+ * отличить "Vault лежит, повторить позже" от ошибки в данных.
+ * Spring ищет обработчик и по цепочке причин, так что сработает и для
+ * VaultUnavailableException, завёрнутого в RuntimeException.
+ */
+@RestControllerAdvice
+public class VaultErrorHandler {
+
+    public static class ErrorResponse {
+        public String error;
+        public String message;
+
+        public ErrorResponse() {
+        }
+
+        public ErrorResponse(String error, String message) {
+            this.error = error;
+            this.message = message;
+        }
+    }
+
+    @ExceptionHandler(VaultUnavailableException.class)
+    public ResponseEntity<ErrorResponse> vaultUnavailable(VaultUnavailableException e) {
+        HttpHeaders headers = new HttpHeaders();
+        if (e.getRetryAfterSeconds() > 0) {
+            headers.set(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()));
+        }
+        return new ResponseEntity<>(new ErrorResponse(e.getCode(), e.getMessage()), headers,
+                HttpStatus.SERVICE_UNAVAILABLE);
+    }
+}
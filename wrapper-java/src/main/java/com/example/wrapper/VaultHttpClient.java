@@ -0,0 +1,238 @@
+package com.example.wrapper;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HTTP-клиент Vault: один HttpClient на процесс (соединения переиспользуются),
+ * таймауты на соединение и на запрос, ограниченный пул потоков клиента
+ * и circuit breaker.
+ *
+ * Circuit breaker: после failure-threshold отказов подряд (нет ответа, таймаут, 5xx)
+ * цепь размыкается на open-seconds - вызовы сразу падают с VaultUnavailableException,
+ * не занимая поток запроса на время таймаута. Затем пропускается один пробный вызов:
+ * успех замыкает цепь, отказ размыкает её снова. Ответ 4xx - Vault жив, это не отказ.
+ */
+@Component
+public class VaultHttpClient {
+
+    public static final int STATE_CLOSED = 0;
+    public static final int STATE_OPEN = 1;
+    public static final int STATE_HALF_OPEN = 2;
+
+    private final String vaultAddr;
+    private final String vaultToken;
+    private final Duration requestTimeout;
+    private final int failureThreshold;
+    private final long openNanos;
+    private final CryptoMetrics cryptoMetrics;
+
+    private final ThreadPoolExecutor executor;
+    private final HttpClient httpClient;
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long openUntilNanos;
+    private volatile boolean open;
+    // в полуоткрытом состоянии пробный вызов идёт один
+    private final AtomicBoolean probeInFlight = new AtomicBoolean();
+
+    public VaultHttpClient(@Value("${VAULT_ADDR:http://app-vault:8200}") String vaultAddr,
+                           @Value("${VAULT_TOKEN:root}") String vaultToken,
+                           @Value("${vault.http.version:HTTP_1_1}") String httpVersion,
+                           @Value("${vault.http.connect-timeout-ms:2000}") long connectTimeoutMs,
+                           @Value("${vault.http.request-timeout-ms:3000}") long requestTimeoutMs,
+                           @Value("${vault.http.executor-threads:4}") int executorThreads,
+                           @Value("${vault.circuit-breaker.failure-threshold:5}") int failureThreshold,
+                           @Value("${vault.circuit-breaker.open-seconds:10}") long openSeconds,
+                           CryptoMetrics cryptoMetrics) {
+        this.vaultAddr = vaultAddr;
+        this.vaultToken = vaultToken;
+        this.requestTimeout = Duration.ofMillis(requestTimeoutMs);
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openNanos = TimeUnit.SECONDS.toNanos(openSeconds);
+        this.cryptoMetrics = cryptoMetrics;
+
+        // Пул HttpClient'а (доставка ответов, TLS) - ограниченный; при переполнении очереди
+        // работа выполняется в вызывающем потоке, а не отбрасывается.
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(executorThreads, executorThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(1024), r -> {
+                    Thread t = new Thread(r, "vault-http-" + threadNumber.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.valueOf(httpVersion))
+                .connectTimeout(Duration.ofMillis(connectTimeoutMs))
+                .executor(executor)
+                .build();
+
+        cryptoMetrics.bindVaultClient(this);
+    }
+
+    /**
+     * Клиент с настройками по умолчанию - для бенчмарков и ручной сборки сервисов.
+     */
+    public static VaultHttpClient withDefaults(String vaultAddr, String vaultToken, CryptoMetrics cryptoMetrics) {
+        return new VaultHttpClient(vaultAddr, vaultToken, "HTTP_1_1", 2000, 3000, 4, 5, 10, cryptoMetrics);
+    }
+
+    /**
+     * Запрос к Vault API (path без /v1/): адрес, токен и таймаут уже выставлены.
+     */
+    public HttpRequest.Builder request(String path) {
+        return HttpRequest.newBuilder()
+                .uri(URI.create(vaultAddr + "/v1/" + path))
+                .header("X-Vault-Token", vaultToken)
+                .timeout(requestTimeout);
+    }
+
+    /**
+     * Все HTTP-вызовы Vault идут через этот метод: circuit breaker, время и статус в метриках.
+     * Vault недоступен (цепь разомкнута, таймаут, ошибка соединения) - VaultUnavailableException.
+     */
+    public HttpResponse<String> send(HttpRequest request, String operation) throws Exception {
+        CryptoEvents.VaultCall event = new CryptoEvents.VaultCall();
+        event.begin();
+        boolean probe;
+        try {
+            probe = acquirePermission(operation);
+        } catch (VaultUnavailableException e) {
+            commit(event, request, operation, 0, "circuit_open", 0);
+            throw e;
+        }
+        long started = System.nanoTime();
+        try {
+            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+            cryptoMetrics.recordVaultCall(operation, String.valueOf(response.statusCode()), System.nanoTime() - started);
+            commit(event, request, operation, response.statusCode(), null,
+                    response.body() == null ? 0 : response.body().length());
+            if (response.statusCode() >= 500) {
+                onFailure(probe);
+            } else {
+                onSuccess();
+            }
+            return response;
+        } catch (HttpTimeoutException e) {
+            cryptoMetrics.recordVaultCall(operation, "timeout", System.nanoTime() - started);
+            commit(event, request, operation, 0, "timeout", 0);
+            onFailure(probe);
+            throw new VaultUnavailableException(VaultUnavailableException.VAULT_TIMEOUT,
+                    "Vault " + operation + " timed out after " + (System.nanoTime() - started) / 1_000_000 + " ms",
+                    0, e);
+        } catch (IOException e) {
+            cryptoMetrics.recordVaultCall(operation, "io_error", System.nanoTime() - started);
+            commit(event, request, operation, 0, "io_error", 0);
+            onFailure(probe);
+            throw new VaultUnavailableException(VaultUnavailableException.VAULT_UNAVAILABLE,
+                    "Vault " + operation + " failed: " + e, 0, e);
+        } catch (RuntimeException | InterruptedException e) {
+            cryptoMetrics.recordVaultCall(operation, "io_error", System.nanoTime() - started);
+            commit(event, request, operation, 0, "io_error", 0);
+            if (probe) {
+                probeInFlight.set(false);
+            }
+            throw e;
+        }
+    }
+
+    // событие JFR: путь без адреса и токена; размер ответа - в символах тела
+    private static void commit(CryptoEvents.VaultCall event, HttpRequest request, String operation,
+                               int status, String outcome, int responseBytes) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = operation;
+            event.method = request.method();
+            event.path = request.uri().getPath();
+            event.status = status;
+            event.outcome = outcome != null ? outcome : String.valueOf(status);
+            event.responseBytes = responseBytes;
+            event.commit();
+        }
+    }
+
+    /**
+     * STATE_CLOSED / STATE_OPEN / STATE_HALF_OPEN - для метрик и health.
+     */
+    public int getCircuitState() {
+        if (!open) {
+            return STATE_CLOSED;
+        }
+        return System.nanoTime() - openUntilNanos < 0 ? STATE_OPEN : STATE_HALF_OPEN;
+    }
+
+    public String getCircuitStateName() {
+        switch (getCircuitState()) {
+            case STATE_OPEN:
+                return "open";
+            case STATE_HALF_OPEN:
+                return "half_open";
+            default:
+                return "closed";
+        }
+    }
+
+    public int getConsecutiveFailures() {
+        return consecutiveFailures.get();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * true - этот вызов пробный (цепь полуоткрыта).
+     */
+    private boolean acquirePermission(String operation) {
+        if (!open) {
+            return false;
+        }
+        long remaining = openUntilNanos - System.nanoTime();
+        if (remaining <= 0 && probeInFlight.compareAndSet(false, true)) {
+            return true;
+        }
+        cryptoMetrics.recordVaultCall(operation, "circuit_open", 0);
+        long retryAfterSeconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(remaining) + 1);
+        throw new VaultUnavailableException(VaultUnavailableException.VAULT_CIRCUIT_OPEN,
+                "Vault is unavailable (circuit open after " + consecutiveFailures.get() +
+                        " consecutive failures), retry in " + retryAfterSeconds + " s",
+                retryAfterSeconds, null);
+    }
+
+    private void onSuccess() {
+        consecutiveFailures.set(0);
+        if (open) {
+            open = false;
+            probeInFlight.set(false);
+            System.out.println("VaultHttpClient: Vault is back, circuit closed");
+        }
+    }
+
+    private void onFailure(boolean probe) {
+        int failures = consecutiveFailures.incrementAndGet();
+        if (probe || (!open && failures >= failureThreshold)) {
+            openUntilNanos = System.nanoTime() + openNanos;
+            open = true;
+            probeInFlight.set(false);
+            System.out.println("VaultHttpClient: circuit opened for " + TimeUnit.NANOSECONDS.toSeconds(openNanos) +
+                    " s after " + failures + " consecutive failures");
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.example.wrapper;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ключи из Vault без ожидания на горячем пути.
+ *
+ * 1) Прогрев: AES keyring и HMAC-ключ грузятся параллельно до того, как приложение
+ *    объявит readiness (ApplicationRunner выполняется раньше ACCEPTING_TRAFFIC,
+ *    а VaultKeysHealthIndicator держит readiness в DOWN, пока ключей нет).
+ * 2) Фоновая сверка по расписанию (stale-while-revalidate): запросы работают со
+ *    снимком в памяти, а отдельный поток подтягивает ротацию, сделанную другой репликой.
+ *    Интервал с разбросом (jitter), чтобы реплики не ходили в Vault одновременно;
+ *    при ошибках - экспоненциальный backoff с full jitter до max-backoff.
+ *    Сверка AES - чтение current_version из metadata секрета, сам ключ читается только
+ *    при смене версии, поэтому интервал можно держать коротким. Шифротекст с key_id,
+ *    которого реплика ещё не видела, не ждёт сверки: VaultKeyService догружает ключ сразу.
+ */
+@Component
+public class VaultKeyRefresher implements ApplicationRunner {
+
+    private static final long MIN_BACKOFF_MILLIS = 1_000;
+
+    private final VaultKeyService vaultKeyService;
+    private final CryptoMetrics cryptoMetrics;
+
+    private final boolean warmupEnabled;
+    private final long warmupTimeoutMillis;
+    private final long refreshIntervalMillis;
+    private final double jitter;
+    private final long maxBackoffMillis;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "vault-key-refresh");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // меняются только в потоке планировщика
+    private int consecutiveFailures;
+
+    private volatile long lastSuccessMillis;
+    private volatile String lastError;
+
+    public VaultKeyRefresher(VaultKeyService vaultKeyService,
+                             CryptoMetrics cryptoMetrics,
+                             @Value("${crypto.keys.warmup.enabled:true}") boolean warmupEnabled,
+                             @Value("${crypto.keys.warmup.timeout-seconds:30}") long warmupTimeoutSeconds,
+                             @Value("${crypto.keys.refresh.interval-seconds:30}") long refreshIntervalSeconds,
+                             @Value("${crypto.keys.refresh.jitter:0.2}") double jitter,
+                             @Value("${crypto.keys.refresh.max-backoff-seconds:300}") long maxBackoffSeconds) {
+        this.vaultKeyService = vaultKeyService;
+        this.cryptoMetrics = cryptoMetrics;
+        this.warmupEnabled = warmupEnabled;
+        this.warmupTimeoutMillis = warmupTimeoutSeconds * 1000;
+        this.refreshIntervalMillis = refreshIntervalSeconds * 1000;
+        this.jitter = Math.max(0, Math.min(jitter, 1));
+        this.maxBackoffMillis = Math.max(MIN_BACKOFF_MILLIS, maxBackoffSeconds * 1000);
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        boolean warm = !warmupEnabled || warmUp();
+        if (refreshIntervalMillis > 0) {
+            // не прогрелись - следующая попытка уже по backoff, а не через полный интервал
+            if (!warm) {
+                consecutiveFailures = 1;
+            }
+            schedule(warm ? nextRefreshDelay() : nextBackoffDelay());
+        } else {
+            System.out.println("VaultKeyRefresher: background refresh disabled");
+        }
+    }
+
+    /**
+     * Параллельная загрузка AES и HMAC. Ошибку только логируем: ленивая загрузка
+     * на первом запросе и фоновая сверка остаются.
+     */
+    private boolean warmUp() {
+        long started = System.nanoTime();
+        CompletableFuture<Void> aes = CompletableFuture.runAsync(vaultKeyService::getAesKeyring);
+        CompletableFuture<Void> hmac = CompletableFuture.runAsync(vaultKeyService::getHmacKey);
+        try {
+            CompletableFuture.allOf(aes, hmac).get(warmupTimeoutMillis, TimeUnit.MILLISECONDS);
+            lastSuccessMillis = System.currentTimeMillis();
+            System.out.println("VaultKeyRefresher: keys warmed up in " +
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " ms");
+            return true;
+        } catch (Exception e) {
+            lastError = String.valueOf(e.getCause() != null ? e.getCause() : e);
+            System.out.println("VaultKeyRefresher: warm-up failed, will retry in background: " + lastError);
+            return false;
+        }
+    }
+
+    private void refresh() {
+        try {
+            boolean aesChanged = vaultKeyService.refreshAesKeysFromVault();
+            boolean hmacChanged = vaultKeyService.refreshHmacKeyFromVault();
+            cryptoMetrics.keyRefresh(aesChanged || hmacChanged ? "changed" : "unchanged");
+            consecutiveFailures = 0;
+            lastSuccessMillis = System.currentTimeMillis();
+            lastError = null;
+            schedule(nextRefreshDelay());
+        } catch (Exception e) {
+            cryptoMetrics.keyRefresh("error");
+            consecutiveFailures++;
+            lastError = String.valueOf(e);
+            long delay = nextBackoffDelay();
+            System.out.println("VaultKeyRefresher: refresh failed (" + consecutiveFailures +
+                    " in a row), serving cached keys, next attempt in " + delay + " ms: " + lastError);
+            schedule(delay);
+        }
+    }
+
+    private void schedule(long delayMillis) {
+        if (!scheduler.isShutdown()) {
+            scheduler.schedule(this::refresh, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // interval * [1 - jitter, 1 + jitter]
+    private long nextRefreshDelay() {
+        double factor = 1 - jitter + 2 * jitter * ThreadLocalRandom.current().nextDouble();
+        return Math.max(1, (long) (refreshIntervalMillis * factor));
+    }
+
+    // full jitter: [backoff / 2, backoff], backoff = 1s * 2^(n-1), не больше max
+    private long nextBackoffDelay() {
+        int shift = Math.min(consecutiveFailures - 1, 30);
+        long backoff = Math.min(maxBackoffMillis, MIN_BACKOFF_MILLIS << Math.max(shift, 0));
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    public long getLastSuccessMillis() {
+        return lastSuccessMillis;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+}
@@ -3,161 +3,463 @@ package com.example.wrapper;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import javax.crypto.spec.SecretKeySpec;
-import java.net.URI;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
 @Service
 public class VaultKeyService {
 
-    private final HttpClient httpClient = HttpClient.newHttpClient();
+    private final VaultHttpClient vault;
     private final ObjectMapper objectMapper = new ObjectMapper();
 
-    private final String vaultAddr;
-    private final String vaultToken;
-
     // ---------- AES (профиль) ----------
 
-    // Текущий мастер-ключ профиля
-    private volatile SecretKeySpec cachedAesCurrentKey;
-    private volatile String cachedAesCurrentKeyId = "master-v1";
+    private static final String MASTER_KEY_PATH = "secret/data/crypto/master-key";
+    private static final String MASTER_KEY_METADATA_PATH = "secret/metadata/crypto/master-key";
+
+    // writeAesKeyToVault: запись отклонена check-and-set (секрет успела изменить другая реплика)
+    private static final int CAS_CONFLICT = -1;
+    // options.cas не передаём (версия неизвестна)
+    private static final int NO_CAS = -1;
+
+    // Снимок всех известных поколений мастер-ключа; подменяется целиком
+    private final AtomicReference<AesKeyring> aesKeyring = new AtomicReference<>();
+
+    // Сколько версий master-key хранит Vault KV (старые поколения читаются оттуда)
+    private final int masterKeyMaxVersions;
+
+    // Загрузка и ротация мастер-ключа - один поток за раз.
+    // Везде ReentrantLock, а не synchronized: внутри идут блокирующие HTTP-вызовы Vault,
+    // а монитор на Java 21 прикалывает виртуальный поток к carrier-потоку.
+    // Захват - через CryptoEvents.lock: ожидание видно в записи JFR (KeyLockContention).
+    private final ReentrantLock aesLock = new ReentrantLock();
 
-    // Предыдущий мастер-ключ профиля (для расшифровки старых данных)
-    private volatile SecretKeySpec cachedAesPrevKey;
-    private volatile String cachedAesPrevKeyId = null;
+    // Догрузку истории из Vault делает один поток за раз
+    private final ReentrantLock aesHistoryLock = new ReentrantLock();
+
+    // Внеочередная сверка на неизвестном key_id из заголовка шифротекста (ротация на другой реплике) -
+    // не чаще раза в секунду: мусорный key_id не должен превращаться в поток запросов к Vault.
+    // Одна сверка на процесс (single-flight), без блокировки на время HTTP: остальные ждут её результат
+    private static final long ON_DEMAND_REFRESH_MIN_INTERVAL_NANOS = 1_000_000_000L;
+    private final AtomicReference<CompletableFuture<AesKeyring>> onDemandRefresh = new AtomicReference<>();
+    private volatile long lastOnDemandRefreshNanos = System.nanoTime() - ON_DEMAND_REFRESH_MIN_INTERVAL_NANOS;
+
+    // Сколько раз ротация пробует записать новое поколение, проигрывая check-and-set другой реплике
+    private static final int ROTATE_CAS_ATTEMPTS = 3;
+
+    // Токену может не хватать прав на metadata - тогда сверка читает сам секрет; пишем об этом в лог один раз
+    private volatile boolean masterKeyMetadataUnreadableLogged;
 
     // ---------- HMAC (роли/доступ) ----------
 
-    private volatile byte[] cachedHmacKey;
-    private volatile String cachedHmacKeyId = "access-hmac-v1";
+    private static final String HMAC_KEY_PATH = "secret/data/crypto/access-hmac-key";
+    private static final String DEFAULT_HMAC_KEY_ID = "access-hmac-v1";
 
-    public VaultKeyService() {
-        this.vaultAddr = System.getenv().getOrDefault("VAULT_ADDR", "http://app-vault:8200");
-        this.vaultToken = System.getenv().getOrDefault("VAULT_TOKEN", "root");
+    /**
+     * Неизменяемая пара (ключ, key_id): подпись и key_id в ответе всегда от одного ключа,
+     * даже если фоновая сверка подменяет ключ посреди запроса.
+     */
+    public static final class HmacKey {
+        public final String keyId;
+        public final byte[] key;
+
+        HmacKey(String keyId, byte[] key) {
+            this.keyId = keyId;
+            this.key = key;
+        }
+    }
+
+    private volatile HmacKey hmacKey;
+    private final ReentrantLock hmacLock = new ReentrantLock();
+
+    // Кто хочет узнать о ротации мастер-ключа (например, кэш derived-ключей)
+    private final List<Runnable> rotationListeners = new CopyOnWriteArrayList<>();
+
+    // ---------- Режим конверта (ключи данных) ----------
+
+    private final EnvelopeSettings envelope;
+    // есть всегда: шифротексты с dek_id расшифровываются и при выключенном режиме
+    private final DataKeyManager dataKeys;
+
+    // Адрес, токен, таймауты и circuit breaker - в VaultHttpClient
+    public VaultKeyService(VaultHttpClient vault,
+                           @Value("${VAULT_MASTER_KEY_MAX_VERSIONS:1000}") int masterKeyMaxVersions,
+                           EnvelopeSettings envelope) {
+        this.vault = vault;
+        this.masterKeyMaxVersions = masterKeyMaxVersions;
+        this.envelope = envelope;
+        this.dataKeys = new DataKeyManager(vault, this, envelope);
     }
 
     // ================= AES: публичные методы =================
 
     public SecretKeySpec getAesKey() {
-        ensureAesKeysLoaded();
-        return cachedAesCurrentKey;
+        return ensureAesKeysLoaded().current().key;
     }
 
     public SecretKeySpec getPrevAesKeyOrNull() {
-        ensureAesKeysLoaded();
-        return cachedAesPrevKey;
+        return getAesKeyByIdOrNull(ensureAesKeysLoaded().prevKeyId());
     }
 
     public String getKeyId() {
-        ensureAesKeysLoaded();
-        return cachedAesCurrentKeyId;
+        return ensureAesKeysLoaded().current().keyId;
+    }
+
+    public String getPrevKeyIdOrNull() {
+        return ensureAesKeysLoaded().prevKeyId();
     }
 
     /**
-     * Ротация мастер-ключа профиля:
-     * prev <- current, current <- new.
+     * Текущий снимок keyring (current + загруженные старые поколения).
      */
-    public synchronized void rotateAesMasterKey() throws Exception {
-        ensureAesKeysLoaded();
+    public AesKeyring getAesKeyring() {
+        return ensureAesKeysLoaded();
+    }
 
-        // старый current станет prev
-        SecretKeySpec oldCurrent = cachedAesCurrentKey;
-        String oldCurrentId = cachedAesCurrentKeyId;
+    /**
+     * Мастер-ключ по key_id, null - если такого ключа нет.
+     * Известные поколения - O(1) из снимка; неизвестный key_id один раз догружается
+     * из старых версий секрета в Vault KV.
+     */
+    public SecretKeySpec getAesKeyByIdOrNull(String keyId) {
+        if (keyId == null) {
+            return null;
+        }
+        if (DataKeyManager.isDataKeyId(keyId)) {
+            return getDataKeyByIdOrNull(keyId);
+        }
+        AesKeyring keyring = ensureAesKeysLoaded();
+        AesKeyring.Generation generation = keyring.get(keyId);
+        if (generation != null) {
+            return generation.key;
+        }
+        // key_id новее нашего current: другая реплика уже сделала ротацию,
+        // а фоновая сверка её ещё не подхватила - догоняем сейчас
+        keyring = refreshForUnknownKeyId(keyId);
+        generation = keyring.get(keyId);
+        if (generation != null) {
+            return generation.key;
+        }
+        if (keyring.oldestScannedKvVersion() <= 1) {
+            // вся история уже прочитана - такого ключа нет
+            return null;
+        }
+        try {
+            generation = loadOldGenerationFromVault(keyId);
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to load AES key " + keyId + " from Vault", e);
+        }
+        return generation == null ? null : generation.key;
+    }
 
-        // генерируем новый current
-        byte[] newKeyBytes = new byte[32]; // 256 bit
-        SecureRandom random = new SecureRandom();
-        random.nextBytes(newKeyBytes);
+    /**
+     * Все поколения мастер-ключа от нового к старому - для старого формата IV||ct без key_id,
+     * когда подсказка, current и prev не подошли. Историю из Vault дочитывает целиком
+     * один раз на процесс (дальше oldestScannedKvVersion = 1 и это чтение из снимка).
+     */
+    public List<AesKeyring.Generation> getAllAesGenerationsNewestFirst() {
+        AesKeyring keyring = ensureAesKeysLoaded();
+        if (keyring.oldestScannedKvVersion() > 1) {
+            try {
+                loadOldGenerationFromVault(null);
+            } catch (Exception e) {
+                throw new RuntimeException("Failed to load AES key history from Vault", e);
+            }
+            keyring = aesKeyring.get();
+        }
+        return keyring.newestFirst();
+    }
 
-        String newKeyHex = bytesToHex(newKeyBytes);
-        String newKeyId = nextVersionId(oldCurrentId);
+    /**
+     * Ключи уже в памяти (прогрев прошёл) - для health/readiness.
+     */
+    public boolean isAesKeyringLoaded() {
+        return aesKeyring.get() != null;
+    }
 
-        // готовим JSON для Vault
-        ObjectNode dataInner = objectMapper.createObjectNode();
-        dataInner.put("current_key_hex", newKeyHex);
-        dataInner.put("current_key_id", newKeyId);
+    /**
+     * Фоновая сверка с Vault (VaultKeyRefresher): подхватывает ротацию, сделанную
+     * другой репликой. Запросы всё это время работают со старым снимком.
+     * true - снимок поменялся.
+     *
+     * Сначала дешёвая проверка версии: current_version из metadata секрета
+     * (у KV v2 нет ETag, номер версии - его аналог). Совпала с версией нашего current -
+     * сам секрет с ключом не читаем.
+     */
+    public boolean refreshAesKeysFromVault() throws Exception {
+        AesKeyring known = aesKeyring.get();
+        if (known == null) {
+            ensureAesKeysLoaded();
+            return true;
+        }
 
-        if (oldCurrent != null) {
-            dataInner.put("prev_key_hex", bytesToHex(oldCurrent.getEncoded()));
-            dataInner.put("prev_key_id", oldCurrentId);
+        int knownVersion = known.current().kvVersion;
+        if (knownVersion > 0) {
+            int remoteVersion = readMasterKeyCurrentVersion();
+            if (remoteVersion > 0 && remoteVersion <= knownVersion) {
+                return false;
+            }
         }
 
-        // для совместимости оставим старые поля
-        dataInner.put("key_hex", newKeyHex);
-        dataInner.put("key_id", newKeyId);
-        dataInner.put("algo", "AES-256-GCM");
+        HttpResponse<String> response = readMasterKeyVersion(0);
+        if (response.statusCode() / 100 != 2) {
+            throw new RuntimeException("Vault AES refresh error: " + response.statusCode());
+        }
+        JsonNode root = objectMapper.readTree(response.body());
+        int kvVersion = root.path("data").path("metadata").path("version").asInt(0);
+        AesKeyring remote = parseAesDocument(root.path("data").path("data"), kvVersion);
+        if (remote == null) {
+            throw new RuntimeException("Vault AES refresh error: no key data in latest version");
+        }
 
-        ObjectNode outer = objectMapper.createObjectNode();
-        outer.set("data", dataInner);
+        AesKeyring.Generation remoteCurrent = remote.current();
+        if (known.get(remoteCurrent.keyId) != null || remoteCurrent.kvVersion <= known.current().kvVersion) {
+            return false;
+        }
 
-        String body = objectMapper.writeValueAsString(outer);
+        CryptoEvents.lock(aesLock, "aes");
+        try {
+            // пока ждали блокировку, это поколение могла поставить наша же ротация
+            if (aesKeyring.get().get(remoteCurrent.keyId) != null) {
+                return false;
+            }
+            // Несколько ротаций подряд на другой реплике: промежуточные версии читаем сразу,
+            // ленивая догрузка истории их не найдёт - она идёт только вниз от самой старой версии.
+            List<AesKeyring.Generation> skipped = new ArrayList<>();
+            int fromVersion = aesKeyring.get().current().kvVersion;
+            for (int version = fromVersion + 1; fromVersion > 0 && version < remoteCurrent.kvVersion; version++) {
+                HttpResponse<String> old = readMasterKeyVersion(version);
+                if (old.statusCode() / 100 == 2) {
+                    AesKeyring doc = parseAesDocument(
+                            objectMapper.readTree(old.body()).path("data").path("data"), version);
+                    if (doc != null) {
+                        for (String id : doc.keyIds()) {
+                            skipped.add(doc.get(id));
+                        }
+                    }
+                } else if (old.statusCode() != 404) {
+                    throw new RuntimeException("Vault AES history read error: " + old.statusCode());
+                }
+            }
+            for (String id : remote.keyIds()) {
+                if (!id.equals(remoteCurrent.keyId)) {
+                    skipped.add(remote.get(id)); // из prev_key_hex
+                }
+            }
 
-        String url = vaultAddr + "/v1/secret/data/crypto/master-key";
+            AesKeyring updated = aesKeyring.updateAndGet(k -> {
+                if (k.get(remoteCurrent.keyId) != null) {
+                    return k;
+                }
+                AesKeyring next = k;
+                for (AesKeyring.Generation generation : skipped) {
+                    next = next.withOldGeneration(generation);
+                }
+                return next.withNewCurrent(remoteCurrent, remote.prevKeyId());
+            });
+
+            System.out.println("VaultKeyService: picked up AES master key rotated elsewhere, current_id=" +
+                    updated.current().keyId + ", prev_id=" + updated.prevKeyId() +
+                    ", kv_version=" + updated.current().kvVersion + ", keyring_size=" + updated.size());
+            return true;
+        } finally {
+            aesLock.unlock();
+        }
+    }
 
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(url))
-                .header("X-Vault-Token", vaultToken)
-                .header("Content-Type", "application/json")
-                .PUT(HttpRequest.BodyPublishers.ofString(body))
-                .build();
+    public void addRotationListener(Runnable listener) {
+        rotationListeners.add(listener);
+    }
 
-        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+    /**
+     * Ротация мастер-ключа профиля: новое поколение пишется новой версией
+     * секрета в Vault KV (сам ключ, prev_key_id и пока ещё prev_key_hex),
+     * старые поколения остаются в предыдущих версиях и в keyring.
+     * Отказывает, если не удалось поднять max_versions секрета.
+     *
+     * Сначала запись в Vault, потом одна атомарная подмена снимка keyring.
+     * Запросы снимок читают без блокировок: всё время записи они шифруют старым current,
+     * после подмены - новым, ключ и key_id всегда из одного снимка. aesLock
+     * сериализует только ротации, первичную загрузку и фоновую сверку между собой.
+     */
+    public void rotateAesMasterKey() throws Exception {
+        CryptoEvents.lock(aesLock, "aes");
+        try {
+            rotateAesMasterKeyLocked();
+        } finally {
+            aesLock.unlock();
+        }
+    }
 
-        if (response.statusCode() / 100 != 2) {
-            System.out.println("VaultKeyService: Vault AES rotate write error, status=" +
-                    response.statusCode() + " body=" + response.body());
-            throw new RuntimeException("Vault AES rotate write error: " + response.statusCode());
+    /**
+     * Запись нового поколения - с check-and-set на версию KV нашего current: если другая реплика
+     * успела повернуть ключ, запись отклоняется (иначе две реплики выпустили бы два разных
+     * ключа с одним key_id). Тогда подхватываем её поколение и пробуем поверх него.
+     */
+    private void rotateAesMasterKeyLocked() throws Exception {
+        // без поднятого max_versions Vault через 10 ротаций молча удалит старые поколения
+        if (!ensureMasterKeyHistoryRetained()) {
+            throw new RuntimeException("Vault AES rotate refused: cannot set max_versions=" + masterKeyMaxVersions +
+                    " on " + MASTER_KEY_METADATA_PATH + " (token needs update on metadata), " +
+                    "old key generations would be deleted by Vault after 10 rotations");
         }
+        SecureRandom random = new SecureRandom();
 
-        // обновляем кэш
-        cachedAesPrevKey = oldCurrent;
-        cachedAesPrevKeyId = oldCurrentId;
+        for (int attempt = 1; ; attempt++) {
+            AesKeyring keyring = ensureAesKeysLoaded();
+            String oldCurrentId = keyring.current().keyId;
+            int expectedVersion = keyring.current().kvVersion > 0
+                    ? keyring.current().kvVersion
+                    : readMasterKeyCurrentVersion();
 
-        cachedAesCurrentKey = new SecretKeySpec(newKeyBytes, "AES");
-        cachedAesCurrentKeyId = newKeyId;
+            // генерируем новый current
+            byte[] newKeyBytes = new byte[32]; // 256 bit
+            random.nextBytes(newKeyBytes);
+            String newKeyId = nextVersionId(oldCurrentId);
+
+            byte[] oldCurrentBytes = keyring.current().key.getEncoded();
+            int kvVersion;
+            try {
+                kvVersion = writeAesKeyToVault(newKeyBytes, newKeyId, oldCurrentId, oldCurrentBytes,
+                        "rotate", expectedVersion);
+            } finally {
+                Arrays.fill(oldCurrentBytes, (byte) 0);
+            }
+            if (kvVersion == CAS_CONFLICT) {
+                Arrays.fill(newKeyBytes, (byte) 0);
+                if (attempt >= ROTATE_CAS_ATTEMPTS) {
+                    throw new RuntimeException("Vault AES rotate conflict: master key was rotated concurrently " +
+                            attempt + " times in a row, retry later");
+                }
+                System.out.println("VaultKeyService: rotate lost check-and-set at kv_version=" + expectedVersion +
+                        ", picking up the concurrent rotation and retrying");
+                refreshAesKeysFromVault();
+                continue;
+            }
+            installRotatedKey(newKeyBytes, newKeyId, oldCurrentId, kvVersion);
+            return;
+        }
+    }
+
+    private void installRotatedKey(byte[] newKeyBytes, String newKeyId, String oldCurrentId, int kvVersion) {
+        // атомарно подменяем снимок; updateAndGet, а не set - не теряем поколения,
+        // которые параллельно догрузила история (loadOldGenerationFromVault)
+        AesKeyring.Generation newCurrent =
+                new AesKeyring.Generation(newKeyId, new SecretKeySpec(newKeyBytes, "AES"), kvVersion);
+        aesKeyring.updateAndGet(k -> k.withNewCurrent(newCurrent));
 
         System.out.println("VaultKeyService: rotated AES master key, new current_id=" + newKeyId +
-                ", prev_id=" + oldCurrentId);
+                ", prev_id=" + oldCurrentId + ", kv_version=" + kvVersion);
+
+        for (Runnable listener : rotationListeners) {
+            listener.run();
+        }
     }
 
-    // ================= AES: внутренняя загрузка =================
+    // ================= Режим конверта: публичные методы =================
 
-    private void ensureAesKeysLoaded() {
-        if (cachedAesCurrentKey != null) {
-            return;
+    public boolean isEnvelopeMode() {
+        return envelope.enabled;
+    }
+
+    public EnvelopeSettings getEnvelopeSettings() {
+        return envelope;
+    }
+
+    /**
+     * Ключ, которым шифровать поля пользователя: в режиме конверта - его ключ данных
+     * (создаётся при первом обращении), иначе - переданное поколение мастер-ключа
+     * (снимок current, взятый вызывающим один раз на запрос/пакет).
+     */
+    public AesKeyring.Generation encryptionKeyFor(String userId, AesKeyring.Generation master) {
+        if (!envelope.enabled) {
+            return master;
         }
-        synchronized (this) {
-            if (cachedAesCurrentKey != null) {
-                return;
-            }
-            try {
-                loadAesKeysFromVaultOrGenerate();
-            } catch (Exception e) {
-                throw new RuntimeException("Failed to load AES keys from Vault", e);
-            }
+        try {
+            return dataKeys.forUser(userId);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to obtain data key from Vault", e);
         }
     }
 
-    private void loadAesKeysFromVaultOrGenerate() throws Exception {
-        String url = vaultAddr + "/v1/secret/data/crypto/master-key";
+    /**
+     * Перезаворачивает ключи данных текущим KEK; данные пользователей не трогаются.
+     */
+    public DataKeyManager.RewrapResult rewrapDataKeys() throws Exception {
+        return dataKeys.rewrapAll();
+    }
 
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(url))
-                .header("X-Vault-Token", vaultToken)
-                .GET()
-                .build();
+    /**
+     * Ротация KEK ключей данных: ключ transit или (wrap=local) мастер-ключ,
+     * затем rewrap всех ключей данных.
+     */
+    public DataKeyManager.RewrapResult rotateDataKeyKek() throws Exception {
+        if ("transit".equals(envelope.wrap)) {
+            dataKeys.rotateTransitKey();
+        } else {
+            rotateAesMasterKey();
+        }
+        return dataKeys.rewrapAll();
+    }
+
+    public DataKeyManager getDataKeys() {
+        return dataKeys;
+    }
+
+    private SecretKeySpec getDataKeyByIdOrNull(String dekId) {
+        try {
+            AesKeyring.Generation generation = dataKeys.byIdOrNull(dekId);
+            return generation == null ? null : generation.key;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to load data key " + dekId + " from Vault", e);
+        }
+    }
+
+    // ================= AES: внутренняя загрузка =================
+
+    private AesKeyring ensureAesKeysLoaded() {
+        AesKeyring keyring = aesKeyring.get();
+        if (keyring != null) {
+            return keyring;
+        }
+        CryptoEvents.lock(aesLock, "aes");
+        try {
+            keyring = aesKeyring.get();
+            if (keyring != null) {
+                return keyring;
+            }
+            keyring = loadAesKeysFromVaultOrGenerate();
+            aesKeyring.set(keyring);
+            return keyring;
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to load AES keys from Vault", e);
+        } finally {
+            aesLock.unlock();
+        }
+    }
 
-        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+    private AesKeyring loadAesKeysFromVaultOrGenerate() throws Exception {
+        HttpResponse<String> response = readMasterKeyVersion(0);
 
         if (response.statusCode() == 404) {
             System.out.println("VaultKeyService: AES master key not found in Vault (404), generating new");
-            generateAndStoreInitialAesKey();
-            return;
+            return generateAndStoreInitialAesKey(0);
         }
 
         if (response.statusCode() / 100 != 2) {
@@ -168,94 +470,284 @@ public class VaultKeyService {
 
         JsonNode root = objectMapper.readTree(response.body());
         JsonNode dataNode = root.path("data").path("data");
+        int kvVersion = root.path("data").path("metadata").path("version").asInt(0);
 
-        // Новый формат: current_key_hex / prev_key_hex
+        AesKeyring keyring = parseAesDocument(dataNode, kvVersion);
+        if (keyring == null) {
+            System.out.println("VaultKeyService: no AES key data in Vault, generating new");
+            return generateAndStoreInitialAesKey(kvVersion > 0 ? kvVersion : NO_CAS);
+        }
+
+        System.out.println("VaultKeyService: loaded AES keys from Vault, current_id=" +
+                keyring.current().keyId + ", prev_id=" + keyring.prevKeyId() + ", kv_version=" + kvVersion);
+        return keyring;
+    }
+
+    /**
+     * Разбор одной версии секрета master-key.
+     * Новый формат: current_key_hex / current_key_id (+ prev_key_id ссылкой,
+     * и prev_key_hex - пока пишется для реплик предыдущего релиза).
+     * Старый формат: key_hex / key_id.
+     * null - в документе нет ключа.
+     */
+    private AesKeyring parseAesDocument(JsonNode dataNode, int kvVersion) {
         String currentKeyHex = dataNode.path("current_key_hex").asText(null);
         String currentKeyId = dataNode.path("current_key_id").asText(null);
 
         String prevKeyHex = dataNode.path("prev_key_hex").asText(null);
         String prevKeyId = dataNode.path("prev_key_id").asText(null);
 
-        // Старый формат: key_hex / key_id
         String legacyKeyHex = dataNode.path("key_hex").asText(null);
         String legacyKeyId = dataNode.path("key_id").asText("master-v1");
 
         if (currentKeyHex != null && !currentKeyHex.isEmpty()) {
-            byte[] currentBytes = hexToBytes(currentKeyHex);
-            cachedAesCurrentKey = new SecretKeySpec(currentBytes, "AES");
-            cachedAesCurrentKeyId = (currentKeyId != null && !currentKeyId.isEmpty())
-                    ? currentKeyId
-                    : "master-v1";
-
-            if (prevKeyHex != null && !prevKeyHex.isEmpty()) {
-                byte[] prevBytes = hexToBytes(prevKeyHex);
-                cachedAesPrevKey = new SecretKeySpec(prevBytes, "AES");
-                cachedAesPrevKeyId = prevKeyId;
+            String keyId = (currentKeyId != null && !currentKeyId.isEmpty()) ? currentKeyId : "master-v1";
+            AesKeyring keyring = AesKeyring.of(
+                    new AesKeyring.Generation(keyId, new SecretKeySpec(hexToBytes(currentKeyHex), "AES"), kvVersion),
+                    prevKeyId);
+            if (prevKeyHex != null && !prevKeyHex.isEmpty() && prevKeyId != null) {
+                keyring = keyring.withOldGeneration(
+                        new AesKeyring.Generation(prevKeyId, new SecretKeySpec(hexToBytes(prevKeyHex), "AES"), kvVersion));
             }
-
-            System.out.println("VaultKeyService: loaded AES keys from Vault, current_id=" +
-                    cachedAesCurrentKeyId + ", prev_id=" + cachedAesPrevKeyId);
-        } else if (legacyKeyHex != null && !legacyKeyHex.isEmpty()) {
+            return keyring;
+        }
+        if (legacyKeyHex != null && !legacyKeyHex.isEmpty()) {
             // Совместимость со старым форматом (один ключ)
-            byte[] keyBytes = hexToBytes(legacyKeyHex);
-            cachedAesCurrentKey = new SecretKeySpec(keyBytes, "AES");
-            cachedAesCurrentKeyId = legacyKeyId;
+            return AesKeyring.of(
+                    new AesKeyring.Generation(legacyKeyId, new SecretKeySpec(hexToBytes(legacyKeyHex), "AES"), kvVersion),
+                    null);
+        }
+        return null;
+    }
 
-            cachedAesPrevKey = null;
-            cachedAesPrevKeyId = null;
+    /**
+     * Ленивая догрузка старого поколения: читаем версии секрета master-key
+     * от самой старой ещё не просмотренной вниз, пока не встретим key_id
+     * (keyId = null - вся история до версии 1).
+     * Все встреченные по пути поколения тоже попадают в keyring.
+     */
+    private AesKeyring.Generation loadOldGenerationFromVault(String keyId) throws Exception {
+        CryptoEvents.lock(aesHistoryLock, "aes-history");
+        try {
+            AesKeyring keyring = aesKeyring.get();
+            AesKeyring.Generation found = keyring.get(keyId);
+            if (found != null) {
+                return found;
+            }
 
-            System.out.println("VaultKeyService: loaded AES legacy key from Vault, key_id=" +
-                    cachedAesCurrentKeyId);
-        } else {
-            System.out.println("VaultKeyService: no AES key data in Vault, generating new");
-            generateAndStoreInitialAesKey();
+            for (int version = keyring.oldestScannedKvVersion() - 1; version >= 1; version--) {
+                HttpResponse<String> response = readMasterKeyVersion(version);
+                if (response.statusCode() / 100 == 2) {
+                    JsonNode dataNode = objectMapper.readTree(response.body()).path("data").path("data");
+                    AesKeyring doc = parseAesDocument(dataNode, version);
+                    if (doc != null) {
+                        for (String id : doc.keyIds()) {
+                            AesKeyring.Generation generation = doc.get(id);
+                            aesKeyring.updateAndGet(k -> k.withOldGeneration(generation));
+                        }
+                    }
+                } else if (response.statusCode() != 404) {
+                    // 404 - версия удалена/уничтожена, просто идём дальше
+                    throw new RuntimeException("Vault AES history read error: " + response.statusCode());
+                }
+
+                final int scanned = version;
+                keyring = aesKeyring.updateAndGet(k -> k.withOldestScannedKvVersion(scanned));
+                found = keyring.get(keyId);
+                if (found != null) {
+                    System.out.println("VaultKeyService: loaded old AES key from Vault, key_id=" + keyId +
+                            ", kv_version=" + version + ", keyring_size=" + keyring.size());
+                    return found;
+                }
+            }
+
+            if (keyId == null) {
+                System.out.println("VaultKeyService: loaded AES key history from Vault, keyring_size=" + keyring.size());
+            } else {
+                System.out.println("VaultKeyService: AES key_id=" + keyId + " not found in Vault history");
+            }
+            return null;
+        } finally {
+            aesHistoryLock.unlock();
         }
     }
 
-    private void generateAndStoreInitialAesKey() throws Exception {
+    /**
+     * Первый ключ - с check-and-set на версию, которую видели при чтении (0 - секрета нет):
+     * реплики, стартующие одновременно, не перезапишут ключи друг друга.
+     * Проиграли гонку - читаем ключ победителя.
+     */
+    private AesKeyring generateAndStoreInitialAesKey(int cas) throws Exception {
         byte[] keyBytes = new byte[32]; // 256 bit
         SecureRandom random = new SecureRandom();
         random.nextBytes(keyBytes);
 
-        String keyHex = bytesToHex(keyBytes);
-        cachedAesCurrentKeyId = "master-v1";
+        String keyId = "master-v1";
+
+        // первая версия - терять пока нечего; без прав на metadata откажет первая ротация
+        ensureMasterKeyHistoryRetained();
+        int kvVersion = writeAesKeyToVault(keyBytes, keyId, null, null, "initial", cas);
+        if (kvVersion == CAS_CONFLICT) {
+            Arrays.fill(keyBytes, (byte) 0);
+            System.out.println("VaultKeyService: AES master key was created by another replica, reading it");
+            return loadAesKeysFromVaultOrGenerate();
+        }
 
-        String url = vaultAddr + "/v1/secret/data/crypto/master-key";
+        System.out.println("VaultKeyService: generated initial AES master key, id=" + keyId);
+        return AesKeyring.of(new AesKeyring.Generation(keyId, new SecretKeySpec(keyBytes, "AES"), kvVersion), null);
+    }
+
+    /**
+     * Пишет поколение мастер-ключа новой версией секрета master-key:
+     * сам ключ + ссылка на prev_key_id (старые поколения - в прошлых версиях секрета).
+     * prevKeyBytes пишется ещё и как prev_key_hex - на один релиз: реплики предыдущей версии
+     * при rolling upgrade берут prev только из документа.
+     * cas >= 0 - запись только поверх этой версии KV (options.cas), NO_CAS - без проверки.
+     * Возвращает номер версии KV (0, если Vault его не вернул) или CAS_CONFLICT.
+     */
+    private int writeAesKeyToVault(byte[] keyBytes, String keyId, String prevKeyId, byte[] prevKeyBytes,
+                                   String op, int cas) throws Exception {
+        String keyHex = bytesToHex(keyBytes);
 
         ObjectNode dataInner = objectMapper.createObjectNode();
         dataInner.put("current_key_hex", keyHex);
-        dataInner.put("current_key_id", cachedAesCurrentKeyId);
+        dataInner.put("current_key_id", keyId);
+        if (prevKeyId != null) {
+            dataInner.put("prev_key_id", prevKeyId);
+            if (prevKeyBytes != null) {
+                dataInner.put("prev_key_hex", bytesToHex(prevKeyBytes));
+            }
+        }
 
         // Для совместимости
         dataInner.put("key_hex", keyHex);
-        dataInner.put("key_id", cachedAesCurrentKeyId);
+        dataInner.put("key_id", keyId);
         dataInner.put("algo", "AES-256-GCM");
 
         ObjectNode outer = objectMapper.createObjectNode();
+        if (cas != NO_CAS) {
+            outer.putObject("options").put("cas", cas);
+        }
         outer.set("data", dataInner);
 
         String body = objectMapper.writeValueAsString(outer);
 
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(url))
-                .header("X-Vault-Token", vaultToken)
+        HttpRequest request = vault.request(MASTER_KEY_PATH)
                 .header("Content-Type", "application/json")
                 .PUT(HttpRequest.BodyPublishers.ofString(body))
                 .build();
 
-        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        HttpResponse<String> response = vault.send(request, "write_master_key");
+
+        // 400 на запись с options.cas - версия уже не та
+        if (cas != NO_CAS && response.statusCode() == 400) {
+            return CAS_CONFLICT;
+        }
 
         if (response.statusCode() / 100 != 2) {
-            System.out.println("VaultKeyService: Vault AES initial write error, status=" +
+            System.out.println("VaultKeyService: Vault AES " + op + " write error, status=" +
                     response.statusCode() + " body=" + response.body());
-            throw new RuntimeException("Vault AES initial write error: " + response.statusCode());
+            throw new RuntimeException("Vault AES " + op + " write error: " + response.statusCode());
+        }
+
+        return objectMapper.readTree(response.body()).path("data").path("version").asInt(0);
+    }
+
+    /**
+     * current_version секрета master-key из metadata; -1 - metadata недоступна
+     * (нет секрета или у токена нет прав), тогда сверка читает сам секрет.
+     */
+    private int readMasterKeyCurrentVersion() throws Exception {
+        HttpRequest request = vault.request(MASTER_KEY_METADATA_PATH)
+                .GET()
+                .build();
+
+        HttpResponse<String> response = vault.send(request, "read_master_key_metadata");
+        if (response.statusCode() / 100 != 2) {
+            if (response.statusCode() != 404 && !masterKeyMetadataUnreadableLogged) {
+                masterKeyMetadataUnreadableLogged = true;
+                System.out.println("VaultKeyService: cannot read master key metadata (status=" +
+                        response.statusCode() + "), refresh will read the secret itself");
+            }
+            return -1;
+        }
+        return objectMapper.readTree(response.body()).path("data").path("current_version").asInt(-1);
+    }
+
+    /**
+     * Внеочередная сверка для неизвестного key_id. Идёт одна на процесс: кто пришёл во время
+     * неё - ждёт её результат; чаще раза в ON_DEMAND_REFRESH_MIN_INTERVAL_NANOS в Vault не ходим
+     * (тогда сразу текущий снимок).
+     */
+    private AesKeyring refreshForUnknownKeyId(String keyId) {
+        // сверка ошибки наружу не отдаёт (только лог), future всегда завершается снимком - join без исключений
+        CompletableFuture<AesKeyring> running = onDemandRefresh.get();
+        if (running != null) {
+            return running.join();
+        }
+        AesKeyring keyring = aesKeyring.get();
+        if (keyring.get(keyId) != null || System.nanoTime() - lastOnDemandRefreshNanos < ON_DEMAND_REFRESH_MIN_INTERVAL_NANOS) {
+            return keyring;
+        }
+        CompletableFuture<AesKeyring> mine = new CompletableFuture<>();
+        if (!onDemandRefresh.compareAndSet(null, mine)) {
+            running = onDemandRefresh.get();
+            return running == null ? aesKeyring.get() : running.join();
         }
+        try {
+            // проверка интервала ещё раз: сверка могла закончиться между get и compareAndSet
+            if (System.nanoTime() - lastOnDemandRefreshNanos >= ON_DEMAND_REFRESH_MIN_INTERVAL_NANOS) {
+                lastOnDemandRefreshNanos = System.nanoTime();
+                try {
+                    refreshAesKeysFromVault();
+                } catch (Exception e) {
+                    System.out.println("VaultKeyService: on-demand AES refresh for key_id=" + keyId + " failed: " + e);
+                }
+            }
+            return aesKeyring.get();
+        } finally {
+            mine.complete(aesKeyring.get());
+            onDemandRefresh.compareAndSet(mine, null);
+        }
+    }
+
+    /**
+     * version = 0 - последняя версия.
+     */
+    private HttpResponse<String> readMasterKeyVersion(int version) throws Exception {
+        HttpRequest request = vault.request(MASTER_KEY_PATH + (version > 0 ? "?version=" + version : ""))
+                .GET()
+                .build();
 
-        cachedAesCurrentKey = new SecretKeySpec(keyBytes, "AES");
-        cachedAesPrevKey = null;
-        cachedAesPrevKeyId = null;
+        return vault.send(request, "read_master_key");
+    }
 
-        System.out.println("VaultKeyService: generated initial AES master key, id=" + cachedAesCurrentKeyId);
+    /**
+     * По умолчанию KV v2 хранит только 10 версий секрета - а старые поколения
+     * ключа живут именно в старых версиях. Поднимаем лимит; false - не вышло
+     * (например, у токена нет прав на metadata), ротация тогда отказывает.
+     */
+    private boolean ensureMasterKeyHistoryRetained() {
+        try {
+            ObjectNode body = objectMapper.createObjectNode();
+            body.put("max_versions", masterKeyMaxVersions);
+
+            HttpRequest request = vault.request(MASTER_KEY_METADATA_PATH)
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(objectMapper.writeValueAsString(body)))
+                    .build();
+
+            HttpResponse<String> response = vault.send(request, "write_master_key_metadata");
+            if (response.statusCode() / 100 != 2) {
+                System.out.println("VaultKeyService: Vault AES metadata write error, status=" +
+                        response.statusCode() + " body=" + response.body());
+                return false;
+            }
+            return true;
+        } catch (Exception e) {
+            System.out.println("VaultKeyService: Vault AES metadata write error: " + e.getMessage());
+            return false;
+        }
     }
 
     private static String nextVersionId(String currentId) {
@@ -278,59 +770,95 @@ public class VaultKeyService {
 
     // ================= HMAC: публичные методы =================
 
-    public byte[] getHmacKey() {
-        if (cachedHmacKey != null) {
-            return cachedHmacKey;
+    /**
+     * Текущий HMAC-ключ вместе с его key_id. Кто отдаёт key_id наружу рядом с подписью,
+     * берёт оба значения отсюда одним чтением.
+     */
+    public HmacKey getHmacKeySnapshot() {
+        HmacKey snapshot = hmacKey;
+        if (snapshot != null) {
+            return snapshot;
         }
 
-        synchronized (this) {
-            if (cachedHmacKey != null) {
-                return cachedHmacKey;
+        CryptoEvents.lock(hmacLock, "hmac");
+        try {
+            if (hmacKey != null) {
+                return hmacKey;
             }
-            try {
-                byte[] key = loadHmacKeyFromVault();
-                if (key == null) {
-                    key = generateAndStoreHmacKeyInVault();
+            snapshot = loadHmacKeyFromVault();
+            if (snapshot == null) {
+                snapshot = generateAndStoreHmacKeyInVault();
+            }
+            if (snapshot == null) {
+                // другая реплика записала ключ первой (check-and-set) - берём её ключ
+                snapshot = loadHmacKeyFromVault();
+                if (snapshot == null) {
+                    throw new RuntimeException("Vault HMAC key exists but has no key_hex");
                 }
-                cachedHmacKey = key;
-                return key;
-            } catch (Exception e) {
-                throw new RuntimeException("Failed to obtain HMAC key from Vault", e);
             }
+            hmacKey = snapshot;
+            return snapshot;
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to obtain HMAC key from Vault", e);
+        } finally {
+            hmacLock.unlock();
         }
     }
 
-    public String getHmacKeyId() {
-        return cachedHmacKeyId;
+    public byte[] getHmacKey() {
+        return getHmacKeySnapshot().key;
     }
 
-    private byte[] loadHmacKeyFromVault() throws Exception {
-        String url = vaultAddr + "/v1/secret/data/crypto/access-hmac-key";
+    public String getHmacKeyId() {
+        HmacKey snapshot = hmacKey;
+        return snapshot == null ? DEFAULT_HMAC_KEY_ID : snapshot.keyId;
+    }
 
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(url))
-                .header("X-Vault-Token", vaultToken)
-                .GET()
-                .build();
+    public boolean isHmacKeyLoaded() {
+        return hmacKey != null;
+    }
 
-        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+    /**
+     * Фоновая сверка HMAC-ключа с Vault. Пропавший секрет не перегенерируем -
+     * продолжаем работать с тем, что в памяти. true - ключ поменялся.
+     */
+    public boolean refreshHmacKeyFromVault() throws Exception {
+        HmacKey known = hmacKey;
+        if (known == null) {
+            getHmacKeySnapshot();
+            return true;
+        }
 
-        if (response.statusCode() == 404) {
-            System.out.println("VaultKeyService: HMAC key not found in Vault (404)");
-            return null;
+        JsonNode dataNode = readHmacKeyDocument();
+        String keyHex = dataNode == null ? null : dataNode.path("key_hex").asText(null);
+        if (keyHex == null || keyHex.isEmpty()) {
+            return false;
+        }
+        byte[] keyBytes = hexToBytes(keyHex);
+        if (Arrays.equals(keyBytes, known.key)) {
+            return false;
         }
 
-        if (response.statusCode() / 100 != 2) {
-            System.out.println("VaultKeyService: Vault HMAC read error, status=" +
-                    response.statusCode() + " body=" + response.body());
-            throw new RuntimeException("Vault HMAC read error: " + response.statusCode());
+        HmacKey updated = new HmacKey(dataNode.path("key_id").asText(DEFAULT_HMAC_KEY_ID), keyBytes);
+        CryptoEvents.lock(hmacLock, "hmac");
+        try {
+            hmacKey = updated;
+        } finally {
+            hmacLock.unlock();
         }
+        System.out.println("VaultKeyService: picked up new HMAC key from Vault, key_id=" + updated.keyId);
+        return true;
+    }
 
-        JsonNode root = objectMapper.readTree(response.body());
-        JsonNode dataNode = root.path("data").path("data");
+    private HmacKey loadHmacKeyFromVault() throws Exception {
+        JsonNode dataNode = readHmacKeyDocument();
+        if (dataNode == null) {
+            System.out.println("VaultKeyService: HMAC key not found in Vault (404)");
+            return null;
+        }
 
         String keyHex = dataNode.path("key_hex").asText(null);
-        String keyId = dataNode.path("key_id").asText("access-hmac-v1");
+        String keyId = dataNode.path("key_id").asText(DEFAULT_HMAC_KEY_ID);
 
         if (keyHex == null || keyHex.isEmpty()) {
             System.out.println("VaultKeyService: HMAC key_hex is missing");
@@ -338,48 +866,75 @@ public class VaultKeyService {
         }
 
         byte[] keyBytes = hexToBytes(keyHex);
-        cachedHmacKeyId = keyId;
 
-        System.out.println("VaultKeyService: loaded HMAC key from Vault, key_id=" + cachedHmacKeyId);
-        return keyBytes;
+        System.out.println("VaultKeyService: loaded HMAC key from Vault, key_id=" + keyId);
+        return new HmacKey(keyId, keyBytes);
+    }
+
+    /**
+     * data.data секрета access-hmac-key, null - секрета нет (404).
+     */
+    private JsonNode readHmacKeyDocument() throws Exception {
+        HttpRequest request = vault.request(HMAC_KEY_PATH)
+                .GET()
+                .build();
+
+        HttpResponse<String> response = vault.send(request, "read_hmac_key");
+
+        if (response.statusCode() == 404) {
+            return null;
+        }
+
+        if (response.statusCode() / 100 != 2) {
+            System.out.println("VaultKeyService: Vault HMAC read error, status=" +
+                    response.statusCode() + " body=" + response.body());
+            throw new RuntimeException("Vault HMAC read error: " + response.statusCode());
+        }
+
+        return objectMapper.readTree(response.body()).path("data").path("data");
     }
 
-    private byte[] generateAndStoreHmacKeyInVault() throws Exception {
+    /**
+     * Пишет новый ключ с cas=0 (только если секрета ещё нет); null - секрет уже есть.
+     */
+    private HmacKey generateAndStoreHmacKeyInVault() throws Exception {
         byte[] keyBytes = new byte[32]; // 256 bit HMAC key
         SecureRandom random = new SecureRandom();
         random.nextBytes(keyBytes);
 
         String keyHex = bytesToHex(keyBytes);
 
-        String url = vaultAddr + "/v1/secret/data/crypto/access-hmac-key";
-
         ObjectNode dataInner = objectMapper.createObjectNode();
         dataInner.put("key_hex", keyHex);
         dataInner.put("algo", "HMAC-SHA256");
-        dataInner.put("key_id", cachedHmacKeyId);
+        dataInner.put("key_id", DEFAULT_HMAC_KEY_ID);
 
         ObjectNode outer = objectMapper.createObjectNode();
+        outer.putObject("options").put("cas", 0);
         outer.set("data", dataInner);
 
         String body = objectMapper.writeValueAsString(outer);
 
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(url))
-                .header("X-Vault-Token", vaultToken)
+        HttpRequest request = vault.request(HMAC_KEY_PATH)
                 .header("Content-Type", "application/json")
                 .PUT(HttpRequest.BodyPublishers.ofString(body))
                 .build();
 
-        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        HttpResponse<String> response = vault.send(request, "write_hmac_key");
 
+        if (response.statusCode() == 400) {
+            Arrays.fill(keyBytes, (byte) 0);
+            System.out.println("VaultKeyService: HMAC key was created by another replica, reading it");
+            return null;
+        }
         if (response.statusCode() / 100 != 2) {
             System.out.println("VaultKeyService: Vault HMAC write error, status=" +
                     response.statusCode() + " body=" + response.body());
             throw new RuntimeException("Vault HMAC write error: " + response.statusCode());
         }
 
-        System.out.println("VaultKeyService: generated new HMAC key and stored in Vault, key_id=" + cachedHmacKeyId);
-        return keyBytes;
+        System.out.println("VaultKeyService: generated new HMAC key and stored in Vault, key_id=" + DEFAULT_HMAC_KEY_ID);
+        return new HmacKey(DEFAULT_HMAC_KEY_ID, keyBytes);
     }
 
     // ================= Вспомогательные методы =================
@@ -0,0 +1,50 @@
+package com.example.wrapper;
+
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+/**
+ * health-компонент "vaultKeys": UP, когда AES keyring и HMAC-ключ уже в памяти.
+ * Входит в группу readiness, так что трафик не придёт раньше прогрева ключей.
+ * Ошибки фоновой сверки и разомкнутый circuit breaker Vault статус не роняют -
+ * работаем на закэшированных ключах.
+ */
+@Component
+public class VaultKeysHealthIndicator implements HealthIndicator {
+
+    private final VaultKeyService vaultKeyService;
+    private final VaultKeyRefresher vaultKeyRefresher;
+    private final VaultHttpClient vaultHttpClient;
+
+    public VaultKeysHealthIndicator(VaultKeyService vaultKeyService, VaultKeyRefresher vaultKeyRefresher,
+                                    VaultHttpClient vaultHttpClient) {
+        this.vaultKeyService = vaultKeyService;
+        this.vaultKeyRefresher = vaultKeyRefresher;
+        this.vaultHttpClient = vaultHttpClient;
+    }
+
+    @Override
+    public Health health() {
+        boolean aesLoaded = vaultKeyService.isAesKeyringLoaded();
+        boolean hmacLoaded = vaultKeyService.isHmacKeyLoaded();
+
+        Health.Builder builder = (aesLoaded && hmacLoaded) ? Health.up() : Health.down();
+        if (aesLoaded) {
+            builder.withDetail("aes_key_id", vaultKeyService.getKeyId());
+        }
+        if (hmacLoaded) {
+            builder.withDetail("hmac_key_id", vaultKeyService.getHmacKeyId());
+        }
+        long lastSuccess = vaultKeyRefresher.getLastSuccessMillis();
+        if (lastSuccess > 0) {
+            builder.withDetail("last_refresh_age_seconds", (System.currentTimeMillis() - lastSuccess) / 1000);
+        }
+        String lastError = vaultKeyRefresher.getLastError();
+        if (lastError != null) {
+            builder.withDetail("last_refresh_error", lastError);
+        }
+        builder.withDetail("vault_circuit", vaultHttpClient.getCircuitStateName());
+        return builder.build();
+    }
+}
@@ -0,0 +1,35 @@
+package com.example.wrapper;
+
+/**
+ * Vault не ответил: таймаут, ошибка соединения или разомкнутый circuit breaker.
+ * Наружу уходит как 503 с кодом ошибки (VaultErrorHandler), даже если по дороге
+ * завёрнуто в RuntimeException.
+ */
+public class VaultUnavailableException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String VAULT_UNAVAILABLE = "vault_unavailable";
+    public static final String VAULT_TIMEOUT = "vault_timeout";
+    public static final String VAULT_CIRCUIT_OPEN = "vault_circuit_open";
+
+    private final String code;
+    private final long retryAfterSeconds;
+
+    public VaultUnavailableException(String code, String message, long retryAfterSeconds, Throwable cause) {
+        super(message, cause);
+        this.code = code;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    /**
+     * Через сколько секунд имеет смысл повторить (0 - неизвестно).
+     */
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
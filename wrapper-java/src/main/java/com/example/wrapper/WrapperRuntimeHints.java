@@ -0,0 +1,48 @@
+package com.example.wrapper;
+
+import org.springframework.aot.hint.BindingReflectionHintsRegistrar;
+import org.springframework.aot.hint.MemberCategory;
+import org.springframework.aot.hint.RuntimeHints;
+import org.springframework.aot.hint.RuntimeHintsRegistrar;
+
+import java.lang.reflect.Modifier;
+
+/**
+ * Подсказки для native image (mvn -Pnative) и AOT-режима на JVM.
+ *
+ * DTO контроллеров (публичные вложенные классы) - для Jackson в JSON и CBOR: Spring AOT
+ * сам видит только типы параметров и результатов методов, а элементы пакетов, ответы
+ * из ResponseEntity и тело 429 из CryptoAdmissionFilter (свой ObjectMapper) - нет.
+ *
+ * VaultKeyService, DataKeyManager и RewrapService работают с Vault и файлом checkpoint
+ * через дерево JsonNode/ObjectNode - рефлексия для этого не нужна.
+ *
+ * Провайдеры BC/ACCP ищутся через Class.forName по имени из crypto.provider.candidates;
+ * если в образе их нет, CryptoProviderSelector покажет их unavailable и оставит SunJCE.
+ */
+public class WrapperRuntimeHints implements RuntimeHintsRegistrar {
+
+    private static final Class<?>[] DTO_HOLDERS = {
+            CryptoController.class,
+            BlindIndexController.class,
+            DataKeyController.class,
+            RewrapController.class,
+            CryptoProviderController.class,
+            JfrController.class,
+            VaultErrorHandler.class
+    };
+
+    @Override
+    public void registerHints(RuntimeHints hints, ClassLoader classLoader) {
+        BindingReflectionHintsRegistrar bindings = new BindingReflectionHintsRegistrar();
+        for (Class<?> holder : DTO_HOLDERS) {
+            for (Class<?> nested : holder.getDeclaredClasses()) {
+                if (Modifier.isPublic(nested.getModifiers()) && Modifier.isStatic(nested.getModifiers())) {
+                    bindings.registerReflectionHints(hints.reflection(), nested);
+                    // DTO с публичными полями без геттеров
+                    hints.reflection().registerType(nested, MemberCategory.PUBLIC_FIELDS);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.example.wrapper;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Разбор заголовка CiphertextEnvelope: что считается конвертом, а что - старым форматом.
+ */
+class CiphertextEnvelopeTest {
+
+    private static final int MIN_BODY = CiphertextEnvelope.IV_LENGTH_BYTES + CiphertextEnvelope.TAG_LENGTH_BYTES;
+
+    @Test
+    void headerRoundTrips() {
+        byte[] data = envelope("master-v7", MIN_BODY);
+
+        CiphertextEnvelope envelope = CiphertextEnvelope.tryParse(data);
+
+        assertNotNull(envelope);
+        assertEquals("master-v7", envelope.keyId);
+        assertEquals(2 + "master-v7".length(), envelope.headerLength);
+        assertEquals(envelope.headerLength, envelope.ivOffset);
+        assertArrayEquals(CiphertextEnvelope.header("master-v7"), Arrays.copyOf(data, envelope.headerLength));
+    }
+
+    @Test
+    void otherVersionIsLegacy() {
+        byte[] data = envelope("master-v1", MIN_BODY);
+        data[0] = 0x02;
+
+        assertNull(CiphertextEnvelope.tryParse(data));
+    }
+
+    @Test
+    void emptyKeyIdIsLegacy() {
+        byte[] data = new byte[2 + MIN_BODY];
+        data[0] = CiphertextEnvelope.VERSION_1;
+
+        assertNull(CiphertextEnvelope.tryParse(data));
+    }
+
+    @Test
+    void tooShortForIvAndTagIsLegacy() {
+        assertNull(CiphertextEnvelope.tryParse(envelope("master-v1", MIN_BODY - 1)));
+        assertNull(CiphertextEnvelope.tryParse(new byte[]{CiphertextEnvelope.VERSION_1}));
+        assertNull(CiphertextEnvelope.tryParse(new byte[0]));
+    }
+
+    @Test
+    void keyIdLengthBeyondDataIsLegacy() {
+        byte[] data = envelope("master-v1", MIN_BODY);
+        data[1] = (byte) 0xFF; // 255 байт key_id - данных меньше
+
+        assertNull(CiphertextEnvelope.tryParse(data));
+    }
+
+    @Test
+    void lengthLimitIgnoresBufferTail() {
+        // рабочий буфер CryptoEngine длиннее данных: хвост за length не должен делать данные конвертом
+        byte[] buffer = Arrays.copyOf(envelope("master-v1", MIN_BODY - 1), 256);
+
+        assertNull(CiphertextEnvelope.tryParse(buffer, 2 + "master-v1".length() + MIN_BODY - 1));
+        assertNotNull(CiphertextEnvelope.tryParse(buffer, 2 + "master-v1".length() + MIN_BODY));
+    }
+
+    @Test
+    void headerRejectsEmptyAndOversizedKeyId() {
+        assertThrows(IllegalArgumentException.class, () -> CiphertextEnvelope.header(""));
+        char[] longId = new char[256];
+        Arrays.fill(longId, 'k');
+        assertThrows(IllegalArgumentException.class, () -> CiphertextEnvelope.header(new String(longId)));
+        assertEquals(257, CiphertextEnvelope.header(new String(longId, 0, 255)).length);
+    }
+
+    @Test
+    void multiByteKeyIdIsMeasuredInBytes() {
+        String keyId = "ключ-1";
+        byte[] data = envelope(keyId, MIN_BODY);
+
+        CiphertextEnvelope envelope = CiphertextEnvelope.tryParse(data);
+
+        assertNotNull(envelope);
+        assertEquals(keyId, envelope.keyId);
+        assertEquals(2 + keyId.getBytes(StandardCharsets.UTF_8).length, envelope.headerLength);
+    }
+
+    private static byte[] envelope(String keyId, int bodyLength) {
+        byte[] header = CiphertextEnvelope.header(keyId);
+        return Arrays.copyOf(header, header.length + bodyLength);
+    }
+}
@@ -0,0 +1,46 @@
+package com.example.wrapper;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Возврат Workspace: записанное за операцию затирается, даже если Workspace в пул не вернётся.
+ */
+class CryptoEngineTest {
+
+    @AfterEach
+    void restoreProviders() {
+        CryptoEngine.useProviders(null, null);
+    }
+
+    @Test
+    void workspaceFromBeforeProviderSwitchIsWipedOnRelease() {
+        CryptoEngine.Workspace ws = CryptoEngine.acquire();
+        int length = ws.encodeUtf8("secret plaintext");
+        byte[] input = ws.input;
+
+        CryptoEngine.useProviders(null, null);
+        CryptoEngine.release(ws);
+
+        assertArrayEquals(new byte[length], Arrays.copyOf(input, length));
+    }
+
+    @Test
+    void oversizedBufferIsWipedBeforeItIsDropped() {
+        CryptoEngine.Workspace ws = CryptoEngine.acquire();
+        char[] large = new char[100 * 1024];
+        Arrays.fill(large, 's');
+        int length = ws.encodeUtf8(new String(large));
+        byte[] input = ws.input;
+        assertTrue(input.length > 64 * 1024);
+
+        CryptoEngine.release(ws);
+
+        assertArrayEquals(new byte[length], Arrays.copyOf(input, length));
+    }
+}
@@ -0,0 +1,157 @@
+package com.example.wrapper;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Ключи данных (wrap=local) на заглушке Vault: обёртка, создание без дублей, rewrap после ротации.
+ */
+class DataKeyManagerTest {
+
+    private static final String DATA_KEYS = "crypto/data-keys/";
+
+    private InProcessVaultStub vault;
+    private VaultKeyService vaultKeyService;
+    private DataKeyManager dataKeys;
+    private final ExecutorService executor = Executors.newFixedThreadPool(8);
+
+    @BeforeEach
+    void setUp() throws Exception {
+        vault = InProcessVaultStub.start();
+        vaultKeyService = newVaultKeyService();
+        dataKeys = vaultKeyService.getDataKeys();
+        vaultKeyService.getAesKeyring(); // мастер-ключ загружен заранее - в счётчиках запросов только ключи данных
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+        vault.close();
+    }
+
+    @Test
+    void wrappedKeyUnwrapsToSameMaterial() throws Exception {
+        byte[] created = dataKeys.forUser("u1").key.getEncoded();
+
+        dataKeys.invalidateAll();
+        AesKeyring.Generation loaded = dataKeys.byIdOrNull(DataKeyManager.idFor("u1"));
+
+        assertArrayEquals(created, loaded.key.getEncoded());
+        assertEquals(1, dataKeys.getUnwraps());
+        // в Vault - только обёртка
+        String stored = vault.latest(path("u1")).path("wrapped_key").asText();
+        assertEquals("local", vault.latest(path("u1")).path("wrap").asText());
+        assertEquals(vaultKeyService.getKeyId(), vault.latest(path("u1")).path("kek_id").asText());
+        assertFalse(stored.contains(hex(created)));
+    }
+
+    @Test
+    void unknownDataKeyIsNull() throws Exception {
+        assertNull(dataKeys.byIdOrNull(DataKeyManager.idFor("nobody")));
+        assertNull(dataKeys.byIdOrNull("dek-not-hex"));
+    }
+
+    @Test
+    void replicasRacingToCreateShareOneKey() throws Exception {
+        // обе реплики успевают прочитать 404 и пишут с cas=0 - проигравшая берёт ключ победителя
+        vault.injectLatency(50, 0);
+        DataKeyManager other = newVaultKeyService().getDataKeys();
+        CountDownLatch start = new CountDownLatch(1);
+        Future<byte[]> a = executor.submit(() -> {
+            start.await();
+            return dataKeys.forUser("u1").key.getEncoded();
+        });
+        Future<byte[]> b = executor.submit(() -> {
+            start.await();
+            return other.forUser("u1").key.getEncoded();
+        });
+        start.countDown();
+
+        assertArrayEquals(a.get(10, TimeUnit.SECONDS), b.get(10, TimeUnit.SECONDS));
+        assertEquals(1, vault.versions(path("u1")));
+        assertEquals(1, dataKeys.getCreates() + other.getCreates());
+    }
+
+    @Test
+    void creatorsJoiningReadOnlyLoadCreateOnce() throws Exception {
+        String dekId = DataKeyManager.idFor("u1");
+        vault.injectLatency(200, 0);
+        long before = vault.getRequests();
+
+        // расшифровка с неизвестным dek_id - загрузка "без создания"
+        Future<AesKeyring.Generation> reader = executor.submit(() -> dataKeys.byIdOrNull(dekId));
+        while (vault.getRequests() == before) {
+            Thread.sleep(1);
+        }
+        // шифрования того же пользователя присоединяются к ней и получают null
+        List<Future<byte[]>> creators = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            creators.add(executor.submit(() -> dataKeys.forUser("u1").key.getEncoded()));
+        }
+
+        assertNull(reader.get(10, TimeUnit.SECONDS));
+        byte[] first = creators.get(0).get(10, TimeUnit.SECONDS);
+        for (Future<byte[]> creator : creators) {
+            assertArrayEquals(first, creator.get(10, TimeUnit.SECONDS));
+        }
+        // чтение читателя + одно чтение и одна запись создателя; без single-flight - по паре на каждого
+        assertEquals(3, vault.getRequests() - before);
+        assertEquals(1, dataKeys.getCreates());
+    }
+
+    @Test
+    void rewrapAllMovesKeysToNewMasterKey() throws Exception {
+        byte[] u1 = dataKeys.forUser("u1").key.getEncoded();
+        byte[] u2 = dataKeys.forUser("u2").key.getEncoded();
+        String oldKek = vaultKeyService.getKeyId();
+
+        vaultKeyService.rotateAesMasterKey();
+        DataKeyManager.RewrapResult result = dataKeys.rewrapAll();
+
+        assertEquals(2, result.scanned);
+        assertEquals(2, result.rewrapped);
+        assertEquals(0, result.failed);
+        String newKek = vaultKeyService.getKeyId();
+        assertEquals(newKek, vault.latest(path("u1")).path("kek_id").asText());
+        assertNotEquals(oldKek, newKek);
+
+        // повторный запуск ничего не меняет, ключи данных прежние
+        DataKeyManager.RewrapResult again = dataKeys.rewrapAll();
+        assertEquals(2, again.unchanged);
+        dataKeys.invalidateAll();
+        assertArrayEquals(u1, dataKeys.forUser("u1").key.getEncoded());
+        assertArrayEquals(u2, dataKeys.forUser("u2").key.getEncoded());
+    }
+
+    private VaultKeyService newVaultKeyService() {
+        return new VaultKeyService(VaultHttpClient.withDefaults(vault.url(), "root", CryptoMetrics.inMemory()),
+                1000, new EnvelopeSettings(true, "local", "wrapper-kek", 100, 600));
+    }
+
+    private static String path(String userId) {
+        return DATA_KEYS + DataKeyManager.idFor(userId).substring(DataKeyManager.ID_PREFIX.length());
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b & 0xFF));
+        }
+        return sb.toString();
+    }
+}
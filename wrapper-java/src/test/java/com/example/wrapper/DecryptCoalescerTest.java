@@ -0,0 +1,83 @@
+package com.example.wrapper;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Single-flight DecryptCoalescer: ждущие получают результат или ошибку ведущего, но не зависают.
+ */
+class DecryptCoalescerTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+    private final DecryptCoalescer coalescer =
+            new DecryptCoalescer(CryptoMetrics.inMemory(), true, false, 0, 0);
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void waiterGetsLeaderResult() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        Future<String> leader = executor.submit(() -> coalescer.decrypt("u", "phone", "ct", null, () -> {
+            runs.incrementAndGet();
+            awaitWaiter();
+            return "plain";
+        }));
+        Future<String> waiter = submitWaiterAfterLeaderStarted(runs);
+
+        assertEquals("plain", leader.get(5, TimeUnit.SECONDS));
+        assertEquals("plain", waiter.get(5, TimeUnit.SECONDS));
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    void waiterDoesNotHangWhenLeaderThrowsError() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        Future<String> leader = executor.submit(() -> coalescer.decrypt("u", "phone", "ct", null, () -> {
+            runs.incrementAndGet();
+            awaitWaiter();
+            throw new StackOverflowError("boom");
+        }));
+        Future<String> waiter = submitWaiterAfterLeaderStarted(runs);
+
+        ExecutionException leaderError = assertThrows(ExecutionException.class, () -> leader.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(StackOverflowError.class, leaderError.getCause());
+        // до исправления - TimeoutException: future ведущего не завершался
+        ExecutionException waiterError = assertThrows(ExecutionException.class, () -> waiter.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(StackOverflowError.class, waiterError.getCause());
+
+        // ключ не остался в inFlight - следующий вызов считает заново
+        assertEquals("again", coalescer.decrypt("u", "phone", "ct", null, () -> "again"));
+    }
+
+    private Future<String> submitWaiterAfterLeaderStarted(AtomicInteger runs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (runs.get() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        return executor.submit(() -> coalescer.decrypt("u", "phone", "ct", null, () -> {
+            throw new AssertionError("waiter must not run the decryption");
+        }));
+    }
+
+    // ведущий ждёт, пока ждущий присоединится к его вычислению (счётчик coalesced)
+    private void awaitWaiter() {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (coalescer.getCoalesced() == 0 && System.nanoTime() < deadline) {
+            Thread.onSpinWait();
+        }
+    }
+}
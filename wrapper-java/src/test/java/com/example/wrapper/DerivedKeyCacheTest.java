@@ -0,0 +1,97 @@
+package com.example.wrapper;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * DerivedKeyCache: попадание отдаёт тот же SecretKeySpec, ключ совпадает с HKDF,
+ * ротация и переполнение сбрасывают записи.
+ */
+class DerivedKeyCacheTest {
+
+    private InProcessVaultStub vault;
+    private VaultKeyService vaultKeyService;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        vault = InProcessVaultStub.start();
+        vaultKeyService = new VaultKeyService(VaultHttpClient.withDefaults(vault.url(), "root", CryptoMetrics.inMemory()),
+                1000, EnvelopeSettings.disabled());
+    }
+
+    @AfterEach
+    void tearDown() {
+        vault.close();
+    }
+
+    @Test
+    void hitReturnsTheCachedKeyWithoutCopying() throws Exception {
+        DerivedKeyCache cache = newCache(100);
+        AesKeyring.Generation master = vaultKeyService.getAesKeyring().current();
+
+        SecretKeySpec first = cache.getOrDerive(master.keyId, master.key, "user-1", "phone");
+        SecretKeySpec second = cache.getOrDerive(master.keyId, master.key, "user-1", "phone");
+
+        assertSame(first, second);
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        assertArrayEquals(Hkdf.deriveUserKeyBytes(master.key.getEncoded(), "user-1", "phone"), first.getEncoded());
+    }
+
+    @Test
+    void derivationLeavesMasterKeyIntact() throws Exception {
+        DerivedKeyCache cache = newCache(0);
+        AesKeyring.Generation master = vaultKeyService.getAesKeyring().current();
+        byte[] masterBytes = master.key.getEncoded();
+
+        SecretKeySpec first = cache.getOrDerive(master.keyId, master.key, "user-1", "phone");
+        SecretKeySpec second = cache.getOrDerive(master.keyId, master.key, "user-1", "phone");
+
+        // затирается только наша копия мастер-ключа, не сам ключ
+        assertArrayEquals(masterBytes, master.key.getEncoded());
+        assertNotSame(first, second);
+        assertArrayEquals(first.getEncoded(), second.getEncoded());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void rotationInvalidatesCachedKeys() throws Exception {
+        DerivedKeyCache cache = newCache(100);
+        AesKeyring.Generation master = vaultKeyService.getAesKeyring().current();
+        cache.getOrDerive(master.keyId, master.key, "user-1", "phone");
+        cache.getOrDerive(master.keyId, master.key, "user-2", "phone");
+
+        vaultKeyService.rotateAesMasterKey();
+
+        assertEquals(0, cache.size());
+        assertEquals(2, cache.getEvictions());
+    }
+
+    @Test
+    void overflowEvictsLeastRecentlyUsed() throws Exception {
+        DerivedKeyCache cache = newCache(10);
+        AesKeyring.Generation master = vaultKeyService.getAesKeyring().current();
+        SecretKeySpec hot = cache.getOrDerive(master.keyId, master.key, "user-hot", "phone");
+        for (int i = 0; i < 20; i++) {
+            Thread.sleep(2); // время доступа обновляется не чаще раза в миллисекунду
+            cache.getOrDerive(master.keyId, master.key, "user-" + i, "phone");
+            assertSame(hot, cache.getOrDerive(master.keyId, master.key, "user-hot", "phone"));
+        }
+
+        assertTrue(cache.size() <= 10, "size=" + cache.size());
+        assertTrue(cache.getEvictions() >= 10, "evictions=" + cache.getEvictions());
+    }
+
+    private DerivedKeyCache newCache(int maxSize) {
+        return new DerivedKeyCache(vaultKeyService, CryptoMetrics.inMemory(), maxSize, 300);
+    }
+}
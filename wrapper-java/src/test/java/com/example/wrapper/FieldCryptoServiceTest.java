@@ -0,0 +1,167 @@
+package com.example.wrapper;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Расшифровка через FieldCryptoService на заглушке Vault: старый формат IV||ct
+ * читается при любом числе ротаций, в том числе когда его начало похоже на заголовок
+ * конверта; заголовок конверта защищён тегом (AAD).
+ */
+class FieldCryptoServiceTest {
+
+    private static final String USER = "user-1";
+    private static final String FIELD = "phone";
+
+    private InProcessVaultStub vault;
+    private VaultKeyService vaultKeyService;
+    private FieldCryptoService fieldCryptoService;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        vault = InProcessVaultStub.start();
+        vaultKeyService = newVaultKeyService();
+        fieldCryptoService = newFieldCryptoService(vaultKeyService);
+    }
+
+    @AfterEach
+    void tearDown() {
+        vault.close();
+    }
+
+    @Test
+    void legacyCiphertextIsReadableAfterThreeRotations() throws Exception {
+        String legacy = legacyEncrypt(vaultKeyService.getAesKey(), USER, FIELD, "+7 900 000-00-00");
+
+        vaultKeyService.rotateAesMasterKey();
+        vaultKeyService.rotateAesMasterKey();
+        vaultKeyService.rotateAesMasterKey();
+
+        // backend key_id не передаёт - ни подсказки, ни заголовка
+        assertEquals("+7 900 000-00-00", fieldCryptoService.decrypt(USER, FIELD, legacy, null));
+    }
+
+    @Test
+    void legacyCiphertextIsReadableOnReplicaStartedAfterRotations() throws Exception {
+        String legacy = legacyEncrypt(vaultKeyService.getAesKey(), USER, FIELD, "1990-01-01");
+        vaultKeyService.rotateAesMasterKey();
+        vaultKeyService.rotateAesMasterKey();
+        vaultKeyService.rotateAesMasterKey();
+
+        // новая реплика знает из Vault только current и prev - остальное дочитывает из истории KV
+        VaultKeyService replica = newVaultKeyService();
+        assertEquals("1990-01-01", newFieldCryptoService(replica).decrypt(USER, FIELD, legacy, null));
+    }
+
+    @Test
+    void legacyCiphertextUnderForeignKeyIsRejected() throws Exception {
+        String foreign = legacyEncrypt(new SecretKeySpec(new byte[32], "AES"), USER, FIELD, "x");
+        vaultKeyService.rotateAesMasterKey();
+        vaultKeyService.rotateAesMasterKey();
+
+        assertThrows(RuntimeException.class, () -> fieldCryptoService.decrypt(USER, FIELD, foreign, null));
+    }
+
+    @Test
+    void legacyCiphertextLookingLikeEnvelopeWithUnknownKeyFallsBack() throws Exception {
+        // IV начинается с 0x01 и правдоподобной длины key_id - tryParse видит конверт с ключом "gar..."
+        byte[] iv = "\u0001\u0003garbage-iv".getBytes(StandardCharsets.ISO_8859_1);
+        byte[] legacy = legacyEncryptBytes(vaultKeyService.getAesKey(), USER, FIELD, "+7 900 111-11-11", iv);
+        assertNotNull(CiphertextEnvelope.tryParse(legacy));
+
+        assertEquals("+7 900 111-11-11", fieldCryptoService.decrypt(USER, FIELD, Base64.getEncoder().encodeToString(legacy), null));
+    }
+
+    @Test
+    void legacyCiphertextLookingLikeEnvelopeWithKnownKeyFallsBack() throws Exception {
+        // IV = [0x01][9]["master-v1"][x]: заголовок указывает на настоящий ключ, тег с AAD не сойдётся,
+        // и только старый формат даёт верный результат
+        String keyId = vaultKeyService.getKeyId();
+        byte[] iv = new byte[CiphertextEnvelope.IV_LENGTH_BYTES];
+        byte[] header = CiphertextEnvelope.header(keyId);
+        System.arraycopy(header, 0, iv, 0, header.length);
+        byte[] legacy = legacyEncryptBytes(vaultKeyService.getAesKey(), USER, FIELD, "+7 900 222-22-22", iv);
+        assertEquals(keyId, CiphertextEnvelope.tryParse(legacy).keyId);
+
+        assertEquals("+7 900 222-22-22", fieldCryptoService.decrypt(USER, FIELD, legacy, null));
+    }
+
+    @Test
+    void envelopeHeaderIsBoundByTag() throws Exception {
+        String oldKeyId = vaultKeyService.getKeyId();
+        vaultKeyService.rotateAesMasterKey();
+        String newKeyId = vaultKeyService.getKeyId();
+        assertEquals(oldKeyId.length(), newKeyId.length());
+        byte[] sealed = Base64.getDecoder().decode(
+                fieldCryptoService.encrypt(vaultKeyService.getAesKeyring().current(), USER, FIELD, "secret"));
+        CiphertextEnvelope envelope = CiphertextEnvelope.tryParse(sealed);
+        assertEquals(newKeyId, envelope.keyId);
+        assertEquals("secret", fieldCryptoService.decrypt(USER, FIELD, sealed, null));
+
+        // key_id в заголовке заменён на другой загруженный ключ
+        byte[] swapped = sealed.clone();
+        byte[] oldHeader = CiphertextEnvelope.header(oldKeyId);
+        System.arraycopy(oldHeader, 0, swapped, 0, oldHeader.length);
+        assertThrows(RuntimeException.class, () -> fieldCryptoService.decrypt(USER, FIELD, swapped, null));
+
+        // заголовок отрезан: IV||ct без AAD не расшифровывается ни одним ключом
+        byte[] stripped = Arrays.copyOfRange(sealed, envelope.headerLength, sealed.length);
+        assertThrows(RuntimeException.class, () -> fieldCryptoService.decrypt(USER, FIELD, stripped, null));
+
+        // тот же key_id, но чужой пользователь - другой derived-ключ
+        assertThrows(RuntimeException.class, () -> fieldCryptoService.decrypt("user-2", FIELD, sealed, null));
+    }
+
+    private VaultKeyService newVaultKeyService() {
+        return new VaultKeyService(VaultHttpClient.withDefaults(vault.url(), "root", CryptoMetrics.inMemory()),
+                1000, EnvelopeSettings.disabled());
+    }
+
+    private static FieldCryptoService newFieldCryptoService(VaultKeyService vaultKeyService) {
+        CryptoMetrics metrics = CryptoMetrics.inMemory();
+        return new FieldCryptoService(vaultKeyService, new DerivedKeyCache(vaultKeyService, metrics, 100, 300),
+                metrics, DecryptCoalescer.disabled());
+    }
+
+    /**
+     * Старый формат: Base64(IV || ciphertext+tag) без заголовка и AAD.
+     */
+    static String legacyEncrypt(SecretKeySpec master, String userId, String field, String plaintext) throws Exception {
+        return Base64.getEncoder().encodeToString(legacyEncryptBytes(master, userId, field, plaintext, new SecureRandom()));
+    }
+
+    static byte[] legacyEncryptBytes(SecretKeySpec master, String userId, String field, String plaintext,
+                                     SecureRandom random) throws Exception {
+        byte[] iv = new byte[CiphertextEnvelope.IV_LENGTH_BYTES];
+        random.nextBytes(iv);
+        return legacyEncryptBytes(master, userId, field, plaintext, iv);
+    }
+
+    static byte[] legacyEncryptBytes(SecretKeySpec master, String userId, String field, String plaintext,
+                                     byte[] iv) throws Exception {
+        byte[] userKey = Hkdf.deriveUserKeyBytes(master.getEncoded(), userId, field);
+
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(userKey, "AES"),
+                new GCMParameterSpec(CiphertextEnvelope.TAG_LENGTH_BYTES * 8, iv));
+        byte[] ct = cipher.doFinal(plaintext.getBytes(StandardCharsets.UTF_8));
+
+        byte[] combined = new byte[iv.length + ct.length];
+        System.arraycopy(iv, 0, combined, 0, iv.length);
+        System.arraycopy(ct, 0, combined, iv.length, ct.length);
+        return combined;
+    }
+}
@@ -0,0 +1,326 @@
+package com.example.wrapper;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Заглушка Vault в том же процессе: только то, что вызывает VaultKeyService -
+ * KV v2 secret/data/* (чтение, в т.ч. ?version=N, и запись с options.cas)
+ * и secret/metadata/* (в т.ч. LIST через ?list=true). Тесты и бенчмарки (wrapper-bench
+ * берёт её из test-jar обёртки) работают с ней без сети и без настоящего Vault.
+ *
+ * Для нагрузочных прогонов - инъекция сбоев: задержка ответа (база + равномерный джиттер)
+ * и доля ответов 503, как у Vault в sealed/standby. Настраивается на лету (injectLatency/injectErrors).
+ *
+ * Отдельным процессом (вместо docker-compose с настоящим Vault):
+ *
+ *   java -cp target/benchmarks.jar com.example.wrapper.InProcessVaultStub --port=8200 --latency-ms=5 --error-rate=0.01
+ */
+public final class InProcessVaultStub implements AutoCloseable {
+
+    private static final String DATA_PREFIX = "/v1/secret/data/";
+    private static final String METADATA_PREFIX = "/v1/secret/metadata/";
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final HttpServer server;
+
+    // путь секрета -> все версии (индекс = версия - 1)
+    // доступ только под монитором this
+    private final Map<String, List<JsonNode>> secrets = new HashMap<>();
+
+    // запись metadata отклоняется 403 (токен без прав на metadata)
+    private volatile boolean metadataWritesForbidden;
+
+    private volatile long latencyMs;
+    private volatile long latencyJitterMs;
+    private volatile double errorRate;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong injectedErrors = new AtomicLong();
+
+    private InProcessVaultStub(HttpServer server) {
+        this.server = server;
+    }
+
+    public static InProcessVaultStub start() throws IOException {
+        return start("127.0.0.1", 0);
+    }
+
+    public static InProcessVaultStub start(String host, int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        InProcessVaultStub stub = new InProcessVaultStub(server);
+        server.createContext("/v1/", stub::handle);
+        server.setExecutor(Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "vault-stub");
+            t.setDaemon(true);
+            return t;
+        }));
+        server.start();
+        return stub;
+    }
+
+    public String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Задержка каждого ответа: baseMs + случайно [0, jitterMs].
+     */
+    public void injectLatency(long baseMs, long jitterMs) {
+        this.latencyMs = Math.max(0, baseMs);
+        this.latencyJitterMs = Math.max(0, jitterMs);
+    }
+
+    /**
+     * Доля запросов (0..1), на которые отвечаем 503 без обработки.
+     */
+    public void injectErrors(double rate) {
+        if (rate < 0 || rate > 1) {
+            throw new IllegalArgumentException("error rate must be 0..1, got " + rate);
+        }
+        this.errorRate = rate;
+    }
+
+    /**
+     * Запись secret/metadata/* - 403, как у токена без прав на metadata.
+     */
+    public void forbidMetadataWrites(boolean forbidden) {
+        this.metadataWritesForbidden = forbidden;
+    }
+
+    /**
+     * data.data последней версии секрета (путь без secret/data/), null - секрета нет.
+     */
+    public synchronized JsonNode latest(String secret) {
+        List<JsonNode> versions = secrets.get(secret);
+        return versions == null || versions.isEmpty() ? null : versions.get(versions.size() - 1);
+    }
+
+    /**
+     * Сколько версий у секрета (путь без secret/data/).
+     */
+    public synchronized int versions(String secret) {
+        List<JsonNode> versions = secrets.get(secret);
+        return versions == null ? 0 : versions.size();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getInjectedErrors() {
+        return injectedErrors.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("expected --name=value, got " + arg);
+            }
+            opts.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        InProcessVaultStub stub = start(opts.getOrDefault("host", "0.0.0.0"),
+                Integer.parseInt(opts.getOrDefault("port", "8200")));
+        stub.injectLatency(Long.parseLong(opts.getOrDefault("latency-ms", "0")),
+                Long.parseLong(opts.getOrDefault("jitter-ms", "0")));
+        stub.injectErrors(Double.parseDouble(opts.getOrDefault("error-rate", "0")));
+        System.out.println("InProcessVaultStub: listening on port " + stub.server.getAddress().getPort() +
+                ", latency=" + stub.latencyMs + "+" + stub.latencyJitterMs + "ms, error_rate=" + stub.errorRate);
+        Thread.currentThread().join();
+    }
+
+    private void handle(HttpExchange ex) throws IOException {
+        try {
+            // тело читаем всегда: иначе сервер закроет keep-alive соединение,
+            // а HttpClient попробует переиспользовать его для следующего запроса
+            byte[] body = ex.getRequestBody().readAllBytes();
+            requests.incrementAndGet();
+            if (injectFault(ex)) {
+                return;
+            }
+            String path = ex.getRequestURI().getPath();
+            String method = ex.getRequestMethod();
+            if (path.startsWith(DATA_PREFIX)) {
+                String secret = path.substring(DATA_PREFIX.length());
+                if ("GET".equals(method)) {
+                    readData(ex, secret);
+                } else {
+                    writeData(ex, secret, body);
+                }
+            } else if (path.startsWith(METADATA_PREFIX)) {
+                String secret = path.substring(METADATA_PREFIX.length());
+                if ("GET".equals(method) && "list=true".equals(ex.getRequestURI().getQuery())) {
+                    listSecrets(ex, secret);
+                } else if ("GET".equals(method)) {
+                    readMetadata(ex, secret);
+                } else if (metadataWritesForbidden) {
+                    ObjectNode err = objectMapper.createObjectNode();
+                    err.putArray("errors").add("1 error occurred:\n\t* permission denied");
+                    send(ex, 403, err);
+                } else {
+                    send(ex, 204, null);
+                }
+            } else {
+                notFound(ex);
+            }
+        } catch (Exception e) {
+            send(ex, 500, objectMapper.createObjectNode().put("error", String.valueOf(e.getMessage())));
+        } finally {
+            ex.close();
+        }
+    }
+
+    private boolean injectFault(HttpExchange ex) throws IOException {
+        long delay = latencyMs;
+        long jitter = latencyJitterMs;
+        if (jitter > 0) {
+            delay += ThreadLocalRandom.current().nextLong(jitter + 1);
+        }
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        double rate = errorRate;
+        if (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate) {
+            injectedErrors.incrementAndGet();
+            ObjectNode err = objectMapper.createObjectNode();
+            err.putArray("errors").add("injected fault: Vault is sealed");
+            send(ex, 503, err);
+            return true;
+        }
+        return false;
+    }
+
+    private void readData(HttpExchange ex, String secret) throws IOException {
+        int version;
+        JsonNode secretData;
+        synchronized (this) {
+            List<JsonNode> versions = secrets.get(secret);
+            if (versions == null || versions.isEmpty()) {
+                notFound(ex);
+                return;
+            }
+            version = versions.size();
+            String query = ex.getRequestURI().getQuery();
+            if (query != null && query.startsWith("version=")) {
+                version = Integer.parseInt(query.substring("version=".length()));
+            }
+            if (version < 1 || version > versions.size()) {
+                notFound(ex);
+                return;
+            }
+            secretData = versions.get(version - 1);
+        }
+        ObjectNode root = objectMapper.createObjectNode();
+        ObjectNode data = root.putObject("data");
+        data.set("data", secretData);
+        data.putObject("metadata").put("version", version);
+        send(ex, 200, root);
+    }
+
+    private void writeData(HttpExchange ex, String secret, byte[] requestBody) throws IOException {
+        JsonNode body = objectMapper.readTree(requestBody);
+        int version;
+        synchronized (this) {
+            List<JsonNode> versions = secrets.computeIfAbsent(secret, k -> new ArrayList<>());
+            JsonNode cas = body.path("options").path("cas");
+            if (!cas.isMissingNode() && cas.asInt() != versions.size()) {
+                ObjectNode err = objectMapper.createObjectNode();
+                err.putArray("errors").add("check-and-set parameter did not match the current version");
+                send(ex, 400, err);
+                return;
+            }
+            versions.add(body.path("data"));
+            version = versions.size();
+        }
+        ObjectNode root = objectMapper.createObjectNode();
+        root.putObject("data").put("version", version);
+        send(ex, 200, root);
+    }
+
+    private void readMetadata(HttpExchange ex, String secret) throws IOException {
+        int current;
+        synchronized (this) {
+            List<JsonNode> versions = secrets.get(secret);
+            current = versions == null ? 0 : versions.size();
+        }
+        if (current == 0) {
+            notFound(ex);
+            return;
+        }
+        ObjectNode root = objectMapper.createObjectNode();
+        root.putObject("data").put("current_version", current);
+        send(ex, 200, root);
+    }
+
+    // LIST secret/metadata/<prefix>: имена на один уровень ниже, "подкаталоги" - с '/' на конце
+    private void listSecrets(HttpExchange ex, String prefix) throws IOException {
+        String dir = prefix.endsWith("/") ? prefix : prefix + "/";
+        TreeSet<String> names = new TreeSet<>();
+        synchronized (this) {
+            for (String secret : secrets.keySet()) {
+                if (secret.startsWith(dir)) {
+                    String rest = secret.substring(dir.length());
+                    int slash = rest.indexOf('/');
+                    names.add(slash < 0 ? rest : rest.substring(0, slash + 1));
+                }
+            }
+        }
+        if (names.isEmpty()) {
+            notFound(ex);
+            return;
+        }
+        ObjectNode root = objectMapper.createObjectNode();
+        ArrayNode keys = root.putObject("data").putArray("keys");
+        for (String name : names) {
+            keys.add(name);
+        }
+        send(ex, 200, root);
+    }
+
+    private void notFound(HttpExchange ex) throws IOException {
+        ObjectNode root = objectMapper.createObjectNode();
+        root.putArray("errors");
+        send(ex, 404, root);
+    }
+
+    private void send(HttpExchange ex, int status, JsonNode body) throws IOException {
+        if (body == null) {
+            ex.sendResponseHeaders(status, -1);
+            return;
+        }
+        byte[] bytes = objectMapper.writeValueAsString(body).getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", "application/json");
+        ex.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = ex.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+}
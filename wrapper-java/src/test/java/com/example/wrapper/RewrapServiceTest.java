@@ -0,0 +1,237 @@
+package com.example.wrapper;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Фоновый rewrap на InMemoryRewrapSource и заглушке Vault: продолжение с checkpoint,
+ * конфликт с параллельной записью, пропуск уже перешифрованных полей, ограничение скорости.
+ */
+class RewrapServiceTest {
+
+    private static final String FIELD = "phone";
+
+    @TempDir
+    Path dir;
+
+    private InProcessVaultStub vault;
+    private VaultKeyService vaultKeyService;
+    private FieldCryptoService fieldCryptoService;
+    private Path checkpoint;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        vault = InProcessVaultStub.start();
+        vaultKeyService = new VaultKeyService(VaultHttpClient.withDefaults(vault.url(), "root", CryptoMetrics.inMemory()),
+                1000, EnvelopeSettings.disabled());
+        CryptoMetrics metrics = CryptoMetrics.inMemory();
+        fieldCryptoService = new FieldCryptoService(vaultKeyService, new DerivedKeyCache(vaultKeyService, metrics, 100, 300),
+                metrics, DecryptCoalescer.disabled());
+        checkpoint = dir.resolve("rewrap-checkpoint.json");
+    }
+
+    @AfterEach
+    void tearDown() {
+        vault.close();
+    }
+
+    @Test
+    void rewrapsOldFieldsAndSkipsCurrentOnes() throws Exception {
+        InMemoryRewrapSource source = new InMemoryRewrapSource();
+        fill(source, 5);
+        vaultKeyService.rotateAesMasterKey();
+        String current = vaultKeyService.getKeyId();
+        source.put("user-00", "birth_date", encrypt("user-00", "birth_date", "1990-01-01"));
+
+        RewrapService rewrap = newService(source, 2, 0);
+        assertTrue(rewrap.start());
+        awaitState(rewrap, RewrapService.State.COMPLETED);
+
+        assertEquals(5, rewrap.getScanned());
+        assertEquals(5, rewrap.getRewrapped());
+        assertEquals(1, rewrap.getSkipped());
+        assertEquals(0, rewrap.getConflicts());
+        assertEquals(0, rewrap.getFailed());
+        for (int i = 0; i < 5; i++) {
+            String ciphertext = source.get(user(i), FIELD);
+            assertEquals(current, fieldCryptoService.keyIdOf(ciphertext));
+            assertEquals("value-" + i, fieldCryptoService.decrypt(user(i), FIELD, ciphertext, null));
+        }
+        assertTrue(readCheckpoint().contains("\"state\":\"COMPLETED\""));
+    }
+
+    @Test
+    void resumesFromCheckpointAfterRestart() throws Exception {
+        RecordingSource source = new RecordingSource();
+        fill(source, 10);
+        String before = source.get(user(3), FIELD);
+        vaultKeyService.rotateAesMasterKey();
+        // процесс упал посреди задачи: checkpoint в RUNNING, обработаны user-00..user-04
+        Files.write(checkpoint, ("{\"state\":\"RUNNING\",\"source\":\"in-memory\",\"target_key_id\":\"" +
+                vaultKeyService.getKeyId() + "\",\"cursor\":\"user-04\",\"scanned\":5,\"rewrapped\":5," +
+                "\"skipped\":0,\"conflicts\":0,\"failed\":0,\"updated_at\":0}").getBytes(StandardCharsets.UTF_8));
+
+        RewrapService rewrap = newService(source, 3, 0);
+        rewrap.resumeAfterRestart();
+        awaitState(rewrap, RewrapService.State.COMPLETED);
+
+        assertEquals("user-04", source.cursors.get(0));
+        assertEquals(10, rewrap.getScanned());
+        assertEquals(10, rewrap.getRewrapped());
+        // записи до курсора не перечитывались
+        assertEquals(before, source.get(user(3), FIELD));
+        assertEquals(vaultKeyService.getKeyId(), fieldCryptoService.keyIdOf(source.get(user(5), FIELD)));
+    }
+
+    @Test
+    void stoppedJobContinuesFromItsCursor() throws Exception {
+        RecordingSource source = new RecordingSource();
+        fill(source, 6);
+        vaultKeyService.rotateAesMasterKey();
+
+        // 1 запись/с: после первой страницы задача спит ~2 с - останавливаем в это время
+        RewrapService first = newService(source, 2, 1);
+        assertTrue(first.start());
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (first.getScanned() < 2 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        first.stop();
+        awaitState(first, RewrapService.State.STOPPED);
+        String cursor = first.getCursor();
+        assertEquals("user-01", cursor);
+
+        source.cursors.clear();
+        RewrapService second = newService(source, 2, 0);
+        assertTrue(second.start());
+        awaitState(second, RewrapService.State.COMPLETED);
+
+        assertEquals(cursor, source.cursors.get(0));
+        assertEquals(6, second.getScanned());
+        assertEquals(6, second.getRewrapped());
+    }
+
+    @Test
+    void concurrentWriteWinsOverRewrap() throws Exception {
+        InMemoryRewrapSource source = new InMemoryRewrapSource() {
+            private boolean raced;
+
+            @Override
+            public boolean[] applyReplacements(List<RewrapSource.Replacement> replacements) {
+                if (!raced) {
+                    // пользователь обновил поле, пока rewrap перешифровывал старое значение
+                    raced = true;
+                    put(user(1), FIELD, "written-by-user");
+                }
+                return super.applyReplacements(replacements);
+            }
+        };
+        fill(source, 3);
+        vaultKeyService.rotateAesMasterKey();
+
+        RewrapService rewrap = newService(source, 10, 0);
+        assertTrue(rewrap.start());
+        awaitState(rewrap, RewrapService.State.COMPLETED);
+
+        assertEquals(1, rewrap.getConflicts());
+        assertEquals(2, rewrap.getRewrapped());
+        assertEquals("written-by-user", source.get(user(1), FIELD));
+    }
+
+    @Test
+    void throttlesToMaxRecordsPerSecond() throws Exception {
+        InMemoryRewrapSource source = new InMemoryRewrapSource();
+        fill(source, 10);
+        vaultKeyService.rotateAesMasterKey();
+
+        // 20 записей/с: после страниц по 5 - паузы до 250 и 500 мс от старта
+        RewrapService rewrap = newService(source, 5, 20);
+        long started = System.nanoTime();
+        assertTrue(rewrap.start());
+        awaitState(rewrap, RewrapService.State.COMPLETED);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+
+        assertEquals(10, rewrap.getRewrapped());
+        assertTrue(elapsedMillis >= 450, "finished in " + elapsedMillis + "ms, expected >= 500ms at 20 records/s");
+    }
+
+    @Test
+    void unconfiguredSourceRefusesToStart() {
+        RewrapService rewrap = newService(RewrapSource.unconfigured("DB_URL is not set"), 10, 0);
+
+        assertFalse(rewrap.start());
+
+        assertEquals(RewrapService.State.FAILED, rewrap.getState());
+        assertTrue(rewrap.getLastError().contains("DB_URL is not set"), rewrap.getLastError());
+        assertFalse(Files.exists(checkpoint));
+    }
+
+    @Test
+    void unconfiguredSourceDoesNotResumeOnStartup() throws Exception {
+        Files.write(checkpoint, "{\"state\":\"RUNNING\"}".getBytes(StandardCharsets.UTF_8));
+        RewrapService rewrap = newService(RewrapSource.unconfigured("DB_URL is not set"), 10, 0);
+
+        rewrap.resumeAfterRestart();
+
+        assertEquals(RewrapService.State.IDLE, rewrap.getState());
+        assertNull(rewrap.getLastError());
+    }
+
+    /**
+     * Запоминает, с какого курсора запрашивались страницы.
+     */
+    private static class RecordingSource extends InMemoryRewrapSource {
+        final List<String> cursors = new CopyOnWriteArrayList<>();
+
+        @Override
+        public List<RewrapSource.Row> fetchPage(String afterCursor, int limit) {
+            cursors.add(afterCursor);
+            return super.fetchPage(afterCursor, limit);
+        }
+    }
+
+    private RewrapService newService(RewrapSource source, int batchSize, int maxRecordsPerSecond) {
+        return new RewrapService(source, fieldCryptoService, vaultKeyService, batchSize, 2, maxRecordsPerSecond,
+                checkpoint.toString(), false, true);
+    }
+
+    private void fill(InMemoryRewrapSource source, int users) throws Exception {
+        for (int i = 0; i < users; i++) {
+            source.put(user(i), FIELD, encrypt(user(i), FIELD, "value-" + i));
+        }
+    }
+
+    private String encrypt(String userId, String field, String plaintext) throws Exception {
+        return fieldCryptoService.encrypt(vaultKeyService.getAesKeyring().current(), userId, field, plaintext);
+    }
+
+    private static String user(int i) {
+        return String.format("user-%02d", i);
+    }
+
+    private String readCheckpoint() throws Exception {
+        return new String(Files.readAllBytes(checkpoint), StandardCharsets.UTF_8);
+    }
+
+    private static void awaitState(RewrapService rewrap, RewrapService.State expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (rewrap.getState() != expected && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(expected, rewrap.getState(), "last_error=" + rewrap.getLastError());
+    }
+}
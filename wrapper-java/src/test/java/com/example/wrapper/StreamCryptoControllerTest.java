@@ -0,0 +1,215 @@
+package com.example.wrapper;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * /crypto/decrypt-stream поверх настоящего Tomcat: если поток обрезан или сегменты
+ * переставлены, уже отправленный ответ обрывается без завершающего чанка
+ * (иначе клиент принял бы проверенный префикс за весь открытый текст).
+ */
+class StreamCryptoControllerTest {
+
+    private static final int SEGMENT_SIZE = 16384;
+    // [версия][длина key_id][key_id = master-v1][размер сегмента][salt]
+    private static final int HEADER_LENGTH = 2 + "master-v1".length() + 4 + 16;
+    private static final int SEALED_SEGMENT = SEGMENT_SIZE + CiphertextEnvelope.TAG_LENGTH_BYTES;
+    private static final String QUERY = "?user_id=user-1&field=document";
+
+    private static InProcessVaultStub vault;
+    private static ConfigurableApplicationContext context;
+    private static int port;
+
+    @BeforeAll
+    static void startApplication() throws Exception {
+        vault = InProcessVaultStub.start();
+        Path dir = Files.createTempDirectory("stream-crypto-test");
+        context = SpringApplication.run(Application.class,
+                "--server.port=0",
+                "--VAULT_ADDR=" + vault.url(),
+                "--VAULT_TOKEN=root",
+                "--crypto.stream.segment-size=" + SEGMENT_SIZE,
+                "--crypto.provider.calibration.enabled=false",
+                "--crypto.admission.enabled=false",
+                "--crypto.rewrap.checkpoint-file=" + dir.resolve("rewrap-checkpoint.json"));
+        port = ((WebServerApplicationContext) context).getWebServer().getPort();
+    }
+
+    @AfterAll
+    static void stopApplication() {
+        if (context != null) {
+            context.close();
+        }
+        if (vault != null) {
+            vault.close();
+        }
+    }
+
+    @Test
+    void completeStreamEndsWithTerminatingChunk() throws Exception {
+        byte[] plaintext = plaintext(3 * SEGMENT_SIZE + 100);
+
+        ChunkedResponse response = post("/crypto/decrypt-stream", encrypt(plaintext));
+
+        assertEquals(200, response.status);
+        assertTrue(response.complete);
+        assertArrayEquals(plaintext, response.body);
+    }
+
+    @Test
+    void truncatedStreamIsCutOffWithoutTerminatingChunk() throws Exception {
+        byte[] plaintext = plaintext(3 * SEGMENT_SIZE + 100);
+        byte[] stream = encrypt(plaintext);
+        // обрыв на границе сегментов: остаток всё ещё делится на целые сегменты
+        byte[] truncated = Arrays.copyOf(stream, HEADER_LENGTH + 2 * SEALED_SEGMENT);
+
+        ChunkedResponse response = post("/crypto/decrypt-stream", truncated);
+
+        assertEquals(200, response.status);
+        assertFalse(response.complete, "truncated stream must not end with the terminating chunk");
+        assertVerifiedPrefix(plaintext, response.body);
+    }
+
+    @Test
+    void reorderedSegmentsAreCutOffWithoutTerminatingChunk() throws Exception {
+        byte[] plaintext = plaintext(3 * SEGMENT_SIZE + 100);
+        byte[] stream = encrypt(plaintext);
+        byte[] reordered = stream.clone();
+        int second = HEADER_LENGTH + SEALED_SEGMENT;
+        int third = HEADER_LENGTH + 2 * SEALED_SEGMENT;
+        System.arraycopy(stream, second, reordered, third, SEALED_SEGMENT);
+        System.arraycopy(stream, third, reordered, second, SEALED_SEGMENT);
+
+        ChunkedResponse response = post("/crypto/decrypt-stream", reordered);
+
+        assertEquals(200, response.status);
+        assertFalse(response.complete, "reordered stream must not end with the terminating chunk");
+        assertVerifiedPrefix(plaintext, response.body);
+    }
+
+    /**
+     * До обрыва клиент получает только проверенные сегменты (и, возможно, хвост страницы ошибки),
+     * но никогда - весь открытый текст.
+     */
+    private static void assertVerifiedPrefix(byte[] plaintext, byte[] body) {
+        assertTrue(body.length >= SEGMENT_SIZE, "first segment was verified and sent, got " + body.length);
+        assertArrayEquals(Arrays.copyOf(plaintext, SEGMENT_SIZE), Arrays.copyOf(body, SEGMENT_SIZE));
+        assertFalse(Arrays.equals(plaintext, body));
+    }
+
+    private static byte[] encrypt(byte[] plaintext) throws IOException {
+        ChunkedResponse response = post("/crypto/encrypt-stream", plaintext);
+        assertEquals(200, response.status);
+        assertTrue(response.complete);
+        return response.body;
+    }
+
+    /**
+     * Сырой HTTP/1.1: HttpClient не отличает обрыв от конца тела так явно, как разбор чанков.
+     */
+    private static ChunkedResponse post(String path, byte[] body) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(30000);
+            OutputStream out = socket.getOutputStream();
+            String head = "POST " + path + QUERY + " HTTP/1.1\r\n" +
+                    "Host: localhost\r\n" +
+                    "Content-Type: application/octet-stream\r\n" +
+                    "Content-Length: " + body.length + "\r\n" +
+                    "Connection: close\r\n\r\n";
+            out.write(head.getBytes(StandardCharsets.US_ASCII));
+            out.write(body);
+            out.flush();
+
+            InputStream in = socket.getInputStream();
+            ChunkedResponse response = new ChunkedResponse();
+            String statusLine = readLine(in);
+            response.status = Integer.parseInt(statusLine.split(" ")[1]);
+            boolean chunked = false;
+            for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+                if (line.toLowerCase().startsWith("transfer-encoding:") && line.toLowerCase().contains("chunked")) {
+                    chunked = true;
+                }
+            }
+            assertTrue(chunked, "streaming response is expected to be chunked");
+
+            ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+            try {
+                while (true) {
+                    int size = Integer.parseInt(readLine(in).trim(), 16);
+                    if (size == 0) {
+                        readLine(in);
+                        response.complete = true;
+                        break;
+                    }
+                    byte[] chunk = new byte[size];
+                    readFully(in, chunk);
+                    decoded.write(chunk);
+                    readLine(in);
+                }
+            } catch (EOFException e) {
+                // соединение закрыто посреди тела - ответ неполный
+            }
+            response.body = decoded.toByteArray();
+            return response;
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("connection closed");
+            }
+            if (b == '\n') {
+                int last = sb.length() - 1;
+                return last >= 0 && sb.charAt(last) == '\r' ? sb.substring(0, last) : sb.toString();
+            }
+            sb.append((char) b);
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] buf) throws IOException {
+        int off = 0;
+        while (off < buf.length) {
+            int n = in.read(buf, off, buf.length - off);
+            if (n < 0) {
+                throw new EOFException("connection closed");
+            }
+            off += n;
+        }
+    }
+
+    private static byte[] plaintext(int length) {
+        byte[] plaintext = new byte[length];
+        new Random(42).nextBytes(plaintext);
+        return plaintext;
+    }
+
+    private static class ChunkedResponse {
+        int status;
+        boolean complete;
+        byte[] body;
+    }
+}
@@ -0,0 +1,108 @@
+package com.example.wrapper;
+
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Формат StreamingAead: целый поток расшифровывается, любая правка потока - IllegalArgumentException.
+ */
+class StreamingAeadTest {
+
+    private static final String KEY_ID = "k1";
+    private static final int SEGMENT_SIZE = 64;
+    private static final int TAG_LENGTH = CiphertextEnvelope.TAG_LENGTH_BYTES;
+    // [версия][длина key_id][key_id][размер сегмента][salt]
+    private static final int HEADER_LENGTH = 2 + KEY_ID.length() + 4 + 16;
+    private static final int SEALED_SEGMENT = SEGMENT_SIZE + TAG_LENGTH;
+
+    private static final SecretKeySpec USER_KEY = new SecretKeySpec(new byte[32], "AES");
+
+    @Test
+    void roundTripExactMultipleOfSegmentSize() throws Exception {
+        byte[] plaintext = plaintext(3 * SEGMENT_SIZE);
+        byte[] stream = encrypt(plaintext);
+
+        // три полных сегмента, последний помечен флагом - пустого хвостового сегмента нет
+        assertEquals(HEADER_LENGTH + 3 * SEALED_SEGMENT, stream.length);
+        assertArrayEquals(plaintext, decrypt(stream));
+    }
+
+    @Test
+    void roundTripShortLastSegment() throws Exception {
+        byte[] plaintext = plaintext(2 * SEGMENT_SIZE + 5);
+        assertArrayEquals(plaintext, decrypt(encrypt(plaintext)));
+    }
+
+    @Test
+    void droppedFinalSegmentIsRejected() throws Exception {
+        byte[] stream = encrypt(plaintext(3 * SEGMENT_SIZE));
+        // без последнего сегмента поток по-прежнему делится на целые сегменты
+        byte[] truncated = Arrays.copyOf(stream, stream.length - SEALED_SEGMENT);
+
+        assertThrows(IllegalArgumentException.class, () -> decrypt(truncated));
+    }
+
+    @Test
+    void swappedSegmentsAreRejected() throws Exception {
+        byte[] stream = encrypt(plaintext(3 * SEGMENT_SIZE));
+        byte[] swapped = stream.clone();
+        System.arraycopy(stream, HEADER_LENGTH, swapped, HEADER_LENGTH + SEALED_SEGMENT, SEALED_SEGMENT);
+        System.arraycopy(stream, HEADER_LENGTH + SEALED_SEGMENT, swapped, HEADER_LENGTH, SEALED_SEGMENT);
+
+        assertThrows(IllegalArgumentException.class, () -> decrypt(swapped));
+    }
+
+    @Test
+    void appendedTrailingBytesAreRejected() throws Exception {
+        byte[] stream = encrypt(plaintext(2 * SEGMENT_SIZE + 5));
+        byte[] extended = Arrays.copyOf(stream, stream.length + 3);
+
+        assertThrows(IllegalArgumentException.class, () -> decrypt(extended));
+    }
+
+    @Test
+    void modifiedHeaderIsRejected() throws Exception {
+        byte[] stream = encrypt(plaintext(2 * SEGMENT_SIZE));
+        byte[] modified = stream.clone();
+        modified[HEADER_LENGTH - 1] ^= 0x01; // последний байт salt
+
+        assertThrows(IllegalArgumentException.class, () -> decrypt(modified));
+    }
+
+    private static byte[] plaintext(int length) {
+        byte[] plaintext = new byte[length];
+        for (int i = 0; i < length; i++) {
+            plaintext[i] = (byte) i;
+        }
+        return plaintext;
+    }
+
+    private static byte[] encrypt(byte[] plaintext) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long bytes = StreamingAead.encrypt(USER_KEY, KEY_ID, SEGMENT_SIZE, new ByteArrayInputStream(plaintext), out);
+        assertEquals(plaintext.length, bytes);
+        byte[] stream = out.toByteArray();
+        assertArrayEquals(KEY_ID.getBytes(StandardCharsets.UTF_8), Arrays.copyOfRange(stream, 2, 2 + KEY_ID.length()));
+        return stream;
+    }
+
+    private static byte[] decrypt(byte[] stream) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StreamingAead.decrypt(keyId -> {
+            if (!KEY_ID.equals(keyId)) {
+                throw new IllegalArgumentException("unknown key_id " + keyId);
+            }
+            return USER_KEY;
+        }, new ByteArrayInputStream(stream), out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,55 @@
+package com.example.wrapper;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.method.annotation.ExceptionHandlerMethodResolver;
+
+import java.lang.reflect.Method;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/**
+ * Недоступный Vault - 503 с кодом ошибки и Retry-After, если он известен.
+ */
+class VaultErrorHandlerTest {
+
+    private final VaultErrorHandler handler = new VaultErrorHandler();
+
+    @Test
+    void circuitOpenMapsTo503WithRetryAfter() {
+        ResponseEntity<VaultErrorHandler.ErrorResponse> response = handler.vaultUnavailable(
+                new VaultUnavailableException(VaultUnavailableException.VAULT_CIRCUIT_OPEN,
+                        "Vault is unavailable", 7, null));
+
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, response.getStatusCode());
+        assertEquals("7", response.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+        assertEquals(VaultUnavailableException.VAULT_CIRCUIT_OPEN, response.getBody().error);
+        assertEquals("Vault is unavailable", response.getBody().message);
+    }
+
+    @Test
+    void unknownRetryDelayOmitsRetryAfter() {
+        ResponseEntity<VaultErrorHandler.ErrorResponse> response = handler.vaultUnavailable(
+                new VaultUnavailableException(VaultUnavailableException.VAULT_TIMEOUT, "timed out", 0, null));
+
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, response.getStatusCode());
+        assertFalse(response.getHeaders().containsKey(HttpHeaders.RETRY_AFTER));
+        assertEquals(VaultUnavailableException.VAULT_TIMEOUT, response.getBody().error);
+    }
+
+    @Test
+    void handlerIsFoundForWrappedException() throws Exception {
+        // так Spring выбирает @ExceptionHandler: по самому исключению, затем по причинам
+        ExceptionHandlerMethodResolver resolver = new ExceptionHandlerMethodResolver(VaultErrorHandler.class);
+
+        Method method = resolver.resolveMethodByThrowable(new RuntimeException("rotate failed",
+                new VaultUnavailableException(VaultUnavailableException.VAULT_UNAVAILABLE, "down", 0, null)));
+
+        assertNotNull(method);
+        assertEquals("vaultUnavailable", method.getName());
+    }
+}
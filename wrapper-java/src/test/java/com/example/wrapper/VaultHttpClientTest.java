@@ -0,0 +1,146 @@
+package com.example.wrapper;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.http.HttpResponse;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Circuit breaker VaultHttpClient на заглушке Vault: замкнут - ошибки проходят насквозь,
+ * разомкнут - отказ без запроса, полуоткрыт - ровно один пробный вызов.
+ */
+class VaultHttpClientTest {
+
+    private static final int FAILURE_THRESHOLD = 3;
+    private static final long OPEN_SECONDS = 1;
+
+    private InProcessVaultStub vault;
+    private VaultHttpClient client;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        vault = InProcessVaultStub.start();
+        client = new VaultHttpClient(vault.url(), "root", "HTTP_1_1", 2000, 3000, 4,
+                FAILURE_THRESHOLD, OPEN_SECONDS, CryptoMetrics.inMemory());
+    }
+
+    @AfterEach
+    void tearDown() {
+        client.shutdown();
+        vault.close();
+    }
+
+    @Test
+    void closedCircuitPassesErrorsThroughUntilThreshold() throws Exception {
+        vault.injectErrors(1.0);
+
+        for (int i = 1; i < FAILURE_THRESHOLD; i++) {
+            assertEquals(503, read().statusCode());
+            assertEquals(VaultHttpClient.STATE_CLOSED, client.getCircuitState());
+            assertEquals(i, client.getConsecutiveFailures());
+        }
+        assertEquals(503, read().statusCode());
+
+        assertEquals(VaultHttpClient.STATE_OPEN, client.getCircuitState());
+    }
+
+    @Test
+    void successResetsConsecutiveFailures() throws Exception {
+        vault.injectErrors(1.0);
+        for (int i = 1; i < FAILURE_THRESHOLD; i++) {
+            read();
+        }
+        vault.injectErrors(0);
+
+        read();
+
+        assertEquals(0, client.getConsecutiveFailures());
+        assertEquals(VaultHttpClient.STATE_CLOSED, client.getCircuitState());
+    }
+
+    @Test
+    void openCircuitFailsFastWithoutCallingVault() throws Exception {
+        openCircuit();
+        long requests = vault.getRequests();
+
+        VaultUnavailableException e = assertThrows(VaultUnavailableException.class, this::read);
+
+        assertEquals(VaultUnavailableException.VAULT_CIRCUIT_OPEN, e.getCode());
+        assertTrue(e.getRetryAfterSeconds() >= 1 && e.getRetryAfterSeconds() <= OPEN_SECONDS + 1,
+                "retry_after=" + e.getRetryAfterSeconds());
+        assertNull(e.getCause());
+        assertEquals(requests, vault.getRequests());
+    }
+
+    @Test
+    void halfOpenCircuitLetsSingleProbeThroughAndClosesOnSuccess() throws Exception {
+        openCircuit();
+        awaitHalfOpen();
+        vault.injectErrors(0);
+        vault.injectLatency(500, 0);
+        long requests = vault.getRequests();
+
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            Future<HttpResponse<String>> probe = pool.submit(this::read);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (vault.getRequests() == requests && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+
+            // пока проба в полёте, остальные вызовы отказывают сразу
+            VaultUnavailableException e = assertThrows(VaultUnavailableException.class, this::read);
+            assertEquals(VaultUnavailableException.VAULT_CIRCUIT_OPEN, e.getCode());
+
+            assertEquals(404, probe.get(5, TimeUnit.SECONDS).statusCode());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertEquals(requests + 1, vault.getRequests());
+        assertEquals(VaultHttpClient.STATE_CLOSED, client.getCircuitState());
+        assertEquals(0, client.getConsecutiveFailures());
+    }
+
+    @Test
+    void failedProbeReopensCircuit() throws Exception {
+        openCircuit();
+        awaitHalfOpen();
+
+        assertEquals(503, read().statusCode());
+
+        assertEquals(VaultHttpClient.STATE_OPEN, client.getCircuitState());
+        assertEquals(FAILURE_THRESHOLD + 1, client.getConsecutiveFailures());
+        assertThrows(VaultUnavailableException.class, this::read);
+    }
+
+    private void openCircuit() throws Exception {
+        vault.injectErrors(1.0);
+        for (int i = 0; i < FAILURE_THRESHOLD; i++) {
+            read();
+        }
+        assertEquals(VaultHttpClient.STATE_OPEN, client.getCircuitState());
+    }
+
+    private void awaitHalfOpen() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(OPEN_SECONDS + 5);
+        while (client.getCircuitState() != VaultHttpClient.STATE_HALF_OPEN && System.nanoTime() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(VaultHttpClient.STATE_HALF_OPEN, client.getCircuitState());
+    }
+
+    private HttpResponse<String> read() throws Exception {
+        return client.send(client.request("secret/data/circuit-test").GET().build(), "read_circuit_test");
+    }
+}
@@ -0,0 +1,133 @@
+package com.example.wrapper;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Ротация мастер-ключа на заглушке Vault: что пишется в KV и когда ротация отказывает.
+ */
+class VaultKeyServiceTest {
+
+    private static final String MASTER_KEY = "crypto/master-key";
+
+    private InProcessVaultStub vault;
+    private VaultKeyService vaultKeyService;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        vault = InProcessVaultStub.start();
+        vaultKeyService = newVaultKeyService();
+    }
+
+    @AfterEach
+    void tearDown() {
+        vault.close();
+    }
+
+    @Test
+    void rotationKeepsWritingPrevKeyHexForPreviousRelease() throws Exception {
+        String oldKeyId = vaultKeyService.getKeyId();
+        String oldKeyHex = hex(vaultKeyService.getAesKey().getEncoded());
+
+        vaultKeyService.rotateAesMasterKey();
+
+        JsonNode doc = vault.latest(MASTER_KEY);
+        assertEquals(vaultKeyService.getKeyId(), doc.path("current_key_id").asText());
+        assertEquals(oldKeyId, doc.path("prev_key_id").asText());
+        assertEquals(oldKeyHex, doc.path("prev_key_hex").asText());
+    }
+
+    @Test
+    void rotationIsRefusedWhenHistoryLimitCannotBeRaised() {
+        String keyId = vaultKeyService.getKeyId();
+        int versions = vault.versions(MASTER_KEY);
+        vault.forbidMetadataWrites(true);
+
+        RuntimeException e = assertThrows(RuntimeException.class, () -> vaultKeyService.rotateAesMasterKey());
+
+        assertTrue(e.getMessage().contains("max_versions"), e.getMessage());
+        assertEquals(keyId, vaultKeyService.getKeyId());
+        assertEquals(versions, vault.versions(MASTER_KEY));
+    }
+
+    @Test
+    void rotationOnStaleReplicaLosesCheckAndSetAndRetriesOnTop() throws Exception {
+        // вторая реплика загрузила ключи до ротации на первой и ещё не сверилась с Vault
+        VaultKeyService stale = newVaultKeyService();
+        assertEquals("master-v1", stale.getKeyId());
+
+        vaultKeyService.rotateAesMasterKey();
+        assertEquals("master-v2", vaultKeyService.getKeyId());
+        int versions = vault.versions(MASTER_KEY);
+
+        stale.rotateAesMasterKey();
+
+        // проигранная запись не создала второй master-v2: ротация легла поверх чужой
+        assertEquals("master-v3", stale.getKeyId());
+        assertEquals(versions + 1, vault.versions(MASTER_KEY));
+        JsonNode doc = vault.latest(MASTER_KEY);
+        assertEquals("master-v3", doc.path("current_key_id").asText());
+        assertEquals("master-v2", doc.path("prev_key_id").asText());
+        assertArrayEquals(vaultKeyService.getAesKey().getEncoded(),
+                stale.getAesKeyByIdOrNull("master-v2").getEncoded());
+    }
+
+    @Test
+    void concurrentRotationsOnTwoReplicasIssueDistinctKeyIds() throws Exception {
+        VaultKeyService other = newVaultKeyService();
+        CountDownLatch go = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> first = pool.submit(() -> {
+                go.await();
+                vaultKeyService.rotateAesMasterKey();
+                return null;
+            });
+            Future<?> second = pool.submit(() -> {
+                go.await();
+                other.rotateAesMasterKey();
+                return null;
+            });
+            go.countDown();
+            first.get(10, TimeUnit.SECONDS);
+            second.get(10, TimeUnit.SECONDS);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        Set<String> ids = new HashSet<>();
+        ids.add(vaultKeyService.getKeyId());
+        ids.add(other.getKeyId());
+        assertEquals(new HashSet<>(Arrays.asList("master-v2", "master-v3")), ids);
+        assertEquals("master-v3", vault.latest(MASTER_KEY).path("current_key_id").asText());
+    }
+
+    private VaultKeyService newVaultKeyService() {
+        return new VaultKeyService(VaultHttpClient.withDefaults(vault.url(), "root", CryptoMetrics.inMemory()),
+                1000, EnvelopeSettings.disabled());
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b & 0xFF));
+        }
+        return sb.toString();
+    }
+}